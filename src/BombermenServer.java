@@ -0,0 +1,26 @@
+
+/*
+ * Created on October 18, 2026
+ */
+
+import classes.server.DedicatedServer;
+
+/**
+ * The main class of the dedicated server of Bombermen.
+ * Holds the public static main method, and does nothing else
+ * but creates a classes.server.DedicatedServer object.
+ *
+ * @author Andras Belicza
+ */
+public class BombermenServer {
+
+    /**
+     * This is the entry point of the dedicated server.
+     * Makes a DedicatedServer instance and thats all.
+     * @param arguments the command line arguments configuring the server
+     */
+    public static void main( final String[] arguments ) {
+		new DedicatedServer( arguments );
+    }
+    
+}
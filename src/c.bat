@@ -1,4 +1,4 @@
 @call clean.bat -nobaks
 @echo off
 echo Compiling...
-javac -classpath . Bombermen.java
+javac -classpath . Bombermen.java BombermenServer.java classes/utils/TransportBenchmark.java
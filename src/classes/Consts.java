@@ -16,7 +16,7 @@ public class Consts {
     /** Name of the application.    */
     public static final String APPLICATION_NAME        = "Bombermen";
     /** Version of the application. */
-    public static final String APPLICATION_VERSION     = "0.69";
+    public static final String APPLICATION_VERSION     = "0.70";
     
     /** Name of the directory containing the levels.                             */
     public static final String LEVELS_DIRECTORY_NAME   = "levels/";
@@ -13,6 +13,7 @@ import java.io.*;
 import static classes.Consts.*;
 import classes.MainMenuBar.GameStates;
 import classes.server.Server;
+import classes.server.ServerHost;
 import classes.client.Client;
 import classes.client.ConnectingToServerFailedException;
 import javax.swing.JOptionPane;
@@ -68,6 +69,33 @@ public class GameManager implements MainMenuHandler, OptionsChangeListener< Clie
             GameManager.this.optionsChanged( oldOptions, newOptions );
         }
     };
+
+    /**
+     * Server Host. This class is a delegation class to the game manager, it provides the options and the level
+     * for the server, and displays the error messages of the server.
+     */
+    private final ServerHost serverHost = new ServerHost() {
+        public ServerOptions getServerOptions() {
+            return serverOptionsManager.getOptions();
+        }
+        public void registerServerOptionsChangeListener( final OptionsChangeListener< ServerOptions > optionsChangeListener ) {
+            serverOptionsManager.registerOptionsChangeListener( optionsChangeListener );
+        }
+        public void unregisterServerOptionsChangeListener( final OptionsChangeListener< ServerOptions > optionsChangeListener ) {
+            serverOptionsManager.unregisterOptionsChangeListener( optionsChangeListener );
+        }
+        public String getPackedLevel() {
+            return level.packToString();
+        }
+        public void showErrorMessage( final String[] messageLines ) {
+            // Server thread cannot be blocked (messages can arrive while this message is displayed), we show error message in a new thread
+            new Thread() {
+                public void run() {
+                    JOptionPane.showMessageDialog( mainFrame, messageLines, "Error", JOptionPane.ERROR_MESSAGE );
+                }
+            }.start();
+        }
+    };
     
     /**
      * Creates a GameManager. Does all the job needed to start the game.
@@ -266,7 +294,7 @@ public class GameManager implements MainMenuHandler, OptionsChangeListener< Clie
      */
     public void createGame() {
         if ( server == null & client == null ) {     // Checking this condition is not neccessary, action of menu causing invoking of this method is possible only when we're in IDLE state
-            server = new Server( serverOptionsManager, mainFrame, this );
+            server = new Server( serverHost );
             server.start();
             if ( server.waitForAndCheckServerSocket() ) {
                 mainMenuBar.setOurServerRunning( true );
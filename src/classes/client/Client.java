@@ -15,8 +15,13 @@ import classes.options.model.ServerOptions;
 import classes.MainFrame;
 import static classes.MainMenuBar.GameStates;
 import java.net.*;
+import java.io.File;
 import java.io.IOException;
+import java.nio.channels.SocketChannel;
 import classes.utils.ConnectionStub;
+import classes.utils.LoopbackConnectionStub;
+import classes.utils.MappedConnectionStub;
+import classes.utils.ConnectionSelector;
 import classes.server.PlayerCollector;
 import static classes.Consts.*;
 import classes.MessageHandler;
@@ -30,12 +35,13 @@ import classes.MainMenuBar;
 import classes.client.graphics.GraphicsManager;
 import classes.client.graphics.AnimationDatas;
 import static classes.options.ServerComponentOptions.RANDOMLY_GENERATED_LEVEL_NAME;
-import java.util.Random;
+import classes.utils.RestorableRandom;
 
 import classes.client.gamecore.control.GameCoreHandler;
 import classes.client.gamecore.model.level.LevelModel;
 import classes.client.gamecore.view.GameSceneMainComponentHandler;
 
+import java.util.Random;
 import java.util.Vector;
 
 /**
@@ -52,7 +58,29 @@ import java.util.Vector;
  * or none if a Bombermen station is not connected to a game.<br>
  * <br>
  * The client is also TimedIterableControlledThread, because in case of not low network latency
- * client times a few iterations by himself.<br>
+ * client times a few iterations by himself (and in case of rollback network latency all iterations,
+ * see RollbackHandler).<br>
+ * The client thread does not poll: it sleeps until a command arrives from the server or the timer signals.<br>
+ * <br>
+ * A client without players (0 players from the host) is a spectator: it watches the games without taking part
+ * in the lockstep barrier (it never sends READY_FOR_NEXT_ITERATION commands). The commands of the games are released
+ * to spectators by the server, possibly delayed; if more commands are waiting, a spectator does not wait for its timer
+ * in the self timed iterations, so it catches up with the game (for example after joining during a game).
+ * A player does not wait for its timer either if the next iteration window arrives before the self timed iterations
+ * of the last one are finished: it is behind the server (for example the server stopped waiting for it at the barrier deadline).<br>
+ * <br>
+ * In every STATE_CHECKSUM_INTERVAL iterations the client piggybacks the checksum of its game state on the
+ * READY_FOR_NEXT_ITERATION command (in case of rollback network latency the checksum of the last confirmed iteration),
+ * so the server can detect if the game of a client diverged from the others.<br>
+ * <br>
+ * The client sends a HEARTBEAT command to the server in every Server.HEARTBEAT_INTERVAL, and the server does the same,
+ * so the connection to the server is considered lost if nothing has been received from it for Server.LIVENESS_TIMEOUT.
+ * Sending and receiving a message of the connection times out after the same time.<br>
+ * <br>
+ * If the connection is lost during a game (except in case of rollback network latency), the client reconnects to the server
+ * with the session token received when it joined, within Server.RECONNECT_TIMEOUT. The server requests a compact snapshot
+ * of the game state from another client (REQUESTING_STATE_SNAPSHOT), and restores our game from it (RESTORING_GAME, the game
+ * starting protocol, RESTORING_STATE and the missed commands); we catch up with the others as if we were late.<br>
  * <br>
  * The joining protocol is described at the PlayerCollector javadoc.
  *
@@ -84,12 +112,29 @@ public class Client extends TimedIterableControlledThread implements MessageHand
         /** Sending public cilent options command.
          * (if somebody changed its public client options, will be forwarded to us too.) */
         SENDING_PUBLIC_CLIENT_OPTIONS,
-        /** Starting next iteration command.                                             */
-        STARTING_NEXT_ITERATION
+        /** Starting next iteration command
+         * (includes the size of the iteration window and the control key states deltas). */
+        STARTING_NEXT_ITERATION,
+        /** Adjusting the iteration lead command (in case of rollback network latency):
+         * tells how many iterations we have to step ahead (or back if negative).        */
+        ADJUSTING_ITERATION_LEAD,
+        /** Heartbeat command: tells that the server is alive (sent in every Server.HEARTBEAT_INTERVAL). */
+        HEARTBEAT,
+        /** Sending session token command: the token identifying us when we reconnect into a game. */
+        SENDING_SESSION_TOKEN,
+        /** Requesting state snapshot command: we have to send the snapshot of our game state for a reconnecting client. */
+        REQUESTING_STATE_SNAPSHOT,
+        /** Restoring game command (after reconnecting): includes our index and the clients,
+         * followed by the game starting protocol of the game.                            */
+        RESTORING_GAME,
+        /** Restoring state command (after reconnecting): includes the state snapshot of the game. */
+        RESTORING_STATE
     }
 
     /** Identification string of the Bombermen client. */
     public static final String CLIENT_IDENTIFICATION_STRING = APPLICATION_NAME + " client";
+    /** Number of iterations between the state checksums sent to the server. */
+    public static final int    STATE_CHECKSUM_INTERVAL      = 16;
 
     /** Reference to the game manager.                 */
     private final GameManager                     gameManager;
@@ -99,12 +144,18 @@ public class Client extends TimedIterableControlledThread implements MessageHand
     private final OptionsManager< ClientOptions > clientOptionsManager;
     /** Reference to the server options manager.       */
     private final OptionsManager< ServerOptions > globalServerOptionsManager;
-    /** Server stub to communicate through.            */
-    private ConnectionStub                        serverStub;
+    /** Address of the server.                         */
+    private InetSocketAddress                     serverAddress;
+    /** Server stub to communicate through (replaced when we reconnect). */
+    private volatile ConnectionStub               serverStub;
+    /** Selector used to wait for the messages of the server. */
+    private ConnectionSelector< ConnectionStub >  serverStubSelector;
     /** Public client options of the clients.          */
     private final Vector< PublicClientOptions >   clientsPublicClientOptions = new Vector< PublicClientOptions >();
-    /** Our index in the public client options vector. */
+    /** Our index in the public client options vector (-1 if we are a spectator). */
     private int                                   ourIndex;
+    /** Tells whether we are a spectator (we have no players). */
+    private final boolean                         spectator;
 
     /** Handler of the main component being the waiting animation component. */
     private final MainComponentHandler            waitingAnimationMainComponentHandler;
@@ -114,17 +165,40 @@ public class Client extends TimedIterableControlledThread implements MessageHand
     /** Reference to the game core handler.            */
     private GameCoreHandler                       gameCoreHandler;
 	
-	/** Counter of iterations. Used to determine whether we have to wait STARTING_NEXT_ITERATION command
-	 * or we can start next iteration without it based on the network latency.                                 */
+	/** Counter of iterations. Used to tell the server the index of the iteration our control key states belong to,
+	 * and to determine whether we have to redraw the game scene.                                               */
 	private int									  iterationCounter;
-	/** Iteration mask to determine whether next iteraion will be timed by us or the server.
-	 * Capital letters indicates that its value is constant for the whole time of a game.                      */
-	private int                                   ITERATION_NETWORK_LATENCY_MASK;
+	/** Number of iterations in the iteration window of the last STARTING_NEXT_ITERATION command.
+	 * The first iteration of a window is timed by the server, the rest is timed by us.                        */
+	private int                                   iterationWindow;
+	/** Number of iterations left to be timed by us in the current iteration window.                          */
+	private int                                   selfTimedIterationsLeft;
 	/** Iteration mask to determine whether we have to redraw the game scene after calculating next iteration. */
 	private int                                   iterationSceneRefreshMask;
 
-	/** New, unprocessed actions of all clients (including ours).              */
-	public String                                 newClientsActions;
+	/** New, unprocessed control key states deltas of all clients (including ours), indexed by client index.
+	 * null means the STARTING_NEXT_ITERATION command has not yet arrived.                                     */
+	private int[]                                 clientsControlKeyStatesDeltas;
+	/** The rollback handler in case of rollback network latency, null otherwise.                              */
+	private RollbackHandler                       rollbackHandler;
+	/** Number of timer signals to be skipped in case of rollback network latency (to decrease our lead).      */
+	private int                                   iterationsToSkip;
+	/** The first iteration whose state checksum is to be sent to the server.                                 */
+	private int                                   nextStateChecksumIteration;
+	/** The iteration of the state checksum to be sent with the next READY_FOR_NEXT_ITERATION command (-1 if none). */
+	private int                                   stateChecksumIteration;
+	/** The state checksum to be sent with the next READY_FOR_NEXT_ITERATION command.                          */
+	private int                                   stateChecksum;
+	/** The time of receiving the last command from the server in ns.                                          */
+	private long                                  lastReceivingTime     = System.nanoTime();
+	/** The time of the next liveness check of the server (and of sending a heartbeat to it) in ns.            */
+	private long                                  nextLivenessCheckTime = System.nanoTime();
+	/** Tells whether the connection to the server has been lost (the server closed it or it died).          */
+	private boolean                               connectionLost;
+	/** The session token identifying us when we reconnect into a game (0 if not received).                    */
+	private long                                  sessionToken;
+	/** The time until we try to reconnect into the game after the connection has been lost in ns (0 if we do not try). */
+	private long                                  reconnectionDeadline;
 
     /**
      * Creates a new Client.
@@ -143,6 +217,7 @@ public class Client extends TimedIterableControlledThread implements MessageHand
         this.mainFrame             = mainFrame;
         this.clientOptionsManager  = clientOptionsManager;
         globalServerOptionsManager = new OptionsManager< ServerOptions >( new ServerComponentOptions( new ServerOptions(), true ), "Global server options", this.mainFrame, true );
+        spectator                  = clientOptionsManager.getOptions().playersFromHost == 0;
 
         connectToServer( serverOptions );
         clientOptionsManager.registerOptionsChangeListener( this );
@@ -156,18 +231,30 @@ public class Client extends TimedIterableControlledThread implements MessageHand
 		
 		gameSceneMainComponentHandler = new GameSceneMainComponentHandler( this.mainFrame, clientOptionsManager );
 
-		// Part of the joining protocol: sending our public client options and receiving others' 
+		// Part of the joining protocol: receiving the public client options of the clients (ours have been sent by connectToServer())
 		final ClientOptions clientOptions = clientOptionsManager.getOptions();
-        sendPublicClientOptions( clientOptions.publicClientOptions, clientOptions.playersFromHost );
         try {
-            final int publicClientOptionsCount = Integer.parseInt( serverStub.receiveMessage() );
+            final GeneralStringTokenizer optionsTokenizer         = new GeneralStringTokenizer( serverStub.receiveMessage() );
+            final int                    publicClientOptionsCount = optionsTokenizer.nextIntToken();
             for ( int i = 0; i < publicClientOptionsCount; i++ )
-            	clientsPublicClientOptions.add( PublicClientOptions.parseFromString( serverStub.receiveMessage() ) );
+            	clientsPublicClientOptions.add( PublicClientOptions.parseFromTokenizer( optionsTokenizer ) );
         }
         catch ( final IOException ie ) {
         }
 		// End of joining protocol
-        ourIndex = clientsPublicClientOptions.size() - 1;  // We are placed always to the last position
+        ourIndex = spectator ? -1 : clientsPublicClientOptions.size() - 1;  // We are placed always to the last position
+
+        try {
+            serverStubSelector = new ConnectionSelector< ConnectionStub >();
+            serverStubSelector.register( serverStub, serverStub );
+        }
+        catch ( final IOException ie ) {
+            if ( serverStubSelector != null )
+                serverStubSelector.close();
+            serverStub.close();
+            clientOptionsManager.unregisterOptionsChangeListener( this );
+            throw new ConnectingToServerFailedException( "Network error!" );
+        }
 		
 		// If scene refresh mode is NORMAL, we refresh scene in every iteration, if it's SLOW, we refersh scene in every 2, and if it's EXTRA_SLOW, we refresh it in every 4. 
 		iterationSceneRefreshMask = clientOptions.sceneRefreshMode == SceneRefreshModes.NORMAL ? 0 : ( clientOptions.sceneRefreshMode == SceneRefreshModes.SLOW ? 1 : 3 );
@@ -176,7 +263,9 @@ public class Client extends TimedIterableControlledThread implements MessageHand
     }
 
     /**
-     * Connects to the server.
+     * Connects to the server, and runs the joining protocol until sending our public client options.<br>
+     * The pipelined join is used (one round trip, see PlayerCollector), except when the shared memory transport is negotiated:
+     * that needs the answers of the server step by step (but the server is on this computer then).
      * @param serverOptions OPTIONAL reference to the server options<br>
      *                           null means we're not hosting the game we're about to connect to, and
      *                           if not null, we have to connect to our game, and connection options can be taken from this server options
@@ -185,44 +274,186 @@ public class Client extends TimedIterableControlledThread implements MessageHand
      */
     private void connectToServer( final ServerOptions serverOptions ) throws ConnectingToServerFailedException {
         final ClientOptions clientOptions = clientOptionsManager.getOptions();
-        Socket socket;
-        try {
-            socket = serverOptions == null ? new Socket( clientOptions.serverURL, clientOptions.gamePort )
-                                           : new Socket( "localhost"            , serverOptions.gamePort );
-        }
-        catch ( final UnknownHostException ue ) {
+        serverAddress = serverOptions == null ? new InetSocketAddress( clientOptions.serverURL, clientOptions.gamePort )
+                                              : new InetSocketAddress( "localhost"            , serverOptions.gamePort );
+        if ( serverAddress.isUnresolved() )
             throw new ConnectingToServerFailedException( "Unknown server host!" );
-        }
-        catch ( final IOException ie ) {
-            throw new ConnectingToServerFailedException( "Server not running on destination host!" );
-        }
+        serverStub = connect();
         
         try {
             try {
-                serverStub = new ConnectionStub( socket );
-                serverStub.sendMessage( CLIENT_IDENTIFICATION_STRING );
-                if ( !serverStub.receiveMessage().equals( PlayerCollector.SERVER_IDENTIFICATION_STRING ) )
-                    throw new ConnectingToServerFailedException( "Destination server is not a " + APPLICATION_NAME + " server!" );
-                serverStub.sendMessage( APPLICATION_VERSION );
-                final String serverVersion = serverStub.receiveMessage();
-                if ( !serverVersion.equals( APPLICATION_VERSION ) )
-                    throw new ConnectingToServerFailedException( "Incompatible " + APPLICATION_NAME + " server (ver. " + serverVersion + ")!" );
-                serverStub.sendMessage( serverOptions == null ? clientOptions.password : serverOptions.password );
-                if ( !serverStub.receiveMessage().equals( PlayerCollector.PASSWORD_ACCEPTED ) )
-                    throw new ConnectingToServerFailedException( "Incorrect game password!" );
-                
+                final String password = serverOptions == null ? clientOptions.password : serverOptions.password;
+                if ( ConnectionStub.isLocalAddress( serverAddress.getAddress() ) && clientOptions.sharedMemoryTransport && !( serverStub instanceof LoopbackConnectionStub ) ) {
+                    identify( serverStub );
+                    serverStub = negotiateSharedMemory( serverStub );
+                    if ( spectator ) {
+                        serverStub.sendMessage( PlayerCollector.SPECTATING_REQUEST );
+                        checkJoiningAnswer( serverStub.receiveMessage(), PlayerCollector.SPECTATING_ACCEPTED );
+                    }
+                    serverStub.sendMessage( password );
+                    checkJoiningAnswer( serverStub.receiveMessage(), PlayerCollector.PASSWORD_ACCEPTED );
+                    serverStub.sendMessage( getPublicClientOptionsCommand( clientOptions.publicClientOptions, clientOptions.playersFromHost ) );
+                }
+                else {
+                    // Everything is sent at once, and the answers are checked afterwards
+                    serverStub.sendMessage( CLIENT_IDENTIFICATION_STRING );
+                    serverStub.sendMessage( APPLICATION_VERSION );
+                    serverStub.sendMessage( PlayerCollector.PIPELINED_JOIN_REQUEST );
+                    if ( spectator )
+                        serverStub.sendMessage( PlayerCollector.SPECTATING_REQUEST );
+                    serverStub.sendMessage( password );
+                    serverStub.sendMessage( getPublicClientOptionsCommand( clientOptions.publicClientOptions, clientOptions.playersFromHost ) );
+                    checkServerIdentification( serverStub );
+                    checkJoiningAnswer( serverStub.receiveMessage(), PlayerCollector.PIPELINED_JOIN_ACCEPTED );
+                    serverStub.setFraming( ConnectionStub.Framings.BINARY );
+                }
             }
             catch ( final IOException ie ) {
                 throw new ConnectingToServerFailedException( "Network error!" );
             }
         }
         catch ( final ConnectingToServerFailedException ce ) {  // Before throwing this exception we have to close the server stub (this is the right thing to do)!
-            if ( serverStub != null )
-				serverStub.close();
+            serverStub.close();
             throw ce;
         }
     }
 
+    /**
+     * Checks an answer of the server in the joining protocol.
+     * @param answer         the answer of the server
+     * @param acceptedAnswer the answer meaning the server has accepted our request
+     * @throws ConnectingToServerFailedException if the server has not accepted our request
+     */
+    private static void checkJoiningAnswer( final String answer, final String acceptedAnswer ) throws ConnectingToServerFailedException {
+        if ( acceptedAnswer.equals( answer ) )
+            return;
+        if ( answer == null )
+            throw new ConnectingToServerFailedException( "Network error!" );
+        if ( PlayerCollector.SPECTATING_REJECTED.equals( answer ) )
+            throw new ConnectingToServerFailedException( "Destination server does not accept spectators!" );
+        if ( PlayerCollector.GAME_IN_PROGRESS.equals( answer ) )
+            throw new ConnectingToServerFailedException( "Game is in progress, you can only watch it (with 0 players from this host)!" );
+        throw new ConnectingToServerFailedException( "Incorrect game password!" );
+    }
+
+    /**
+     * Returns the command sending public client options to the server.
+     * @param publicClientOptions public client options to be sent
+     * @param playersCount        number of players to be sent
+     * @return the command sending the public client options to the server
+     */
+    private static String getPublicClientOptionsCommand( final PublicClientOptions publicClientOptions, final int playersCount ) {
+        return Server.Commands.SENDING_PUBLIC_CLIENT_OPTIONS.ordinal() + GENERAL_SEPARATOR_STRING + publicClientOptions.packToString( playersCount );
+    }
+
+    /**
+     * Opens a connection to the server, and runs the first steps of the joining protocol:
+     * the identification, the version check and the binary framing.
+     * @return the connection stub to the server
+     * @throws ConnectingToServerFailedException if connecting to server fails
+     */
+    private ConnectionStub openConnection() throws ConnectingToServerFailedException {
+        final ConnectionStub connectionStub = connect();
+        try {
+            try {
+                identify( connectionStub );
+            }
+            catch ( final IOException ie ) {
+                throw new ConnectingToServerFailedException( "Network error!" );
+            }
+        }
+        catch ( final ConnectingToServerFailedException ce ) {
+            connectionStub.close();
+            throw ce;
+        }
+        return connectionStub;
+    }
+
+    /**
+     * Connects to the server: to the player collector of our process if the server runs in our process, through a socket otherwise.
+     * @return the connection stub to the server
+     * @throws ConnectingToServerFailedException if connecting to server fails
+     */
+    private ConnectionStub connect() throws ConnectingToServerFailedException {
+        ConnectionStub connectionStub = null;
+        if ( ConnectionStub.isLocalAddress( serverAddress.getAddress() ) )
+            connectionStub = PlayerCollector.connectInProcess( serverAddress.getPort() );   // The server might run in our process
+        if ( connectionStub == null )
+            try {
+                connectionStub = new ConnectionStub( SocketChannel.open( serverAddress ) );
+            }
+            catch ( final IOException ie ) {
+                throw new ConnectingToServerFailedException( "Server not running on destination host!" );
+            }
+        try {
+            connectionStub.setTimeout( Server.LIVENESS_TIMEOUT );   // The server must not hold us up forever if the connection dies
+        }
+        catch ( final IOException ie ) {
+            connectionStub.close();
+            throw new ConnectingToServerFailedException( "Network error!" );
+        }
+        return connectionStub;
+    }
+
+    /**
+     * Runs the first steps of the joining protocol step by step: the identification, the version check and the binary framing.
+     * Our identification and version are sent at once (the server sends its ones without waiting for ours).
+     * @param connectionStub the connection stub to the server
+     * @throws ConnectingToServerFailedException if the server is not a compatible server
+     * @throws IOException if I/O error occurs
+     */
+    private static void identify( final ConnectionStub connectionStub ) throws ConnectingToServerFailedException, IOException {
+        connectionStub.sendMessage( CLIENT_IDENTIFICATION_STRING );
+        connectionStub.sendMessage( APPLICATION_VERSION );
+        checkServerIdentification( connectionStub );
+        connectionStub.sendMessage( PlayerCollector.BINARY_FRAMING_REQUEST );
+        if ( !PlayerCollector.BINARY_FRAMING_ACCEPTED.equals( connectionStub.receiveMessage() ) )
+            throw new ConnectingToServerFailedException( "Destination server does not support binary framing!" );
+        connectionStub.setFraming( ConnectionStub.Framings.BINARY );
+    }
+
+    /**
+     * Receives and checks the identification and the version of the server.
+     * @param connectionStub the connection stub to the server
+     * @throws ConnectingToServerFailedException if the server is not a compatible server
+     * @throws IOException if I/O error occurs
+     */
+    private static void checkServerIdentification( final ConnectionStub connectionStub ) throws ConnectingToServerFailedException, IOException {
+        if ( !PlayerCollector.SERVER_IDENTIFICATION_STRING.equals( connectionStub.receiveMessage() ) )
+            throw new ConnectingToServerFailedException( "Destination server is not a " + APPLICATION_NAME + " server!" );
+        final String serverVersion = connectionStub.receiveMessage();
+        if ( !APPLICATION_VERSION.equals( serverVersion ) )
+            throw new ConnectingToServerFailedException( "Incompatible " + APPLICATION_NAME + " server (ver. " + serverVersion + ")!" );
+    }
+
+    /**
+     * Negotiates the shared memory transport with the server on this computer.
+     * @param connectionStub the connection stub to the server
+     * @return the mapped connection stub to the server if the shared memory has been accepted; the connection stub otherwise
+     * @throws IOException if I/O error occurs during the negotiation
+     */
+    private static ConnectionStub negotiateSharedMemory( final ConnectionStub connectionStub ) throws IOException {
+        final long nonce = new Random().nextLong();
+        connectionStub.sendMessage( PlayerCollector.SHARED_MEMORY_REQUEST );
+        connectionStub.sendMessage( Long.toString( nonce ) );
+        final String sharedMemoryFileName = connectionStub.receiveMessage();
+        if ( sharedMemoryFileName == null )
+            throw new IOException( "Server has closed the connection!" );
+        if ( PlayerCollector.SHARED_MEMORY_REJECTED.equals( sharedMemoryFileName ) )
+            return connectionStub;
+
+        final ConnectionStub mappedConnectionStub;
+        try {
+            mappedConnectionStub = new MappedConnectionStub( connectionStub, new File( sharedMemoryFileName ), nonce, false );
+        }
+        catch ( final IOException ie ) {
+            connectionStub.sendMessage( PlayerCollector.SHARED_MEMORY_REJECTED );   // The server is not on this computer after all, or we can't access the file
+            return connectionStub;
+        }
+        connectionStub.sendMessage( PlayerCollector.SHARED_MEMORY_ACCEPTED );
+        return mappedConnectionStub;
+    }
+
     /**
      * The run() method of the client controlled thread.
      * Provides the services of the client.
@@ -231,41 +462,198 @@ public class Client extends TimedIterableControlledThread implements MessageHand
 		final MainMenuBar mainMenuBar = mainFrame.getMainMenuBar();
 		while ( !requestedToCancel ) {
 			
-			if ( mainMenuBar.getGameState() == GameStates.PLAYING ) {               // If we playing, we check whether next iteration should begin now
-				if ( ( iterationCounter & ITERATION_NETWORK_LATENCY_MASK ) == 0 ) { // Next iteration is timed by the server now
-					if ( newClientsActions != null )
+			checkServerLiveness();
+			final boolean playing = mainMenuBar.getGameState() == GameStates.PLAYING;
+			if ( playing ) {                                                        // If we playing, we check whether next iteration should begin now
+				if ( rollbackHandler != null ) {                                    // All iterations are timed by us, the server confirms them
+					if ( nextIterationMayBegin ) {
+						nextIterationMayBegin = false;
+						iterationTimer.setReadyForNextIteration();
+						if ( iterationsToSkip > 0 )
+							iterationsToSkip--;
+						else
+							startNextPredictedIteration();
+					}
+				}
+				else if ( selfTimedIterationsLeft == 0 ) {                          // Next iteration is timed by the server now
+					if ( clientsControlKeyStatesDeltas != null )
 						startNextIteration();
 				}
 				else {                                                              // Next iteration is timed by us
-					if ( nextIterationMayBegin ) {  
+					// We catch up if the next window has arrived already (we are behind the server), a spectator also if more commands are waiting
+					if ( nextIterationMayBegin || clientsControlKeyStatesDeltas != null || spectator && serverStub.hasNewMessage() ) {
 //						nextIterationMayBegin = false;
 						startNextIteration();
 					}
 				}
 			}
 
-			checkForNewCommands();
-            try {
-                sleep( 1l );
+			if ( serverStub.hasNewMessage() || playing && clientsControlKeyStatesDeltas != null ) {   // Commands left unread while an iteration window was pending are not signaled again
+				if ( isReadingCommands() )
+					checkForNewCommands();
+			}
+			else if ( !serverStubSelector.select( connectionLost && reconnectionDeadline == 0l ? 0l : Math.max( ( nextLivenessCheckTime - System.nanoTime() ) / 1000000l, 1l ) ).isEmpty() )   // Waits until a command arrives, or the timer, a cancel request or the next liveness check (or reconnecting attempt) wakes us up
+				checkForNewCommands();
+        }
+    }
+
+    /**
+     * Method to be called when the timer signals that next iteration may begin.
+     * Wakes up the client thread.
+     */
+    public void signalingNextIteration() {
+        super.signalingNextIteration();
+        serverStubSelector.wakeup();
+    }
+
+    /**
+     * Requests to cancel, and wakes up the client thread.
+     */
+    protected void requestToCancel() {
+        super.requestToCancel();
+        if ( serverStubSelector != null )
+            serverStubSelector.wakeup();
+    }
+
+    /**
+     * Checks the liveness of the server if it is time to, and sends a heartbeat to it.<br>
+     * If the server has closed the connection, or nothing has been received from it for Server.LIVENESS_TIMEOUT
+     * (the connection died without being closed), the connection is considered lost: the game is ended, and the connection is closed.
+     * If the connection is lost during a game (except in case of rollback network latency), we try to reconnect into the game
+     * in every Server.HEARTBEAT_INTERVAL until Server.RECONNECT_TIMEOUT expires.
+     */
+    private void checkServerLiveness() {
+        final long now = System.nanoTime();
+        if ( now - nextLivenessCheckTime < 0l )
+            return;
+        nextLivenessCheckTime = now + Server.HEARTBEAT_INTERVAL * 1000000l;
+        if ( connectionLost ) {
+            if ( reconnectionDeadline != 0l )
+                reconnectToServer( now );
+            return;
+        }
+        
+        if ( serverStub.hasNewMessage() )
+            lastReceivingTime = now;   // Commands left unread while an iteration window is pending
+        if ( serverStub.isEndOfStreamReached() || now - lastReceivingTime > Server.LIVENESS_TIMEOUT * 1000000l ) {
+            connectionLost = true;
+            final boolean playing = mainFrame.getMainMenuBar().getGameState() == GameStates.PLAYING;
+            if ( playing && sessionToken != 0l && rollbackHandler == null ) {
+                reconnectionDeadline  = now + Server.RECONNECT_TIMEOUT * 1000000l;
+                nextLivenessCheckTime = now;   // We try to reconnect right away
+                mainFrame.receiveMessage( "Connection to the server has been lost, reconnecting..." );
             }
-            catch ( final InterruptedException ie ) {
+            else
+                mainFrame.receiveMessage( "Connection to the server has been lost." );
+            if ( playing )
+                handleGameEnding();
+            serverStubSelector.unregister( serverStub );
+            serverStub.close();
+            return;
+        }
+        
+        try {
+            serverStub.sendMessage( Server.Commands.HEARTBEAT.ordinal() + GENERAL_SEPARATOR_STRING );
+        }
+        catch ( final IOException ie ) {
+        }
+    }
+
+    /**
+     * Tries to reconnect into the game with our session token after the connection to the server has been lost.<br>
+     * If the server accepts the reconnection, it restores our game (see checkForNewCommands()).
+     * If it rejects it (the game has ended or we have been dropped meanwhile), or the reconnection deadline has expired, we give up.
+     * @param now the current time in ns
+     */
+    private void reconnectToServer( final long now ) {
+        if ( now - reconnectionDeadline > 0l ) {
+            reconnectionDeadline = 0l;
+            mainFrame.receiveMessage( "Reconnecting to the server has failed." );
+            return;
+        }
+        
+        final ConnectionStub connectionStub;
+        try {
+            connectionStub = openConnection();
+        }
+        catch ( final ConnectingToServerFailedException ce ) {
+            return;                                   // We try again later
+        }
+        try {
+            connectionStub.sendMessage( PlayerCollector.RECONNECT_REQUEST );
+            connectionStub.sendMessage( Long.toString( sessionToken ) );
+            if ( !PlayerCollector.RECONNECT_ACCEPTED.equals( connectionStub.receiveMessage() ) ) {
+                connectionStub.close();
+                reconnectionDeadline = 0l;
+                mainFrame.receiveMessage( "The server has rejected reconnecting into the game." );
+                return;
             }
+            serverStubSelector.register( connectionStub, connectionStub );
         }
+        catch ( final IOException ie ) {
+            connectionStub.close();
+            return;                                   // We try again later
+        }
+        
+        serverStub           = connectionStub;
+        connectionLost       = false;
+        reconnectionDeadline = 0l;
+        lastReceivingTime    = now;
+        mainFrame.receiveMessage( "Reconnected to the server, restoring the game..." );
+    }
+
+    /**
+     * Tells whether the commands of the server can be read now.<br>
+     * The STARTING_NEXT_ITERATION command of the next iteration window may arrive before the last one has been started
+     * (the server does not wait for a late client after the barrier deadline), so we stop reading while it is pending.
+     * A spectator may receive the commands of many iterations at once, so it also stops reading
+     * while the iteration window of the last STARTING_NEXT_ITERATION command is not finished.
+     * @return true if the commands of the server can be read now; false otherwise
+     */
+    private boolean isReadingCommands() {
+        return clientsControlKeyStatesDeltas == null && !( spectator && selfTimedIterationsLeft > 0 );
     }
 
     /**
      * Checks whether the server sent new messages, and process them if it did.
+     * @see #isReadingCommands()
      */
     private void checkForNewCommands() {
-        while ( serverStub.hasNewMessage() )
+        while ( serverStub.hasNewMessage() && isReadingCommands() )
             try {
                 final GeneralStringTokenizer commandTokenizer = new GeneralStringTokenizer( serverStub.receiveMessage() );
+                lastReceivingTime = System.nanoTime();
                 switch ( Commands.values()[ commandTokenizer.nextIntToken() ] ) {
 			        // The message loop checks Commands.STARTING_NEXT_ITERATION and Commands.MESSAGE first,
 			        // because these are the most frequent commands.
 				    case STARTING_NEXT_ITERATION:
-						newClientsActions = commandTokenizer.hasRemainingString() ? commandTokenizer.remainingString() : "";
+						final int iterationWindow_ = commandTokenizer.nextIntToken();
+						final int[] clientsControlKeyStatesDeltas_ = new int[ clientsPublicClientOptions.size() ];
+						while ( commandTokenizer.hasRemainingString() ) {
+							final int clientIndex = commandTokenizer.nextIntToken();
+							clientsControlKeyStatesDeltas_[ clientIndex ] ^= commandTokenizer.nextIntToken();
+						}
+						if ( rollbackHandler != null ) {
+							rollbackHandler.confirmIteration( clientsControlKeyStatesDeltas_ );
+							if ( rollbackHandler.getConfirmedIterations() - 1 >= nextStateChecksumIteration )
+								setStateChecksum( rollbackHandler.getConfirmedIterations() - 1, rollbackHandler.getConfirmedStateChecksum() );
+						}
+						else {
+							iterationWindow               = iterationWindow_;
+							clientsControlKeyStatesDeltas = clientsControlKeyStatesDeltas_;
+						}
 						break;
+				    case ADJUSTING_ITERATION_LEAD:
+				    	final int iterationLeadAdjusting = commandTokenizer.nextIntToken();
+				    	if ( rollbackHandler != null )
+				    		if ( iterationLeadAdjusting > 0 ) {
+				    			iterationsToSkip = 0;
+				    			for ( int i = 0; i < iterationLeadAdjusting; i++ )
+				    				startNextPredictedIteration();
+				    		}
+				    		else
+				    			iterationsToSkip -= iterationLeadAdjusting;
+				    	break;
 					case MESSAGE  :
                         mainFrame.receiveMessage( commandTokenizer.remainingString() );
                         break;
@@ -278,7 +666,7 @@ public class Client extends TimedIterableControlledThread implements MessageHand
                         }.start();
                         break;
                     case STARTING_GAME:
-                        handleGameStarting();
+                        handleGameStarting( commandTokenizer );
                         break;
                     case ENDING_GAME:
 						handleGameEnding();
@@ -294,7 +682,9 @@ public class Client extends TimedIterableControlledThread implements MessageHand
                         clientsPublicClientOptions.removeElementAt( clientIndex );
                         if ( ourIndex > clientIndex )
                             ourIndex--;
-                        if ( gameCoreHandler != null )
+                        if ( rollbackHandler != null )
+                            rollbackHandler.aClientHasLeftTheGame( clientIndex );
+                        else if ( gameCoreHandler != null )
                             gameCoreHandler.aClientHasLeftTheGame( clientIndex );
                         break;
                     case SENDING_PUBLIC_CLIENT_OPTIONS :
@@ -302,25 +692,96 @@ public class Client extends TimedIterableControlledThread implements MessageHand
                         clientsPublicClientOptions.setElementAt( PublicClientOptions.parseFromString( commandTokenizer.remainingString() ), clientIndex_ );
                         break;
                     case SHUTDOWN :
+                        sessionToken = 0l;                // We do not reconnect to a server going down
                         serverStub.close();
                         break;
+                    case HEARTBEAT :
+                        break;
+                    case SENDING_SESSION_TOKEN :
+                        sessionToken = Long.parseLong( commandTokenizer.nextStringToken() );
+                        break;
+                    case REQUESTING_STATE_SNAPSHOT :
+                        sendStateSnapshot();
+                        break;
+                    case RESTORING_GAME :
+                        ourIndex = commandTokenizer.nextIntToken();
+                        clientsPublicClientOptions.clear();
+                        final int publicClientOptionsCount = commandTokenizer.nextIntToken();
+                        for ( int i = 0; i < publicClientOptionsCount; i++ )
+                            clientsPublicClientOptions.add( PublicClientOptions.parseFromTokenizer( commandTokenizer ) );
+                        break;                            // The game starting protocol follows
+                    case RESTORING_STATE :
+                        restoreState( commandTokenizer );
+                        break;
                 }
             }
             catch ( final Exception e ) {
             }
     }
 	
+	/**
+	 * Sends the snapshot of our game state to the server for a reconnecting client.<br>
+	 * The commands of the server are processed in order, so the snapshot is the state after the commands sent before the request.
+	 * The snapshot includes the iteration counters, so the reconnecting client finishes the current iteration window the same way.
+	 */
+	private void sendStateSnapshot() {
+		if ( gameCoreHandler == null || rollbackHandler != null )
+			return;
+		
+		try {
+			serverStub.sendMessage( Server.Commands.SENDING_STATE_SNAPSHOT.ordinal() + GENERAL_SEPARATOR_STRING + iterationCounter + GENERAL_SEPARATOR_STRING
+			                        + selfTimedIterationsLeft + GENERAL_SEPARATOR_STRING + nextStateChecksumIteration + GENERAL_SEPARATOR_STRING + gameCoreHandler.packState() );
+		}
+		catch ( final IOException ie ) {
+		}
+	}
+	
+	/**
+	 * Restores our game from a state snapshot after reconnecting (the game has been started again by the game starting protocol).
+	 * @param stateTokenizer tokenizer of the state snapshot
+	 */
+	private void restoreState( final GeneralStringTokenizer stateTokenizer ) {
+		if ( gameCoreHandler == null )
+			return;
+		
+		iterationCounter           = stateTokenizer.nextIntToken();
+		selfTimedIterationsLeft    = stateTokenizer.nextIntToken();
+		nextStateChecksumIteration = stateTokenizer.nextIntToken();
+		gameCoreHandler.restorePackedState( stateTokenizer );
+		if ( selfTimedIterationsLeft > 0 ) {
+			nextIterationMayBegin = false;
+			iterationTimer.setReadyForNextIteration();    // The rest of the current iteration window is timed by us
+		}
+		gameSceneMainComponentHandler.getGameSceneComponent().repaint();
+	}
+	
+	/**
+	 * Sets the state checksum to be sent with the next READY_FOR_NEXT_ITERATION command.
+	 * @param iteration index of the iteration after which the state checksum was calculated
+	 * @param checksum  the state checksum
+	 */
+	private void setStateChecksum( final int iteration, final int checksum ) {
+		stateChecksumIteration     = iteration;
+		stateChecksum              = checksum;
+		nextStateChecksumIteration = iteration + STATE_CHECKSUM_INTERVAL;
+	}
+	
 	/**
 	 * Sends ready for next iteration command to the server.
-	 * This includes sending our client's new actions.
+	 * This includes sending the index of the iteration and the changes of the control key states of our players,
+	 * and the state checksum if one is to be sent.
+	 * @param iteration             index of the iteration the control key states belong to
+	 * @param controlKeyStatesDelta changes of the control key states of our players
 	 */
-	private void sendReadyForNextIterationCommand() {
+	private void sendReadyForNextIterationCommand( final int iteration, final int controlKeyStatesDelta ) {
+		String command = Server.Commands.READY_FOR_NEXT_ITERATION.ordinal() + GENERAL_SEPARATOR_STRING + iteration + GENERAL_SEPARATOR_STRING + controlKeyStatesDelta + GENERAL_SEPARATOR_STRING;
+		if ( stateChecksumIteration >= 0 ) {
+			command += stateChecksumIteration + GENERAL_SEPARATOR_STRING + stateChecksum + GENERAL_SEPARATOR_STRING;
+			stateChecksumIteration = -1;
+		}
+		
 		try {
-			String newClientActions = gameSceneMainComponentHandler.getGameSceneComponent().getAndClearNewActions();
-			if ( newClientActions.length() > 0 )
-				newClientActions += GENERAL_SEPARATOR_STRING;
-
-			serverStub.sendMessage( Server.Commands.READY_FOR_NEXT_ITERATION.ordinal() + GENERAL_SEPARATOR_STRING + newClientActions );
+			serverStub.sendMessage( command );
 		}
 		catch ( final IOException ie ) {
 		}
@@ -328,12 +789,13 @@ public class Client extends TimedIterableControlledThread implements MessageHand
 
     /**
      * Sends the public client options to the server.
+     * The options are bulk data: they are queued behind the game commands, and the rest is sent by the selector.
      * @param publicClientOptions public client options to be sent
      * @param playersCount        tells how many public client options of players have to be sent
      */
     private void sendPublicClientOptions( final PublicClientOptions publicClientOptions, final int playersCount ) {
         try {
-            serverStub.sendMessage( Server.Commands.SENDING_PUBLIC_CLIENT_OPTIONS.ordinal() + GENERAL_SEPARATOR_STRING + publicClientOptions.packToString( playersCount ) );
+            serverStub.queueMessage( new ConnectionStub.OutboundMessage( getPublicClientOptionsCommand( publicClientOptions, playersCount ), ConnectionStub.Priorities.BULK ) );
         }
         catch ( final IOException ie ) {
         }
@@ -341,11 +803,12 @@ public class Client extends TimedIterableControlledThread implements MessageHand
 
     /**
      * Handles a messages.
+     * Messages are bulk data: they are queued behind the game commands, and the rest is sent by the selector.
      * @param message message to be handled
      */
     public void handleMessage( final String message ) {
         try {
-            serverStub.sendMessage( Server.Commands.MESSAGE.ordinal() + GENERAL_SEPARATOR_STRING + message );
+            serverStub.queueMessage( new ConnectionStub.OutboundMessage( Server.Commands.MESSAGE.ordinal() + GENERAL_SEPARATOR_STRING + message, ConnectionStub.Priorities.BULK ) );
         }
         catch ( final IOException ie ) {
         }
@@ -367,32 +830,42 @@ public class Client extends TimedIterableControlledThread implements MessageHand
     }
 
     /**
-     * Handles starting of the game.
+     * Handles starting of the game.<br>
+     * The STARTING_GAME command holds all required options and datas for the new game (see the game starting protocol at the Server javadoc),
+     * so we do not have to wait for further messages (which would block the processing of the commands).
+     * @param commandTokenizer tokenizer of the STARTING_GAME command positioned after the command
      */
-    private void handleGameStarting() {
+    private void handleGameStarting( final GeneralStringTokenizer commandTokenizer ) {
         try {
-			newClientsActions = null;
-			// Receiving all required options and datas for a new game...
-            final Random random = new Random( Long.parseLong( serverStub.receiveMessage() ) );
-            final ServerOptions globalServerOptions = ServerOptions.parseFromString( serverStub.receiveMessage() );
+			clientsControlKeyStatesDeltas = null;
+            final RestorableRandom random = new RestorableRandom( Long.parseLong( commandTokenizer.nextStringToken() ) );
+            final int    packedServerOptionsLength = commandTokenizer.nextIntToken();
+            final String packedServerOptionsAndLevel = commandTokenizer.remainingString();
+            final ServerOptions globalServerOptions = ServerOptions.parseFromString( packedServerOptionsAndLevel.substring( 0, packedServerOptionsLength ) );
             globalServerOptionsManager.setOptions( globalServerOptions );
             LevelModel levelModel = null;
             if ( !globalServerOptions.levelName.equals( RANDOMLY_GENERATED_LEVEL_NAME ) )
-            	levelModel = LevelModel.parseFromString( serverStub.receiveMessage() );
+            	levelModel = LevelModel.parseFromString( packedServerOptionsAndLevel.substring( packedServerOptionsLength ) );
 
             // We received all required informations... we can create game core handler now, and register that game is now in GameStates.PLAYING state
             gameCoreHandler = new GameCoreHandler( gameManager, mainFrame, globalServerOptions, levelModel, random, clientsPublicClientOptions, ourIndex );
+			rollbackHandler = globalServerOptions.networkLatency == NetworkLatencies.ROLLBACK && !spectator ? new RollbackHandler( gameCoreHandler, clientsPublicClientOptions.size() ) : null;   // Spectators calculate the confirmed iterations only
+			iterationsToSkip = 0;
+			nextStateChecksumIteration = 0;
+			stateChecksumIteration     = -1;
 			gameSceneMainComponentHandler.getGameSceneComponent().setModelProvider( gameCoreHandler );
 			gameSceneMainComponentHandler.getGameSceneComponent().handleGameStarting();
 			gameManager.setMainComponentHandler( gameSceneMainComponentHandler );
 
-			// If network latency is LOW, we wait for STARTING_NEXT_ITERATION command in every iteration, if it's HIGH, we wait for it in every 2, and if it's EXTRA_HIGH, we wait for it in every 4.
-			ITERATION_NETWORK_LATENCY_MASK = globalServerOptions.networkLatency == NetworkLatencies.LOW ? 0 : ( globalServerOptions.networkLatency == NetworkLatencies.HIGH ? 1 : 3 );
+			// We wait for STARTING_NEXT_ITERATION command in the first iteration of every iteration window, the size of the window is sent by the server.
+			selfTimedIterationsLeft        = 0;
 			iterationCounter               = 0;
 			nextIterationMayBegin          = false;
 			iterationTimer.setFrequency( globalServerOptions.gameCycleFrequency );
 
 			// We dont have to call iterationTimer.setReadyForNextIteration() here, because first iteration is always timed by the server
+			if ( rollbackHandler != null )
+				iterationTimer.setReadyForNextIteration();   // ...except in case of rollback: predicted iterations will be started when the first is confirmed
 			
 			mainFrame.getMainMenuBar().setGameState( GameStates.PLAYING );   // This can (must) be done last
         }
@@ -406,15 +879,22 @@ public class Client extends TimedIterableControlledThread implements MessageHand
 	private void startNextIteration() {
 		if ( gameCoreHandler != null ) {
 
-			if ( ( ( iterationCounter + 1 ) & ITERATION_NETWORK_LATENCY_MASK ) != 0 ) {
+			final boolean timedByServer = selfTimedIterationsLeft == 0;
+			selfTimedIterationsLeft = timedByServer ? iterationWindow - 1 : selfTimedIterationsLeft - 1;
+			
+			if ( selfTimedIterationsLeft > 0 ) {
 				nextIterationMayBegin = false;
 				iterationTimer.setReadyForNextIteration();    // The next iteration will NOT be timed by the server but our timer
 			}
 
-			if ( ( iterationCounter & ITERATION_NETWORK_LATENCY_MASK ) == 0 ) { // This time we were timed by the server
-				gameCoreHandler.nextIteration( newClientsActions ); // Timed by server: clients actions have to be passed
-				newClientsActions = null;
-				sendReadyForNextIterationCommand();                 // Timed by server: we send READY_FOR_NEXT_ITERATION command back           
+			if ( timedByServer ) {                                              // This time we were timed by the server
+				gameCoreHandler.nextIteration( clientsControlKeyStatesDeltas ); // Timed by server: clients actions have to be passed
+				clientsControlKeyStatesDeltas = null;
+				if ( !spectator ) {
+					if ( iterationCounter >= nextStateChecksumIteration )
+						setStateChecksum( iterationCounter, gameCoreHandler.getStateChecksum() );
+					sendReadyForNextIterationCommand( iterationCounter, gameSceneMainComponentHandler.getGameSceneComponent().getAndClearControlKeyStatesDelta() );  // Timed by server: we send READY_FOR_NEXT_ITERATION command back
+				}
 			}
 			else
 				gameCoreHandler.nextIteration( null );              // Timed by us: no clients actions have to be passed
@@ -426,6 +906,22 @@ public class Client extends TimedIterableControlledThread implements MessageHand
 		}
 	}
 	
+	/**
+	 * Starts the next predicted iteration in case of rollback network latency.<br>
+	 * Our new control key states are sent to the server before calculating the iteration.
+	 */
+	private void startNextPredictedIteration() {
+		if ( !rollbackHandler.canStartPredictedIteration() )
+			return;
+		
+		final int controlKeyStatesDelta = gameSceneMainComponentHandler.getGameSceneComponent().getAndClearControlKeyStatesDelta();
+		sendReadyForNextIterationCommand( rollbackHandler.getCalculatedIterations(), controlKeyStatesDelta );
+		rollbackHandler.startPredictedIteration( controlKeyStatesDelta );
+		
+		if ( ( rollbackHandler.getCalculatedIterations() & iterationSceneRefreshMask ) == 0 )
+			gameSceneMainComponentHandler.getGameSceneComponent().repaint();
+	}
+	
 	/**
 	 * Handles ending of the game.
 	 */
@@ -433,6 +929,9 @@ public class Client extends TimedIterableControlledThread implements MessageHand
         mainFrame.getMainMenuBar().setGameState( GameStates.PLAYER_COLLECTING_CONNECTED ); // This has to be done first
 		gameSceneMainComponentHandler.getGameSceneComponent().setModelProvider( null );
         gameCoreHandler = null;
+        rollbackHandler = null;
+        clientsControlKeyStatesDeltas = null;   // A spectator would not read the commands of the next game
+        selfTimedIterationsLeft       = 0;
         gameManager.setMainComponentHandler( waitingAnimationMainComponentHandler );
 	}
 
@@ -471,6 +970,7 @@ public class Client extends TimedIterableControlledThread implements MessageHand
         catch ( final IOException ie ) {
         }
         serverStub.close();
+        serverStubSelector.close();
     }
     
 }
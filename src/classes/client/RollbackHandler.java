@@ -0,0 +1,230 @@
+/*
+ * Created on October 18, 2026
+ */
+
+package classes.client;
+
+import java.util.Arrays;
+
+import classes.client.gamecore.control.GameCoreHandler;
+
+/**
+ * Runs the game core ahead of the iterations confirmed by the server in case of rollback network latency.<br>
+ * The client does not wait for the STARTING_NEXT_ITERATION commands: it starts predicted iterations timed by itself,
+ * using the control key states of our players right away, and predicting that the control key states of the other
+ * clients remain the last confirmed ones. The state of the game core before each predicted iteration is saved into
+ * a ring of snapshots. When the server confirms an iteration with control key states differing from the predicted ones,
+ * the state before that iteration is restored, and the iterations are calculated again up to the predicted iteration.<br>
+ * <br>
+ * Control key states are handled as control key states masks of clients (see Consts.PLAYER_CONTROL_KEY_STATES_BITS).
+ *
+ * @author Andras Belicza
+ */
+class RollbackHandler {
+
+	/** Maximum number of iterations which can be predicted ahead of the confirmed iterations (the size of the snapshot ring). */
+	public static final int MAX_PREDICTED_ITERATIONS = 32;
+
+	/** Reference to the game core handler.                                                      */
+	private final GameCoreHandler                   gameCoreHandler;
+	/** Ring of the snapshots: the state before iteration i is stored at index i % MAX_PREDICTED_ITERATIONS. */
+	private final GameCoreHandler.StateSnapshot[]   snapshots                 = new GameCoreHandler.StateSnapshot[ MAX_PREDICTED_ITERATIONS ];
+	/** Ring of the control key states masks of the clients used in the predicted iterations.   */
+	private final int[][]                           predictedControlKeyStates = new int[ MAX_PREDICTED_ITERATIONS ][];
+	/** Control key states masks of the clients of the last confirmed iteration.                */
+	private int[]                                   confirmedControlKeyStates;
+	/** Control key states masks of the clients in effect in the game core (used in the last calculated iteration). */
+	private int[]                                   appliedControlKeyStates;
+	/** Control key states mask of our players.                                                  */
+	private int                                     ownControlKeyStates;
+	/** Number of iterations confirmed by the server.                                            */
+	private int                                     confirmedIterations;
+	/** Number of iterations calculated (confirmed and predicted).                               */
+	private int                                     calculatedIterations;
+	/** Number of rollbacks (mispredicted iterations) since the creation.                        */
+	private int                                     rollbacksCount;
+
+	/**
+	 * Creates a new RollbackHandler.
+	 * @param gameCoreHandler reference to the game core handler
+	 * @param clientsCount    number of clients in the game
+	 */
+	public RollbackHandler( final GameCoreHandler gameCoreHandler, final int clientsCount ) {
+		this.gameCoreHandler = gameCoreHandler;
+		for ( int i = 0; i < snapshots.length; i++ )
+			snapshots[ i ] = new GameCoreHandler.StateSnapshot();
+		confirmedControlKeyStates = new int[ clientsCount ];
+		appliedControlKeyStates   = new int[ clientsCount ];
+	}
+
+	/**
+	 * Returns the number of iterations calculated (confirmed and predicted).
+	 * This is the index of the next predicted iteration.
+	 * @return the number of iterations calculated
+	 */
+	public int getCalculatedIterations() {
+		return calculatedIterations;
+	}
+
+	/**
+	 * Returns the number of iterations confirmed by the server.
+	 * @return the number of iterations confirmed by the server
+	 */
+	public int getConfirmedIterations() {
+		return confirmedIterations;
+	}
+
+	/**
+	 * Returns the state checksum of the game core after the last confirmed iteration.<br>
+	 * If predicted iterations have been calculated since, the checksum of the snapshot saved before the first one is returned.
+	 * @return the state checksum of the game core after the last confirmed iteration
+	 */
+	public int getConfirmedStateChecksum() {
+		return calculatedIterations == confirmedIterations ? gameCoreHandler.getStateChecksum() : snapshots[ confirmedIterations % MAX_PREDICTED_ITERATIONS ].getStateChecksum();
+	}
+
+	/**
+	 * Returns the number of rollbacks (mispredicted iterations) since the creation.
+	 * @return the number of rollbacks
+	 */
+	public int getRollbacksCount() {
+		return rollbacksCount;
+	}
+
+	/**
+	 * Tells whether a new predicted iteration can be started.<br>
+	 * Iterations are predicted only after the first confirmed iteration (which follows the initialization of the round),
+	 * and only MAX_PREDICTED_ITERATIONS ahead of the confirmed iterations.
+	 * @return true if a new predicted iteration can be started; false otherwise
+	 */
+	public boolean canStartPredictedIteration() {
+		return confirmedIterations > 0 && calculatedIterations - confirmedIterations < MAX_PREDICTED_ITERATIONS;
+	}
+
+	/**
+	 * Starts (calculates) a predicted iteration.
+	 * @param ownControlKeyStatesDelta changes of the control key states mask of our players
+	 */
+	public void startPredictedIteration( final int ownControlKeyStatesDelta ) {
+		ownControlKeyStates ^= ownControlKeyStatesDelta;
+
+		final int slot = calculatedIterations % MAX_PREDICTED_ITERATIONS;
+		if ( predictedControlKeyStates[ slot ] == null || predictedControlKeyStates[ slot ].length != confirmedControlKeyStates.length )
+			predictedControlKeyStates[ slot ] = new int[ confirmedControlKeyStates.length ];
+
+		final int[] controlKeyStates = predictedControlKeyStates[ slot ];
+		System.arraycopy( confirmedControlKeyStates, 0, controlKeyStates, 0, controlKeyStates.length );  // We predict no changes at the other clients
+		controlKeyStates[ gameCoreHandler.getOurClientIndex() ] = ownControlKeyStates;
+
+		gameCoreHandler.saveState( snapshots[ slot ] );
+		calculateIteration( controlKeyStates );
+	}
+
+	/**
+	 * Confirms the next iteration with the control key states received from the server.<br>
+	 * If the iteration has not been predicted yet, it is calculated now.
+	 * If it has been predicted with different control key states, rollback happens.
+	 * @param clientsControlKeyStatesDeltas changes of the control key states masks of the clients in the confirmed iteration
+	 */
+	public void confirmIteration( final int[] clientsControlKeyStatesDeltas ) {
+		final int[] newConfirmedControlKeyStates = confirmedControlKeyStates.clone();
+		for ( int i = Math.min( clientsControlKeyStatesDeltas.length, newConfirmedControlKeyStates.length ) - 1; i >= 0; i-- )
+			newConfirmedControlKeyStates[ i ] ^= clientsControlKeyStatesDeltas[ i ];
+
+		if ( calculatedIterations == confirmedIterations )
+			calculateIteration( newConfirmedControlKeyStates );
+		else if ( !Arrays.equals( predictedControlKeyStates[ confirmedIterations % MAX_PREDICTED_ITERATIONS ], newConfirmedControlKeyStates ) ) {
+			rollbacksCount++;
+			final int predictedIterations = calculatedIterations;
+
+			rollbackToConfirmedIteration();
+			calculateIteration( newConfirmedControlKeyStates );
+			recalculatePredictedIterations( predictedIterations, newConfirmedControlKeyStates );
+		}
+
+		confirmedControlKeyStates = newConfirmedControlKeyStates;
+		confirmedIterations++;
+	}
+
+	/**
+	 * Handles when a client leaves the game.<br>
+	 * The client leaves after the last confirmed iteration, so predicted iterations are calculated again without it.
+	 * @param clientIndex index of the client who has just left the game
+	 */
+	public void aClientHasLeftTheGame( final int clientIndex ) {
+		final int predictedIterations = calculatedIterations;
+
+		if ( calculatedIterations > confirmedIterations )
+			rollbackToConfirmedIteration();
+
+		gameCoreHandler.aClientHasLeftTheGame( clientIndex );
+
+		confirmedControlKeyStates = removeElement( confirmedControlKeyStates, clientIndex );
+		appliedControlKeyStates   = removeElement( appliedControlKeyStates  , clientIndex );
+		for ( int i = confirmedIterations; i < predictedIterations; i++ ) {
+			final int slot = i % MAX_PREDICTED_ITERATIONS;
+			predictedControlKeyStates[ slot ] = removeElement( predictedControlKeyStates[ slot ], clientIndex );
+		}
+
+		recalculatePredictedIterations( predictedIterations, confirmedControlKeyStates );
+	}
+
+	/**
+	 * Restores the state before the first not confirmed iteration.
+	 */
+	private void rollbackToConfirmedIteration() {
+		gameCoreHandler.restoreState( snapshots[ confirmedIterations % MAX_PREDICTED_ITERATIONS ] );
+		System.arraycopy( confirmedControlKeyStates, 0, appliedControlKeyStates, 0, appliedControlKeyStates.length );
+		calculatedIterations = confirmedIterations;
+	}
+
+	/**
+	 * Calculates again the predicted iterations after a rollback.<br>
+	 * Our control key states are kept, the control key states of the other clients are predicted again.
+	 * @param predictedIterations  number of calculated iterations before the rollback
+	 * @param lastControlKeyStates the control key states of the last known iteration
+	 */
+	private void recalculatePredictedIterations( final int predictedIterations, final int[] lastControlKeyStates ) {
+		final int ourClientIndex = gameCoreHandler.getOurClientIndex();
+
+		while ( calculatedIterations < predictedIterations ) {
+			final int   slot             = calculatedIterations % MAX_PREDICTED_ITERATIONS;
+			final int[] controlKeyStates = predictedControlKeyStates[ slot ];
+			for ( int i = 0; i < controlKeyStates.length; i++ )
+				if ( i != ourClientIndex )
+					controlKeyStates[ i ] = lastControlKeyStates[ i ];
+
+			gameCoreHandler.saveState( snapshots[ slot ] );
+			calculateIteration( controlKeyStates );
+		}
+	}
+
+	/**
+	 * Calculates the next iteration of the game core with the specified control key states.
+	 * @param controlKeyStates control key states masks of the clients to be used in the iteration
+	 */
+	private void calculateIteration( final int[] controlKeyStates ) {
+		final int[] clientsControlKeyStatesDeltas = new int[ controlKeyStates.length ];
+		for ( int i = 0; i < controlKeyStates.length; i++ ) {
+			clientsControlKeyStatesDeltas[ i ] = controlKeyStates[ i ] ^ appliedControlKeyStates[ i ];
+			appliedControlKeyStates      [ i ] = controlKeyStates[ i ];
+		}
+
+		gameCoreHandler.nextIteration( clientsControlKeyStatesDeltas );
+		calculatedIterations++;
+	}
+
+	/**
+	 * Returns a copy of an array without one of its elements.
+	 * @param array array to be copied
+	 * @param index index of the element to be removed
+	 * @return a copy of the array without the specified element
+	 */
+	private static int[] removeElement( final int[] array, final int index ) {
+		final int[] newArray = new int[ array.length - 1 ];
+		System.arraycopy( array, 0        , newArray, 0    , index                    );
+		System.arraycopy( array, index + 1, newArray, index, array.length - index - 1 );
+		return newArray;
+	}
+
+}
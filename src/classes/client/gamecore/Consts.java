@@ -5,6 +5,8 @@
 
 package classes.client.gamecore;
 
+import classes.options.Consts.PlayerControlKeys;
+
 /**
  * Holds constants for defining and calculating the game core.
  * 
@@ -35,6 +37,14 @@ public class Consts {
 	/** Number of iteratinos before replacing the picked up itmes of a player after he dies.           */
 	public static final int DEAD_ITERATIONS_BEFORE_REPLACING_ITEMS  = 80;
 	
+	/** Number of bits of the control key states of a player in a control key states mask.
+	 *  The state of a control key is stored at the bit of its ordinal, players of a client follow each other:
+	 *  the key states of the player having index i start at bit i * PLAYER_CONTROL_KEY_STATES_BITS.
+	 *  MAX_PLAYERS_FROM_A_COMPUTER players fit in an int.                                              */
+	public static final int PLAYER_CONTROL_KEY_STATES_BITS          = PlayerControlKeys.values().length;
+	/** Mask of the control key states of one player.                                                   */
+	public static final int PLAYER_CONTROL_KEY_STATES_MASK          = ( 1 << PLAYER_CONTROL_KEY_STATES_BITS ) - 1;
+	
 	/** Vitality of a heart item.                                                                      */
 	public static final int HEART_VITALITY                          = MAX_PLAYER_VITALITY / 3; 
 	
@@ -30,18 +30,30 @@ public class Fire {
 	
 	/**
 	 * Creates a new Fire.<br>
+	 * Implementation simply calls the other constructor with a new fire model.
 	 * @param componentPosX   x coordinate of the component where this fire takes place on
 	 * @param componentPosY   y coordinate of the component where this fire takes place on
 	 * @param modelProvider   reference to a model provider
 	 * @param modelController reference to a model controller
 	 */
 	public Fire( final int componentPosX, final int componentPosY, final ModelProvider modelProvider, final ModelController modelController ) {
+		this( new FireModel(), componentPosX, componentPosY, modelProvider, modelController );
+	}
+	
+	/**
+	 * Creates a new Fire.
+	 * @param model           the model of the fire
+	 * @param componentPosX   x coordinate of the component where this fire takes place on
+	 * @param componentPosY   y coordinate of the component where this fire takes place on
+	 * @param modelProvider   reference to a model provider
+	 * @param modelController reference to a model controller
+	 */
+	public Fire( final FireModel model, final int componentPosX, final int componentPosY, final ModelProvider modelProvider, final ModelController modelController ) {
+		this.model           = model;
 		this.componentPosX   = componentPosX;
 		this.componentPosY   = componentPosY;
 		this.modelProvider   = modelProvider;
 		this.modelController = modelController;
-		
-		model = new FireModel();
 	}
 	
 	/**
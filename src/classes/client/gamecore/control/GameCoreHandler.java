@@ -12,11 +12,12 @@ import classes.AbstractAnimationMainComponentHandler;
 import classes.client.graphics.AnimationDatas;
 import classes.client.graphics.GraphicsManager;
 import java.util.Random;
-import java.util.StringTokenizer;
 
 import static classes.client.gamecore.Consts.FIRE_ITERATIONS;
 import static classes.client.gamecore.Consts.LEVEL_COMPONENT_GRANULARITY;
 import static classes.client.gamecore.Consts.MAX_PLAYER_VITALITY;
+import static classes.client.gamecore.Consts.PLAYER_CONTROL_KEY_STATES_BITS;
+import static classes.client.gamecore.Consts.PLAYER_CONTROL_KEY_STATES_MASK;
 import static classes.options.ServerComponentOptions.RANDOMLY_GENERATED_LEVEL_NAME;
 import static classes.options.Consts.PlayerControlKeys;
 import classes.options.Consts.Items;
@@ -24,7 +25,7 @@ import classes.options.Consts.Walls;
 import classes.options.model.LevelOptions;
 import classes.options.model.PublicClientOptions;
 import classes.options.model.ServerOptions;
-import classes.utils.GeneralStringTokenizer;
+import classes.utils.RestorableRandom;
 import classes.client.gamecore.Consts;
 import classes.client.gamecore.Consts.Activities;
 import classes.client.gamecore.Consts.BombPhases;
@@ -40,6 +41,10 @@ import classes.client.gamecore.control.Level;
 import classes.client.gamecore.model.level.LevelComponent;
 import classes.client.gamecore.model.level.LevelModel;
 import static classes.options.Consts.Walls;
+import classes.utils.GeneralStringTokenizer;
+import static classes.utils.GeneralStringTokenizer.GENERAL_SEPARATOR_STRING;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Vector;
 
 /**
@@ -58,7 +63,7 @@ public class GameCoreHandler implements ModelProvider, ModelController {
     /** Received level model from the server (if level is set to randomly generated, this can be null). */
     private final LevelModel                    receivedLevelModel;
     /** Random object to be used when we generate random datas.                                   */
-    private final Random                        random;
+    private final RestorableRandom              random;
     /** Vector of public client options of the clients.                                           */
     private final Vector< PublicClientOptions > clientsPublicClientOptions;
     /** Our client index, our place among the clients.                                            */
@@ -98,7 +103,7 @@ public class GameCoreHandler implements ModelProvider, ModelController {
      * @param clientsPublicClientOptions vector of public client options of the clients
      * @param ourClientIndex             our client index, our place among the clients
      */
-    public GameCoreHandler( final GameManager gameManager, final MainFrame mainFrame, final ServerOptions globalServerOptions, final LevelModel levelModel, final Random random, final Vector< PublicClientOptions > clientsPublicClientOptions, final int ourClientIndex ) {
+    public GameCoreHandler( final GameManager gameManager, final MainFrame mainFrame, final ServerOptions globalServerOptions, final LevelModel levelModel, final RestorableRandom random, final Vector< PublicClientOptions > clientsPublicClientOptions, final int ourClientIndex ) {
         this.gameManager                = gameManager;
         this.mainFrame                  = mainFrame;
         this.globalServerOptions        = globalServerOptions;
@@ -267,11 +272,12 @@ public class GameCoreHandler implements ModelProvider, ModelController {
 	/**
 	 * Called when next iteration starts.<br>
 	 * Calculates the next iteration.
-	 * @param newClientsActions new, unprocess actions of all clients (including us), null means there are no new unprocessed actions
+	 * @param clientsControlKeyStatesDeltas changes of the control key states masks of all clients (including us), indexed by client index;
+	 *                                      null means there are no new unprocessed actions
 	 */
-	public void nextIteration( final String newClientsActions ) {
-		if ( newClientsActions != null )
-			processNewClientsActions( newClientsActions );
+	public void nextIteration( final int[] clientsControlKeyStatesDeltas ) {
+		if ( clientsControlKeyStatesDeltas != null )
+			processControlKeyStatesDeltas( clientsControlKeyStatesDeltas );
 		
 		for ( final Player[] players : clientsPlayers )
 			for ( final Player player : players )
@@ -321,25 +327,29 @@ public class GameCoreHandler implements ModelProvider, ModelController {
 	}
 	
 	/**
-	 * Processes the new actions of all clients.
-	 * @param newClientsActions new clients actions to be processed
+	 * Processes the changes of the control key states of all clients.<br>
+	 * Only the control keys whose bits are set in the deltas are changed (toggled).
+	 * @param clientsControlKeyStatesDeltas changes of the control key states masks of all clients to be processed
 	 */
-	private void processNewClientsActions( final String newClientsActions ) {
-		final GeneralStringTokenizer clientsActionsTokenizer = new GeneralStringTokenizer( newClientsActions );
+	private void processControlKeyStatesDeltas( final int[] clientsControlKeyStatesDeltas ) {
+		final PlayerControlKeys[] playerControlKeys = PlayerControlKeys.values();
 		
-		while ( clientsActionsTokenizer.hasRemainingString() ) {
-			final StringTokenizer clientActionsTokenizer = new StringTokenizer( clientsActionsTokenizer.nextStringToken(), " " );
-			
-			final int clientIndex = Integer.parseInt( clientActionsTokenizer.nextToken() );
+		for ( int i = Math.min( clientsControlKeyStatesDeltas.length, clientsPlayers.size() ) - 1; i >= 0; i-- ) {
+			final int controlKeyStatesDelta = clientsControlKeyStatesDeltas[ i ];
+			if ( controlKeyStatesDelta == 0 )
+				continue;
 			
-			do {
-				final int               playerIndex             = Integer.parseInt( clientActionsTokenizer.nextToken() );
-				final PlayerControlKeys playerControlKey        = PlayerControlKeys.values()[ Integer.parseInt( clientActionsTokenizer.nextToken() ) ];
-				final boolean           playerControlKeyPressed = clientActionsTokenizer.nextToken().charAt( 0 ) == 'p' ? true : false;
-				
-				clientsPlayers.get( clientIndex )[ playerIndex ].getModel().setControlKeyState( playerControlKey, playerControlKeyPressed );
+			final Player[] players = clientsPlayers.get( i );
+			for ( int j = 0; j < players.length; j++ ) {
+				final int playerControlKeyStatesDelta = ( controlKeyStatesDelta >>> j * PLAYER_CONTROL_KEY_STATES_BITS ) & PLAYER_CONTROL_KEY_STATES_MASK;
+				if ( playerControlKeyStatesDelta == 0 )
+					continue;
 				
-			} while ( clientActionsTokenizer.hasMoreTokens() );
+				final PlayerModel playerModel = players[ j ].getModel();
+				for ( final PlayerControlKeys playerControlKey : playerControlKeys )
+					if ( ( playerControlKeyStatesDelta & 1 << playerControlKey.ordinal() ) != 0 )
+						playerModel.setControlKeyState( playerControlKey, !playerModel.getControlKeyState( playerControlKey ) );
+			}
 		}
 	}
 
@@ -426,6 +436,194 @@ public class GameCoreHandler implements ModelProvider, ModelController {
 	
 
 	
+	/**
+	 * A saved state of the game core (the state of a round between two iterations).<br>
+	 * A snapshot can be reused: saving into it overwrites the previous state.
+	 */
+	public static class StateSnapshot {
+		/** State of the random object.                                                 */
+		private long                    randomState;
+		/** Level model holding the state of the level.                                 */
+		private LevelModel              levelModel;
+		/** Copies of the models of the players of all clients.                         */
+		private final Vector< PlayerModel[] > clientsPlayerModels = new Vector< PlayerModel[] >();
+		/** Clones of the models of the bombs.                                          */
+		private final Vector< BombModel >     bombModels          = new Vector< BombModel >();
+		
+		/**
+		 * Returns the checksum of the saved state.
+		 * @return the checksum of the saved state
+		 * @see GameCoreHandler#getStateChecksum()
+		 */
+		public int getStateChecksum() {
+			return calculateStateChecksum( randomState, levelModel, clientsPlayerModels, bombModels );
+		}
+	}
+	
+	/**
+	 * Saves the current state of the game core into a snapshot.<br>
+	 * Can be called between iterations.
+	 * @param snapshot snapshot to save the state into
+	 */
+	public void saveState( final StateSnapshot snapshot ) {
+		snapshot.randomState = random.getState();
+		
+		if ( snapshot.levelModel == null || snapshot.levelModel.getLevelOptions() != level.getModel().getLevelOptions() )
+			snapshot.levelModel = new LevelModel( level.getModel().getLevelOptions() );
+		level.saveState( snapshot.levelModel );
+		
+		snapshot.clientsPlayerModels.setSize( clientsPlayerModels.size() );
+		for ( int i = 0; i < clientsPlayerModels.size(); i++ ) {
+			final PlayerModel[] playerModels      = clientsPlayerModels.get( i );
+			PlayerModel[]       statePlayerModels = snapshot.clientsPlayerModels.get( i );
+			if ( statePlayerModels == null || statePlayerModels.length != playerModels.length ) {
+				statePlayerModels = new PlayerModel[ playerModels.length ];
+				for ( int j = 0; j < statePlayerModels.length; j++ )
+					statePlayerModels[ j ] = new PlayerModel();
+				snapshot.clientsPlayerModels.set( i, statePlayerModels );
+			}
+			for ( int j = 0; j < playerModels.length; j++ )
+				statePlayerModels[ j ].copyStateFrom( playerModels[ j ] );
+		}
+		
+		snapshot.bombModels.clear();
+		for ( final BombModel bombModel : bombModels )
+			snapshot.bombModels.add( bombModel.cloneBomb() );
+	}
+	
+	/**
+	 * Restores the state of the game core saved by saveState().<br>
+	 * The player models keep their identity (their states are restored), bombs and fires are recreated.
+	 * The snapshot must have been saved since the last time a client left the game.
+	 * @param snapshot snapshot holding the state to be restored
+	 */
+	public void restoreState( final StateSnapshot snapshot ) {
+		random.setState( snapshot.randomState );
+		
+		level.restoreState( snapshot.levelModel );
+		
+		for ( int i = 0; i < clientsPlayerModels.size(); i++ ) {
+			final PlayerModel[] playerModels      = clientsPlayerModels.get( i );
+			final PlayerModel[] statePlayerModels = snapshot.clientsPlayerModels.get( i );
+			for ( int j = 0; j < playerModels.length; j++ )
+				playerModels[ j ].copyStateFrom( statePlayerModels[ j ] );
+		}
+		
+		final Vector< Bomb      > restoredBombs      = new Vector< Bomb      >( snapshot.bombModels.size() );
+		final Vector< BombModel > restoredBombModels = new Vector< BombModel >( snapshot.bombModels.size() );
+		for ( final BombModel stateBombModel : snapshot.bombModels ) {
+			final Bomb bomb = new Bomb( stateBombModel.cloneBomb(), this, this );
+			restoredBombs     .add( bomb            );
+			restoredBombModels.add( bomb.getModel() );
+		}
+		bombs      = restoredBombs;
+		bombModels = restoredBombModels;
+	}
+	
+	/**
+	 * Packs the current state of the game core into a string, to be sent to a client reconnecting into the game.<br>
+	 * The state is the same as the state saved by saveState(), packed as numbers separated by the general separator character,
+	 * which binary framing sends as varints (and compresses, the components of the level are much alike).
+	 * References to players are packed as player indices, so the clients of the packed state must be the same as the clients
+	 * of the game core restoring it.
+	 * Can be called between iterations.
+	 * @return the packed state of the game core
+	 */
+	public String packState() {
+		final List< PlayerModel > playerModels = getAllPlayerModels();
+		final StringBuilder       stateBuilder = new StringBuilder().append( random.getState() ).append( GENERAL_SEPARATOR_STRING );
+		
+		for ( final LevelComponent[] levelComponents : level.getModel().getComponents() )
+			for ( final LevelComponent levelComponent : levelComponents )
+				levelComponent.packState( stateBuilder, playerModels );
+		
+		for ( final PlayerModel playerModel : playerModels )
+			playerModel.packState( stateBuilder, playerModels );
+		
+		stateBuilder.append( bombModels.size() ).append( GENERAL_SEPARATOR_STRING );
+		for ( final BombModel bombModel : bombModels )
+			bombModel.packState( stateBuilder, playerModels );
+		
+		return stateBuilder.toString();
+	}
+	
+	/**
+	 * Restores the state of the game core packed by packState().<br>
+	 * The round must have been initialized with the same level options and clients as the packed state.
+	 * @param stateTokenizer tokenizer of the packed state
+	 */
+	public void restorePackedState( final GeneralStringTokenizer stateTokenizer ) {
+		final List< PlayerModel > playerModels = getAllPlayerModels();
+		final StateSnapshot       snapshot     = new StateSnapshot();
+		
+		snapshot.randomState = Long.parseLong( stateTokenizer.nextStringToken() );
+		
+		snapshot.levelModel = new LevelModel( level.getModel().getLevelOptions() );
+		for ( final LevelComponent[] levelComponents : snapshot.levelModel.getComponents() )
+			for ( final LevelComponent levelComponent : levelComponents )
+				levelComponent.parseState( stateTokenizer, playerModels );
+		
+		for ( final PlayerModel[] playerModels_ : clientsPlayerModels ) {
+			final PlayerModel[] statePlayerModels = new PlayerModel[ playerModels_.length ];
+			for ( int j = 0; j < statePlayerModels.length; j++ ) {
+				statePlayerModels[ j ] = new PlayerModel();
+				statePlayerModels[ j ].parseState( stateTokenizer, playerModels );
+			}
+			snapshot.clientsPlayerModels.add( statePlayerModels );
+		}
+		
+		for ( int i = stateTokenizer.nextIntToken(); i > 0; i-- )
+			snapshot.bombModels.add( BombModel.parseFromTokenizer( stateTokenizer, playerModels ) );
+		
+		restoreState( snapshot );
+	}
+	
+	/**
+	 * Returns the models of the players of all clients in one list, in the order of the clients.
+	 * @return the models of the players of all clients
+	 */
+	private List< PlayerModel > getAllPlayerModels() {
+		final List< PlayerModel > playerModels = new ArrayList< PlayerModel >();
+		for ( final PlayerModel[] playerModels_ : clientsPlayerModels )
+			for ( final PlayerModel playerModel : playerModels_ )
+				playerModels.add( playerModel );
+		return playerModels;
+	}
+	
+	/**
+	 * Returns the checksum of the current state of the game core.<br>
+	 * Clients calculating the same iterations from the same seed and actions must have the same checksum;
+	 * comparing the checksums detects if the game of a client diverged.<br>
+	 * The checksum covers the state of the random object, the walls and items of the level, the bombs
+	 * and the players (positions, vitality, items). The fires are not included, their effects appear in the others.
+	 * The walls and items are hashed incrementally by the level model, so calculating the checksum does not depend
+	 * on the size of the level, it is cheap enough to be calculated in every iteration.
+	 * @return the checksum of the current state of the game core
+	 */
+	public int getStateChecksum() {
+		return calculateStateChecksum( random.getState(), level.getModel(), clientsPlayerModels, bombModels );
+	}
+	
+	/**
+	 * Calculates a state checksum.
+	 * @param randomState         state of the random object
+	 * @param levelModel          level model holding the state of the level
+	 * @param clientsPlayerModels the models of the players of all clients
+	 * @param bombModels          the models of the bombs
+	 * @return the state checksum
+	 */
+	private static int calculateStateChecksum( final long randomState, final LevelModel levelModel, final Vector< PlayerModel[] > clientsPlayerModels, final Vector< BombModel > bombModels ) {
+		int checksum = ( (int) ( randomState ^ randomState >>> 32 ) * 31 + levelModel.getStateHash() ) * 31 + bombModels.size();
+		
+		for ( final PlayerModel[] playerModels : clientsPlayerModels )
+			for ( final PlayerModel playerModel : playerModels )
+				checksum = checksum * 31 + playerModel.getStateHash();
+		for ( final BombModel bombModel : bombModels )
+			checksum = checksum * 31 + bombModel.getStateHash();
+		
+		return checksum;
+	}
+	
 	/* ======================== MODEL PROVIDER =========================== */
 	
 	/**
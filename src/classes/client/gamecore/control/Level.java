@@ -8,6 +8,7 @@ package classes.client.gamecore.control;
 import java.lang.reflect.Array;
 import java.util.Vector;
 
+import classes.client.gamecore.model.FireModel;
 import classes.client.gamecore.model.ModelProvider;
 import classes.client.gamecore.model.level.LevelComponent;
 import classes.client.gamecore.model.level.LevelModel;
@@ -98,6 +99,53 @@ public class Level {
 		model.getComponents()[ componentPosY ][ componentPosX ].fireModelVector.remove( fire.getModel() );
 	}
 
+	/**
+	 * Saves the state of the level into a level model.<br>
+	 * The fire models of the level are cloned into the specified level model.
+	 * @param stateLevelModel level model to save the state into, must have the same size as the level
+	 */
+	public void saveState( final LevelModel stateLevelModel ) {
+		final LevelComponent[][] levelComponents      = model.getComponents();
+		final LevelComponent[][] stateLevelComponents = stateLevelModel.getComponents();
+		
+		for ( int y = 0; y < levelComponents.length; y++ )
+			for ( int x = 0; x < levelComponents[ y ].length; x++ ) {
+				final LevelComponent levelComponent      = levelComponents     [ y ][ x ];
+				final LevelComponent stateLevelComponent = stateLevelComponents[ y ][ x ];
+				
+				stateLevelComponent.copyStateFrom( levelComponent );
+				stateLevelComponent.fireModelVector.clear();
+				for ( final FireModel fireModel : levelComponent.fireModelVector )
+					stateLevelComponent.fireModelVector.add( fireModel.cloneFire() );
+			}
+	}
+	
+	/**
+	 * Restores the state of the level saved by saveState().<br>
+	 * The fires of the level are replaced by new fires having the clones of the saved fire models.
+	 * @param stateLevelModel level model holding the saved state
+	 */
+	public void restoreState( final LevelModel stateLevelModel ) {
+		final LevelComponent[][] levelComponents      = model.getComponents();
+		final LevelComponent[][] stateLevelComponents = stateLevelModel.getComponents();
+		
+		for ( int y = 0; y < levelComponents.length; y++ )
+			for ( int x = 0; x < levelComponents[ y ].length; x++ ) {
+				final LevelComponent levelComponent      = levelComponents     [ y ][ x ];
+				final LevelComponent stateLevelComponent = stateLevelComponents[ y ][ x ];
+				final Vector< Fire > fireVector          = fireVectorss        [ y ][ x ];
+				
+				levelComponent.copyStateFrom( stateLevelComponent );
+				levelComponent.fireModelVector.clear();
+				fireVector.clear();
+				for ( final FireModel stateFireModel : stateLevelComponent.fireModelVector ) {
+					final Fire fire = new Fire( stateFireModel.cloneFire(), x, y, modelProvider, modelController );
+					fireVector.add( fire );
+					levelComponent.fireModelVector.add( fire.getModel() );
+				}
+			}
+	}
+	
 	/**
 	 * Performs operations which are requried by passing the time.
 	 */
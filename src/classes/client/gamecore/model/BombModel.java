@@ -5,11 +5,15 @@
 
 package classes.client.gamecore.model;
 
+import static classes.utils.GeneralStringTokenizer.GENERAL_SEPARATOR_STRING;
+
+import java.util.List;
 import java.util.Vector;
 
 import classes.client.gamecore.Consts.BombPhases;
 import classes.client.gamecore.Consts.BombTypes;
 import classes.client.gamecore.Consts.Directions;
+import classes.utils.GeneralStringTokenizer;
 
 /**
  * The class represents the model of a bomb.<br>
@@ -253,4 +257,100 @@ public class BombModel extends PositionedIterableObject {
 		this.triggererPlayer = triggererPlayer;
 	}
 	
+	/**
+	 * Clones and returns a clone of this bomb model.<br>
+	 * The owner and the triggerer player models are not cloned, the clone refers to the same player models.
+	 * @return a clone of this bomb model
+	 */
+	public BombModel cloneBomb() {
+		final BombModel bombModel = new BombModel( ownerPlayer );
+		
+		bombModel.copyStateFrom( this );
+		bombModel.type                  = type;
+		bombModel.phase                 = phase;
+		bombModel.iterationsDuringPhase = iterationsDuringPhase;
+		bombModel.tickingIterations     = tickingIterations;
+		bombModel.flyingTargetPosX      = flyingTargetPosX;
+		bombModel.flyingTargetPosY      = flyingTargetPosY;
+		bombModel.dead                  = dead;
+		bombModel.aboutToDetonate       = aboutToDetonate;
+		bombModel.detonated             = detonated;
+		bombModel.range                 = range;
+		bombModel.excludedDetonationDirections.addAll( excludedDetonationDirections );
+		bombModel.triggererPlayer       = triggererPlayer;
+		
+		return bombModel;
+	}
+	
+	/**
+	 * Packs the state of the bomb, appending it to a string builder.<br>
+	 * The owner player is packed first, so parseFromTokenizer() can create the bomb model.
+	 * @param stateBuilder string builder to append the packed state to
+	 * @param playerModels the models of the players of all clients, the owner and the triggerer players are packed as indices of this list
+	 */
+	public void packState( final StringBuilder stateBuilder, final List< PlayerModel > playerModels ) {
+		stateBuilder.append( packPlayerReference( ownerPlayer, playerModels ) ).append( GENERAL_SEPARATOR_STRING );
+		super.packState( stateBuilder, playerModels );
+		stateBuilder.append( type  == null ? -1 : type .ordinal() ).append( GENERAL_SEPARATOR_STRING )
+		            .append( phase == null ? -1 : phase.ordinal() ).append( GENERAL_SEPARATOR_STRING )
+		            .append( iterationsDuringPhase ).append( GENERAL_SEPARATOR_STRING ).append( tickingIterations ).append( GENERAL_SEPARATOR_STRING )
+		            .append( flyingTargetPosX ).append( GENERAL_SEPARATOR_STRING ).append( flyingTargetPosY ).append( GENERAL_SEPARATOR_STRING )
+		            .append( ( dead ? 4 : 0 ) + ( aboutToDetonate ? 2 : 0 ) + ( detonated ? 1 : 0 ) ).append( GENERAL_SEPARATOR_STRING )
+		            .append( range ).append( GENERAL_SEPARATOR_STRING )
+		            .append( excludedDetonationDirections.size() ).append( GENERAL_SEPARATOR_STRING );
+		for ( final Directions direction : excludedDetonationDirections )
+			stateBuilder.append( direction.ordinal() ).append( GENERAL_SEPARATOR_STRING );
+		stateBuilder.append( packPlayerReference( triggererPlayer, playerModels ) ).append( GENERAL_SEPARATOR_STRING );
+	}
+	
+	/**
+	 * Parses the state of the bomb packed by packState() following the owner player
+	 * (the owner player is parsed by parseFromTokenizer() which creates the bomb model).
+	 * @param stateTokenizer tokenizer of the packed state
+	 * @param playerModels   the models of the players of all clients, the triggerer player is resolved from this list
+	 */
+	public void parseState( final GeneralStringTokenizer stateTokenizer, final List< PlayerModel > playerModels ) {
+		super.parseState( stateTokenizer, playerModels );
+		final int typeOrdinal  = stateTokenizer.nextIntToken();
+		final int phaseOrdinal = stateTokenizer.nextIntToken();
+		type                  = typeOrdinal  < 0 ? null : BombTypes .values()[ typeOrdinal  ];
+		phase                 = phaseOrdinal < 0 ? null : BombPhases.values()[ phaseOrdinal ];
+		iterationsDuringPhase = stateTokenizer.nextIntToken();
+		tickingIterations     = stateTokenizer.nextIntToken();
+		flyingTargetPosX      = stateTokenizer.nextIntToken();
+		flyingTargetPosY      = stateTokenizer.nextIntToken();
+		final int flags       = stateTokenizer.nextIntToken();
+		dead                  = ( flags & 4 ) != 0;
+		aboutToDetonate       = ( flags & 2 ) != 0;
+		detonated             = ( flags & 1 ) != 0;
+		range                 = stateTokenizer.nextIntToken();
+		excludedDetonationDirections.clear();
+		for ( int i = stateTokenizer.nextIntToken(); i > 0; i-- )
+			excludedDetonationDirections.add( Directions.values()[ stateTokenizer.nextIntToken() ] );
+		triggererPlayer       = parsePlayerReference( stateTokenizer.nextIntToken(), playerModels );
+	}
+	
+	/**
+	 * Parses a bomb model packed by packState().
+	 * @param stateTokenizer tokenizer of the packed state
+	 * @param playerModels   the models of the players of all clients, the owner and the triggerer players are resolved from this list
+	 * @return the parsed bomb model
+	 */
+	public static BombModel parseFromTokenizer( final GeneralStringTokenizer stateTokenizer, final List< PlayerModel > playerModels ) {
+		final BombModel bombModel = new BombModel( parsePlayerReference( stateTokenizer.nextIntToken(), playerModels ) );
+		bombModel.parseState( stateTokenizer, playerModels );
+		return bombModel;
+	}
+	
+	/**
+	 * Returns the hash of the state of the bomb including its phase and its detonation attributes.
+	 * @return the hash of the state of the bomb
+	 */
+	public int getStateHash() {
+		int hash = super.getStateHash() * 31 + ( type == null ? -1 : type.ordinal() );
+		hash = ( ( hash * 31 + ( phase == null ? -1 : phase.ordinal() ) ) * 31 + iterationsDuringPhase ) * 31 + tickingIterations;
+		hash = ( ( hash * 31 + flyingTargetPosX ) * 31 + flyingTargetPosY ) * 31 + range;
+		return hash * 31 + ( dead ? 4 : 0 ) + ( aboutToDetonate ? 2 : 0 ) + ( detonated ? 1 : 0 );
+	}
+	
 }
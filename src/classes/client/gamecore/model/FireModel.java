@@ -5,7 +5,12 @@
 
 package classes.client.gamecore.model;
 
+import static classes.utils.GeneralStringTokenizer.GENERAL_SEPARATOR_STRING;
+
+import java.util.List;
+
 import classes.client.gamecore.Consts.FireShapes;
+import classes.utils.GeneralStringTokenizer;
 
 /**
  * The class represents the model of the fire.<br>
@@ -69,4 +74,45 @@ public class FireModel extends IterableObject {
 		this.triggererPlayer = triggererPlayer;
 	}
 
+	/**
+	 * Clones and returns a clone of this fire model.<br>
+	 * The owner and the triggerer player models are not cloned, the clone refers to the same player models.
+	 * @return a clone of this fire model
+	 */
+	public FireModel cloneFire() {
+		final FireModel fireModel = new FireModel();
+		
+		fireModel.copyStateFrom( this );
+		fireModel.shape           = shape;
+		fireModel.ownerPlayer     = ownerPlayer;
+		fireModel.triggererPlayer = triggererPlayer;
+		
+		return fireModel;
+	}
+	
+	/**
+	 * Packs the state of the fire, appending it to a string builder.
+	 * @param stateBuilder string builder to append the packed state to
+	 * @param playerModels the models of the players of all clients, the owner and the triggerer players are packed as indices of this list
+	 */
+	public void packState( final StringBuilder stateBuilder, final List< PlayerModel > playerModels ) {
+		super.packState( stateBuilder, playerModels );
+		stateBuilder.append( shape == null ? -1 : shape.ordinal() ).append( GENERAL_SEPARATOR_STRING )
+		            .append( packPlayerReference( ownerPlayer, playerModels ) ).append( GENERAL_SEPARATOR_STRING )
+		            .append( packPlayerReference( triggererPlayer, playerModels ) ).append( GENERAL_SEPARATOR_STRING );
+	}
+	
+	/**
+	 * Parses the state of the fire packed by packState().
+	 * @param stateTokenizer tokenizer of the packed state
+	 * @param playerModels   the models of the players of all clients, the owner and the triggerer players are resolved from this list
+	 */
+	public void parseState( final GeneralStringTokenizer stateTokenizer, final List< PlayerModel > playerModels ) {
+		super.parseState( stateTokenizer, playerModels );
+		final int shapeOrdinal = stateTokenizer.nextIntToken();
+		shape           = shapeOrdinal < 0 ? null : FireShapes.values()[ shapeOrdinal ];
+		ownerPlayer     = parsePlayerReference( stateTokenizer.nextIntToken(), playerModels );
+		triggererPlayer = parsePlayerReference( stateTokenizer.nextIntToken(), playerModels );
+	}
+
 }
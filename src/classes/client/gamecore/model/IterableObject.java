@@ -5,6 +5,12 @@
 
 package classes.client.gamecore.model;
 
+import static classes.utils.GeneralStringTokenizer.GENERAL_SEPARATOR_STRING;
+
+import java.util.List;
+
+import classes.utils.GeneralStringTokenizer;
+
 /**
  * This class represents an iterable object. An iterable object can be stepped to the next iteration,
  * and we can access and modify its iteration counter.
@@ -40,4 +46,52 @@ public class IterableObject {
 		iterationCounter++;
 	}
 	
+	/**
+	 * Copies the state of another iterable object into this one.
+	 * @param iterableObject iterable object whose state to be copied
+	 */
+	public void copyStateFrom( final IterableObject iterableObject ) {
+		iterationCounter = iterableObject.iterationCounter;
+	}
+	
+	/**
+	 * Packs the state of this iterable object, appending it to a string builder.<br>
+	 * The state is packed as numbers separated by the general separator character,
+	 * references to players are packed as their indices in the specified list of player models.
+	 * @param stateBuilder string builder to append the packed state to
+	 * @param playerModels the models of the players of all clients, the references to players are packed as indices of this list
+	 */
+	public void packState( final StringBuilder stateBuilder, final List< PlayerModel > playerModels ) {
+		stateBuilder.append( iterationCounter ).append( GENERAL_SEPARATOR_STRING );
+	}
+	
+	/**
+	 * Parses the state of this iterable object packed by packState().
+	 * @param stateTokenizer tokenizer of the packed state
+	 * @param playerModels   the models of the players of all clients, the references to players are resolved from this list
+	 */
+	public void parseState( final GeneralStringTokenizer stateTokenizer, final List< PlayerModel > playerModels ) {
+		iterationCounter = stateTokenizer.nextIntToken();
+	}
+	
+	/**
+	 * Packs a reference to a player as its index in a list of player models.
+	 * @param playerModel  model of the player to be packed (may be null)
+	 * @param playerModels the models of the players of all clients
+	 * @return the index of the player in the list; -1 if the reference is null
+	 */
+	protected static int packPlayerReference( final PlayerModel playerModel, final List< PlayerModel > playerModels ) {
+		return playerModel == null ? -1 : playerModels.indexOf( playerModel );
+	}
+	
+	/**
+	 * Parses a reference to a player packed by packPlayerReference().
+	 * @param playerIndex  the packed player index
+	 * @param playerModels the models of the players of all clients
+	 * @return the model of the player; null if the reference was null
+	 */
+	protected static PlayerModel parsePlayerReference( final int playerIndex, final List< PlayerModel > playerModels ) {
+		return playerIndex < 0 ? null : playerModels.get( playerIndex );
+	}
+	
 }
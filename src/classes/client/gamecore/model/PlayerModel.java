@@ -5,12 +5,16 @@
 
 package classes.client.gamecore.model;
 
+import static classes.utils.GeneralStringTokenizer.GENERAL_SEPARATOR_STRING;
+
 import java.util.EnumMap;
+import java.util.List;
 import java.util.Vector;
 
 import classes.client.gamecore.Consts.Activities;
 import classes.options.Consts.Items;
 import classes.options.Consts.PlayerControlKeys;
+import classes.utils.GeneralStringTokenizer;
 
 /**
  * The class represents the model of a player of the GAME (NOT the the application):
@@ -21,6 +25,9 @@ import classes.options.Consts.PlayerControlKeys;
  */
 public class PlayerModel extends PositionedIterableObject {
 
+	/** The items (cached, values() creates a new array every time).                */
+	private static final Items[] ITEMS = Items.values();
+
 	/** Vitality of the player.                                                     */
 	private int        vitality;
 	/** The current activity of the player.                                         */
@@ -153,4 +160,129 @@ public class PlayerModel extends PositionedIterableObject {
 		return lastControlKeyStates[ playerControlKey.ordinal() ];
 	}
 
+	/**
+	 * Copies the state of another player model into this one.<br>
+	 * The picked up bomb model is cloned.
+	 * @param playerModel player model whose state to be copied
+	 */
+	public void copyStateFrom( final PlayerModel playerModel ) {
+		super.copyStateFrom( playerModel );
+		vitality               = playerModel.vitality;
+		activity               = playerModel.activity;
+		placableTriggeredBombs = playerModel.placableTriggeredBombs;
+		pickedUpBombModel      = playerModel.pickedUpBombModel == null ? null : playerModel.pickedUpBombModel.cloneBomb();
+		
+		accumulateableItemQuantitiesMap.clear ();
+		accumulateableItemQuantitiesMap.putAll( playerModel.accumulateableItemQuantitiesMap );
+		hasNonAccumulateableItemsMap   .clear ();
+		hasNonAccumulateableItemsMap   .putAll( playerModel.hasNonAccumulateableItemsMap    );
+		pickedUpAccumulateableItems    .clear ();
+		pickedUpAccumulateableItems    .addAll( playerModel.pickedUpAccumulateableItems     );
+		pickedUpNonAccumulateableItems .clear ();
+		pickedUpNonAccumulateableItems .addAll( playerModel.pickedUpNonAccumulateableItems  );
+		
+		System.arraycopy( playerModel.controlKeyStates    , 0, controlKeyStates    , 0, controlKeyStates    .length );
+		System.arraycopy( playerModel.lastControlKeyStates, 0, lastControlKeyStates, 0, lastControlKeyStates.length );
+	}
+	
+	/**
+	 * Packs the state of the player, appending it to a string builder.<br>
+	 * The states of the control keys are packed as bit masks.
+	 * @param stateBuilder string builder to append the packed state to
+	 * @param playerModels the models of the players of all clients, the owner and the triggerer players of the picked up bomb are packed as indices of this list
+	 */
+	public void packState( final StringBuilder stateBuilder, final List< PlayerModel > playerModels ) {
+		super.packState( stateBuilder, playerModels );
+		stateBuilder.append( vitality ).append( GENERAL_SEPARATOR_STRING ).append( activity == null ? -1 : activity.ordinal() ).append( GENERAL_SEPARATOR_STRING )
+		            .append( placableTriggeredBombs ).append( GENERAL_SEPARATOR_STRING );
+		
+		for ( final Items item : ITEMS ) {
+			final Integer quantity = accumulateableItemQuantitiesMap.get( item );
+			final Boolean hasItem  = hasNonAccumulateableItemsMap   .get( item );
+			stateBuilder.append( quantity == null ? -1 : quantity ).append( GENERAL_SEPARATOR_STRING ).append( hasItem == null ? -1 : hasItem ? 1 : 0 ).append( GENERAL_SEPARATOR_STRING );
+		}
+		stateBuilder.append( pickedUpAccumulateableItems.size() ).append( GENERAL_SEPARATOR_STRING );
+		for ( final Items item : pickedUpAccumulateableItems )
+			stateBuilder.append( item.ordinal() ).append( GENERAL_SEPARATOR_STRING );
+		stateBuilder.append( pickedUpNonAccumulateableItems.size() ).append( GENERAL_SEPARATOR_STRING );
+		for ( final Items item : pickedUpNonAccumulateableItems )
+			stateBuilder.append( item.ordinal() ).append( GENERAL_SEPARATOR_STRING );
+		
+		int controlKeyStatesMask = 0, lastControlKeyStatesMask = 0;
+		for ( int i = 0; i < controlKeyStates.length; i++ ) {
+			if ( controlKeyStates    [ i ] )
+				controlKeyStatesMask     |= 1 << i;
+			if ( lastControlKeyStates[ i ] )
+				lastControlKeyStatesMask |= 1 << i;
+		}
+		stateBuilder.append( controlKeyStatesMask ).append( GENERAL_SEPARATOR_STRING ).append( lastControlKeyStatesMask ).append( GENERAL_SEPARATOR_STRING );
+		
+		if ( pickedUpBombModel == null )
+			stateBuilder.append( 0 ).append( GENERAL_SEPARATOR_STRING );
+		else {
+			stateBuilder.append( 1 ).append( GENERAL_SEPARATOR_STRING );
+			pickedUpBombModel.packState( stateBuilder, playerModels );
+		}
+	}
+	
+	/**
+	 * Parses the state of the player packed by packState().
+	 * @param stateTokenizer tokenizer of the packed state
+	 * @param playerModels   the models of the players of all clients, the owner and the triggerer players of the picked up bomb are resolved from this list
+	 */
+	public void parseState( final GeneralStringTokenizer stateTokenizer, final List< PlayerModel > playerModels ) {
+		super.parseState( stateTokenizer, playerModels );
+		vitality               = stateTokenizer.nextIntToken();
+		final int activityOrdinal = stateTokenizer.nextIntToken();
+		activity               = activityOrdinal < 0 ? null : Activities.values()[ activityOrdinal ];
+		placableTriggeredBombs = stateTokenizer.nextIntToken();
+		
+		accumulateableItemQuantitiesMap.clear();
+		hasNonAccumulateableItemsMap   .clear();
+		for ( final Items item : ITEMS ) {
+			final int quantity = stateTokenizer.nextIntToken();
+			final int hasItem  = stateTokenizer.nextIntToken();
+			if ( quantity >= 0 )
+				accumulateableItemQuantitiesMap.put( item, quantity );
+			if ( hasItem >= 0 )
+				hasNonAccumulateableItemsMap   .put( item, hasItem == 1 );
+		}
+		pickedUpAccumulateableItems.clear();
+		for ( int i = stateTokenizer.nextIntToken(); i > 0; i-- )
+			pickedUpAccumulateableItems.add( ITEMS[ stateTokenizer.nextIntToken() ] );
+		pickedUpNonAccumulateableItems.clear();
+		for ( int i = stateTokenizer.nextIntToken(); i > 0; i-- )
+			pickedUpNonAccumulateableItems.add( ITEMS[ stateTokenizer.nextIntToken() ] );
+		
+		final int controlKeyStatesMask     = stateTokenizer.nextIntToken();
+		final int lastControlKeyStatesMask = stateTokenizer.nextIntToken();
+		for ( int i = 0; i < controlKeyStates.length; i++ ) {
+			controlKeyStates    [ i ] = ( controlKeyStatesMask     & 1 << i ) != 0;
+			lastControlKeyStates[ i ] = ( lastControlKeyStatesMask & 1 << i ) != 0;
+		}
+		
+		pickedUpBombModel = stateTokenizer.nextIntToken() == 0 ? null : BombModel.parseFromTokenizer( stateTokenizer, playerModels );
+	}
+	
+	/**
+	 * Returns the hash of the state of the player including its vitality and its items.
+	 * @return the hash of the state of the player
+	 */
+	public int getStateHash() {
+		int hash = ( ( super.getStateHash() * 31 + vitality ) * 31 + ( activity == null ? -1 : activity.ordinal() ) ) * 31 + placableTriggeredBombs;
+		
+		for ( final Items item : ITEMS ) {
+			final Integer quantity = accumulateableItemQuantitiesMap.get( item );
+			final Boolean hasItem  = hasNonAccumulateableItemsMap   .get( item );
+			hash = hash * 31 + ( quantity == null ? -1 : quantity );
+			hash = hash * 31 + ( hasItem  == null ? -1 : hasItem ? 1 : 0 );
+		}
+		for ( final Items item : pickedUpAccumulateableItems )
+			hash = hash * 31 + item.ordinal();
+		for ( final Items item : pickedUpNonAccumulateableItems )
+			hash = hash * 31 + item.ordinal();
+		
+		return hash * 31 + ( pickedUpBombModel == null ? -1 : pickedUpBombModel.getStateHash() );
+	}
+	
 }
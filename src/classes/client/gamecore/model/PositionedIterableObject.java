@@ -6,7 +6,12 @@
 package classes.client.gamecore.model;
 
 import static classes.client.gamecore.Consts.LEVEL_COMPONENT_GRANULARITY;
+import static classes.utils.GeneralStringTokenizer.GENERAL_SEPARATOR_STRING;
+
+import java.util.List;
+
 import classes.client.gamecore.Consts.Directions;
+import classes.utils.GeneralStringTokenizer;
 
 /**
  * Represents an iterable object which has a position and a direction.
@@ -124,4 +129,47 @@ public class PositionedIterableObject extends IterableObject {
 		posY += LEVEL_COMPONENT_GRANULARITY / 2 - posY % LEVEL_COMPONENT_GRANULARITY; 
 	}
 
+	/**
+	 * Copies the state of another positioned iterable object into this one.
+	 * @param positionedIterableObject positioned iterable object whose state to be copied
+	 */
+	public void copyStateFrom( final PositionedIterableObject positionedIterableObject ) {
+		super.copyStateFrom( positionedIterableObject );
+		posX      = positionedIterableObject.posX;
+		posY      = positionedIterableObject.posY;
+		direction = positionedIterableObject.direction;
+	}
+	
+	/**
+	 * Packs the state of the object, appending it to a string builder.
+	 * @param stateBuilder string builder to append the packed state to
+	 * @param playerModels the models of the players of all clients, the references to players are packed as indices of this list
+	 */
+	public void packState( final StringBuilder stateBuilder, final List< PlayerModel > playerModels ) {
+		super.packState( stateBuilder, playerModels );
+		stateBuilder.append( posX ).append( GENERAL_SEPARATOR_STRING ).append( posY ).append( GENERAL_SEPARATOR_STRING )
+		            .append( direction == null ? -1 : direction.ordinal() ).append( GENERAL_SEPARATOR_STRING );
+	}
+	
+	/**
+	 * Parses the state of the object packed by packState().
+	 * @param stateTokenizer tokenizer of the packed state
+	 * @param playerModels   the models of the players of all clients, the references to players are resolved from this list
+	 */
+	public void parseState( final GeneralStringTokenizer stateTokenizer, final List< PlayerModel > playerModels ) {
+		super.parseState( stateTokenizer, playerModels );
+		posX = stateTokenizer.nextIntToken();
+		posY = stateTokenizer.nextIntToken();
+		final int directionOrdinal = stateTokenizer.nextIntToken();
+		direction = directionOrdinal < 0 ? null : Directions.values()[ directionOrdinal ];
+	}
+	
+	/**
+	 * Returns the hash of the state of the object, used to compare game states calculated by different clients.
+	 * @return the hash of the state of the object
+	 */
+	public int getStateHash() {
+		return ( ( getIterationCounter() * 31 + posX ) * 31 + posY ) * 31 + ( direction == null ? -1 : direction.ordinal() );
+	}
+	
 }
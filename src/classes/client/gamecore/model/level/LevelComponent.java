@@ -5,12 +5,17 @@
 
 package classes.client.gamecore.model.level;
 
+import static classes.utils.GeneralStringTokenizer.GENERAL_SEPARATOR_STRING;
+
+import java.util.List;
 import java.util.Vector;
 
 import classes.client.gamecore.model.FireModel;
 import classes.client.gamecore.model.IterableObject;
+import classes.client.gamecore.model.PlayerModel;
 import classes.options.Consts.Items;
 import classes.options.Consts.Walls;
+import classes.utils.GeneralStringTokenizer;
 
 /**
  * A component of the level (the level consists of level components).
@@ -19,6 +24,11 @@ import classes.options.Consts.Walls;
  */
 public class LevelComponent extends IterableObject {
 
+    /** The level model this component belongs to.                                        */
+    private final LevelModel         levelModel;
+    /** Index of the component in the level (row-major order), part of its state hash.    */
+    private final int                index;
+
     /** What kind of wall is associated to the component.                                */
     private Walls                    wall = Walls.EMPTY;
     /** What kind of item is optionally contained by the component.
@@ -27,12 +37,26 @@ public class LevelComponent extends IterableObject {
     /** The vector of fire models taking place on this component.                        */
     public final Vector< FireModel > fireModelVector = new Vector< FireModel >();
     
+    /**
+     * Creates a new LevelComponent.<br>
+     * The state hash of the new component is added to the state hash of the level model.
+     * @param levelModel the level model this component belongs to
+     * @param index      index of the component in the level (row-major order)
+     */
+    LevelComponent( final LevelModel levelModel, final int index ) {
+        this.levelModel = levelModel;
+        this.index      = index;
+        levelModel.updateStateHash( 0, getStateHash() );
+    }
+
     /**
      * Sets the wall of the component.
      * @param wall the wall to be set
      */
     public void setWall( final Walls wall ) {
+        final int oldStateHash = getStateHash();
         this.wall = wall;
+        levelModel.updateStateHash( oldStateHash, getStateHash() );
     }
     
     /**
@@ -40,7 +64,9 @@ public class LevelComponent extends IterableObject {
      * @param item the item to be set
      */
     public void setItem( final Items item ) {
+        final int oldStateHash = getStateHash();
         this.item = item;
+        levelModel.updateStateHash( oldStateHash, getStateHash() );
     }
 
     /**
@@ -59,4 +85,61 @@ public class LevelComponent extends IterableObject {
         return item;
     }
 
+    /**
+     * Copies the wall, the item and the iteration counter of another level component into this one.<br>
+     * The fire models are not copied, fires are managed by the level.
+     * @param levelComponent level component whose state to be copied
+     */
+    public void copyStateFrom( final LevelComponent levelComponent ) {
+        super.copyStateFrom( levelComponent );
+        final int oldStateHash = getStateHash();
+        wall = levelComponent.wall;
+        item = levelComponent.item;
+        levelModel.updateStateHash( oldStateHash, getStateHash() );
+    }
+    
+    /**
+     * Packs the wall, the item, the iteration counter and the fire models of the component, appending them to a string builder.
+     * @param stateBuilder string builder to append the packed state to
+     * @param playerModels the models of the players of all clients, the owner and the triggerer players of the fires are packed as indices of this list
+     */
+    public void packState( final StringBuilder stateBuilder, final List< PlayerModel > playerModels ) {
+        super.packState( stateBuilder, playerModels );
+        stateBuilder.append( wall.ordinal() ).append( GENERAL_SEPARATOR_STRING ).append( item == null ? -1 : item.ordinal() ).append( GENERAL_SEPARATOR_STRING )
+                    .append( fireModelVector.size() ).append( GENERAL_SEPARATOR_STRING );
+        for ( final FireModel fireModel : fireModelVector )
+            fireModel.packState( stateBuilder, playerModels );
+    }
+    
+    /**
+     * Parses the state of the component packed by packState(). The parsed fire models replace the fire models of the component.
+     * @param stateTokenizer tokenizer of the packed state
+     * @param playerModels   the models of the players of all clients, the owner and the triggerer players of the fires are resolved from this list
+     */
+    public void parseState( final GeneralStringTokenizer stateTokenizer, final List< PlayerModel > playerModels ) {
+        super.parseState( stateTokenizer, playerModels );
+        final int oldStateHash = getStateHash();
+        wall = Walls.values()[ stateTokenizer.nextIntToken() ];
+        final int itemOrdinal = stateTokenizer.nextIntToken();
+        item = itemOrdinal < 0 ? null : Items.values()[ itemOrdinal ];
+        levelModel.updateStateHash( oldStateHash, getStateHash() );
+        
+        fireModelVector.clear();
+        for ( int i = stateTokenizer.nextIntToken(); i > 0; i-- ) {
+            final FireModel fireModel = new FireModel();
+            fireModel.parseState( stateTokenizer, playerModels );
+            fireModelVector.add( fireModel );
+        }
+    }
+    
+    /**
+     * Returns the state hash of the component: the hash of its position, wall and item.<br>
+     * The bits are spread so that the sum of the hashes of the components changes if any of them changes.
+     * @return the state hash of the component
+     */
+    private int getStateHash() {
+        final int hash = ( ( index << 8 ) + ( wall.ordinal() << 6 ) + ( item == null ? 0 : item.ordinal() + 1 ) ) * 0x9e3779b1;
+        return hash ^ hash >>> 15;
+    }
+
 }
@@ -18,6 +18,9 @@ public class LevelModel {
     private final LevelOptions       levelOptions;
     /** The components of the level. */
     private final LevelComponent[][] components;
+    /** Hash of the walls and items of the level: the sum of the state hashes of the components,
+     * maintained incrementally by the components when they change. */
+    private int                      stateHash;
 
     /**
      * Creates a new Level.
@@ -26,9 +29,9 @@ public class LevelModel {
     public LevelModel( final LevelOptions levelOptions ) {
         this.levelOptions = levelOptions;
         components = new LevelComponent[ levelOptions.levelHeight ][ levelOptions.levelWidth ];
-        for ( final LevelComponent[] componentRow : components )
-            for ( int i = 0; i < componentRow.length; i++ )
-                componentRow[ i ] = new LevelComponent();
+        for ( int y = 0; y < components.length; y++ )
+            for ( int x = 0; x < components[ y ].length; x++ )
+                components[ y ][ x ] = new LevelComponent( this, y * levelOptions.levelWidth + x );
     }
 
     /**
@@ -47,6 +50,24 @@ public class LevelModel {
         return components;
     }
     
+    /**
+     * Returns the hash of the walls and items of the level.<br>
+     * The hash is maintained incrementally, so this is a constant time operation.
+     * @return the hash of the walls and items of the level
+     */
+    public int getStateHash() {
+        return stateHash;
+    }
+    
+    /**
+     * Updates the state hash of the level when the state of a component changes.
+     * @param oldComponentStateHash the state hash of the component before the change
+     * @param newComponentStateHash the state hash of the component after the change
+     */
+    void updateStateHash( final int oldComponentStateHash, final int newComponentStateHash ) {
+        stateHash += newComponentStateHash - oldComponentStateHash;
+    }
+    
     /**
      * Packs this object to a String so it can be transferred or stored.
      * @return a compact string representing this level
@@ -13,6 +13,7 @@ import static classes.client.gamecore.Consts.BOMB_ITERATIONS;
 import static classes.client.gamecore.Consts.FIRE_ITERATIONS;
 import static classes.client.gamecore.Consts.LEVEL_COMPONENT_GRANULARITY;
 import static classes.client.gamecore.Consts.MAX_PLAYER_VITALITY;
+import static classes.client.gamecore.Consts.PLAYER_CONTROL_KEY_STATES_BITS;
 
 import java.awt.Color;
 import java.awt.Graphics;
@@ -45,16 +46,20 @@ import classes.options.model.ClientOptions;
  */
 public class GameSceneComponent extends JComponent implements KeyListener, OptionsChangeListener< ClientOptions > {
 
-	/** A string containing only a space. Used several times on keyboard events.            */
-	private static final String SPACE_STRING = " ";
-	
 	/** Reference to the client options manager.                                            */
 	private final OptionsManager< ClientOptions > clientOptionsManager;
 	/** (Reference to) the control keys of players.                                         */
 	private int[][]                               playersControlKeys;
-	/** States of the keys of players. Stored becase we want to send only the changes
+	/** Number of players from host in the current game.                                    */
+	private int                                   playersFromHost;
+	/** States of the keys of players as a control key states mask. Stored becase we want to send only the changes
 	 * (pressed and hold key causes keyPressed() being called repeatedly).                  */
-	private boolean[][]                           playersControlKeyStates;
+	private int                                   controlKeyStates;
+	/** Keys pressed since the last key states delta. A key pressed and released
+	 * between two deltas is sent as pressed, and released only in the next delta.          */
+	private int                                   pressedControlKeys;
+	/** The control key states mask sent last time (the base of the next delta).            */
+	private int                                   sentControlKeyStates;
 	
 	/** Reference to the handlers of wall images.                                           */
 	private ImageHandler[]                        wallImageHandlers;
@@ -71,8 +76,6 @@ public class GameSceneComponent extends JComponent implements KeyListener, Optio
 	
 	/** Reference to a model provider, this model will be displayed.                        */
 	private ModelProvider                         modelProvider;
-	/** The sequence of actions made by the users on this component required for the game.  */
-	private String                                actions;
 
 	
 	// Working parameters:
@@ -86,7 +89,6 @@ public class GameSceneComponent extends JComponent implements KeyListener, Optio
 	public GameSceneComponent( final OptionsManager< ClientOptions > clientOptionsManager ) {
 		this.clientOptionsManager = clientOptionsManager;
 		playersControlKeys        = this.clientOptionsManager.getOptions().playersControlKeys;
-		playersControlKeyStates   = new boolean[ 0 ][ playersControlKeys[ 0 ].length ];  // The 2nd dimension could be 0 size as well, but this is the proper solution.
 		
 		this.clientOptionsManager.registerOptionsChangeListener( this );
 		
@@ -302,13 +304,17 @@ public class GameSceneComponent extends JComponent implements KeyListener, Optio
 	}
 	
 	/**
-	 * Returns and clears before that the new actions since the last call of this method.
-	 * @return the new actions since the last call of this method.
+	 * Returns the changes of the control key states since the last call of this method.<br>
+	 * Keys pressed and released since the last call are reported pressed now, and released by the next call.
+	 * @return the changes of the control key states mask: the bits of the changed keys are set
 	 */
-	public String getAndClearNewActions() {
-		final String actions_ = actions;
-		actions = "";
-		return actions_;
+	public synchronized int getAndClearControlKeyStatesDelta() {
+		final int newControlKeyStates = controlKeyStates | pressedControlKeys;
+		final int controlKeyStatesDelta = newControlKeyStates ^ sentControlKeyStates;
+		
+		sentControlKeyStates = newControlKeyStates;
+		pressedControlKeys   = 0;
+		return controlKeyStatesDelta;
 	}
 	
 	/**
@@ -330,17 +336,15 @@ public class GameSceneComponent extends JComponent implements KeyListener, Optio
 	 * Called when a key has been pressed.
 	 * @param keyEvent details of the key event
 	 */
-	public void keyPressed( final KeyEvent keyEvent ) {
-		final int keyCode             = keyEvent.getKeyCode();
+	public synchronized void keyPressed( final KeyEvent keyEvent ) {
+		final int keyCode = keyEvent.getKeyCode();
 
-		final int gamePlayersFromHost = playersControlKeyStates.length;    // Might not equal to the one at cilentOptions...
-		for ( int i = 0; i < gamePlayersFromHost; i++ )
+		for ( int i = 0; i < playersFromHost; i++ )    // playersFromHost might not equal to the one at cilentOptions...
 			for ( int j = 0; j < playersControlKeys[ i ].length; j++ )
-				if ( keyCode == playersControlKeys[ i ][ j ] && playersControlKeyStates[ i ][ j ] == false ) {
-					playersControlKeyStates[ i ][ j ] = true;
-					if ( actions.length() > 0 )
-						actions += SPACE_STRING;
-					actions += i + SPACE_STRING + j + SPACE_STRING + 'p';
+				if ( keyCode == playersControlKeys[ i ][ j ] ) {
+					final int controlKeyBit = 1 << i * PLAYER_CONTROL_KEY_STATES_BITS + j;
+					controlKeyStates   |= controlKeyBit;
+					pressedControlKeys |= controlKeyBit;
 				}
 	}
 
@@ -348,18 +352,13 @@ public class GameSceneComponent extends JComponent implements KeyListener, Optio
 	 * Called when a key has been released.
 	 * @param keyEvent details of the key event
 	 */
-	public void keyReleased( final KeyEvent keyEvent ) {
-		final int keyCode             = keyEvent.getKeyCode();
+	public synchronized void keyReleased( final KeyEvent keyEvent ) {
+		final int keyCode = keyEvent.getKeyCode();
 
-		final int gamePlayersFromHost = playersControlKeyStates.length;    // Might not equals to the one at cilentOptions...
-		for ( int i = 0; i < gamePlayersFromHost; i++ )
+		for ( int i = 0; i < playersFromHost; i++ )    // playersFromHost might not equal to the one at cilentOptions...
 			for ( int j = 0; j < playersControlKeys[ i ].length; j++ )
-				if ( keyCode == playersControlKeys[ i ][ j ] && playersControlKeyStates[ i ][ j ] == true ) {
-					playersControlKeyStates[ i ][ j ] = false;
-					if ( actions.length() > 0 )
-						actions += SPACE_STRING;
-					actions += i + SPACE_STRING + j + SPACE_STRING + 'r';
-				}
+				if ( keyCode == playersControlKeys[ i ][ j ] )
+					controlKeyStates &= ~( 1 << i * PLAYER_CONTROL_KEY_STATES_BITS + j );
 	}
 
     /**
@@ -368,10 +367,8 @@ public class GameSceneComponent extends JComponent implements KeyListener, Optio
      * @param newOptions the new client options are about to become effective
      */
 	public void optionsChanged( final ClientOptions oldOptions, final ClientOptions newOptions ) {
-		final int gamePlayersFromHost = playersControlKeyStates.length;    // Might not equals to the one at cilentOptions...
-
 		cycle1:
-		for ( int i = 0; i < gamePlayersFromHost; i++ )
+		for ( int i = 0; i < playersFromHost; i++ )    // playersFromHost might not equal to the one at cilentOptions...
 			for ( int j = 0; j < newOptions.playersControlKeys[ i ].length; j++ )
 				if ( newOptions.playersControlKeys[ i ][ j ] != oldOptions.playersControlKeys[ i ][ j ] ) {
 					playersControlKeys = newOptions.playersControlKeys;
@@ -382,10 +379,11 @@ public class GameSceneComponent extends JComponent implements KeyListener, Optio
 	/**
 	 * Called when new game starts.
 	 */
-	public void handleGameStarting() {
-		final int playersFromHost = clientOptionsManager.getOptions().playersFromHost;  // Number of players from host cannot (must not) be change during a game, but can be changed between games.
-		playersControlKeyStates   = new boolean[ playersFromHost ][ playersControlKeys[ 0 ].length ];
-		actions                   = "";
+	public synchronized void handleGameStarting() {
+		playersFromHost      = clientOptionsManager.getOptions().playersFromHost;  // Number of players from host cannot (must not) be change during a game, but can be changed between games.
+		controlKeyStates     = 0;
+		pressedControlKeys   = 0;
+		sentControlKeyStates = 0;
 	}
 
 }
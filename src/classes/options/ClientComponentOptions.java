@@ -85,6 +85,9 @@ public class ClientComponentOptions extends ComponentOptions< ClientOptions > im
     private static final SceneRefreshModes      DEFAULT_SCENE_REFRESH_MODE      = SceneRefreshModes.NORMAL;
 	/** Default value of image scaling algorithm.      */
     private static final ImageScalingAlgorithms DEFAULT_IMAGE_SCALING_ALGORITHM = ImageScalingAlgorithms.FAST;
+
+    /** Default value of shared memory transport option. */
+    private static final boolean                DEFAULT_SHARED_MEMORY_TRANSPORT = true;
     
     // Port constants are imported from classes.options.Consts!
 
@@ -127,6 +130,8 @@ public class ClientComponentOptions extends ComponentOptions< ClientOptions > im
     
     /** Component for game port option.                                      */
     private final JSpinner     gamePort_c                         = new JSpinner ( new SpinnerNumberModel( DEFAULT_GAME_PORT, MINIMUM_GAME_PORT, MAXIMUM_GAME_PORT, 1 ) );
+    /** Component for shared memory transport option.                        */
+    private final JCheckBox    sharedMemoryTransport_c            = new JCheckBox( "Shared memory transport to local servers" );
 
 
 
@@ -144,7 +149,7 @@ public class ClientComponentOptions extends ComponentOptions< ClientOptions > im
             public Component getListCellRendererComponent( final JList list, final Object value, final int index, final boolean isSelected, final boolean cellHasFocus ) {
                 final Component component = super.getListCellRendererComponent( list, value, index, isSelected, cellHasFocus );
                 if ( component instanceof JLabel )
-                    ( (JLabel) component ).setIcon( new ColorIcon( ( (PlayerColors) value ).value ) );
+                    ( (JLabel) component ).setIcon( new ColorIcon( ( (PlayerColors) value ).getValue() ) );
                 return component;
             }
         };
@@ -183,7 +188,7 @@ public class ClientComponentOptions extends ComponentOptions< ClientOptions > im
         box.add( panel );
             panel = new JPanel();
             panel.add( new JLabel( "Players from host:" ) );
-            playersFromHost_c.setToolTipText( "0 means not to play but to observe the game." );
+            playersFromHost_c.setToolTipText( "0 means not to play but to watch the game as a spectator (decided when connecting)." );
             panel.add( playersFromHost_c );
         box.add( panel );
             panel = new JPanel();
@@ -263,6 +268,10 @@ public class ClientComponentOptions extends ComponentOptions< ClientOptions > im
             panel.add( new JLabel( "Game port:" ) );
             gamePort_c.setToolTipText( "Must be equal to the value set by the server!" );
             panel.add( gamePort_c );
+        box.add( panel );
+            panel = new JPanel();
+            sharedMemoryTransport_c.setToolTipText( "If the server runs on this computer, data is sent and received through shared memory instead of the network." );
+            panel.add( sharedMemoryTransport_c );
         box.add( panel );
         panel = new JPanel();
         panel.add( box );
@@ -302,6 +311,7 @@ public class ClientComponentOptions extends ComponentOptions< ClientOptions > im
 		imageScalingAlgorithm_c.setSelectedItem( DEFAULT_IMAGE_SCALING_ALGORITHM );
 
         gamePort_c             .setValue       ( DEFAULT_GAME_PORT );
+        sharedMemoryTransport_c.setSelected    ( DEFAULT_SHARED_MEMORY_TRANSPORT );
     }
     
     /**
@@ -341,6 +351,7 @@ public class ClientComponentOptions extends ComponentOptions< ClientOptions > im
 		clientOptions.imageScalingAlgorithm = (ImageScalingAlgorithms) imageScalingAlgorithm_c.getSelectedItem();
 
         clientOptions.gamePort              = (Integer) gamePort_c.getValue();
+        clientOptions.sharedMemoryTransport = sharedMemoryTransport_c.isSelected();
 
         return clientOptions;
     }
@@ -377,6 +388,7 @@ public class ClientComponentOptions extends ComponentOptions< ClientOptions > im
 		imageScalingAlgorithm_c.setSelectedItem( options.imageScalingAlgorithm );
 
         gamePort_c             .setValue       ( options.gamePort              );
+        sharedMemoryTransport_c.setSelected    ( options.sharedMemoryTransport );
     }
 
     /**
@@ -29,65 +29,74 @@ public class Consts {
     /** The available player colors in the game. */
     public enum PlayerColors {
         /** The Black player color. */
-        BLACK     ( "Black"          , new Color(   0,   0,   0 ) ),
+        BLACK     ( "Black"          , 0x000000 ),
         /** The Navy player color. */
-        NAVY      ( "Navy"           , new Color(   0,   0, 128 ) ),
+        NAVY      ( "Navy"           , 0x000080 ),
         /** The Blue player color. */
-        BLUE      ( "Blue"           , new Color(   0,   0, 255 ) ),
+        BLUE      ( "Blue"           , 0x0000FF ),
         /** The Royal Blue player color. */
-        ROLAY_BLUE( "Royal Blue"     , new Color(  65, 105, 225 ) ),
+        ROLAY_BLUE( "Royal Blue"     , 0x4169E1 ),
         /** The Teal player color. */
-        TEAL      ( "Teal"           , new Color(   0, 128, 128 ) ),
+        TEAL      ( "Teal"           , 0x008080 ),
         /** The Cyan/Aqua player color. */
-        CYAN      ( "Cyan/Aqua"      , new Color(   0, 255, 255 ) ),
+        CYAN      ( "Cyan/Aqua"      , 0x00FFFF ),
         /** The Lime player color. */
-        LIME      ( "Lime"           , new Color(   0, 255,   0 ) ),
+        LIME      ( "Lime"           , 0x00FF00 ),
         /** The Green player color. */
-        GREEN     ( "Green"          , new Color(   0, 128,   0 ) ),
+        GREEN     ( "Green"          , 0x008000 ),
         /** The Red player color. */
-        RED       ( "Red"            , new Color( 255,   0,   0 ) ),
+        RED       ( "Red"            , 0xFF0000 ),
         /** The Tomato player color. */
-        TOMATO    ( "Tomato"         , new Color( 255,  99,  71 ) ),
+        TOMATO    ( "Tomato"         , 0xFF6347 ),
         /** The Maroon player color. */
-        MAROON    ( "Maroon"         , new Color( 128,   0,   0 ) ),
+        MAROON    ( "Maroon"         , 0x800000 ),
         /** The Brown player color. */
-        BROWN     ( "Brown"          , new Color( 165,  42,  42 ) ),
+        BROWN     ( "Brown"          , 0xA52A2A ),
         /** The Purple player color. */
-        PURPLE    ( "Purple"         , new Color( 128,   0, 128 ) ),
+        PURPLE    ( "Purple"         , 0x800080 ),
         /** The Fuchsia player color. */
-        MAGENTA   ( "Magenta/Fuchsia", new Color( 255,   0, 255 ) ),
+        MAGENTA   ( "Magenta/Fuchsia", 0xFF00FF ),
         /** The Violet player color. */
-        VIOLET    ( "Violet"         , new Color( 233, 130, 233 ) ),
+        VIOLET    ( "Violet"         , 0xE982E9 ),
         /** The Pink player color. */
-        PINK      ( "Pink"           , new Color( 255, 192, 203 ) ),
+        PINK      ( "Pink"           , 0xFFC0CB ),
         /** The Olive player color. */
-        OLIVE     ( "Olive"          , new Color( 128, 128,   0 ) ),
+        OLIVE     ( "Olive"          , 0x808000 ),
         /** The Orange player color. */
-        ORANGE    ( "Orange"         , new Color( 255, 165,   0 ) ),
+        ORANGE    ( "Orange"         , 0xFFA500 ),
         /** The Gold player color. */
-        GOLD      ( "Gold"           , new Color( 255, 215,   0 ) ),
+        GOLD      ( "Gold"           , 0xFFD700 ),
         /** The Yellow player color. */
-        YELLOW    ( "Yellow"         , new Color( 255, 255,   0 ) ),
+        YELLOW    ( "Yellow"         , 0xFFFF00 ),
         /** The White player color. */
-        WHITE     ( "White"          , new Color( 255, 255, 255 ) ),
+        WHITE     ( "White"          , 0xFFFFFF ),
         /** The Silver player color. */
-        SILVER    ( "Silver"         , new Color( 192, 192, 192 ) ),
+        SILVER    ( "Silver"         , 0xC0C0C0 ),
         /** The Gray player color. */
-        GRAY      ( "Gray"           , new Color( 128, 128, 128 ) );
+        GRAY      ( "Gray"           , 0x808080 );
         
         /** Name of the player color.  */
         public final String name;
-        /** Value of the player color. */
-        public final Color  value;
+        /** RGB value of the player color.
+         * Not stored as a Color, so the server can use the player colors without loading AWT. */
+        public final int    rgb;
         
         /**
          * Creates a new PlayerColors.
-         * @param name  name of the player color
-         * @param value value of the player color
+         * @param name name of the player color
+         * @param rgb  RGB value of the player color
          */
-        private PlayerColors( final String name, final Color value ) {
-        	this.name  = name;
-        	this.value = value;
+        private PlayerColors( final String name, final int rgb ) {
+        	this.name = name;
+        	this.rgb  = rgb;
+        }
+        
+        /**
+         * Returns the value of the player color.
+         * @return the value of the player color
+         */
+        public Color getValue() {
+        	return new Color( rgb );
         }
         
         /**
@@ -253,11 +262,27 @@ public class Consts {
      */
     public enum NetworkLatencies {
         /** Low network latency.        */
-        LOW        { public String toString() { return "low"       ; } },
+        LOW        ( 1 ) { public String toString() { return "low"       ; } },
         /** High network latency.       */
-        HIGH       { public String toString() { return "high"      ; } },
+        HIGH       ( 2 ) { public String toString() { return "high"      ; } },
         /** Extra high network latency. */
-        EXTRA_HIGH { public String toString() { return "extra high"; } }
+        EXTRA_HIGH ( 4 ) { public String toString() { return "extra high"; } },
+        /** Rollback: clients predict the iterations without waiting for the server, and correct mispredictions. */
+        ROLLBACK   ( 1 ) { public String toString() { return "rollback"  ; } },
+        /** Automatic: the server adjusts the iteration window to the measured round trip times of the clients. */
+        AUTOMATIC  ( 0 ) { public String toString() { return "automatic" ; } };
+        
+        /** Number of iterations in an iteration window: the server times the clients in the first iteration of each window,
+         * the clients time themselves in the rest. 0 if the window is determined by the server during the game. */
+        public final int iterationWindow;
+        
+        /**
+         * Creates a new NetworkLatencies.
+         * @param iterationWindow number of iterations in an iteration window
+         */
+        private NetworkLatencies( final int iterationWindow ) {
+            this.iterationWindow = iterationWindow;
+        }
     }
     
     /**
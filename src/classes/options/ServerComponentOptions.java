@@ -92,6 +92,40 @@ public class ServerComponentOptions extends ComponentOptions< ServerOptions > {
     private static final int       MAXIMUM_GAME_CYCLE_FREQUENCY                        = 100;
     /** Default value of network latency.                                    */
     private static final NetworkLatencies DEFAULT_NETWORK_LATENCY                      =  NetworkLatencies.LOW;
+    /** Minimum value of client backlog limit option in KB.                  */
+    private static final int       MINIMUM_CLIENT_BACKLOG_LIMIT                        =    16;
+    /** Default value of client backlog limit option in KB.                  */
+    private static final int       DEFAULT_CLIENT_BACKLOG_LIMIT                        =   256;
+    /** Maximum value of client backlog limit option in KB.                  */
+    private static final int       MAXIMUM_CLIENT_BACKLOG_LIMIT                        = 65536;
+    /** Default value of shared memory transport option.                     */
+    private static final boolean   DEFAULT_SHARED_MEMORY_TRANSPORT                     = true;
+    /** Default value of write coalescing option.                            */
+    private static final boolean   DEFAULT_WRITE_COALESCING                            = true;
+    /** Minimum value of max spectators option.                              */
+    private static final int       MINIMUM_MAX_SPECTATORS                              =    0;
+    /** Default value of max spectators option.                              */
+    private static final int       DEFAULT_MAX_SPECTATORS                              =   50;
+    /** Maximum value of max spectators option.                              */
+    private static final int       MAXIMUM_MAX_SPECTATORS                              = 1000;
+    /** Minimum value of spectator delay option in seconds.                  */
+    private static final int       MINIMUM_SPECTATOR_DELAY                             =    0;
+    /** Default value of spectator delay option in seconds.                  */
+    private static final int       DEFAULT_SPECTATOR_DELAY                             =    0;
+    /** Maximum value of spectator delay option in seconds.                  */
+    private static final int       MAXIMUM_SPECTATOR_DELAY                             =  600;
+    /** Minimum value of barrier deadline option in ms.                      */
+    private static final int       MINIMUM_BARRIER_DEADLINE                            =    0;
+    /** Default value of barrier deadline option in ms.                      */
+    private static final int       DEFAULT_BARRIER_DEADLINE                            =  250;
+    /** Maximum value of barrier deadline option in ms.                      */
+    private static final int       MAXIMUM_BARRIER_DEADLINE                            = 5000;
+    /** Minimum value of idle input delay option in ms.                      */
+    private static final int       MINIMUM_IDLE_INPUT_DELAY                            =    0;
+    /** Default value of idle input delay option in ms.                      */
+    private static final int       DEFAULT_IDLE_INPUT_DELAY                            =  200;
+    /** Maximum value of idle input delay option in ms.                      */
+    private static final int       MAXIMUM_IDLE_INPUT_DELAY                            = 1000;
     
     // Port constants are imported from classes.options.Consts!
 
@@ -140,6 +174,20 @@ public class ServerComponentOptions extends ComponentOptions< ServerOptions > {
     private final JSpinner    gamePort_c                             = new JSpinner ( new SpinnerNumberModel( DEFAULT_GAME_PORT, MINIMUM_GAME_PORT, MAXIMUM_GAME_PORT, 1 ) );
 	/** Component for network latency.                                    */
 	private final JComboBox   networkLatency_c                       = new JComboBox( NetworkLatencies.values() );
+    /** Component for client backlog limit option.                        */
+    private final JSpinner    clientBacklogLimit_c                   = new JSpinner ( new SpinnerNumberModel( DEFAULT_CLIENT_BACKLOG_LIMIT, MINIMUM_CLIENT_BACKLOG_LIMIT, MAXIMUM_CLIENT_BACKLOG_LIMIT, 16 ) );
+    /** Component for shared memory transport option.                     */
+    private final JCheckBox   sharedMemoryTransport_c                = new JCheckBox( "Shared memory transport for local clients" );
+    /** Component for write coalescing option.                            */
+    private final JCheckBox   writeCoalescing_c                      = new JCheckBox( "Coalesce the messages of an iteration" );
+    /** Component for max spectators option.                              */
+    private final JSpinner    maxSpectators_c                        = new JSpinner ( new SpinnerNumberModel( DEFAULT_MAX_SPECTATORS, MINIMUM_MAX_SPECTATORS, MAXIMUM_MAX_SPECTATORS, 1 ) );
+    /** Component for spectator delay option.                             */
+    private final JSpinner    spectatorDelay_c                       = new JSpinner ( new SpinnerNumberModel( DEFAULT_SPECTATOR_DELAY, MINIMUM_SPECTATOR_DELAY, MAXIMUM_SPECTATOR_DELAY, 1 ) );
+    /** Component for barrier deadline option.                            */
+    private final JSpinner    barrierDeadline_c                      = new JSpinner ( new SpinnerNumberModel( DEFAULT_BARRIER_DEADLINE, MINIMUM_BARRIER_DEADLINE, MAXIMUM_BARRIER_DEADLINE, 10 ) );
+    /** Component for idle input delay option.                            */
+    private final JSpinner    idleInputDelay_c                       = new JSpinner ( new SpinnerNumberModel( DEFAULT_IDLE_INPUT_DELAY, MINIMUM_IDLE_INPUT_DELAY, MAXIMUM_IDLE_INPUT_DELAY, 10 ) );
 
 
     /** Level component options to handle the level options of the server options (level options of random levels). */
@@ -316,6 +364,50 @@ public class ServerComponentOptions extends ComponentOptions< ServerOptions > {
 			networkLatency_c.setToolTipText( "Determines the delay of network data sending." );
 	        panel.add( networkLatency_c );
 	    box.add( panel );
+            panel = new JPanel();
+            panel.add( createLabel( "Client backlog limit:", componentsEnabled ) );
+            clientBacklogLimit_c.setToolTipText( "Clients which can't keep up with the game and have more unsent data than this are dropped." );
+            clientBacklogLimit_c.setEnabled( componentsEnabled );
+            panel.add( clientBacklogLimit_c );
+            panel.add( createLabel( "KB.", componentsEnabled ) );
+        box.add( panel );
+            panel = new JPanel();
+            sharedMemoryTransport_c.setToolTipText( "Clients on this computer can send and receive data through shared memory instead of the network." );
+            sharedMemoryTransport_c.setEnabled( componentsEnabled );
+            panel.add( sharedMemoryTransport_c );
+        box.add( panel );
+            panel = new JPanel();
+            writeCoalescing_c.setToolTipText( "The messages sent to a client in an iteration are sent together, in one system call and fewer packets." );
+            writeCoalescing_c.setEnabled( componentsEnabled );
+            panel.add( writeCoalescing_c );
+        box.add( panel );
+            panel = new JPanel();
+            panel.add( createLabel( "Max spectators:", componentsEnabled ) );
+            maxSpectators_c.setToolTipText( "Clients with 0 players watch the game without holding it up. 0 means spectators are not accepted." );
+            maxSpectators_c.setEnabled( componentsEnabled );
+            panel.add( maxSpectators_c );
+        box.add( panel );
+            panel = new JPanel();
+            panel.add( createLabel( "Spectator delay:", componentsEnabled ) );
+            spectatorDelay_c.setToolTipText( "Spectators see the game this much later than the players." );
+            spectatorDelay_c.setEnabled( componentsEnabled );
+            panel.add( spectatorDelay_c );
+            panel.add( createLabel( "s.", componentsEnabled ) );
+        box.add( panel );
+            panel = new JPanel();
+            panel.add( createLabel( "Barrier deadline:", componentsEnabled ) );
+            barrierDeadline_c.setToolTipText( "The game goes on without a late client after this much waiting (its keys are taken unchanged). 0 means waiting forever." );
+            barrierDeadline_c.setEnabled( componentsEnabled );
+            panel.add( barrierDeadline_c );
+            panel.add( createLabel( "ms.", componentsEnabled ) );
+        box.add( panel );
+            panel = new JPanel();
+            panel.add( createLabel( "Idle input delay:", componentsEnabled ) );
+            idleInputDelay_c.setToolTipText( "While no keys change, fewer messages are sent, and a key press may take effect this much later. 0 means never." );
+            idleInputDelay_c.setEnabled( componentsEnabled );
+            panel.add( idleInputDelay_c );
+            panel.add( createLabel( "ms.", componentsEnabled ) );
+        box.add( panel );
         panel = new JPanel();
         panel.add( box );
         optionsTabbedPane.addTab( "Extra", panel );
@@ -356,6 +448,13 @@ public class ServerComponentOptions extends ComponentOptions< ServerOptions > {
         gameCycleFrequency_c                  .setValue( DEFAULT_GAME_CYCLE_FREQUENCY );
         gamePort_c                            .setValue( DEFAULT_GAME_PORT );
 		networkLatency_c                      .setSelectedItem( DEFAULT_NETWORK_LATENCY );
+        clientBacklogLimit_c                  .setValue( DEFAULT_CLIENT_BACKLOG_LIMIT );
+        sharedMemoryTransport_c               .setSelected( DEFAULT_SHARED_MEMORY_TRANSPORT );
+        writeCoalescing_c                     .setSelected( DEFAULT_WRITE_COALESCING );
+        maxSpectators_c                       .setValue( DEFAULT_MAX_SPECTATORS );
+        spectatorDelay_c                      .setValue( DEFAULT_SPECTATOR_DELAY );
+        barrierDeadline_c                     .setValue( DEFAULT_BARRIER_DEADLINE );
+        idleInputDelay_c                      .setValue( DEFAULT_IDLE_INPUT_DELAY );
     }
     
     /**
@@ -391,6 +490,13 @@ public class ServerComponentOptions extends ComponentOptions< ServerOptions > {
         serverOptions.gameCycleFrequency                   = (Integer) gameCycleFrequency_c.getValue();
         serverOptions.gamePort                             = (Integer) gamePort_c.getValue();
         serverOptions.networkLatency                       = (NetworkLatencies) networkLatency_c.getSelectedItem();
+        serverOptions.clientBacklogLimit                   = (Integer) clientBacklogLimit_c.getValue();
+        serverOptions.sharedMemoryTransport                = sharedMemoryTransport_c.isSelected();
+        serverOptions.maxSpectators                        = (Integer) maxSpectators_c.getValue();
+        serverOptions.spectatorDelay                       = (Integer) spectatorDelay_c.getValue();
+        serverOptions.barrierDeadline                      = (Integer) barrierDeadline_c.getValue();
+        serverOptions.idleInputDelay                       = (Integer) idleInputDelay_c.getValue();
+        serverOptions.writeCoalescing                      = writeCoalescing_c.isSelected();
 
         return serverOptions;
     }
@@ -430,6 +536,13 @@ public class ServerComponentOptions extends ComponentOptions< ServerOptions > {
         gameCycleFrequency_c                  .setValue       ( options.gameCycleFrequency );
         gamePort_c                            .setValue       ( options.gamePort );
 		networkLatency_c                      .setSelectedItem( options.networkLatency );
+        clientBacklogLimit_c                  .setValue       ( options.clientBacklogLimit );
+        sharedMemoryTransport_c               .setSelected    ( options.sharedMemoryTransport );
+        maxSpectators_c                       .setValue       ( options.maxSpectators );
+        spectatorDelay_c                      .setValue       ( options.spectatorDelay );
+        barrierDeadline_c                     .setValue       ( options.barrierDeadline );
+        idleInputDelay_c                      .setValue       ( options.idleInputDelay );
+        writeCoalescing_c                     .setSelected    ( options.writeCoalescing );
     }
     
 
@@ -53,6 +53,8 @@ public class ClientOptions extends Options< ClientOptions > {
 
     /** Game server port.                                       */
     public int                    gamePort;
+    /** Tells whether to use the shared memory transport if the server is on this computer. */
+    public boolean                sharedMemoryTransport;
 
     /**
      * Packs this object to a String so it can be transferred or stored.
@@ -79,6 +81,7 @@ public class ClientOptions extends Options< ClientOptions > {
 		buffer.append( imageScalingAlgorithm.ordinal() ).append( GENERAL_SEPARATOR_CHAR );
 
         buffer.append( gamePort                        ).append( GENERAL_SEPARATOR_CHAR );
+        buffer.append( sharedMemoryTransport           ).append( GENERAL_SEPARATOR_CHAR );
 
         buffer.append( publicClientOptions.packToString() );   // This ends with GENERAL_SEPARATOR_CHAR
 
@@ -111,6 +114,7 @@ public class ClientOptions extends Options< ClientOptions > {
         clientOptions.imageScalingAlgorithm = ImageScalingAlgorithms.values()[ optionsTokenizer.nextIntToken() ];
 
         clientOptions.gamePort              = optionsTokenizer.nextIntToken();
+        clientOptions.sharedMemoryTransport = optionsTokenizer.nextBooleanToken();
 
         clientOptions.publicClientOptions   = PublicClientOptions.parseFromString( optionsTokenizer.remainingString() );
         
@@ -96,8 +96,16 @@ public class PublicClientOptions extends Options< PublicClientOptions > {
      * @return a new PublicClientOptions created from the source string
      */
     public static PublicClientOptions parseFromString( final String source ) {
-        final GeneralStringTokenizer optionsTokenizer    = new GeneralStringTokenizer( source );
-
+        return parseFromTokenizer( new GeneralStringTokenizer( source ) );
+    }
+    
+    /**
+     * Parses a public client options object from the next tokens of a tokenizer.<br>
+     * Packed public client options can be concatenated, since they can be parsed one after the other this way.
+     * @param optionsTokenizer the tokenizer whose next tokens represent the parsable public client options
+     * @return a new PublicClientOptions created from the tokens
+     */
+    public static PublicClientOptions parseFromTokenizer( final GeneralStringTokenizer optionsTokenizer ) {
         final PublicClientOptions    publicClientOptions = new PublicClientOptions( optionsTokenizer.nextIntToken() );
 
         publicClientOptions.clientName = optionsTokenizer.nextStringToken();
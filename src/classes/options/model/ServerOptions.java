@@ -65,6 +65,21 @@ public class ServerOptions extends Options< ServerOptions > {
     public int              gamePort;
 	/** The network latency.                                                        */
 	public NetworkLatencies networkLatency;
+    /** Limit of the unsent data queued to a client in KB. Slower clients are dropped. */
+    public int              clientBacklogLimit;
+    /** Tells whether clients on the same computer may use the shared memory transport. */
+    public boolean          sharedMemoryTransport;
+    /** The maximum number of spectators (0 means spectators are not accepted).  */
+    public int              maxSpectators;
+    /** Delay of the game stream sent to the spectators in seconds.              */
+    public int              spectatorDelay;
+    /** How long the clients are waited for at the iteration barrier in ms (0 means they are waited for forever). */
+    public int              barrierDeadline;
+    /** The maximum input delay in ms in quiet phases: while no control key states change, the iteration window
+     * is enlarged up to half of this (0 means it is never enlarged).              */
+    public int              idleInputDelay;
+    /** Tells whether the messages sent to a client in an iteration are coalesced into one write. */
+    public boolean          writeCoalescing;
 
     /**
      * Packs this object to a String so it can be transferred or stored.
@@ -97,6 +112,13 @@ public class ServerOptions extends Options< ServerOptions > {
         buffer.append( gameCycleFrequency                   ).append( GENERAL_SEPARATOR_CHAR );
         buffer.append( gamePort                             ).append( GENERAL_SEPARATOR_CHAR );
         buffer.append( networkLatency.ordinal()             ).append( GENERAL_SEPARATOR_CHAR );
+        buffer.append( clientBacklogLimit                   ).append( GENERAL_SEPARATOR_CHAR );
+        buffer.append( sharedMemoryTransport                ).append( GENERAL_SEPARATOR_CHAR );
+        buffer.append( maxSpectators                        ).append( GENERAL_SEPARATOR_CHAR );
+        buffer.append( spectatorDelay                       ).append( GENERAL_SEPARATOR_CHAR );
+        buffer.append( barrierDeadline                      ).append( GENERAL_SEPARATOR_CHAR );
+        buffer.append( idleInputDelay                       ).append( GENERAL_SEPARATOR_CHAR );
+        buffer.append( writeCoalescing                      ).append( GENERAL_SEPARATOR_CHAR );
 
         buffer.append( levelOptions.packToString() );       // This ends with GENERAL_SEPARATOR_CHAR
         
@@ -135,6 +157,13 @@ public class ServerOptions extends Options< ServerOptions > {
         serverOptions.gameCycleFrequency                   = optionsTokenizer.nextIntToken();
         serverOptions.gamePort                             = optionsTokenizer.nextIntToken();
         serverOptions.networkLatency                       = NetworkLatencies.values()[ optionsTokenizer.nextIntToken() ];
+        serverOptions.clientBacklogLimit                   = optionsTokenizer.nextIntToken();
+        serverOptions.sharedMemoryTransport                = optionsTokenizer.nextBooleanToken();
+        serverOptions.maxSpectators                        = optionsTokenizer.nextIntToken();
+        serverOptions.spectatorDelay                       = optionsTokenizer.nextIntToken();
+        serverOptions.barrierDeadline                      = optionsTokenizer.nextIntToken();
+        serverOptions.idleInputDelay                       = optionsTokenizer.nextIntToken();
+        serverOptions.writeCoalescing                      = optionsTokenizer.nextBooleanToken();
 
         serverOptions.levelOptions                         = LevelOptions.parseFromString( optionsTokenizer.remainingString() );
 
@@ -5,7 +5,10 @@
 
 package classes.server;
 
+import java.util.LinkedList;
+
 import classes.utils.ConnectionStub;
+import classes.utils.TimeHistogram;
 import classes.options.model.PublicClientOptions;
 
 /**
@@ -17,15 +20,62 @@ import classes.options.model.PublicClientOptions;
  */
 class ClientContact {
 
-    /** The connection stub to the client.                                  */
-    public final ConnectionStub connectionStub;
+    /** The connection stub to the client (replaced when the client reconnects into a game). */
+    public ConnectionStub       connectionStub;
+    /** The server (or room of the room server) the client has joined.     */
+    public volatile Server      server;
     /** The public client options of the cilent.                            */
     public PublicClientOptions  publicClientOptions;
+    /** Tells whether the client is a spectator: it watches the games without players,
+     * and it does not take part in the lockstep barrier.                  */
+    public boolean              spectator;
     /** Own index of this client at the client machines.
      * We have to store this, clients later may be removed when they leave. */
     public int                  ownIndex;
-	/** New, unprocessed client actions.                                    */
-	public String               newClientActions;
+    /** The time of receiving the last message from the client in ns (see Server.LIVENESS_TIMEOUT). */
+    public long                 lastReceivingTime;
+    /** The session token of the client, which identifies it when it reconnects into a game (0 in case of a spectator). */
+    public long                 sessionToken;
+    /** Tells whether the connection of the client died during the game, and the client is waited for to reconnect. */
+    public boolean              disconnected;
+    /** The time when the connection of the client died in ns (see Server.RECONNECT_TIMEOUT). */
+    public long                 disconnectionTime;
+	/** Tells whether the client is ready for the next iteration.           */
+	public boolean              readyForNextIteration;
+	/** Changes of the control key states of the players of the client,
+	 * not yet sent to the clients.                                         */
+	public int                  controlKeyStatesDelta;
+	/** The control key states of the players of the client, as sent to the clients. */
+	public int                  controlKeyStates;
+	/** In case of rollback network latency: the control key states deltas received for later iterations
+	 * than the one being collected, as { iteration, delta } pairs in the order of the iterations. */
+	public final LinkedList< int[] > earlyControlKeyStatesDeltas = new LinkedList< int[] >();
+	/** In case of rollback network latency: the minimum number of iterations the client was ahead of the server
+	 * with its READY_FOR_NEXT_ITERATION commands since the last lead adjusting (Integer.MAX_VALUE if not measured). */
+	public int                  minIterationLead = Integer.MAX_VALUE;
+	/** Smoothed round trip time of the client in ns (0 if not measured yet).                */
+	public volatile long        smoothedRoundTripTime;
+	/** Smoothed mean deviation of the round trip time of the client in ns.                  */
+	public volatile long        roundTripTimeVariation;
+	/** Histogram of the round trip times of the client.                                     */
+	public final TimeHistogram  roundTripTimeHistogram = new TimeHistogram();
+	/** Histogram of the jitter of the client: the deviations of the round trip times from the smoothed round trip time. */
+	public final TimeHistogram  jitterHistogram        = new TimeHistogram();
+	/** Histogram of the time the server waited for the client at the barriers of the iteration windows
+	 * (0 if the client was ready before the server).                                       */
+	public final TimeHistogram  barrierWaitHistogram   = new TimeHistogram();
+	/** The time of receiving the last READY_FOR_NEXT_ITERATION command in ns.               */
+	public long                 lastReadyTime;
+	/** Number of iteration windows delayed by the client (it was the last one to become ready, after the server). */
+	public volatile long        delayedIterationsCount;
+	/** Number of iteration windows whose barrier deadline the client missed.               */
+	public volatile long        missedDeadlinesCount;
+	/** Score of the lateness of the client: increases when the client misses the barrier deadline,
+	 * and decreases by one in every iteration window the client is in time (see Server.LATE_SCORE_PENALTY). */
+	public int                  lateScore;
+	/** The iteration where the game state of the client was found diverged from the others in the current game
+	 * (-1 if it was not found diverged).                                                   */
+	public volatile int         desyncIteration = -1;
     
     /**
      * Creates a new ClientContact.
@@ -35,4 +85,48 @@ class ClientContact {
         this.connectionStub = connectionStub;
     }
     
+    /**
+     * Adds a new round trip time sample to the round trip time estimation of the client.<br>
+     * The estimation is the same as the retransmission timer estimation of TCP:
+     * the smoothed round trip time follows the samples with a gain of 1/8, the variation with a gain of 1/4.<br>
+     * The sample is also added to the round trip time and jitter histograms.
+     * @param roundTripTime the measured round trip time in ns
+     */
+    public void addRoundTripTimeSample( final long roundTripTime ) {
+        roundTripTimeHistogram.addSample( roundTripTime );
+        if ( smoothedRoundTripTime != 0l )
+            jitterHistogram.addSample( Math.abs( smoothedRoundTripTime - roundTripTime ) );
+        
+        if ( smoothedRoundTripTime == 0l ) {
+            smoothedRoundTripTime  = Math.max( roundTripTime, 1l );
+            roundTripTimeVariation = roundTripTime / 2;
+        }
+        else {
+            roundTripTimeVariation += ( Math.abs( smoothedRoundTripTime - roundTripTime ) - roundTripTimeVariation ) / 4;
+            smoothedRoundTripTime  += ( roundTripTime - smoothedRoundTripTime ) / 8;
+        }
+    }
+    
+    /**
+     * Returns the round trip time which the client is unlikely to exceed:
+     * the smoothed round trip time plus four times its variation.
+     * @return the round trip time which the client is unlikely to exceed in ns
+     */
+    public long getRoundTripTimeBound() {
+        return smoothedRoundTripTime + 4 * roundTripTimeVariation;
+    }
+    
+    /**
+     * Returns the statistics of the client as a one line text:
+     * the round trip time and jitter estimations, the number of the delayed iteration windows and the missed barrier deadlines,
+     * the iteration where the game of the client diverged (if it did) and the histograms.
+     * @return the statistics of the client
+     */
+    public String getStatistics() {
+        return String.format( "%s: RTT %.1f ms, jitter %.1f ms, delayed %d windows (waited %.0f ms, max %.1f ms), missed %d deadlines%s; RTT [%s]; jitter [%s]; barrier wait [%s]",
+                              publicClientOptions == null ? "?" : publicClientOptions.clientName, smoothedRoundTripTime / 1000000.0, roundTripTimeVariation / 1000000.0,
+                              delayedIterationsCount, barrierWaitHistogram.getSum(), barrierWaitHistogram.getMax(), missedDeadlinesCount, desyncIteration < 0 ? "" : ", desync at iteration " + desyncIteration,
+                              roundTripTimeHistogram, jitterHistogram, barrierWaitHistogram );
+    }
+    
 }
@@ -0,0 +1,62 @@
+/*
+ * Created on October 18, 2026
+ */
+
+package classes.server;
+
+import classes.options.model.ServerOptions;
+import classes.utils.ConnectionStub;
+
+/**
+ * Handler of the clients joining through a player collector.<br>
+ * The player collector runs the joining protocol, and hands over the clients to the handler,
+ * which finishes the joining. The handler is a standalone server or a room server.
+ *
+ * @author Andras Belicza
+ */
+interface ClientJoiningHandler {
+
+    /**
+     * Returns the current server options the joining clients are checked by (game port, password).
+     * @return the current server options the joining clients are checked by
+     */
+    ServerOptions getJoiningServerOptions();
+
+    /**
+     * Tells whether a room can be selected by a joining client (player).
+     * @param roomName name of the room to be selected; null means any room (the room is assigned by the handler)
+     * @return true if the room can be selected; false otherwise
+     */
+    boolean isRoomSelectable( String roomName );
+
+    /**
+     * Tells whether a room can be watched by a joining spectator.
+     * @param roomName name of the room to be watched; null means any room (the room is assigned by the handler)
+     * @return true if the room can be watched; false otherwise
+     */
+    boolean isSpectatable( String roomName );
+
+    /**
+     * Hands over a client contact whose joining protocol has been run by the player collector.
+     * The joining will be finished by the handler. Called by the handshake threads of the player collector.
+     * @param clientContact the client contact to be handed over
+     * @param roomName      name of the room selected by the client (null if the client did not select room)
+     */
+    void clientHasJoined( ClientContact clientContact, String roomName );
+
+    /**
+     * Tells whether a client can reconnect into a running game with a session token.
+     * @param sessionToken the session token sent by the client
+     * @return true if the client can reconnect; false otherwise
+     */
+    boolean isReconnectable( long sessionToken );
+
+    /**
+     * Hands over the connection of a client reconnecting into a running game.
+     * The reconnection will be finished by the handler. Called by the handshake threads of the player collector.
+     * @param sessionToken   the session token sent by the client
+     * @param connectionStub the new connection stub to the client
+     */
+    void clientHasReconnected( long sessionToken, ConnectionStub connectionStub );
+
+}
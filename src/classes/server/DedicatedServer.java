@@ -0,0 +1,310 @@
+/*
+ * Created on October 18, 2026
+ */
+
+package classes.server;
+
+import static classes.Consts.APPLICATION_NAME;
+import static classes.Consts.APPLICATION_VERSION;
+import static classes.Consts.OPTIONS_FILE_NAME;
+import static classes.options.Consts.MAXIMUM_GAME_PORT;
+import static classes.options.Consts.MINIMUM_GAME_PORT;
+import static classes.options.Consts.NetworkLatencies;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+
+import classes.options.model.ServerOptions;
+import classes.utils.DataTextFileReader;
+
+/**
+ * The dedicated server of the game: runs a room server without graphical user interface.<br>
+ * The dedicated server never touches AWT or Swing: no main frame, no options dialogs, no graphical themes are loaded,
+ * so it starts fast with a small heap, and runs on hosts without display. Events are logged to the standard output.<br>
+ * <br>
+ * The server options are loaded from an options file (the options file of the game by default, where the server options
+ * are the second data line), or they are given packed on the command line. Some of the options can be overridden
+ * by command line arguments, see printUsage().
+ * The server runs until the process is terminated (the rooms are closed properly by a shutdown hook).<br>
+ * <br>
+ * With the relay argument a relay is run instead of the room server (see Relay): it watches a game of the given upstream server
+ * (the password is used both at the upstream server and for the spectators of the relay), and fans it out to its spectators.
+ * Several relays can run on one computer on different ports, chained into a tree. A relay stops when its upstream server closes the connection.
+ *
+ * @author Andras Belicza
+ */
+public class DedicatedServer {
+
+    /** Argument specifying the options file.              */
+    public static final String OPTIONS_FILE_ARGUMENT   = "-options";
+    /** Argument specifying the packed server options.     */
+    public static final String SERVER_OPTIONS_ARGUMENT = "-serverOptions";
+    /** Argument specifying the game port.                 */
+    public static final String PORT_ARGUMENT           = "-port";
+    /** Argument specifying the game password.             */
+    public static final String PASSWORD_ARGUMENT       = "-password";
+    /** Argument specifying the game cycle frequency.      */
+    public static final String FREQUENCY_ARGUMENT      = "-frequency";
+    /** Argument specifying the network latency.           */
+    public static final String LATENCY_ARGUMENT        = "-latency";
+    /** Argument enabling or disabling the shared memory transport. */
+    public static final String SHARED_MEMORY_ARGUMENT  = "-sharedMemory";
+    /** Argument specifying the maximum number of rooms.   */
+    public static final String ROOMS_ARGUMENT          = "-rooms";
+    /** Argument specifying the maximum number of spectators of a room. */
+    public static final String SPECTATORS_ARGUMENT     = "-spectators";
+    /** Argument specifying the spectator delay.           */
+    public static final String DELAY_ARGUMENT          = "-spectatorDelay";
+    /** Argument specifying the barrier deadline.          */
+    public static final String DEADLINE_ARGUMENT       = "-barrierDeadline";
+    /** Argument specifying the idle input delay.          */
+    public static final String IDLE_DELAY_ARGUMENT     = "-idleInputDelay";
+    /** Argument enabling or disabling the write coalescing. */
+    public static final String COALESCING_ARGUMENT     = "-writeCoalescing";
+    /** Argument running a relay of the given upstream server. */
+    public static final String RELAY_ARGUMENT          = "-relay";
+    /** Argument specifying the room watched by the relay. */
+    public static final String ROOM_ARGUMENT           = "-room";
+    /** Argument requesting the usage.                     */
+    public static final String HELP_ARGUMENT           = "-help";
+
+    /** The room server.                                   */
+    private RoomServer roomServer;
+    /** The relay (if a relay is run instead of the room server). */
+    private Relay      relay;
+
+    /**
+     * Creates a new DedicatedServer, and starts the room server configured by the command line arguments.
+     * If the arguments are invalid or the server socket cannot be created, the error is logged and the server is not started.
+     * @param arguments the command line arguments
+     */
+    public DedicatedServer( final String[] arguments ) {
+        String            optionsFileName  = OPTIONS_FILE_NAME;
+        String            packedOptions    = null;
+        int               maxRooms         = RoomServer.DEFAULT_MAX_ROOMS;
+        InetSocketAddress upstreamAddress  = null;
+        String            upstreamRoomName = null;
+        ServerOptions     serverOptions;
+
+        try {
+            for ( int i = 0; i < arguments.length; i += 2 )    // The packed options and the options file are needed before the overriding arguments
+                if ( arguments[ i ].equals( HELP_ARGUMENT ) ) {
+                    printUsage();
+                    return;
+                }
+                else if ( arguments[ i ].equals( OPTIONS_FILE_ARGUMENT ) )
+                    optionsFileName = getValue( arguments, i );
+                else if ( arguments[ i ].equals( SERVER_OPTIONS_ARGUMENT ) )
+                    packedOptions = getValue( arguments, i );
+
+            serverOptions = packedOptions == null ? loadServerOptions( optionsFileName ) : parseServerOptions( packedOptions );
+
+            for ( int i = 0; i < arguments.length; i += 2 ) {
+                final String value = getValue( arguments, i );
+                if ( arguments[ i ].equals( PORT_ARGUMENT ) )
+                    serverOptions.gamePort = getIntValue( arguments[ i ], value, MINIMUM_GAME_PORT, MAXIMUM_GAME_PORT );
+                else if ( arguments[ i ].equals( PASSWORD_ARGUMENT ) )
+                    serverOptions.password = value;
+                else if ( arguments[ i ].equals( FREQUENCY_ARGUMENT ) )
+                    serverOptions.gameCycleFrequency = getIntValue( arguments[ i ], value, 1, 1000 );
+                else if ( arguments[ i ].equals( LATENCY_ARGUMENT ) )
+                    try {
+                        serverOptions.networkLatency = NetworkLatencies.valueOf( value.toUpperCase().replace( ' ', '_' ) );
+                    }
+                    catch ( final IllegalArgumentException ie ) {
+                        throw new IllegalArgumentException( "Unknown network latency: " + value );
+                    }
+                else if ( arguments[ i ].equals( SHARED_MEMORY_ARGUMENT ) ) {
+                    if ( !value.equals( "on" ) && !value.equals( "off" ) )
+                        throw new IllegalArgumentException( "Invalid value of argument " + arguments[ i ] + ": " + value );
+                    serverOptions.sharedMemoryTransport = value.equals( "on" );
+                }
+                else if ( arguments[ i ].equals( ROOMS_ARGUMENT ) )
+                    maxRooms = getIntValue( arguments[ i ], value, 1, Integer.MAX_VALUE );
+                else if ( arguments[ i ].equals( SPECTATORS_ARGUMENT ) )
+                    serverOptions.maxSpectators = getIntValue( arguments[ i ], value, 0, 1000 );
+                else if ( arguments[ i ].equals( DELAY_ARGUMENT ) )
+                    serverOptions.spectatorDelay = getIntValue( arguments[ i ], value, 0, 600 );
+                else if ( arguments[ i ].equals( DEADLINE_ARGUMENT ) )
+                    serverOptions.barrierDeadline = getIntValue( arguments[ i ], value, 0, 5000 );
+                else if ( arguments[ i ].equals( IDLE_DELAY_ARGUMENT ) )
+                    serverOptions.idleInputDelay = getIntValue( arguments[ i ], value, 0, 1000 );
+                else if ( arguments[ i ].equals( COALESCING_ARGUMENT ) ) {
+                    if ( !value.equals( "on" ) && !value.equals( "off" ) )
+                        throw new IllegalArgumentException( "Invalid value of argument " + arguments[ i ] + ": " + value );
+                    serverOptions.writeCoalescing = value.equals( "on" );
+                }
+                else if ( arguments[ i ].equals( RELAY_ARGUMENT ) ) {
+                    final int portSeparatorIndex = value.lastIndexOf( ':' );
+                    if ( portSeparatorIndex < 0 )
+                        throw new IllegalArgumentException( "Invalid value of argument " + arguments[ i ] + " (host:port expected): " + value );
+                    upstreamAddress = new InetSocketAddress( value.substring( 0, portSeparatorIndex ), getIntValue( arguments[ i ], value.substring( portSeparatorIndex + 1 ), MINIMUM_GAME_PORT, MAXIMUM_GAME_PORT ) );
+                }
+                else if ( arguments[ i ].equals( ROOM_ARGUMENT ) )
+                    upstreamRoomName = value;
+                else if ( !arguments[ i ].equals( OPTIONS_FILE_ARGUMENT ) && !arguments[ i ].equals( SERVER_OPTIONS_ARGUMENT ) )
+                    throw new IllegalArgumentException( "Unknown argument: " + arguments[ i ] );
+            }
+        }
+        catch ( final IllegalArgumentException ie ) {
+            RoomServer.log( ie.getMessage() );
+            printUsage();
+            return;
+        }
+
+        if ( upstreamAddress != null ) {
+            startRelay( serverOptions, upstreamAddress, upstreamRoomName );
+            return;
+        }
+
+        roomServer = new RoomServer( serverOptions, maxRooms );
+        if ( !roomServer.isServerSocketCreated() ) {
+            RoomServer.log( "Can't create server socket on port " + serverOptions.gamePort + "!" );
+            roomServer.shutDown();
+            return;
+        }
+
+        Runtime.getRuntime().addShutdownHook( new Thread() {
+            public void run() {
+                RoomServer.log( "Shutting down..." );
+                roomServer.shutDown();
+            }
+        } );
+        roomServer.start();
+        RoomServer.log( APPLICATION_NAME + " " + APPLICATION_VERSION + " dedicated server is running on port " + serverOptions.gamePort
+                        + " (at most " + maxRooms + " rooms, network latency: " + serverOptions.networkLatency + ", shared memory transport: " + ( serverOptions.sharedMemoryTransport ? "on" : "off" )
+                        + ", at most " + serverOptions.maxSpectators + " spectators per room delayed by " + serverOptions.spectatorDelay + " s"
+                        + ", barrier deadline: " + ( serverOptions.barrierDeadline == 0 ? "none" : serverOptions.barrierDeadline + " ms" )
+                        + ", idle input delay: " + ( serverOptions.idleInputDelay == 0 ? "none" : serverOptions.idleInputDelay + " ms" )
+                        + ", write coalescing: " + ( serverOptions.writeCoalescing ? "on" : "off" )
+                        + ", " + Runtime.getRuntime().availableProcessors() + " worker threads)." );
+    }
+
+    /**
+     * Starts the relay of an upstream server.
+     * @param serverOptions    the server options of the relay
+     * @param upstreamAddress  address of the upstream server
+     * @param upstreamRoomName name of the room to be watched at the upstream server; null means any room
+     */
+    private void startRelay( final ServerOptions serverOptions, final InetSocketAddress upstreamAddress, final String upstreamRoomName ) {
+        try {
+            relay = new Relay( serverOptions, upstreamAddress, upstreamRoomName, serverOptions.password );
+        }
+        catch ( final IOException ie ) {
+            RoomServer.log( "Can't join upstream server " + upstreamAddress + ": " + ie.getMessage() );
+            return;
+        }
+        if ( !relay.isServerSocketCreated() ) {
+            RoomServer.log( "Can't create server socket on port " + serverOptions.gamePort + "!" );
+            relay.shutDown();
+            return;
+        }
+
+        Runtime.getRuntime().addShutdownHook( new Thread() {
+            public void run() {
+                RoomServer.log( "Shutting down..." );
+                relay.shutDown();
+            }
+        } );
+        relay.start();
+        RoomServer.log( APPLICATION_NAME + " " + APPLICATION_VERSION + " relay of " + upstreamAddress + ( upstreamRoomName == null ? "" : " room \"" + upstreamRoomName + "\"" )
+                        + " is running on port " + serverOptions.gamePort + " (at most " + serverOptions.maxSpectators + " spectators)." );
+    }
+
+    /**
+     * Loads the server options from an options file.
+     * @param optionsFileName name of the options file
+     * @return the loaded server options
+     * @throws IllegalArgumentException if the options file cannot be read
+     */
+    private static ServerOptions loadServerOptions( final String optionsFileName ) {
+        try {
+            final DataTextFileReader optionsFileReader = new DataTextFileReader( optionsFileName );
+            optionsFileReader.readNextDataLine();      // Client options
+            final String packedServerOptions = optionsFileReader.readNextDataLine();
+            optionsFileReader.close();
+            if ( packedServerOptions == null )
+                throw new IllegalArgumentException( "No server options in options file: " + optionsFileName );
+            return parseServerOptions( packedServerOptions );
+        }
+        catch ( final FileNotFoundException fe ) {
+            throw new IllegalArgumentException( "Can't read options file: " + optionsFileName );
+        }
+    }
+
+    /**
+     * Parses packed server options.
+     * @param packedServerOptions the packed server options
+     * @return the parsed server options
+     * @throws IllegalArgumentException if the packed server options are invalid
+     */
+    private static ServerOptions parseServerOptions( final String packedServerOptions ) {
+        try {
+            return ServerOptions.parseFromString( packedServerOptions );
+        }
+        catch ( final RuntimeException re ) {
+            throw new IllegalArgumentException( "Invalid server options: " + re );
+        }
+    }
+
+    /**
+     * Returns the value of an argument.
+     * @param arguments the command line arguments
+     * @param index     index of the argument
+     * @return the value of the argument
+     * @throws IllegalArgumentException if the argument has no value
+     */
+    private static String getValue( final String[] arguments, final int index ) {
+        if ( index + 1 >= arguments.length )
+            throw new IllegalArgumentException( "Missing value of argument: " + arguments[ index ] );
+        return arguments[ index + 1 ];
+    }
+
+    /**
+     * Returns the integer value of an argument.
+     * @param argument     the argument
+     * @param value        the value of the argument
+     * @param minimumValue the minimum valid value
+     * @param maximumValue the maximum valid value
+     * @return the integer value of the argument
+     * @throws IllegalArgumentException if the value is not a valid integer or it is out of range
+     */
+    private static int getIntValue( final String argument, final String value, final int minimumValue, final int maximumValue ) {
+        final int intValue;
+        try {
+            intValue = Integer.parseInt( value );
+        }
+        catch ( final NumberFormatException ne ) {
+            throw new IllegalArgumentException( "Invalid value of argument " + argument + ": " + value );
+        }
+        if ( intValue < minimumValue || intValue > maximumValue )
+            throw new IllegalArgumentException( "Value of argument " + argument + " is out of range [" + minimumValue + ".." + maximumValue + "]: " + value );
+        return intValue;
+    }
+
+    /**
+     * Prints the usage of the dedicated server to the standard output.
+     */
+    public static void printUsage() {
+        System.out.println( "Usage: java BombermenServer [arguments]" );
+        System.out.println( "Arguments:" );
+        System.out.println( "  " + OPTIONS_FILE_ARGUMENT   + " <file>      options file of the game to load the server options from (default: " + OPTIONS_FILE_NAME + ")" );
+        System.out.println( "  " + SERVER_OPTIONS_ARGUMENT + " <packed> packed server options (the server options line of an options file)" );
+        System.out.println( "  " + PORT_ARGUMENT           + " <port>         game port" );
+        System.out.println( "  " + PASSWORD_ARGUMENT       + " <password> game password (empty for no password)" );
+        System.out.println( "  " + FREQUENCY_ARGUMENT      + " <n>       game cycle frequency (iterations per second)" );
+        System.out.println( "  " + LATENCY_ARGUMENT        + " <latency>   network latency (low, high, extra_high, rollback, automatic)" );
+        System.out.println( "  " + SHARED_MEMORY_ARGUMENT  + " <on|off> shared memory transport for clients on this computer" );
+        System.out.println( "  " + ROOMS_ARGUMENT          + " <n>           maximum number of rooms (default: " + RoomServer.DEFAULT_MAX_ROOMS + ")" );
+        System.out.println( "  " + SPECTATORS_ARGUMENT     + " <n>      maximum number of spectators of a room (0 means spectators are not accepted)" );
+        System.out.println( "  " + DELAY_ARGUMENT          + " <s>  delay of the games shown to the spectators in seconds" );
+        System.out.println( "  " + DEADLINE_ARGUMENT       + " <ms> how long late clients are waited for at the iteration barrier (0 means forever)" );
+        System.out.println( "  " + IDLE_DELAY_ARGUMENT     + " <ms>  maximum input delay while no keys change, fewer iteration commands are sent (0 means none)" );
+        System.out.println( "  " + COALESCING_ARGUMENT     + " <on|off> sends the messages of an iteration to a client in one write" );
+        System.out.println( "  " + RELAY_ARGUMENT          + " <host:port>   runs a relay of the given upstream server instead of a room server" );
+        System.out.println( "  " + ROOM_ARGUMENT           + " <name>         room watched by the relay (default: any room)" );
+        System.out.println( "  " + HELP_ARGUMENT           + "                prints this usage" );
+    }
+
+}
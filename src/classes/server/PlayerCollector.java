@@ -7,15 +7,21 @@ package classes.server;
 
 import java.net.*;
 import java.io.*;
-import java.util.Vector;
-import javax.swing.*;
+import java.nio.channels.ServerSocketChannel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import classes.utils.ConnectionStub;
+import classes.utils.LoopbackConnectionStub;
+import classes.utils.MappedConnectionStub;
 import classes.options.*;
 import classes.options.model.PublicClientOptions;
 import classes.options.model.ServerOptions;
 import classes.client.Client;
 import static classes.Consts.*;
-import static classes.utils.GeneralStringTokenizer.GENERAL_SEPARATOR_STRING;
 import classes.utils.GeneralStringTokenizer;
 
 /**
@@ -23,23 +29,65 @@ import classes.utils.GeneralStringTokenizer;
  * <br>
  * The joining protocol is the following:<br>
  * <ol>
- *     <li>The server sends the server identification string (PlayerCollector.SERVER_IDENTIFICATION_STRING).
+ *     <li>The server sends the server identification string (PlayerCollector.SERVER_IDENTIFICATION_STRING)
+ *         and the servers application version at once.
  *     <li>The server waits for the client identification string (Client.CLIENT_IDENTIFICATION_STRING).
  *         If it is missing or it is not the expected value, the server closes the connection.
- *     <li>The server sends the servers application version.
  *     <li>The server waits for the clients application version. If it is missing or it is not the
  *         expected value (our version), closes the connection.
+ *     <li>Optionally the client can request the pipelined join by sending the PlayerCollector.PIPELINED_JOIN_REQUEST message
+ *         (see below).
+ *     <li>Optionally the client can request binary framing by sending the PlayerCollector.BINARY_FRAMING_REQUEST message.
+ *         In this case the server sends the PlayerCollector.BINARY_FRAMING_ACCEPTED message, and from now on
+ *         both sides use binary framing (see ConnectionStub.Framings). Clients not requesting it stay in text framing.
+ *     <li>Optionally a client whose connection died during a game can reconnect into the game by sending the
+ *         PlayerCollector.RECONNECT_REQUEST message followed by its session token (received when it joined).
+ *         If the game is still waiting for the client, the server sends the PlayerCollector.RECONNECT_ACCEPTED message,
+ *         and the rest of the protocol is skipped: the server (room) restores the client from a state snapshot (see Server).
+ *         Otherwise the server sends the PlayerCollector.RECONNECT_REJECTED message and closes the connection.
+ *     <li>Optionally a client on the same computer can request the shared memory transport by sending the
+ *         PlayerCollector.SHARED_MEMORY_REQUEST message followed by a random nonce. If the server options allow it and the client
+ *         is on the same computer, the server creates the shared memory file holding the nonce and sends its path,
+ *         else sends the PlayerCollector.SHARED_MEMORY_REJECTED message. The client answers the path with the
+ *         PlayerCollector.SHARED_MEMORY_ACCEPTED message if it could map the file, and from now on both sides use the
+ *         shared memory (see MappedConnectionStub); or with the PlayerCollector.SHARED_MEMORY_REJECTED message.
+ *     <li>Optionally the client can join as a spectator by sending the PlayerCollector.SPECTATING_REQUEST message
+ *         (clients without players do so). If spectators are accepted, the server sends the PlayerCollector.SPECTATING_ACCEPTED
+ *         message, else the PlayerCollector.SPECTATING_REJECTED message and closes the connection.
+ *         Spectators watch the games but never take part in the lockstep barrier (see Server).
+ *     <li>Optionally the client can select a room of a room server by sending the PlayerCollector.ROOM_SELECTION_REQUEST
+ *         message followed by the name of the room. If the room can be selected (in case of spectators: watched), the server sends the
+ *         PlayerCollector.ROOM_SELECTED message, else the PlayerCollector.ROOM_REJECTED message and closes the connection.
+ *         Clients not selecting a room are assigned to a room by the room server (a standalone server has only one room).
  *     <li>The server waits for the game password. If there is a game password, and we receive an unmatching game
  *         password, the server sends the PlayerCollector.PASSWORD_REJECTED message and closes the connection.
+ *         If the client is a player not selecting a room, and it cannot join a room now (the game of a standalone
+ *         server is in progress), the server sends the PlayerCollector.GAME_IN_PROGRESS message and closes the connection.
  *         Otherwise the server sends the PlayerCollector.PASSWORD_ACCEPTED message.
  *     <li>The server waits for the public client options of the new client
  *         (Server.Commands.SENDING_PUBLIC_CLIENT_OPTIONS command).
- *     <li>The server sends the number of the clients connected including the new client.
- *     <li>The server sends the public client options of all clients including the new client on the last place.
- *         Each line is a clients public client options. 
+ *     <li>The server sends the number of the clients connected including the new client, followed by the
+ *         public client options of all clients including the new client on the last place, in one message
+ *         (one bulk message, so it is compressed in binary framing). Spectators are not clients in this list:
+ *         a spectator receives the list of the clients (in case of a game in progress the clients at the start of the game).
  *     <li>The client is now officially an accepted Bombermen client of the game.
  *         Can send and receive commands, messages and can participate in games.
  * </ol>
+ * The steps above wait for the answer of the server one by one, that is 4 or more round trips before the client shows up.
+ * In case of the pipelined join the client sends its identification, version, the PlayerCollector.PIPELINED_JOIN_REQUEST message,
+ * the optional spectating and room selection requests, the game password and its public client options at once, without waiting for answers.
+ * The server sends none of the accepting answers (binary framing, shared memory and reconnecting cannot be requested),
+ * only a rejecting answer (after which it closes the connection) or finally the PlayerCollector.PIPELINED_JOIN_ACCEPTED message,
+ * and from then on both sides use binary framing; the list of the public client options of the clients follows right after it.
+ * So the client is joined in one round trip. The clients using the step by step protocol are served as before.<br>
+ * The accepting thread only accepts the connections, the joining protocol is run by a pool of handshake threads
+ * (at most MAX_CONCURRENT_HANDSHAKES at a time), so a slow or silent connection cannot hold up the others.
+ * Each message of the joining protocol must be sent and received within HANDSHAKE_STEP_TIMEOUT, else the connection is dropped.
+ * Clients having finished the protocol until receiving their public client options are handed over to the
+ * client joining handler (the server or the room server), and the server (room) finishes the joining of all the queued clients at once.<br>
+ * <br>
+ * Clients in the same process as the server (the client of the host) connect through loopback connection stubs instead of sockets
+ * (see connectInProcess()), the joining protocol is the same.
  *
  * @author Andras Belicza
  */
@@ -51,39 +99,74 @@ public class PlayerCollector implements OptionsChangeListener< ServerOptions > {
     public static final String PASSWORD_ACCEPTED            = "Password accepted";
     /** Message to the client that the given password was rejected. */
     public static final String PASSWORD_REJECTED            = "Password rejected";
+    /** Message to the server requesting the pipelined join.       */
+    public static final String PIPELINED_JOIN_REQUEST       = "Pipelined join requested";
+    /** Message to the client that the pipelined join was accepted. */
+    public static final String PIPELINED_JOIN_ACCEPTED      = "Pipelined join accepted";
+    /** Message to the client that it cannot join as a player because the game is in progress. */
+    public static final String GAME_IN_PROGRESS             = "Game in progress";
+    /** Message to the server requesting binary framing.          */
+    public static final String BINARY_FRAMING_REQUEST       = "Binary framing requested";
+    /** Message to the client that binary framing was accepted.   */
+    public static final String BINARY_FRAMING_ACCEPTED      = "Binary framing accepted";
+    /** Message to the server requesting the shared memory transport. */
+    public static final String SHARED_MEMORY_REQUEST        = "Shared memory requested";
+    /** Message to the other side that the shared memory has been accepted. */
+    public static final String SHARED_MEMORY_ACCEPTED       = "Shared memory accepted";
+    /** Message to the other side that the shared memory has been rejected. */
+    public static final String SHARED_MEMORY_REJECTED       = "Shared memory rejected";
+    /** Message to the server requesting to join as a spectator.  */
+    public static final String SPECTATING_REQUEST           = "Spectating requested";
+    /** Message to the client that it has been accepted as a spectator. */
+    public static final String SPECTATING_ACCEPTED          = "Spectating accepted";
+    /** Message to the client that spectators are not accepted.   */
+    public static final String SPECTATING_REJECTED          = "Spectating rejected";
+    /** Message to the server requesting room selection.         */
+    public static final String ROOM_SELECTION_REQUEST       = "Room selection requested";
+    /** Message to the client that the room has been selected.    */
+    public static final String ROOM_SELECTED                = "Room selected";
+    /** Message to the client that the room cannot be selected.   */
+    public static final String ROOM_REJECTED                = "Room rejected";
+    /** Message to the server requesting to reconnect into a running game. */
+    public static final String RECONNECT_REQUEST            = "Reconnect requested";
+    /** Message to the client that it can reconnect into the game. */
+    public static final String RECONNECT_ACCEPTED           = "Reconnect accepted";
+    /** Message to the client that it cannot reconnect into the game. */
+    public static final String RECONNECT_REJECTED           = "Reconnect rejected";
+    /** The maximum number of joining protocols run at the same time.            */
+    public static final int    MAX_CONCURRENT_HANDSHAKES    = 32;
+    /** Timeout of sending or receiving one message of the joining protocol in ms. */
+    public static final long   HANDSHAKE_STEP_TIMEOUT       = 5000l;
+
+    /** The player collectors of this process accepting clients, mapped by their game port. */
+    private static final ConcurrentMap< Integer, PlayerCollector > inProcessPlayerCollectors = new ConcurrentHashMap< Integer, PlayerCollector >();
+
+    /** Reference to the handler of the joining clients.            */
+    private final ClientJoiningHandler            clientJoiningHandler;
+    /** Reference to the host of the server (may be null).          */
+    private final ServerHost                      serverHost;
 
-    /** Reference to the server.                                    */
-    private final Server                          server;
-    /** Reference to the server options manager.                    */
-    private final OptionsManager< ServerOptions > serverOptionsManager;
-    /** Reference to the vector of client contacts.                 */
-    private final Vector< ClientContact >         clientContacts;
-    /** Reference to the main frame for displaying message dialogs. */
-    private final JFrame                          mainFrame;
-
-    /** Server socket which through the players can connect.        */
-    private volatile ServerSocket                 serverSocket;
-    /** Tells whether this player collector is closed.              */
-    private volatile boolean                      closed = false;
-    /** When a new client has been accepted, its contact object will be stored here. */
-    private volatile ClientContact                newClientContact;
+    /** Server socket channel which through the players can connect. */
+    private volatile ServerSocketChannel          serverSocket;
+    /** The thread accepting the clients.                          */
+    private volatile Thread                       acceptingThread;
+    /** The thread pool running the joining protocols.             */
+    private final ThreadPoolExecutor              handshakeExecutor = new ThreadPoolExecutor( 0, MAX_CONCURRENT_HANDSHAKES, 10l, TimeUnit.SECONDS, new SynchronousQueue< Runnable >() );
 
     /**
      * Creates a new PalyerCollector.
      * Creates the server socket which through the players will connect.
-     * @param server               reference to the server
-     * @param serverOptionsManager reference to the server options manager
-     * @param clientContacts       vector of client contacts have already and to use to store new client contacts
-     * @param mainFrame            reference to the main frame
+     * @param clientJoiningHandler reference to the handler of the joining clients
+     * @param serverHost           reference to the host of the server to follow the changes of the game port and to show error messages;
+     *                             may be null (the owner checks isServerSocketCreated() then)
      */
-    public PlayerCollector( final Server server, final OptionsManager< ServerOptions > serverOptionsManager, final Vector< ClientContact > clientContacts, final JFrame mainFrame ) {
-        this.server               = server;
-        this.serverOptionsManager = serverOptionsManager;
-        this.clientContacts       = clientContacts;
-        this.mainFrame            = mainFrame;
-        createServerSocket( serverOptionsManager.getOptions().gamePort );
+    PlayerCollector( final ClientJoiningHandler clientJoiningHandler, final ServerHost serverHost ) {
+        this.clientJoiningHandler = clientJoiningHandler;
+        this.serverHost           = serverHost;
+        createServerSocket( clientJoiningHandler.getJoiningServerOptions().gamePort );
         startAcceptingClients();
-        this.serverOptionsManager.registerOptionsChangeListener( this );
+        if ( this.serverHost != null )
+            this.serverHost.registerServerOptionsChangeListener( this );
     }
 
     /**
@@ -92,15 +175,20 @@ public class PlayerCollector implements OptionsChangeListener< ServerOptions > {
      */
     private void createServerSocket( final int port ) {
         try {
-            serverSocket = new ServerSocket( port );
+            final ServerSocketChannel serverSocketChannel = ServerSocketChannel.open();
+            try {
+                serverSocketChannel.socket().bind( new InetSocketAddress( port ) );
+            }
+            catch ( final IOException ie ) {
+                serverSocketChannel.close();
+                throw ie;
+            }
+            serverSocket = serverSocketChannel;
+            inProcessPlayerCollectors.put( port, this );
         }
         catch ( final IOException ie ) {
-            // Server thread cannot be blocked (messages can arrive while this message is displayed), we show error message in a new thread
-            new Thread() {
-                public void run() {
-                    JOptionPane.showMessageDialog( mainFrame, new String[] { "Player collector:", "Can't create server socket on port " + port + "!" }, "Error", JOptionPane.ERROR_MESSAGE );
-                }
-            }.start();
+            if ( serverHost != null )
+                serverHost.showErrorMessage( new String[] { "Player collector:", "Can't create server socket on port " + port + "!" } );
         }
     }
     
@@ -111,9 +199,10 @@ public class PlayerCollector implements OptionsChangeListener< ServerOptions > {
     private void closeServerSocket() {
         if ( serverSocket != null )
             try {
-                final ServerSocket serverSocket_copy = serverSocket;
+                final ServerSocketChannel serverSocket_copy = serverSocket;
                 serverSocket = null;    // First we have to set to null the reference, else NullPointerException can be occur!
                                         // Because after closing server socket goes into a loop where the serverSocket != null can be true!
+                inProcessPlayerCollectors.remove( serverSocket_copy.socket().getLocalPort(), this );
                 serverSocket_copy.close();
             }
             catch ( final IOException ie ) {
@@ -129,98 +218,216 @@ public class PlayerCollector implements OptionsChangeListener< ServerOptions > {
     }
 
     /**
-     * Called systematically, so it can check and watch the collection of players.<br>
-     * When this method is called, inserting to clientStubs is allowed, no iterator is existing on it.
+     * Starts accepting clients in a new trhead.<br>
+     * Runs until server socket is opened. The joining protocols of the accepted clients are run by the handshake threads.
      */
-    public void nextIteration() {
-        if ( newClientContact != null ) {
-            try {
-                // Still part of the joining potocol 
-				// Client must send Server.Commands.SENDING_PUBLIC_CLIENT_OPTIONS
-                final GeneralStringTokenizer commandTokenizer = new GeneralStringTokenizer( newClientContact.connectionStub.receiveMessage() );
-                commandTokenizer.nextIntToken();
-                newClientContact.publicClientOptions = PublicClientOptions.parseFromString( commandTokenizer.remainingString() );
-				server.broadcastCommand( Client.Commands.A_CLIENT_HAS_JOINED_THE_GAME.ordinal() + GENERAL_SEPARATOR_STRING + newClientContact.publicClientOptions.packToString() );
-                clientContacts.add( newClientContact );
-                
-                newClientContact.connectionStub.sendMessage( "" + clientContacts.size() );
-                for ( final ClientContact clientContact : clientContacts )
-                    newClientContact.connectionStub.sendMessage( clientContact.publicClientOptions.packToString() );
-				// End of joining protocol
-                
-                server.broadcastMessage( Server.SERVER_CHAT_NAME + newClientContact.publicClientOptions.clientName + " has joined the game." );
-            }
-            catch ( final IOException ie ) {
+    private void startAcceptingClients() {
+        acceptingThread = new Thread() {
+            public void run() {
+                ServerSocketChannel serverSocket_;
+                while ( ( serverSocket_ = serverSocket ) != null ) {
+                    try {
+                        startHandshake( new ConnectionStub( serverSocket_.accept() ) );
+                    }
+                    catch ( final IOException ie ) {
+                    }
+                }
             }
-            newClientContact = null;
+        };
+        acceptingThread.start();
+    }    
+
+    /**
+     * Connects to the player collector of this process accepting clients on the given game port, if there is one.
+     * The connection is made through loopback connection stubs, the joining protocol is the same as through sockets.
+     * @param port the game port
+     * @return the connection stub of the client to the player collector, or null if no player collector of this process accepts clients on the port
+     */
+    public static ConnectionStub connectInProcess( final int port ) {
+        final PlayerCollector playerCollector = inProcessPlayerCollectors.get( port );
+        if ( playerCollector == null )
+            return null;
+
+        final LoopbackConnectionStub clientConnectionStub = new LoopbackConnectionStub();
+        playerCollector.startHandshake( clientConnectionStub.getPeer() );
+        return clientConnectionStub;
+    }
+
+    /**
+     * Starts the joining protocol with a client on a handshake thread.
+     * @param connectionStub the connection stub to the client
+     */
+    private void startHandshake( final ConnectionStub connectionStub ) {
+        try {
+            handshakeExecutor.execute( new Runnable() {
+                public void run() {
+                    handshake( connectionStub );
+                }
+            } );
+        }
+        catch ( final RejectedExecutionException re ) {
+            connectionStub.close();   // Too many clients are joining at the same time
         }
     }
 
     /**
-     * Starts accepting clients in a new trhead.<br>
-     * Runs until server socket is opened.
+     * Runs the joining protocol with a client until receiving its public client options,
+     * and hands over the client contact to the client joining handler which finishes the joining.<br>
+     * Called by the handshake threads.
+     * @param connectionStub the connection stub to the client
      */
-    private void startAcceptingClients() {
-        new Thread() {
-            public void run() {
-                closed = false;
-                while ( serverSocket != null ) {
-                    if ( newClientContact == null ) {
-						ConnectionStub connectionStub_ = null;
-                        try {
-							// Start of the joining protocol
-							final ConnectionStub connectionStub = new ConnectionStub( serverSocket.accept() );
-							connectionStub_ = connectionStub; // We need this outside the try block but want it to be final here...
-
-							// Introducing ourself...
-                            connectionStub.sendMessage( SERVER_IDENTIFICATION_STRING );
-                            // Authentication of the client...
-                            if ( !connectionStub.receiveMessage().equals( Client.CLIENT_IDENTIFICATION_STRING ) )
-								throw new AcceptingClientFailedException( "Client is not a " + APPLICATION_NAME + " cilent" );
-                            connectionStub.sendMessage( APPLICATION_VERSION );
-                            if ( !connectionStub.receiveMessage().equals( APPLICATION_VERSION ) )
-								throw new AcceptingClientFailedException( "Incompatible versions" );
-                            final String gamePassword         = serverOptionsManager.getOptions().password;
-							final String receivedGamePassword = connectionStub.receiveMessage();
-                            if ( gamePassword.equals( "" ) || gamePassword.equals( receivedGamePassword ) ) {
-                                connectionStub.sendMessage( PASSWORD_ACCEPTED );
-								newClientContact = new ClientContact( connectionStub );
-                            }
-                            else {
-                                connectionStub.sendMessage( PASSWORD_REJECTED );
-								throw new AcceptingClientFailedException( "Incorrect game password" );
-                            }
-							// The joining protocol is finished in the nextIteration() method
-                        }
-						catch ( final AcceptingClientFailedException ae ) {
-                            if ( connectionStub_ != null )
-								connectionStub_.close();
-						}
-                        catch ( final IOException ie ) {
-                        }
-                    }
-                    else
-                        try {
-                            Thread.sleep( 10l );
-                        }
-                        catch ( final InterruptedException ie ) {
-                        }
+    private void handshake( ConnectionStub connectionStub ) {
+        try {
+            // Start of the joining protocol
+            connectionStub.setTimeout( HANDSHAKE_STEP_TIMEOUT );
+
+            // Introducing ourself... (the version is sent right away, so a pipelining client does not have to wait for it)
+            connectionStub.sendMessage( SERVER_IDENTIFICATION_STRING );
+            connectionStub.sendMessage( APPLICATION_VERSION );
+            // Authentication of the client...
+            if ( !Client.CLIENT_IDENTIFICATION_STRING.equals( connectionStub.receiveMessage() ) )
+                throw new AcceptingClientFailedException( "Client is not a " + APPLICATION_NAME + " cilent" );
+            if ( !APPLICATION_VERSION.equals( connectionStub.receiveMessage() ) )
+                throw new AcceptingClientFailedException( "Incompatible versions" );
+            String receivedMessage = connectionStub.receiveMessage();
+            // In case of pipelined join the client does not wait for the accepting answers, they are not sent
+            final boolean pipelined = PIPELINED_JOIN_REQUEST.equals( receivedMessage );
+            if ( pipelined )
+                receivedMessage = connectionStub.receiveMessage();
+            if ( BINARY_FRAMING_REQUEST.equals( receivedMessage ) ) {
+                connectionStub.sendMessage( BINARY_FRAMING_ACCEPTED );
+                connectionStub.setFraming( ConnectionStub.Framings.BINARY );
+                receivedMessage = connectionStub.receiveMessage();
+            }
+            if ( RECONNECT_REQUEST.equals( receivedMessage ) ) {
+                final long sessionToken = Long.parseLong( connectionStub.receiveMessage() );
+                if ( !clientJoiningHandler.isReconnectable( sessionToken ) ) {
+                    connectionStub.sendMessage( RECONNECT_REJECTED );
+                    throw new AcceptingClientFailedException( "Game cannot be reconnected into" );
                 }
-                closed = true;
+                connectionStub.sendMessage( RECONNECT_ACCEPTED );
+                connectionStub.setTimeout( 0l );
+                clientJoiningHandler.clientHasReconnected( sessionToken, connectionStub );
+                return;                 // The reconnection is finished by the server (room)
             }
-        }.start();
-    }    
+            if ( SHARED_MEMORY_REQUEST.equals( receivedMessage ) ) {
+                connectionStub  = negotiateSharedMemory( connectionStub );
+                receivedMessage = connectionStub.receiveMessage();
+            }
+            final boolean spectator = SPECTATING_REQUEST.equals( receivedMessage );
+            if ( spectator ) {
+                if ( clientJoiningHandler.isSpectatable( null ) ) {
+                    if ( !pipelined )
+                        connectionStub.sendMessage( SPECTATING_ACCEPTED );
+                }
+                else {
+                    connectionStub.sendMessage( SPECTATING_REJECTED );
+                    throw new AcceptingClientFailedException( "Spectators are not accepted" );
+                }
+                receivedMessage = connectionStub.receiveMessage();
+            }
+            String roomName = null;
+            if ( ROOM_SELECTION_REQUEST.equals( receivedMessage ) ) {
+                roomName = connectionStub.receiveMessage();
+                if ( roomName == null )
+                    throw new AcceptingClientFailedException( "Client has left" );
+                if ( spectator ? clientJoiningHandler.isSpectatable( roomName ) : clientJoiningHandler.isRoomSelectable( roomName ) ) {
+                    if ( !pipelined )
+                        connectionStub.sendMessage( ROOM_SELECTED );
+                }
+                else {
+                    connectionStub.sendMessage( ROOM_REJECTED );
+                    throw new AcceptingClientFailedException( "Room cannot be selected" );
+                }
+                receivedMessage = connectionStub.receiveMessage();
+            }
+            final String gamePassword         = clientJoiningHandler.getJoiningServerOptions().password;
+            final String receivedGamePassword = receivedMessage;
+            if ( !gamePassword.equals( "" ) && !gamePassword.equals( receivedGamePassword ) ) {
+                connectionStub.sendMessage( PASSWORD_REJECTED );
+                throw new AcceptingClientFailedException( "Incorrect game password" );
+            }
+            if ( !spectator && roomName == null && !clientJoiningHandler.isRoomSelectable( null ) ) {
+                connectionStub.sendMessage( GAME_IN_PROGRESS );
+                throw new AcceptingClientFailedException( "Game in progress" );
+            }
+            if ( !pipelined )
+                connectionStub.sendMessage( PASSWORD_ACCEPTED );
+
+            // Client must send Server.Commands.SENDING_PUBLIC_CLIENT_OPTIONS
+            final String command = connectionStub.receiveMessage();
+            if ( command == null )
+                throw new AcceptingClientFailedException( "Client has left" );
+            final GeneralStringTokenizer commandTokenizer = new GeneralStringTokenizer( command );
+            commandTokenizer.nextIntToken();
+            final ClientContact newClientContact = new ClientContact( connectionStub );
+            newClientContact.publicClientOptions = PublicClientOptions.parseFromString( commandTokenizer.remainingString() );
+            newClientContact.spectator           = spectator;
+            if ( pipelined ) {
+                connectionStub.sendMessage( PIPELINED_JOIN_ACCEPTED );
+                connectionStub.setFraming( ConnectionStub.Framings.BINARY );
+            }
+
+            connectionStub.setTimeout( 0l );
+            clientJoiningHandler.clientHasJoined( newClientContact, roomName );
+            // The joining protocol is finished by the server (room)
+        }
+        catch ( final AcceptingClientFailedException ae ) {
+            connectionStub.close();
+        }
+        catch ( final IOException ie ) {
+            connectionStub.close();     // Timed out or broken connection
+        }
+        catch ( final RuntimeException re ) {
+            connectionStub.close();     // Malformed nonce, session token or public client options
+        }
+    }
+
+    /**
+     * Negotiates the shared memory transport with a client requested it.
+     * @param connectionStub the connection stub to the client
+     * @return the mapped connection stub to the client if the shared memory has been accepted; the connection stub otherwise
+     * @throws IOException if I/O error occurs during the negotiation
+     */
+    private ConnectionStub negotiateSharedMemory( final ConnectionStub connectionStub ) throws IOException {
+        final long nonce = Long.parseLong( connectionStub.receiveMessage() );
+        if ( !clientJoiningHandler.getJoiningServerOptions().sharedMemoryTransport || !connectionStub.isLocalConnection() ) {
+            connectionStub.sendMessage( SHARED_MEMORY_REJECTED );
+            return connectionStub;
+        }
+
+        final File sharedMemoryFile;
+        try {
+            sharedMemoryFile = MappedConnectionStub.createFile( nonce );
+        }
+        catch ( final IOException ie ) {
+            connectionStub.sendMessage( SHARED_MEMORY_REJECTED );
+            return connectionStub;
+        }
+        try {
+            connectionStub.sendMessage( sharedMemoryFile.getAbsolutePath() );
+            if ( !SHARED_MEMORY_ACCEPTED.equals( connectionStub.receiveMessage() ) )
+                return connectionStub;
+            final ConnectionStub mappedConnectionStub = new MappedConnectionStub( connectionStub, sharedMemoryFile, nonce, true );
+            mappedConnectionStub.setTimeout( HANDSHAKE_STEP_TIMEOUT );
+            return mappedConnectionStub;
+        }
+        finally {
+            sharedMemoryFile.delete();   // Both sides have mapped it (or it's not needed), the mappings remain valid (where deleting is not possible while mapped, it's deleted on exit)
+        }
+    }
 
     /**
      * Closes the player collector, ends the collecting of players (if it's in progress).
      */
     public void close() {
-        serverOptionsManager.unregisterOptionsChangeListener( this );
+        if ( serverHost != null )
+            serverHost.unregisterServerOptionsChangeListener( this );
         closeServerSocket();
+        handshakeExecutor.shutdownNow();    // Interrupts the joining protocols in progress
         try {
-            // Not join(), because PlayerCollector is not a thread!
-            while ( !closed )
-                Thread.sleep( 1l );
+            acceptingThread.join();
+            handshakeExecutor.awaitTermination( HANDSHAKE_STEP_TIMEOUT, TimeUnit.MILLISECONDS );
         }
         catch ( final InterruptedException ie ) {
         }
@@ -0,0 +1,506 @@
+/*
+ * Created on October 18, 2026
+ */
+
+package classes.server;
+
+import static classes.Consts.APPLICATION_NAME;
+import static classes.Consts.APPLICATION_VERSION;
+import static classes.utils.GeneralStringTokenizer.GENERAL_SEPARATOR_STRING;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import classes.client.Client;
+import classes.options.model.PublicClientOptions;
+import classes.options.model.ServerOptions;
+import classes.utils.ConnectionSelector;
+import classes.utils.ConnectionStub;
+import classes.utils.ControlledThread;
+import classes.utils.GeneralStringTokenizer;
+
+/**
+ * A relay fanning out the games of a server to spectators.<br>
+ * The relay joins its upstream server (a standalone server, a room of a room server or another relay) as one spectator,
+ * and re-broadcasts the commands it receives to its own spectators. Relays can be chained into a tree, so the number of
+ * spectators is not limited by the uplink of the server: the server sends the commands once to each relay connected to it.<br>
+ * <br>
+ * The relay accepts the spectators with the joining protocol of the server (see PlayerCollector), players are rejected.
+ * It follows the clients of the upstream server, and records the commands of the games, so the spectators joining
+ * during a game receive the same as from the server: the clients at the start of the game, and the game record so far.
+ * The delay of the games is decided by the upstream server (the relay forwards the commands at once).
+ * Chat messages of the spectators are forwarded to the upstream server.<br>
+ * When the upstream server closes the connection, or nothing has been received from it for Server.LIVENESS_TIMEOUT
+ * (the connection died without being closed), the relay closes the connections of its spectators and stops.
+ * The relay sends heartbeats to the upstream server and to its spectators, and drops the spectators whose connection died.<br>
+ * The relay has no graphical user interface, it logs its events to the standard output (see DedicatedServer).
+ *
+ * @author Andras Belicza
+ */
+public class Relay extends ControlledThread implements ClientJoiningHandler {
+
+    /** Client name of the relay at the upstream server. */
+    public static final String RELAY_CLIENT_NAME = "<Relay>";
+
+    /** The server options of the relay (the game port, the password and the maximum spectators are used). */
+    private final ServerOptions                       relayOptions;
+    /** The client contact of the upstream server.     */
+    private final ClientContact                       upstreamContact;
+    /** Selector of the connections of the upstream server and of the spectators. */
+    private final ConnectionSelector< ClientContact > connectionSelector;
+    /** Vector of the client contacts of the spectators. */
+    private final Vector< ClientContact >             spectatorContacts    = new Vector< ClientContact >();
+    /** Client contacts of the spectators whose joining protocol has been run by the player collector, to be joined by us. */
+    private final BlockingQueue< ClientContact >      newSpectatorContacts = new LinkedBlockingQueue< ClientContact >();
+    /** Client contacts of the spectators exceeded the client backlog limit, to be dropped. */
+    private final List< ClientContact >               slowSpectatorContacts = new ArrayList< ClientContact >();
+    /** The public client options of the clients of the upstream server. */
+    private final List< PublicClientOptions >         clientsPublicClientOptions = new ArrayList< PublicClientOptions >();
+    /** The record of the current game: the commands received since the start of the game (null if no game is in progress). */
+    private List< ConnectionStub.OutboundMessage >    gameRecord;
+    /** The public client options of the clients at the start of the current game, packed as sent to the joining spectators. */
+    private String                                    gameStartClientsPublicClientOptions;
+    /** The player collector of the spectators.        */
+    private final PlayerCollector                     playerCollector;
+    /** Tells whether the relay has been closed.       */
+    private boolean                                   closed;
+    /** The time of the next liveness check of the upstream server and of the spectators (and of sending heartbeats to them) in ns. */
+    private long                                      nextLivenessCheckTime = System.nanoTime();
+
+    /**
+     * Creates a new Relay: joins the upstream server as a spectator, and starts collecting spectators.
+     * @param relayOptions      the server options of the relay (the game port, the password and the maximum spectators are used)
+     * @param upstreamAddress   address of the upstream server
+     * @param upstreamRoomName  name of the room to be watched at the upstream server; null means any room
+     * @param upstreamPassword  game password of the upstream server
+     * @throws IOException if joining the upstream server fails
+     */
+    public Relay( final ServerOptions relayOptions, final InetSocketAddress upstreamAddress, final String upstreamRoomName, final String upstreamPassword ) throws IOException {
+        this.relayOptions = relayOptions;
+        upstreamContact   = new ClientContact( joinUpstreamServer( upstreamAddress, upstreamRoomName, upstreamPassword ) );
+        upstreamContact.lastReceivingTime = System.nanoTime();
+        try {
+            connectionSelector = new ConnectionSelector< ClientContact >();
+            connectionSelector.register( upstreamContact.connectionStub, upstreamContact );
+        }
+        catch ( final IOException ie ) {
+            upstreamContact.connectionStub.close();
+            throw ie;
+        }
+        playerCollector = new PlayerCollector( this, null );
+    }
+
+    /**
+     * Joins the upstream server as a spectator: runs the pipelined joining protocol of the clients (see PlayerCollector),
+     * and receives the public client options of the clients of the upstream server.
+     * @param upstreamAddress  address of the upstream server
+     * @param upstreamRoomName name of the room to be watched at the upstream server; null means any room
+     * @param upstreamPassword game password of the upstream server
+     * @return the connection stub to the upstream server
+     * @throws IOException if joining the upstream server fails
+     */
+    private ConnectionStub joinUpstreamServer( final InetSocketAddress upstreamAddress, final String upstreamRoomName, final String upstreamPassword ) throws IOException {
+        if ( upstreamAddress.isUnresolved() )
+            throw new IOException( "Unknown upstream server host!" );
+        final ConnectionStub upstreamStub = new ConnectionStub( SocketChannel.open( upstreamAddress ) );
+        try {
+            upstreamStub.setTimeout( PlayerCollector.HANDSHAKE_STEP_TIMEOUT );
+            // Everything is sent at once, and the answers are checked afterwards
+            final PublicClientOptions relayPublicClientOptions = new PublicClientOptions();
+            relayPublicClientOptions.clientName = RELAY_CLIENT_NAME;
+            upstreamStub.sendMessage( Client.CLIENT_IDENTIFICATION_STRING );
+            upstreamStub.sendMessage( APPLICATION_VERSION );
+            upstreamStub.sendMessage( PlayerCollector.PIPELINED_JOIN_REQUEST );
+            upstreamStub.sendMessage( PlayerCollector.SPECTATING_REQUEST );
+            if ( upstreamRoomName != null ) {
+                upstreamStub.sendMessage( PlayerCollector.ROOM_SELECTION_REQUEST );
+                upstreamStub.sendMessage( upstreamRoomName );
+            }
+            upstreamStub.sendMessage( upstreamPassword );
+            upstreamStub.sendMessage( Server.Commands.SENDING_PUBLIC_CLIENT_OPTIONS.ordinal() + GENERAL_SEPARATOR_STRING + relayPublicClientOptions.packToString( 0 ) );
+
+            if ( !PlayerCollector.SERVER_IDENTIFICATION_STRING.equals( upstreamStub.receiveMessage() ) )
+                throw new IOException( "Upstream server is not a " + APPLICATION_NAME + " server!" );
+            final String upstreamVersion = upstreamStub.receiveMessage();
+            if ( !APPLICATION_VERSION.equals( upstreamVersion ) )
+                throw new IOException( "Incompatible " + APPLICATION_NAME + " upstream server (ver. " + upstreamVersion + ")!" );
+            final String joiningAnswer = upstreamStub.receiveMessage();
+            if ( PlayerCollector.SPECTATING_REJECTED.equals( joiningAnswer ) )
+                throw new IOException( "Upstream server does not accept spectators!" );
+            if ( PlayerCollector.ROOM_REJECTED.equals( joiningAnswer ) )
+                throw new IOException( "Room \"" + upstreamRoomName + "\" cannot be watched at the upstream server!" );
+            if ( !PlayerCollector.PIPELINED_JOIN_ACCEPTED.equals( joiningAnswer ) )
+                throw new IOException( "Incorrect upstream game password!" );
+            upstreamStub.setFraming( ConnectionStub.Framings.BINARY );
+
+            final String packedClientsPublicClientOptions = upstreamStub.receiveMessage();
+            if ( packedClientsPublicClientOptions == null )
+                throw new IOException( "Upstream server has closed the connection!" );
+            final GeneralStringTokenizer optionsTokenizer = new GeneralStringTokenizer( packedClientsPublicClientOptions );
+            final int                    clientsCount     = optionsTokenizer.nextIntToken();
+            for ( int i = 0; i < clientsCount; i++ )
+                clientsPublicClientOptions.add( PublicClientOptions.parseFromTokenizer( optionsTokenizer ) );
+            return upstreamStub;
+        }
+        catch ( final IOException ie ) {
+            upstreamStub.close();
+            throw ie;
+        }
+        catch ( final RuntimeException re ) {
+            upstreamStub.close();
+            throw new IOException( "Invalid answer of the upstream server: " + re );
+        }
+    }
+
+    /**
+     * Check and returns whether the server socket of the player collector is created.
+     * @return true if the server socket is created; false otherwise
+     */
+    public boolean isServerSocketCreated() {
+        return playerCollector.isServerSocketCreated();
+    }
+
+    /**
+     * The run() method of the relay controlled thread.
+     * Forwards the commands of the upstream server to the spectators, and handles the spectators.
+     * Stops and closes the relay when the upstream server closes the connection.
+     */
+    public void run() {
+        while ( !requestedToCancel ) {
+            final List< ClientContact > readyClientContacts = connectionSelector.select( Math.max( ( nextLivenessCheckTime - System.nanoTime() ) / 1000000l, 1l ) );
+            joinNewSpectatorContacts();
+            for ( final ClientContact clientContact : readyClientContacts ) {
+                clientContact.lastReceivingTime = System.nanoTime();
+                if ( clientContact == upstreamContact )
+                    checkForUpstreamCommands();
+                else
+                    checkForSpectatorCommands( clientContact );
+            }
+            checkLiveness();
+            dropSlowSpectators();
+
+            if ( upstreamContact.connectionStub.isEndOfStreamReached() ) {
+                RoomServer.log( "Upstream server has closed the connection." );
+                close();
+                break;
+            }
+            if ( System.nanoTime() - upstreamContact.lastReceivingTime > Server.LIVENESS_TIMEOUT * 1000000l ) {
+                RoomServer.log( "Connection to the upstream server has died." );
+                close();
+                break;
+            }
+        }
+    }
+
+    /**
+     * Requests to cancel, and wakes up the relay thread.
+     */
+    protected void requestToCancel() {
+        super.requestToCancel();
+        connectionSelector.wakeup();
+    }
+
+    /**
+     * Forwards the commands received from the upstream server to the spectators, and follows the clients and the games.
+     */
+    private void checkForUpstreamCommands() {
+        final ConnectionStub upstreamStub = upstreamContact.connectionStub;
+        while ( upstreamStub.hasReceivedMessage() )
+            try {
+                final String command = upstreamStub.receiveMessage();
+                final GeneralStringTokenizer commandTokenizer = new GeneralStringTokenizer( command );
+                switch ( Client.Commands.values()[ commandTokenizer.nextIntToken() ] ) {
+                    case MESSAGE :
+                        final ConnectionStub.OutboundMessage outboundMessage = new ConnectionStub.OutboundMessage( command, ConnectionStub.Priorities.BULK );
+                        for ( final ClientContact spectatorContact : spectatorContacts )   // Messages are not recorded
+                            queueCommand( spectatorContact, outboundMessage );
+                        break;
+                    case STARTING_GAME :
+                        gameRecord                          = new ArrayList< ConnectionStub.OutboundMessage >();
+                        gameStartClientsPublicClientOptions = packClientsPublicClientOptions();
+                        forwardCommand( command, ConnectionStub.Priorities.ORDERED );
+                        break;
+                    case ENDING_GAME :
+                        forwardCommand( command );
+                        gameRecord                          = null;
+                        gameStartClientsPublicClientOptions = null;
+                        break;
+                    case A_CLIENT_HAS_JOINED_THE_GAME :
+                        clientsPublicClientOptions.add( PublicClientOptions.parseFromString( commandTokenizer.remainingString() ) );
+                        forwardCommand( command, ConnectionStub.Priorities.ORDERED );
+                        break;
+                    case A_CLIENT_HAS_LEFT_THE_GAME :
+                        clientsPublicClientOptions.remove( commandTokenizer.nextIntToken() );
+                        forwardCommand( command, ConnectionStub.Priorities.ORDERED );
+                        break;
+                    case SENDING_PUBLIC_CLIENT_OPTIONS :
+                        final int clientIndex = commandTokenizer.nextIntToken();
+                        clientsPublicClientOptions.set( clientIndex, PublicClientOptions.parseFromString( commandTokenizer.remainingString() ) );
+                        forwardCommand( command, ConnectionStub.Priorities.BULK );
+                        break;
+                    case HEARTBEAT :
+                        break;   // Heartbeats are not forwarded, we send our own ones to the spectators
+                    default :
+                        forwardCommand( command );
+                        break;
+                }
+            }
+            catch ( final Exception e ) {
+            }
+    }
+
+    /**
+     * Forwards a command with normal priority to the spectators, and records it if a game is in progress.
+     * @param command command to be forwarded
+     * @see #forwardCommand(String, classes.utils.ConnectionStub.Priorities)
+     */
+    private void forwardCommand( final String command ) {
+        forwardCommand( command, ConnectionStub.Priorities.NORMAL );
+    }
+
+    /**
+     * Forwards a command to the spectators, and records it if a game is in progress.
+     * The command is encoded only once (for each framing used by the spectators).
+     * @param command  command to be forwarded
+     * @param priority priority of the command
+     */
+    private void forwardCommand( final String command, final ConnectionStub.Priorities priority ) {
+        final ConnectionStub.OutboundMessage outboundCommand = new ConnectionStub.OutboundMessage( command, priority );
+        if ( gameRecord != null )
+            gameRecord.add( outboundCommand );
+        for ( final ClientContact spectatorContact : spectatorContacts )
+            queueCommand( spectatorContact, outboundCommand );
+    }
+
+    /**
+     * Checks the commands of a spectator which sent new messages.
+     * Chat messages are forwarded to the upstream server prefixed with the name of the spectator,
+     * the other commands (except quitting) are ignored.
+     * @param spectatorContact the client contact of the spectator
+     */
+    private void checkForSpectatorCommands( final ClientContact spectatorContact ) {
+        messageLoop:
+        while ( spectatorContact.connectionStub.hasReceivedMessage() )
+            try {
+                final GeneralStringTokenizer commandTokenizer = new GeneralStringTokenizer( spectatorContact.connectionStub.receiveMessage() );
+                switch ( Server.Commands.values()[ commandTokenizer.nextIntToken() ] ) {
+                    case MESSAGE :
+                        upstreamContact.connectionStub.sendMessage( Server.Commands.MESSAGE.ordinal() + GENERAL_SEPARATOR_STRING + spectatorContact.publicClientOptions.clientName + ": " + commandTokenizer.remainingString() );
+                        break;
+                    case QUIT :
+                        handleSpectatorLeaving( spectatorContact, " has left." );
+                        break messageLoop;
+                    case SENDING_PUBLIC_CLIENT_OPTIONS :
+                        spectatorContact.publicClientOptions = PublicClientOptions.parseFromString( commandTokenizer.remainingString() );
+                        break;
+                    default :   // The relay does not know the server options outside of the games, and spectators are never ready for iterations
+                        break;
+                }
+            }
+            catch ( final Exception e ) {
+            }
+
+        if ( spectatorContact.connectionStub.isEndOfStreamReached() && spectatorContacts.contains( spectatorContact ) )
+            handleSpectatorLeaving( spectatorContact, " has left." );  // The spectator disappeared without sending QUIT
+    }
+
+    /**
+     * Checks the liveness of the spectators if it is time to, and sends heartbeats to the upstream server and to the live spectators.<br>
+     * Spectators which have sent nothing for Server.LIVENESS_TIMEOUT are dropped (their connection died without being closed).
+     */
+    private void checkLiveness() {
+        final long now = System.nanoTime();
+        if ( now - nextLivenessCheckTime < 0l )
+            return;
+        nextLivenessCheckTime = now + Server.HEARTBEAT_INTERVAL * 1000000l;
+        
+        try {
+            upstreamContact.connectionStub.sendMessage( Server.Commands.HEARTBEAT.ordinal() + GENERAL_SEPARATOR_STRING );
+        }
+        catch ( final IOException ie ) {
+        }
+        final ConnectionStub.OutboundMessage heartbeatCommand = new ConnectionStub.OutboundMessage( Client.Commands.HEARTBEAT.ordinal() + GENERAL_SEPARATOR_STRING );
+        for ( final ClientContact spectatorContact : spectatorContacts.toArray( new ClientContact[ spectatorContacts.size() ] ) )
+            if ( now - spectatorContact.lastReceivingTime > Server.LIVENESS_TIMEOUT * 1000000l )
+                handleSpectatorLeaving( spectatorContact, " has been dropped because its connection died." );
+            else
+                queueCommand( spectatorContact, heartbeatCommand );   // Heartbeats are not recorded
+    }
+
+    /**
+     * Finishes the joining of the spectators queued by the player collector.<br>
+     * If a game is in progress, the spectator receives the clients at the start of the game,
+     * followed by the game record so far.
+     */
+    private void joinNewSpectatorContacts() {
+        final List< ClientContact > newSpectatorContacts_ = new ArrayList< ClientContact >();
+        newSpectatorContacts.drainTo( newSpectatorContacts_ );
+        for ( final ClientContact spectatorContact : newSpectatorContacts_ ) {
+            if ( spectatorContacts.size() >= relayOptions.maxSpectators ) {
+                spectatorContact.connectionStub.close();
+                continue;
+            }
+            try {
+                // Still part of the joining potocol 
+                connectionSelector.register( spectatorContact.connectionStub, spectatorContact );
+                spectatorContact.lastReceivingTime = System.nanoTime();
+                spectatorContacts.add( spectatorContact );
+                queueCommand( spectatorContact, new ConnectionStub.OutboundMessage( gameRecord == null ? packClientsPublicClientOptions() : gameStartClientsPublicClientOptions ) );
+                // End of joining protocol
+                if ( gameRecord != null )
+                    for ( final ConnectionStub.OutboundMessage outboundCommand : gameRecord )
+                        queueCommand( spectatorContact, outboundCommand );
+                RoomServer.log( spectatorContact.publicClientOptions.clientName + " is watching through the relay (" + spectatorContacts.size() + " spectators)." );
+            }
+            catch ( final IOException ie ) {
+                spectatorContact.connectionStub.close();
+            }
+        }
+    }
+
+    /**
+     * Packs the number and the public client options of the clients of the upstream server as sent to the joining spectators.
+     * @return the packed number and public client options of the clients
+     */
+    private String packClientsPublicClientOptions() {
+        final StringBuilder packedClientsPublicClientOptions = new StringBuilder().append( clientsPublicClientOptions.size() ).append( GENERAL_SEPARATOR_STRING );
+        for ( final PublicClientOptions publicClientOptions : clientsPublicClientOptions )
+            packedClientsPublicClientOptions.append( publicClientOptions.packToString() );
+        return packedClientsPublicClientOptions.toString();
+    }
+
+    /**
+     * Queues a command to a spectator.
+     * If the queue of the spectator exceeds the client backlog limit, the spectator will be dropped.
+     * @param spectatorContact client contact of the spectator to queue the command to
+     * @param outboundCommand  the command to be queued
+     */
+    private void queueCommand( final ClientContact spectatorContact, final ConnectionStub.OutboundMessage outboundCommand ) {
+        try {
+            if ( spectatorContact.connectionStub.queueMessage( outboundCommand ) > relayOptions.clientBacklogLimit * 1024 )
+                if ( !slowSpectatorContacts.contains( spectatorContact ) )
+                    slowSpectatorContacts.add( spectatorContact );
+        }
+        catch ( final IOException ie ) {
+        }
+    }
+
+    /**
+     * Drops the spectators which exceeded the client backlog limit.
+     */
+    private void dropSlowSpectators() {
+        for ( final ClientContact spectatorContact : slowSpectatorContacts )
+            if ( spectatorContacts.contains( spectatorContact ) )
+                handleSpectatorLeaving( spectatorContact, " has been dropped because of too slow connection." );
+        slowSpectatorContacts.clear();
+    }
+
+    /**
+     * Handles a spectator when it leaves.
+     * @param spectatorContact client contact of the spectator who is about to leave
+     * @param leavingText      text to be appended to the spectator name in the log
+     */
+    private void handleSpectatorLeaving( final ClientContact spectatorContact, final String leavingText ) {
+        spectatorContacts.remove( spectatorContact );
+        connectionSelector.unregister( spectatorContact.connectionStub );
+        spectatorContact.connectionStub.close();
+        RoomServer.log( spectatorContact.publicClientOptions.clientName + leavingText );
+    }
+
+    /**
+     * Returns the server options of the relay the joining spectators are checked by.
+     * @return the server options of the relay
+     */
+    public ServerOptions getJoiningServerOptions() {
+        return relayOptions;
+    }
+
+    /**
+     * Tells whether a room can be selected by a joining player.
+     * The relay only accepts spectators.
+     * @param roomName name of the room to be selected; ignored
+     * @return false
+     */
+    public boolean isRoomSelectable( final String roomName ) {
+        return false;
+    }
+
+    /**
+     * Tells whether a room can be watched by a joining spectator.
+     * The relay has only one room (the room watched at the upstream server), so any room name is accepted
+     * if the maximum number of spectators has not been reached.
+     * @param roomName name of the room to be watched; ignored
+     * @return true if the room can be watched; false otherwise
+     */
+    public boolean isSpectatable( final String roomName ) {
+        return spectatorContacts.size() < relayOptions.maxSpectators;
+    }
+
+    /**
+     * Queues a spectator whose joining protocol has been run by the player collector.
+     * The joining will be finished by us.
+     * @param clientContact the client contact of the spectator
+     * @param roomName      name of the room selected by the spectator; ignored
+     */
+    public void clientHasJoined( final ClientContact clientContact, final String roomName ) {
+        newSpectatorContacts.add( clientContact );
+        connectionSelector.wakeup();
+    }
+
+    /**
+     * Tells whether a client can reconnect into a running game.
+     * The relay only accepts spectators, they do not reconnect.
+     * @param sessionToken the session token sent by the client; ignored
+     * @return false
+     */
+    public boolean isReconnectable( final long sessionToken ) {
+        return false;
+    }
+
+    /**
+     * The relay does not accept reconnecting clients, the connection is closed.
+     * @param sessionToken   the session token sent by the client; ignored
+     * @param connectionStub the new connection stub to the client
+     */
+    public void clientHasReconnected( final long sessionToken, final ConnectionStub connectionStub ) {
+        connectionStub.close();
+    }
+
+    /**
+     * Returns the number of the spectators of the relay.
+     * @return the number of the spectators of the relay
+     */
+    public int getSpectatorsCount() {
+        return spectatorContacts.size();
+    }
+
+    /**
+     * Closes the relay: stops collecting spectators, closes the connections of the spectators and the upstream server.
+     * Invoked at the end of shutdown, or by the relay thread when the upstream server has closed the connection.
+     */
+    protected synchronized void close() {
+        if ( closed )
+            return;
+        closed = true;
+        playerCollector.close();
+        ClientContact spectatorContact;
+        while ( ( spectatorContact = newSpectatorContacts.poll() ) != null )
+            spectatorContact.connectionStub.close();
+        for ( final ClientContact spectatorContact_ : spectatorContacts.toArray( new ClientContact[ spectatorContacts.size() ] ) )
+            spectatorContact_.connectionStub.close();
+        try {
+            upstreamContact.connectionStub.sendMessage( Server.Commands.QUIT.ordinal() + GENERAL_SEPARATOR_STRING );
+        }
+        catch ( final IOException ie ) {
+        }
+        upstreamContact.connectionStub.close();
+        connectionSelector.close();
+    }
+
+}
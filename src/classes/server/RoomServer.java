@@ -0,0 +1,411 @@
+/*
+ * Created on October 18, 2026
+ */
+
+package classes.server;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import classes.options.model.ServerOptions;
+import classes.utils.ConnectionSelector;
+import classes.utils.ConnectionStub;
+import classes.utils.ControlledThread;
+import classes.utils.CpuUsageMeter;
+
+/**
+ * A room server hosting many independent rooms in one process. Each room is a server (lobby and game)
+ * with its own clients, options, random seed and lockstep barrier.<br>
+ * <br>
+ * The rooms share the I/O layer: one player collector accepts the clients on the game port of the default server options,
+ * and the thread of the room server selects the connections of the clients of all rooms, and dispatches the clients
+ * having new messages to their rooms. The rooms have no own threads: their steps and the timing of their iterations
+ * are scheduled on a fixed pool of worker threads sized to the number of available processors.
+ * The steps of a room never run at the same time, but the steps of different rooms run in parallel.<br>
+ * <br>
+ * Joining clients can select a room by its name (see PlayerCollector), the room is created if it does not exist.
+ * Clients not selecting a room are assigned to the first room collecting players which is not full,
+ * or to a new room if there is no such room. Rooms are removed when all their clients have left.<br>
+ * Spectators can watch the games of the existing rooms (up to the maximum spectators of the server options),
+ * spectators not selecting a room are assigned to the first room which can be watched; rooms are never created for them.<br>
+ * There is no host in a room: the owner of the room (its first client) starts and ends the games with the
+ * Server.ROOM_START_GAME_CHAT_COMMAND and Server.ROOM_END_GAME_CHAT_COMMAND chat messages.
+ * Rooms always play on randomly generated levels.<br>
+ * The rooms have no own threads to wake them up, so the worker threads request a step of every room in every Server.HEARTBEAT_INTERVAL,
+ * in which the rooms check the liveness of their clients.<br>
+ * The room server has no graphical user interface, it logs its events to the standard output (see DedicatedServer).
+ *
+ * @author Andras Belicza
+ */
+public class RoomServer extends ControlledThread implements ClientJoiningHandler {
+
+    /** The maximum number of clients in a room.                       */
+    public static final int    MAX_ROOM_CLIENTS     = 8;
+    /** The default maximum number of rooms.                           */
+    public static final int    DEFAULT_MAX_ROOMS    = 64;
+    /** Prefix of the names of the rooms created for clients not selecting a room. */
+    public static final String AUTOMATIC_ROOM_NAME_PREFIX = "Room ";
+
+    /** The default server options of the rooms.                       */
+    private final ServerOptions                       serverOptions;
+    /** The maximum number of rooms.                                   */
+    private final int                                 maxRooms;
+    /** The worker threads running the steps of the rooms and timing their iterations. */
+    private final ScheduledThreadPoolExecutor         workerExecutor;
+    /** Meter of the CPU usage of the room server (the room server thread and the worker threads). */
+    private final CpuUsageMeter                       cpuUsageMeter;
+    /** Selector of the connections of the clients of all rooms.       */
+    private final ConnectionSelector< ClientContact > connectionSelector;
+    /** Client contacts whose connections are to be registered by the room server thread. */
+    private final BlockingQueue< ClientContact >      clientContactsToRegister = new LinkedBlockingQueue< ClientContact >();
+    /** The rooms.                                                     */
+    private final List< Server >                      rooms                    = new ArrayList< Server >();
+    /** Number of the rooms created so far, used to name the rooms created for clients not selecting a room. */
+    private int                                       createdRoomsCount;
+    /** The player collector of the rooms.                             */
+    private final PlayerCollector                     playerCollector;
+
+    /**
+     * Creates a new RoomServer, and starts collecting players.
+     * @param serverOptions the default server options of the rooms (the game port and the password are used by all the rooms)
+     * @param maxRooms      the maximum number of rooms
+     */
+    public RoomServer( final ServerOptions serverOptions, final int maxRooms ) {
+        this.serverOptions = serverOptions;
+        this.maxRooms      = maxRooms;
+        try {
+            connectionSelector = new ConnectionSelector< ClientContact >();
+        }
+        catch ( final IOException ie ) {
+            throw new IllegalStateException( "Can't open connection selector!", ie );   // Only if the system ran out of resources
+        }
+
+        final List< Thread > threads = new ArrayList< Thread >();
+        threads.add( this );
+        workerExecutor = new ScheduledThreadPoolExecutor( Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+            public Thread newThread( final Runnable runnable ) {
+                final Thread workerThread = new Thread( runnable, "Room worker " + threads.size() );
+                threads.add( workerThread );
+                return workerThread;
+            }
+        } );
+        workerExecutor.setExecuteExistingDelayedTasksAfterShutdownPolicy( false );
+        workerExecutor.prestartAllCoreThreads();   // The worker threads are fixed, the CPU usage meter measures them
+        cpuUsageMeter = new CpuUsageMeter( threads.toArray( new Thread[ threads.size() ] ) );
+        workerExecutor.scheduleWithFixedDelay( new Runnable() {
+            public void run() {
+                requestStepsOfRooms();
+            }
+        }, Server.HEARTBEAT_INTERVAL, Server.HEARTBEAT_INTERVAL, TimeUnit.MILLISECONDS );
+
+        playerCollector = new PlayerCollector( this, null );
+    }
+
+    /**
+     * Check and returns whether the server socket of the player collector is created.
+     * @return true if the server socket is created; false otherwise
+     */
+    public boolean isServerSocketCreated() {
+        return playerCollector.isServerSocketCreated();
+    }
+
+    /**
+     * The run() method of the room server controlled thread.
+     * Selects the connections of the clients of the rooms, and dispatches the clients having new messages to their rooms.
+     */
+    public void run() {
+        final Map< Server, List< ClientContact > > readyClientContactsOfRooms = new HashMap< Server, List< ClientContact > >();
+        while ( !requestedToCancel ) {
+            ClientContact clientContact;
+            while ( ( clientContact = clientContactsToRegister.poll() ) != null )
+                try {
+                    connectionSelector.register( clientContact.connectionStub, clientContact );
+                }
+                catch ( final IOException ie ) {
+                    clientContact.connectionStub.setBroken();   // The room will notice that the client has left
+                    clientContact.server.requestStep( null );
+                }
+
+            for ( final ClientContact readyClientContact : connectionSelector.select( 0l ) ) {
+                List< ClientContact > readyClientContacts = readyClientContactsOfRooms.get( readyClientContact.server );
+                if ( readyClientContacts == null )
+                    readyClientContactsOfRooms.put( readyClientContact.server, readyClientContacts = new ArrayList< ClientContact >() );
+                readyClientContacts.add( readyClientContact );
+            }
+            for ( final Map.Entry< Server, List< ClientContact > > readyClientContactsOfRoom : readyClientContactsOfRooms.entrySet() )
+                readyClientContactsOfRoom.getKey().requestStep( readyClientContactsOfRoom.getValue() );
+            readyClientContactsOfRooms.clear();
+        }
+    }
+
+    /**
+     * Requests a step of all the rooms, so they check the liveness of their clients even if the clients are silent.
+     * Scheduled on the worker threads in every Server.HEARTBEAT_INTERVAL.
+     */
+    private synchronized void requestStepsOfRooms() {
+        for ( final Server room : rooms )
+            room.requestStep( null );
+    }
+
+    /**
+     * Requests to cancel, and wakes up the room server thread.
+     */
+    protected void requestToCancel() {
+        super.requestToCancel();
+        connectionSelector.wakeup();
+    }
+
+    /**
+     * Returns the executor of the worker threads running the steps of the rooms and timing their iterations.
+     * @return the executor of the worker threads
+     */
+    ScheduledExecutorService getWorkerExecutor() {
+        return workerExecutor;
+    }
+
+    /**
+     * Returns the meter of the CPU usage of the room server.
+     * @return the meter of the CPU usage of the room server
+     */
+    CpuUsageMeter getCpuUsageMeter() {
+        return cpuUsageMeter;
+    }
+
+    /**
+     * Registers the connection of a client contact of a room. The registration is done by the room server thread.
+     * @param clientContact client contact to be registered
+     */
+    void registerClientContact( final ClientContact clientContact ) {
+        clientContactsToRegister.add( clientContact );
+        connectionSelector.wakeup();
+    }
+
+    /**
+     * Unregisters the connection of a client contact of a room.
+     * @param clientContact client contact to be unregistered
+     */
+    void unregisterClientContact( final ClientContact clientContact ) {
+        connectionSelector.unregister( clientContact.connectionStub );
+    }
+
+    /**
+     * Returns the default server options of the rooms the joining clients are checked by.
+     * @return the default server options of the rooms
+     */
+    public ServerOptions getJoiningServerOptions() {
+        return serverOptions;
+    }
+
+    /**
+     * Tells whether a room can be selected by a joining player.
+     * An existing room can be selected if it is collecting players and it is not full, a new room can be selected if
+     * the maximum number of rooms has not been reached.
+     * @param roomName name of the room to be selected (null means any room)
+     * @return true if the room can be selected; false otherwise
+     */
+    public synchronized boolean isRoomSelectable( final String roomName ) {
+        if ( roomName == null ) {
+            for ( final Server room : rooms )
+                if ( isRoomJoinable( room ) )
+                    return true;
+            return rooms.size() < maxRooms;
+        }
+        final Server room = getRoom( roomName );
+        return room == null ? rooms.size() < maxRooms : isRoomJoinable( room );
+    }
+
+    /**
+     * Tells whether a room can be watched by a joining spectator: the room exists and its maximum number of spectators has not been reached.
+     * @param roomName name of the room to be watched (null means any room)
+     * @return true if the room can be watched; false otherwise
+     */
+    public synchronized boolean isSpectatable( final String roomName ) {
+        return getSpectatableRoom( roomName ) != null;
+    }
+
+    /**
+     * Returns the room which can be watched by a joining spectator.
+     * @param roomName name of the room to be watched (null means any room)
+     * @return the room which can be watched; null if there is no such room
+     */
+    private Server getSpectatableRoom( final String roomName ) {
+        if ( roomName == null ) {
+            for ( final Server room : rooms )
+                if ( room.isSpectatable() )
+                    return room;
+            return null;
+        }
+        final Server room = getRoom( roomName );
+        return room != null && room.isSpectatable() ? room : null;
+    }
+
+    /**
+     * Hands over a client contact to its room, creates the room if it does not exist.
+     * If the room cannot be joined (it has been filled or it has started a game meanwhile), the client is dropped.
+     * Spectators are handed over to the room they can watch, rooms are not created for them.
+     * @param clientContact the client contact to be handed over
+     * @param roomName      name of the room selected by the client (null if the client did not select room)
+     */
+    public synchronized void clientHasJoined( final ClientContact clientContact, final String roomName ) {
+        if ( clientContact.spectator ) {
+            final Server room = getSpectatableRoom( roomName );
+            if ( room == null )
+                clientContact.connectionStub.close();
+            else {
+                room.clientHasJoined( clientContact, roomName );
+                log( clientContact.publicClientOptions.clientName + " is watching room \"" + room.getRoomName() + "\"." );
+            }
+            return;
+        }
+
+        Server room = null;
+        if ( roomName == null ) {
+            for ( final Server room_ : rooms )
+                if ( isRoomJoinable( room_ ) ) {
+                    room = room_;
+                    break;
+                }
+        }
+        else
+            room = getRoom( roomName );
+
+        if ( room == null ) {
+            if ( rooms.size() >= maxRooms ) {
+                clientContact.connectionStub.close();
+                return;
+            }
+            String newRoomName = roomName;
+            while ( newRoomName == null || getRoom( newRoomName ) != null )
+                newRoomName = AUTOMATIC_ROOM_NAME_PREFIX + ++createdRoomsCount;
+            room = new Server( this, newRoomName, serverOptions.cloneOptions() );
+            rooms.add( room );
+            log( "Room \"" + newRoomName + "\" has been created." );
+        }
+        else if ( !isRoomJoinable( room ) ) {
+            clientContact.connectionStub.close();
+            return;
+        }
+
+        room.clientHasJoined( clientContact, roomName );
+        log( clientContact.publicClientOptions.clientName + " has joined room \"" + room.getRoomName() + "\"." );
+    }
+
+    /**
+     * Tells whether a client can reconnect into the running game of one of the rooms with a session token.
+     * @param sessionToken the session token sent by the client
+     * @return true if the client can reconnect; false otherwise
+     */
+    public synchronized boolean isReconnectable( final long sessionToken ) {
+        return getReconnectableRoom( sessionToken ) != null;
+    }
+
+    /**
+     * Hands over the connection of a reconnecting client to the room whose game it reconnects into.
+     * If the game has ended meanwhile, the connection is closed.
+     * @param sessionToken   the session token sent by the client
+     * @param connectionStub the new connection stub to the client
+     */
+    public synchronized void clientHasReconnected( final long sessionToken, final ConnectionStub connectionStub ) {
+        final Server room = getReconnectableRoom( sessionToken );
+        if ( room == null )
+            connectionStub.close();
+        else {
+            room.clientHasReconnected( sessionToken, connectionStub );
+            log( "A client is reconnecting into room \"" + room.getRoomName() + "\"." );
+        }
+    }
+
+    /**
+     * Returns the room whose running game a client can reconnect into with a session token.
+     * @param sessionToken the session token sent by the client
+     * @return the room the client can reconnect into; null if there is no such room
+     */
+    private Server getReconnectableRoom( final long sessionToken ) {
+        for ( final Server room : rooms )
+            if ( room.isReconnectable( sessionToken ) )
+                return room;
+        return null;
+    }
+
+    /**
+     * Tells whether a room can be joined: it is collecting players and it is not full.
+     * @param room room to be tested
+     * @return true if the room can be joined; false otherwise
+     */
+    private boolean isRoomJoinable( final Server room ) {
+        return room.isCollectingPlayers() && room.getClientsCount() < MAX_ROOM_CLIENTS;
+    }
+
+    /**
+     * Returns the room with the specified name.
+     * @param roomName name of the room
+     * @return the room with the specified name; null if there is no such room
+     */
+    private Server getRoom( final String roomName ) {
+        for ( final Server room : rooms )
+            if ( room.getRoomName().equals( roomName ) )
+                return room;
+        return null;
+    }
+
+    /**
+     * Removes and closes a room if all its clients have left.
+     * Called by the steps of the rooms.
+     * @param room room to be removed if it is empty
+     */
+    synchronized void removeRoomIfEmpty( final Server room ) {
+        if ( room.getClientsCount() == 0 && rooms.remove( room ) ) {
+            room.requestToCancel();
+            log( "Room \"" + room.getRoomName() + "\" has been removed." );
+        }
+    }
+
+    /**
+     * Returns the names of the rooms.
+     * @return the names of the rooms
+     */
+    public synchronized String[] getRoomNames() {
+        final String[] roomNames = new String[ rooms.size() ];
+        for ( int i = 0; i < roomNames.length; i++ )
+            roomNames[ i ] = rooms.get( i ).getRoomName();
+        return roomNames;
+    }
+
+    /**
+     * Logs a message of the room server to the standard output, prefixed with the current time.
+     * @param message message to be logged
+     */
+    static void log( final String message ) {
+        System.out.println( String.format( "%tF %<tT ", System.currentTimeMillis() ) + message );
+    }
+
+    /**
+     * Closes the room server: stops collecting players, closes the rooms, and stops the worker threads.
+     * Invoked at the end of shutdown.
+     */
+    protected void close() {
+        playerCollector.close();
+        synchronized ( this ) {
+            for ( final Server room : rooms )
+                room.requestToCancel();
+            rooms.clear();
+        }
+        workerExecutor.shutdown();   // The closing steps of the rooms are already submitted
+        try {
+            workerExecutor.awaitTermination( PlayerCollector.HANDSHAKE_STEP_TIMEOUT, TimeUnit.MILLISECONDS );
+        }
+        catch ( final InterruptedException ie ) {
+        }
+        connectionSelector.close();
+    }
+
+}
@@ -6,20 +6,39 @@
 package classes.server;
 
 import classes.utils.TimedIterableControlledThread;
+import classes.utils.ConnectionSelector;
+import classes.utils.ConnectionStub;
+import classes.utils.CpuUsageMeter;
+import classes.utils.TransportCounters;
 import java.util.Vector;
-import classes.MainFrame;
-import classes.options.*;
 import classes.utils.GeneralStringTokenizer;
 import classes.client.Client;
 import static classes.utils.GeneralStringTokenizer.GENERAL_SEPARATOR_STRING;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.security.SecureRandom;
 import classes.options.OptionsChangeListener;
 import classes.options.model.PublicClientOptions;
 import classes.options.model.ServerOptions;
 import static classes.MainMenuBar.GameStates;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import javax.management.JMException;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
 import static classes.options.ServerComponentOptions.RANDOMLY_GENERATED_LEVEL_NAME;
-import classes.GameManager;
 import static classes.options.Consts.NetworkLatencies;
 
 /**
@@ -45,21 +64,79 @@ import static classes.options.Consts.NetworkLatencies;
  * Sending a command means sending its ordinal not its string representation.
  * Each command must be followed by GeneralStringTokenizer.GENERAL_SEPARATOR_CHAR,
  * and can be followed optional parameters (until the terminating '\n' of course).<br>
+ * The connections of the accepted clients are multiplexed by a ConnectionSelector, so the server thread only
+ * processes the clients which sent complete commands, and it is waken up by their arrival.
+ * The server thread does not poll: it sleeps until a command, a timer signal or a state change request arrives.<br>
+ * Commands to the clients are never sent blocking: a broadcasted command is encoded once, and queued to the clients,
+ * their queues are sent when their connections are ready. Clients whose queue exceeds the client backlog limit
+ * (ServerOptions.clientBacklogLimit) are dropped, so a slow client cannot hold up the game.<br>
  * The joining and game starting protocols may be exceptions.<br> 
  * <br>
+ * During the joining protocol the connection is switched to binary framing: each command is sent as a length-prefixed frame
+ * where the command ordinal is a single byte and numeric parameters are varints (see BinaryFrameCodec).
+ * The frames decode to exactly the same lines as described above, so commands are built and parsed the same way.<br>
+ * <br>
  * The game starting protocol is the following:
  * <ol>
- *     <li>The server sends the Client.Commands.STARTING_GAME command.
- *     <li>The server sends a long random number.
- *     <li>The server sends the server options.
- *     <li>OPTIONAL: if the level what is set is not the random level, the server sends the level.
+ *     <li>The server sends the Client.Commands.STARTING_GAME command, which holds everything needed for the new game:
+ *         a long random number, the length of the packed server options, the packed server options, and
+ *         if the level what is set is not the random level, the packed level (following the server options without separator).
+ *         So the clients can create the game without waiting for further messages.
  *     <li>The server sends the Client.Commands.STARTING_NEXT_ROUND command.
  * </ol>
+ * In case of rollback network latency (NetworkLatencies.ROLLBACK) the server does not wait for the clients:
+ * it broadcasts the STARTING_NEXT_ITERATION command timed by itself, which confirms the control key states
+ * of the next iteration. The clients predict the iterations ahead, and send their control key states with the
+ * index of the iteration they belong to. Control key states arriving late are confirmed in the next broadcasted iteration.
+ * The server measures how many iterations the clients are ahead, and periodically tells them to adjust their lead
+ * with the Client.Commands.ADJUSTING_ITERATION_LEAD command.<br>
+ * <br>
+ * Otherwise the iterations are grouped into iteration windows: the server times the clients in the first iteration
+ * of each window with the STARTING_NEXT_ITERATION command (which includes the size of the window), the clients time
+ * themselves in the rest of the window. The server waits for the READY_FOR_NEXT_ITERATION commands of all clients before
+ * starting a new window. The size of the window is fixed by the network latency, except in case of automatic
+ * network latency (NetworkLatencies.AUTOMATIC): the server measures the round trip times of the clients from the
+ * STARTING_NEXT_ITERATION - READY_FOR_NEXT_ITERATION command pairs, and sizes the window so that the round trip times
+ * (including their variation) fit into it. The window is enlarged at once when the round trip times grow,
+ * and shrinked one iteration per window when they decrease.<br>
+ * In quiet phases, when no control key states changed in the last window (and no client was late), the server grants
+ * longer windows: each quiet window is twice as long as the last one, up to half of the idle input delay
+ * (ServerOptions.idleInputDelay), so the ticks without input are run-length encoded into one STARTING_NEXT_ITERATION command,
+ * and the clients acknowledge the whole window with one READY_FOR_NEXT_ITERATION command. A control key change reaches
+ * the others at most 2 windows later, so the input delay is bounded by the idle input delay. The first window with
+ * a control key change is granted with the normal size again.<br>
+ * <br>
+ * The server keeps statistics of the clients: round trip time, jitter and barrier wait histograms, and the number of
+ * iteration windows delayed by each client. These can be queried with the STATISTICS_CHAT_COMMAND chat message,
+ * and are exported for monitoring through JMX (see ServerMBean).<br>
+ * <br>
+ * Spectators (clients without players, see PlayerCollector) watch the games, but they are not part of the lockstep barrier:
+ * they are never waited for, and their control key states are not collected. They can join during a game if the server
+ * options allow spectators. The commands broadcasted during a game are recorded, and are released to the spectators
+ * delayed by the spectator delay (ServerOptions.spectatorDelay); a spectator joining during a game first receives the
+ * part of the record released so far (starting with the game starting protocol), and catches up by itself.
+ * Chat messages are not recorded, they are sent to the spectators at once.<br>
+ * <br>
+ * The server and the clients send HEARTBEAT commands to each other in every HEARTBEAT_INTERVAL, so a connection which died
+ * without being closed (for example the computer of the client went to sleep or lost its network) is detected:
+ * clients which have sent nothing for LIVENESS_TIMEOUT are dropped, and the game goes on without them.<br>
+ * <br>
+ * A client whose connection died during a game (except in case of rollback network latency) is not dropped at once:
+ * the keys of its players are released, the game goes on without waiting for it, and it may reconnect within RECONNECT_TIMEOUT
+ * with the session token it received when joining (see PlayerCollector). The reconnecting client does not replay the game:
+ * the server asks a healthy client for a snapshot of its game state (Client.Commands.REQUESTING_STATE_SNAPSHOT),
+ * and sends the reconnecting client the game starting protocol, the snapshot, and the commands broadcasted since the snapshot
+ * was requested; the client catches up from there by itself.<br>
+ * <br>
+ * The server knows the application which created it only through the ServerHost interface, so it does not depend on
+ * the graphical user interface.<br>
+ * A server can also be a room of a room server (see RoomServer). A room has no own thread and no own player collector:
+ * its steps are run by the worker threads of the room server, which also selects the connections of its clients.
  * 
  *
  * @author Andras Belicza
  */
-public class Server extends TimedIterableControlledThread implements OptionsChangeListener< ServerOptions > {
+public class Server extends TimedIterableControlledThread implements OptionsChangeListener< ServerOptions >, ServerMBean, ClientJoiningHandler {
 
     /**
      * Commands to be sent to the server, interpreted by us.
@@ -75,160 +152,827 @@ public class Server extends TimedIterableControlledThread implements OptionsChan
         /** Requesting server options command.                    */
         REQUESTING_SERVER_OPTIONS,
         /** Signing that client is ready for next iteration,
-         * and sends the actions of its players with the command. */
-        READY_FOR_NEXT_ITERATION
+         * and sends the index of the iteration and the actions of its players with the command
+         * (optionally followed by an iteration and the checksum of the game state of the client after that iteration). */
+        READY_FOR_NEXT_ITERATION,
+        /** Heartbeat command: tells that the client is alive (sent in every HEARTBEAT_INTERVAL). */
+        HEARTBEAT,
+        /** Sending state snapshot command (the answer to Client.Commands.REQUESTING_STATE_SNAPSHOT):
+         * includes the iteration counter, the number of self timed iterations left, the next state checksum iteration
+         * and the packed state of the game core of the client.                                                    */
+        SENDING_STATE_SNAPSHOT
     }
     
     /** Name of the server as a chat client whithout extra signs. */
     public static final String BASE_SERVER_CHAT_NAME = "<Server>";
     /** Name of the server as a chat client included a ':' and a space at the end. */
     public static final String SERVER_CHAT_NAME      = BASE_SERVER_CHAT_NAME + ": ";
+    /** Chat message querying the CPU usage of the server. */
+    public static final String CPU_USAGE_CHAT_COMMAND = "/cpu";
+    /** Chat message querying the statistics of the clients. */
+    public static final String STATISTICS_CHAT_COMMAND = "/stats";
+    /** Chat message of the owner of a room (its first client) starting the game of the room. */
+    public static final String ROOM_START_GAME_CHAT_COMMAND = "/start";
+    /** Chat message of the owner of a room (its first client) ending the game of the room.   */
+    public static final String ROOM_END_GAME_CHAT_COMMAND   = "/end";
+    /** Name of the server MBean registered for monitoring. */
+    public static final String MBEAN_NAME             = "classes.server:type=Server";
+    /** The target CPU usage of an idle server in percent. */
+    public static final double IDLE_CPU_USAGE_TARGET  = 1.0;
+    /** In case of rollback network latency: the number of iterations the clients should send their control key states ahead. */
+    public static final int    ROLLBACK_TARGET_ITERATION_LEAD    = 1;
+    /** In case of rollback network latency: how many iterations the lead of the clients may exceed the target lead without adjusting. */
+    public static final int    ROLLBACK_ITERATION_LEAD_TOLERANCE = 2;
+    /** In case of automatic network latency: the size of the iteration window at the start of the game.  */
+    public static final int    AUTOMATIC_INITIAL_ITERATION_WINDOW = NetworkLatencies.EXTRA_HIGH.iterationWindow;
+    /** In case of automatic network latency: the maximum size of the iteration window.                   */
+    public static final int    AUTOMATIC_MAX_ITERATION_WINDOW     = 8;
+    /** Maximum number of iterations whose state checksums are collected at the same time
+     * (the oldest is dropped if some clients do not send state checksums).                                */
+    public static final int    MAX_COLLECTED_STATE_CHECKSUM_ITERATIONS = 8;
+    /** Increase of the late score of a client when it misses the barrier deadline
+     * (the score decreases by one in every iteration window the client is in time).                      */
+    public static final int    LATE_SCORE_PENALTY                 = 8;
+    /** A client whose late score reaches this is kicked: it misses the barrier deadline chronically
+     * (for example in 20 windows in a row, or in more than every 9th window in the long run).             */
+    public static final int    MAX_LATE_SCORE                     = 20 * LATE_SCORE_PENALTY;
+    /** Interval of the heartbeats in ms: the server and the clients send HEARTBEAT commands to each other this often,
+     * so a connection with nothing else to carry is not mistaken for a dead one.                          */
+    public static final long   HEARTBEAT_INTERVAL                 = 1000l;
+    /** A connection through which nothing has been received for this long (in ms) is considered dead: its other end
+     * disappeared without closing it (for example the computer went to sleep or lost its network).        */
+    public static final long   LIVENESS_TIMEOUT                   = 10000l;
+    /** How long (in ms) a client whose connection died during a game is waited for to reconnect before it is dropped. */
+    public static final long   RECONNECT_TIMEOUT                  = 30000l;
+    
+    /** Generator of the session tokens of the clients (tokens must not be guessed). */
+    private static final SecureRandom SESSION_TOKEN_GENERATOR = new SecureRandom();
     
 
-    /** Reference to the server options manager.           */
-    private final OptionsManager< ServerOptions > serverOptionsManager;
-    /** Reference to the main frame.                       */
-    private final MainFrame                       mainFrame;
-    /** Reference to the game manager.                     */
-    private final GameManager                     gameManager;
+    /** Reference to the host of the server (null in case of a room). */
+    private final ServerHost                      serverHost;
+    /** The server options of the room (null if not a room). */
+    private final ServerOptions                   roomServerOptions;
+    /** Reference to the room server if we are a room of it; null if we are a standalone server. */
+    private final RoomServer                      roomServer;
+    /** Name of the room (null if not a room).             */
+    private final String                          roomName;
     /** The player collector.                              */
     private volatile PlayerCollector              playerCollector;
     /** Vector of client contacts.                         */
     private final Vector< ClientContact >         clientContacts       = new Vector< ClientContact > ();
+    /** Vector of the client contacts of the spectators.  */
+    private final Vector< ClientContact >         spectatorContacts    = new Vector< ClientContact > ();
+    /** Client contacts whose joining protocol has been run by the player collector, to be joined by us. */
+    private final BlockingQueue< ClientContact >  newClientContacts    = new LinkedBlockingQueue< ClientContact >();
+    /** Selector of the connections of the client contacts (null in case of a room, the room server selects them). */
+    private final ConnectionSelector< ClientContact > connectionSelector;
+    /** Client contacts exceeded the client backlog limit, to be dropped. */
+    private final List< ClientContact >           slowClientContacts   = new ArrayList< ClientContact >();
+    /** Tells whether the commands queued to the clients are coalesced until the end of the current step (ServerOptions.writeCoalescing). */
+    private boolean                               coalescingWrites;
+    /** Client contacts which have been queued commands in the current step without flushing them (in case of write coalescing). */
+    private final Set< ClientContact >            unflushedClientContacts = new LinkedHashSet< ClientContact >();
+    /** Counters of the system calls of the connections of the clients and spectators. */
+    private final TransportCounters               transportCounters    = new TransportCounters();
+    /** Number of iterations since the server has been started.                           */
+    private volatile long                         iterationsCount;
+    /** The write calls, read calls, sent segments and iterations counts at the last query of the statistics. */
+    private final long[]                          lastTransportStatistics = new long[ 4 ];
     /** Tells whether starting of game has been requested. */
     private volatile boolean                      requestedToStartGame = false;
     /** Tells whether ending of game has been requested.   */
     private volatile boolean                      requestedToEndGame   = false;
     /** The state of the game. The clients state (stored at MainMenuBar) will be synchronized to this by commands. */
     private volatile GameStates                   gameState;
+    /** Lock object used to wait for changes of the game state. */
+    private final Object                          gameStateLock        = new Object();
+    /** Latch released when the first player collector has been created. */
+    private final CountDownLatch                  playerCollectorCreatedLatch = new CountDownLatch( 1 );
+    /** Meter of the CPU usage of the server (in case of a room the CPU usage of the room server). */
+    private final CpuUsageMeter                   cpuUsageMeter;
+    /** The server options of the current (or last) game.  */
+    private ServerOptions                         gameServerOptions;
+    /** The record of the current game: the broadcasted commands released to the spectators so far (null if the game is not recorded). */
+    private List< ConnectionStub.OutboundMessage > gameRecord;
+    /** The public client options of the clients at the start of the recorded game, packed as sent to the joining clients. */
+    private String                                gameStartClientsPublicClientOptions;
+    /** The recorded commands not yet released to the spectators, in the order of their broadcasting. */
+    private final LinkedList< RecordedCommand >   unreleasedRecordedCommands = new LinkedList< RecordedCommand >();
+    /** The time of the next liveness check of the clients (and of sending heartbeats to them) in ns.         */
+    private long                                  nextLivenessCheckTime = System.nanoTime();
+    /** The game starting protocol of the current game and the round starts, sent again to the reconnecting clients. */
+    private final List< ConnectionStub.OutboundMessage > gameStartingCommands = new ArrayList< ConnectionStub.OutboundMessage >();
+    /** Reconnections whose connection has been accepted by the player collector, to be handled by us. */
+    private final BlockingQueue< Reconnection >   newReconnections     = new LinkedBlockingQueue< Reconnection >();
+    /** Reconnections waiting for their state snapshot, in the order of requesting the snapshots. */
+    private final List< Reconnection >            reconnections        = new ArrayList< Reconnection >();
+    
+    /** In case of a room: lock of the step scheduling.                                                           */
+    private final Object                          stepLock                    = new Object();
+    /** In case of a room: the client contacts having new messages, to be processed by the next step.             */
+    private final List< ClientContact >           pendingReadyClientContacts  = new ArrayList< ClientContact >();
+    /** In case of a room: tells whether a step has been submitted to the room server and not finished yet.       */
+    private boolean                               stepScheduled;
+    /** In case of a room: tells whether a step has been requested while the scheduled one was running.           */
+    private boolean                               stepRequestedMeanwhile;
+    /** In case of a room: the task doing one step, run by a worker thread of the room server.                    */
+    private final Runnable                        stepTask                    = new Runnable() {
+        public void run() {
+            doScheduledStep();
+        }
+    };
     
 	/** Counter of iterations. Used to determine whether we have to send STARTING_NEXT_ITERATION command
 	 * or we can start next iteration without it based on the network latency.                                     */
 	private int									  iterationCounter;
+	/** Number of iterations in an iteration window (determined by the network latency).                      */
+	private int                                   iterationWindow;
+	/** Number of iterations in the current iteration window (longer than iterationWindow in quiet phases).   */
+	private int                                   grantedIterationWindow;
+	/** Number of iterations left until the next iteration timed by us (where we wait for the clients).      */
+	private int                                   iterationsUntilTimingClients;
+	/** The time of the last broadcasting of the STARTING_NEXT_ITERATION command in ns.                       */
+	private long                                  lastStartingNextIterationTime;
+	/** The time when we became ready to time the clients in the current iteration window in ns (0 if not yet). */
+	private long                                  barrierOpenTime;
+	/** The iteration of the clients at the start of the current iteration window (their READY_FOR_NEXT_ITERATION
+	 * commands sent with an earlier iteration answer an earlier window whose barrier deadline passed without them). */
+	private int                                   windowStartIteration;
+	/** The iteration of the clients at the start of the next iteration window.                                  */
+	private int                                   nextWindowStartIteration;
+	/** The state checksums sent by the clients, mapped from the iteration, collected until all clients have sent theirs. */
+	private final TreeMap< Integer, Map< ClientContact, Integer > > stateChecksumss = new TreeMap< Integer, Map< ClientContact, Integer > >();
+
+    /**
+     * A broadcasted command recorded for the spectators.
+     * @author Andras Belicza
+     */
+    private static class RecordedCommand {
+        /** The recorded command.                                   */
+        public final ConnectionStub.OutboundMessage outboundCommand;
+        /** The iteration counter when the command was broadcasted. */
+        public final int                            iteration;
+
+        /**
+         * Creates a new RecordedCommand.
+         * @param outboundCommand the recorded command
+         * @param iteration       the iteration counter when the command was broadcasted
+         */
+        public RecordedCommand( final ConnectionStub.OutboundMessage outboundCommand, final int iteration ) {
+            this.outboundCommand = outboundCommand;
+            this.iteration       = iteration;
+        }
+    }
+
+    /**
+     * A client reconnecting into the game in progress.
+     * @author Andras Belicza
+     */
+    private static class Reconnection {
+        /** The session token the client reconnects with.                                    */
+        public final long                                 sessionToken;
+        /** The new connection stub to the client.                                           */
+        public final ConnectionStub                       connectionStub;
+        /** The client contact of the client (null until the reconnection is handled by us). */
+        public ClientContact                              clientContact;
+        /** The client whose state snapshot has been requested.                              */
+        public ClientContact                              snapshotSource;
+        /** Index of the client among the clients when the state snapshot was requested.     */
+        public int                                        clientIndex;
+        /** The public client options of the clients when the state snapshot was requested, packed as sent to the joining clients. */
+        public String                                     clientsPublicClientOptions;
+        /** The commands broadcasted since the state snapshot was requested.                 */
+        public final List< ConnectionStub.OutboundMessage > missedCommands = new ArrayList< ConnectionStub.OutboundMessage >();
+
+        /**
+         * Creates a new Reconnection.
+         * @param sessionToken   the session token the client reconnects with
+         * @param connectionStub the new connection stub to the client
+         */
+        public Reconnection( final long sessionToken, final ConnectionStub connectionStub ) {
+            this.sessionToken   = sessionToken;
+            this.connectionStub = connectionStub;
+        }
+    }
 
     /**
      * Creates a new Server.
-     * @param serverOptionsManager reference to the server options manager
-     * @param mainFrame            reference to the main frame
-     * @param gameManager          reference to the game manager
+     * @param serverHost reference to the host of the server
      */
-    public Server( final OptionsManager< ServerOptions > serverOptionsManager, final MainFrame mainFrame, final GameManager gameManager ) {
+    public Server( final ServerHost serverHost ) {
 		super( 20 );   // This frequency will not be used, will be overwritten when game starts
-        this.serverOptionsManager = serverOptionsManager;
-        this.mainFrame            = mainFrame;
-        this.gameManager          = gameManager;
-        this.serverOptionsManager.registerOptionsChangeListener( this );
+        this.serverHost        = serverHost;
+        this.roomServerOptions = null;
+        this.roomServer        = null;
+        this.roomName          = null;
+        try {
+            connectionSelector = new ConnectionSelector< ClientContact >();
+        }
+        catch ( final IOException ie ) {
+            throw new IllegalStateException( "Can't open connection selector!", ie );   // Only if the system ran out of resources
+        }
+        this.serverHost.registerServerOptionsChangeListener( this );
+        cpuUsageMeter     = new CpuUsageMeter( this, (Thread) iterationTimer );
+        gameServerOptions = getServerOptions();
+        registerMBean();
         iterationTimer.start();
     }
 
+    /**
+     * Creates a new Server which is a room of a room server.<br>
+     * A room has no own thread: its steps are run by the worker threads of the room server,
+     * and its iterations are timed by them too. The connections of its clients are selected by the room server.<br>
+     * The room plays on a randomly generated level (there is no game manager to provide a level).
+     * @param roomServer        reference to the room server
+     * @param roomName          name of the room
+     * @param roomServerOptions the server options of the room
+     */
+    Server( final RoomServer roomServer, final String roomName, final ServerOptions roomServerOptions ) {
+        super( roomServer.getWorkerExecutor(), 20 );   // This frequency will not be used, will be overwritten when game starts
+        this.serverHost        = null;
+        this.roomServerOptions = roomServerOptions;
+        this.roomServer        = roomServer;
+        this.roomName          = roomName;
+        this.roomServerOptions.levelName = RANDOMLY_GENERATED_LEVEL_NAME;
+        connectionSelector = null;
+        cpuUsageMeter      = roomServer.getCpuUsageMeter();
+        gameServerOptions  = roomServerOptions;
+        gameState          = GameStates.PLAYER_COLLECTING_NOT_CONNECTED;
+        registerMBean();
+        iterationTimer.start();
+    }
+
+    /**
+     * Registers the server MBean. In case of a room the name of the room is added to the MBean name.
+     */
+    private void registerMBean() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean( this, getMBeanName() );
+        }
+        catch ( final JMException je ) {
+            // Monitoring is not essential, the server works without it
+        }
+    }
+
+    /**
+     * Returns the name of our MBean.
+     * @return the name of our MBean
+     * @throws MalformedObjectNameException if the name is malformed (never)
+     */
+    private ObjectName getMBeanName() throws MalformedObjectNameException {
+        return new ObjectName( roomServer == null ? MBEAN_NAME : MBEAN_NAME + ",room=" + ObjectName.quote( roomName ) );
+    }
+
+    /**
+     * Returns the current server options.
+     * @return the current server options
+     */
+    private ServerOptions getServerOptions() {
+        return serverHost == null ? roomServerOptions : serverHost.getServerOptions();
+    }
+
     /**
      * Waits until the player collector tries to create server socket, and returns the successfulness of the operation.
      * @return true, if the player collector created the server socket successfully; false otherwise
      */
     public boolean waitForAndCheckServerSocket() {
         try {
-            while ( playerCollector == null )
-                Thread.sleep( 1l );   // Very small because if server socket is created, we should join first
+            playerCollectorCreatedLatch.await();
         }
         catch ( final InterruptedException ie ) {
         }
-        if ( playerCollector != null )
-            return playerCollector.isServerSocketCreated();
+        final PlayerCollector playerCollector_ = playerCollector;
+        if ( playerCollector_ != null )
+            return playerCollector_.isServerSocketCreated();
         return false;
     }
     
     /**
      * The run() method of the server controlled thread.
-     * Provides the services of the server.
+     * Provides the services of the server: steps the server whenever a command, a timer signal or a state change request arrives.
      */
     public void run() {
-        gameState = GameStates.PLAYER_COLLECTING_NOT_CONNECTED;
-        while ( true ) { // The game loop: every iteration of this loop is one game.
+        setGameState( GameStates.PLAYER_COLLECTING_NOT_CONNECTED );
+        startCollectingPlayers();
+        while ( !requestedToCancel )
+            step( connectionSelector.select( Math.max( ( nextLivenessCheckTime - System.nanoTime() ) / 1000000l, 1l ) ) );   // The liveness checks wake us up even if the clients are silent
+        stopServing();
+        playerCollectorCreatedLatch.countDown();   // If we were cancelled before creating it, nobody may wait for it forever
+    }
 
-            if ( requestedToCancel )
-                break;
-            collectPlayers();
+    /**
+     * Does one step of the server: handles the commands of the clients, the state change requests, the new clients,
+     * and the next iteration if it may begin. The commands are handled first, so the iteration waiting for them is not delayed.
+     * The liveness of the clients is checked before the iteration, so a dead client dropped here is not waited for.<br>
+     * In case of write coalescing the commands queued to a client in the step are sent at the end of the step, in one write.<br>
+     * Called by the server thread, or in case of a room by a worker thread of the room server (one at a time).
+     * @param readyClientContacts the client contacts having new messages or having closed the connection
+     */
+    private void step( final List< ClientContact > readyClientContacts ) {
+        coalescingWrites = getServerOptions().writeCoalescing;
+        try {
+            doStep( readyClientContacts );
+        }
+        finally {
+            coalescingWrites = false;
+            flushClientContacts();
+        }
+    }
 
-            if ( requestedToCancel )
-                break;
-            gameState = GameStates.PLAYING;
-            handleGame();
-            gameState = GameStates.PLAYER_COLLECTING_CONNECTED;
-                
+    /**
+     * Does the work of one step of the server.
+     * @param readyClientContacts the client contacts having new messages or having closed the connection
+     * @see #step(List)
+     */
+    private void doStep( final List< ClientContact > readyClientContacts ) {
+        checkForNewCommands( readyClientContacts );
+        checkLiveness();
+        dropSlowClients();
+
+        joinNewClientContacts();
+        joinReconnectingClients();
+        if ( gameState == GameStates.PLAYING ) {
+            if ( requestedToEndGame ) {
+                endGame();
+                setGameState( GameStates.PLAYER_COLLECTING_CONNECTED );
+                startCollectingPlayers();
+            }
+            else if ( nextIterationMayBegin ) {
+                if ( gameServerOptions.networkLatency == NetworkLatencies.ROLLBACK )
+                    iterateRollbackGame();
+                else
+                    iterateGame();
+                if ( gameRecord != null )
+                    releaseRecordedCommands( false );
+            }
+        }
+        else {
+            if ( requestedToStartGame ) {
+                stopCollectingPlayers( true );
+                setGameState( GameStates.PLAYING );
+                startGame();
+            }
         }
     }
 
     /**
-     * Collects players until game starting or cancel is requested.
+     * Sets the state of the game, and wakes up the threads waiting for its change.
+     * @param gameState the new state of the game
+     */
+    private void setGameState( final GameStates gameState ) {
+        synchronized ( gameStateLock ) {
+            this.gameState = gameState;
+            gameStateLock.notifyAll();
+        }
+    }
+
+    /**
+     * Starts collecting players. In case of a room the player collector of the room server collects the players.
+     * The player collector may have been kept open for the spectators during the game.
+     */
+    private void startCollectingPlayers() {
+        if ( roomServer == null && playerCollector == null ) {
+            playerCollector = new PlayerCollector( this, serverHost );
+            playerCollectorCreatedLatch.countDown();
+        }
+    }
+
+    /**
+     * Stops collecting players.
+     * Clients whose joining has not been finished are dropped (except the spectators if we keep collecting them).
+     * @param keepCollectingSpectators tells whether to keep the player collector open for the spectators and the reconnecting clients
+     *                                 (it rejects the players during the game)
+     */
+    private void stopCollectingPlayers( final boolean keepCollectingSpectators ) {
+        if ( playerCollector != null && !keepCollectingSpectators ) {
+            playerCollector.close();
+            playerCollector = null;
+        }
+        final List< ClientContact > newClientContacts_ = new ArrayList< ClientContact >();
+        newClientContacts.drainTo( newClientContacts_ );
+        for ( final ClientContact newClientContact : newClientContacts_ )
+            if ( keepCollectingSpectators && newClientContact.spectator )
+                newClientContacts.add( newClientContact );
+            else
+                newClientContact.connectionStub.close();
+        requestedToStartGame = false;
+    }
+
+    /**
+     * Stops serving: ends the game if it is in progress, and stops collecting players.
      */
-    private void collectPlayers() {
-        playerCollector = new PlayerCollector( this, serverOptionsManager, clientContacts, mainFrame );
-        while ( !requestedToCancel && !requestedToStartGame ) {
-            playerCollector.nextIteration();
-            checkForNewCommands();
+    private void stopServing() {
+        if ( gameState == GameStates.PLAYING )
+            endGame();
+        stopCollectingPlayers( false );
+    }
+
+    /**
+     * Finishes the joining of the clients queued by the player collector.<br>
+     * The joining protocol is finished here, because the client contacts can only be changed by us.
+     * Players can only join while we are collecting players, spectators can join any time.
+     */
+    private void joinNewClientContacts() {
+        // All the clients waiting are joined at once. A client is removed from the queue only after it has been added
+        // to the client contacts, else the room server could see less clients than we have (see getClientsCount()).
+        for ( ClientContact newClientContact; ( newClientContact = newClientContacts.peek() ) != null; newClientContacts.remove() ) {
+            if ( newClientContact.spectator ) {
+                joinSpectator( newClientContact );
+                continue;
+            }
+            if ( gameState == GameStates.PLAYING ) {           // The game has been started meanwhile
+                newClientContact.connectionStub.close();
+                continue;
+            }
             try {
-                sleep( 1l );
+                // Still part of the joining potocol 
+				broadcastCommand( Client.Commands.A_CLIENT_HAS_JOINED_THE_GAME.ordinal() + GENERAL_SEPARATOR_STRING + newClientContact.publicClientOptions.packToString(), ConnectionStub.Priorities.ORDERED );
+                newClientContact.sessionToken = generateSessionToken();
+                addClientContact( newClientContact );
+                sendCommand( newClientContact, packClientsPublicClientOptions() );
+				// End of joining protocol
+                sendCommand( newClientContact, Client.Commands.SENDING_SESSION_TOKEN.ordinal() + GENERAL_SEPARATOR_STRING + newClientContact.sessionToken + GENERAL_SEPARATOR_STRING );
+                
+                broadcastMessage( SERVER_CHAT_NAME + newClientContact.publicClientOptions.clientName + " has joined the game." );
             }
-            catch ( final InterruptedException ie ) {
+            catch ( final IOException ie ) {
+                newClientContact.connectionStub.close();
             }
         }
-        playerCollector.close();
-        playerCollector = null;
-        requestedToStartGame = false;
     }
 
     /**
-     * Handles the game until it ends or cancel is requested.
+     * Generates a new session token which is not used by the clients.
+     * @return a new session token
      */
-    private void handleGame() {
+    private long generateSessionToken() {
+        long sessionToken;
+        do {
+            sessionToken = SESSION_TOKEN_GENERATOR.nextLong();
+        } while ( sessionToken == 0l || getClientContact( sessionToken ) != null );
+        return sessionToken;
+    }
+
+    /**
+     * Returns the client contact having a session token.<br>
+     * Can be called by any thread.
+     * @param sessionToken the session token
+     * @return the client contact having the session token; null if there is no such client
+     */
+    private ClientContact getClientContact( final long sessionToken ) {
+        for ( final ClientContact clientContact : clientContacts.toArray( new ClientContact[ 0 ] ) )   // The clients may change meanwhile if not called by the server thread
+            if ( clientContact.sessionToken == sessionToken )
+                return clientContact;
+        return null;
+    }
+
+    /**
+     * Finishes the joining of a spectator.<br>
+     * If a game is in progress, the spectator receives the clients at the start of the game,
+     * followed by the part of the game record released so far.
+     * @param spectatorContact the client contact of the spectator
+     */
+    private void joinSpectator( final ClientContact spectatorContact ) {
+        if ( spectatorContacts.size() >= getServerOptions().maxSpectators || gameState == GameStates.PLAYING && gameRecord == null ) {
+            spectatorContact.connectionStub.close();   // Spectators have been disabled meanwhile, or the game is not recorded
+            return;
+        }
+        try {
+            // Still part of the joining potocol 
+            addClientContact( spectatorContact );
+            sendCommand( spectatorContact, gameRecord == null ? packClientsPublicClientOptions() : gameStartClientsPublicClientOptions );
+			// End of joining protocol
+            if ( gameRecord != null )
+                for ( final ConnectionStub.OutboundMessage outboundCommand : gameRecord )
+                    queueCommand( spectatorContact, outboundCommand );
+            
+            broadcastMessage( SERVER_CHAT_NAME + spectatorContact.publicClientOptions.clientName + " is watching the game." );
+        }
+        catch ( final IOException ie ) {
+            spectatorContact.connectionStub.close();
+        }
+    }
+
+    /**
+     * Packs the number and the public client options of the clients as sent to the joining clients.
+     * @return the packed number and public client options of the clients
+     */
+    private String packClientsPublicClientOptions() {
+        final StringBuilder clientsPublicClientOptions = new StringBuilder().append( clientContacts.size() ).append( GENERAL_SEPARATOR_STRING );
+        for ( final ClientContact clientContact : clientContacts )
+            clientsPublicClientOptions.append( clientContact.publicClientOptions.packToString() );
+        return clientsPublicClientOptions.toString();
+    }
+
+    /**
+     * Handles the clients reconnecting into the game, whose connection has been accepted by the player collector.<br>
+     * The old connection of a client is replaced (if it has not been found dead yet, it is now), and a state snapshot is requested for it.
+     * Connections whose client is not in the game anymore are closed.
+     */
+    private void joinReconnectingClients() {
+        final List< Reconnection > newReconnections_ = new ArrayList< Reconnection >();
+        newReconnections.drainTo( newReconnections_ );
+        for ( final Reconnection reconnection : newReconnections_ ) {
+            final ClientContact clientContact = isReconnectable( reconnection.sessionToken ) ? getClientContact( reconnection.sessionToken ) : null;
+            if ( clientContact == null ) {                    // The client has been dropped or the game has ended meanwhile
+                reconnection.connectionStub.close();
+                continue;
+            }
+            if ( !clientContact.disconnected )
+                handleClientDisconnecting( clientContact, " has left the game." );
+            else
+                cancelReconnections( clientContact );         // Its previous reconnection is replaced
+            reconnection.clientContact = clientContact;
+            requestStateSnapshot( reconnection );
+        }
+    }
+
+    /**
+     * Requests a state snapshot for a reconnection from a healthy client.<br>
+     * The commands broadcasted from now on are collected for the reconnecting client, and the clients are saved as they are now,
+     * because the snapshot will be the state of the healthy client after processing the commands broadcasted so far.
+     * If there is no healthy client, the reconnection fails: the connection is closed (the client may try again).
+     * @param reconnection the reconnection to request the state snapshot for
+     */
+    private void requestStateSnapshot( final Reconnection reconnection ) {
+        reconnections.remove( reconnection );
+        ClientContact snapshotSource = null;
+        for ( final ClientContact clientContact : clientContacts )
+            if ( !clientContact.disconnected ) {
+                snapshotSource = clientContact;
+                break;
+            }
+        if ( snapshotSource == null ) {
+            reconnection.connectionStub.close();
+            return;
+        }
+        
+        reconnection.snapshotSource             = snapshotSource;
+        reconnection.clientIndex                = clientContacts.indexOf( reconnection.clientContact );
+        reconnection.clientsPublicClientOptions = packClientsPublicClientOptions();
+        reconnection.missedCommands.clear();
+        reconnections.add( reconnection );
+        sendCommand( snapshotSource, Client.Commands.REQUESTING_STATE_SNAPSHOT.ordinal() + GENERAL_SEPARATOR_STRING );
+    }
+
+    /**
+     * Finishes the reconnection waiting for the state snapshot of a client which has just sent one.<br>
+     * The reconnecting client receives the clients, the game starting protocol, the state snapshot and the missed commands,
+     * and takes part in the game again (it is waited for from the next iteration window, meanwhile it catches up).
+     * @param snapshotSource client contact of the client which sent the state snapshot
+     * @param stateSnapshot  the state snapshot
+     */
+    private void finishReconnection( final ClientContact snapshotSource, final String stateSnapshot ) {
+        Reconnection reconnection = null;
+        for ( final Reconnection reconnection_ : reconnections )
+            if ( reconnection_.snapshotSource == snapshotSource ) {   // Snapshots are sent in the order of the requests
+                reconnection = reconnection_;
+                break;
+            }
+        if ( reconnection == null )
+            return;
+        reconnections.remove( reconnection );
+        
+        final ClientContact clientContact = reconnection.clientContact;
+        clientContact.connectionStub = reconnection.connectionStub;
+        try {
+            registerClientContact( clientContact );
+        }
+        catch ( final IOException ie ) {
+            clientContact.connectionStub.close();
+            return;                                           // The client stays disconnected, it may try again
+        }
+        clientContact.disconnected          = false;
+        clientContact.readyForNextIteration = true;           // It catches up with the current iteration window first
+        
+        sendCommand( clientContact, Client.Commands.RESTORING_GAME.ordinal() + GENERAL_SEPARATOR_STRING + reconnection.clientIndex + GENERAL_SEPARATOR_STRING + reconnection.clientsPublicClientOptions );
+        for ( final ConnectionStub.OutboundMessage outboundCommand : gameStartingCommands )
+            queueCommand( clientContact, outboundCommand );
+        sendCommand( clientContact, Client.Commands.RESTORING_STATE.ordinal() + GENERAL_SEPARATOR_STRING + stateSnapshot );
+        for ( final ConnectionStub.OutboundMessage outboundCommand : reconnection.missedCommands )
+            queueCommand( clientContact, outboundCommand );
+        
+        broadcastMessage( SERVER_CHAT_NAME + clientContact.publicClientOptions.clientName + " has reconnected." );
+    }
+
+    /**
+     * Cancels the reconnection of a client, and requests new state snapshots for the reconnections
+     * whose state snapshot has been requested from the client (it will not send it).
+     * @param clientContact client contact of the client which is disconnected again or which leaves
+     */
+    private void cancelReconnections( final ClientContact clientContact ) {
+        for ( final Reconnection reconnection : new ArrayList< Reconnection >( reconnections ) )
+            if ( reconnection.clientContact == clientContact ) {
+                reconnections.remove( reconnection );
+                reconnection.connectionStub.close();
+            }
+            else if ( reconnection.snapshotSource == clientContact )
+                requestStateSnapshot( reconnection );
+    }
+
+    /**
+     * Starts the game: runs the game starting protocol, and starts the first iteration.
+     */
+    private void startGame() {
+        iterationCounter  = 0;
+        gameServerOptions = getServerOptions();
+        if ( gameServerOptions.maxSpectators > 0 ) {   // The game is recorded for the spectators joining later
+            gameRecord                          = new ArrayList< ConnectionStub.OutboundMessage >();
+            gameStartClientsPublicClientOptions = packClientsPublicClientOptions();
+        }
 
 		// Game starting protocol
-        broadcastCommand( Client.Commands.STARTING_GAME.ordinal() + GENERAL_SEPARATOR_STRING );
-		
-		// Sending all required options and datas for a new game...
-        broadcastCommand( "" + new Random().nextLong() );
-        final ServerOptions serverOptions = serverOptionsManager.getOptions();
-        broadcastCommand( serverOptions.packToString() );
-        if ( !serverOptions.levelName.equals( RANDOMLY_GENERATED_LEVEL_NAME ) )
-            broadcastCommand( gameManager.getLevel().packToString() );
+        gameStartingCommands.clear();
+		// Sending all required options and datas for a new game in one command...
+        final String packedServerOptions = gameServerOptions.packToString();
+        final String packedLevel         = gameServerOptions.levelName.equals( RANDOMLY_GENERATED_LEVEL_NAME ) ? "" : serverHost.getPackedLevel();   // Rooms always play on random levels
+        gameStartingCommands.add( broadcastCommand( Client.Commands.STARTING_GAME.ordinal() + GENERAL_SEPARATOR_STRING + new Random().nextLong() + GENERAL_SEPARATOR_STRING
+                                                    + packedServerOptions.length() + GENERAL_SEPARATOR_STRING + packedServerOptions + packedLevel, ConnectionStub.Priorities.ORDERED ) );
         
-		iterationTimer.setFrequency( serverOptions.gameCycleFrequency );
+		iterationTimer.setFrequency( gameServerOptions.gameCycleFrequency );
 		nextIterationMayBegin = false;
 		iterationTimer.setReadyForNextIteration();
 
-		for ( final ClientContact clientContact : clientContacts )
-			clientContact.newClientActions = "";                    // Simulating that all the clients are ready for next iteration
+		for ( final ClientContact clientContact : clientContacts ) {
+			clientContact.readyForNextIteration = true;             // Simulating that all the clients are ready for next iteration
+			clientContact.controlKeyStatesDelta = 0;
+			clientContact.controlKeyStates      = 0;
+			clientContact.desyncIteration       = -1;
+			clientContact.lateScore             = 0;
+		}
+		nextWindowStartIteration = 0;
+		stateChecksumss.clear();
 
+		iterationWindow        = gameServerOptions.networkLatency == NetworkLatencies.AUTOMATIC ? AUTOMATIC_INITIAL_ITERATION_WINDOW : gameServerOptions.networkLatency.iterationWindow;
+		grantedIterationWindow = 0;
 		startNextRound();
 		broadcastStartingNextIterationCommand();
+		lastStartingNextIterationTime = 0l;   // The answers to the first command include the game initialization of the clients, they are not round trip time samples
 		
-		// If network latency is LOW, we send STARTING_NEXT_ITERATION command in every iteration, if it's HIGH, we send in every 2, and if it's EXTRA_HIGH, we send in every 4.
-		final int ITERATION_NETWORK_LATENCY_MASK = serverOptions.networkLatency == NetworkLatencies.LOW ? 0 : ( serverOptions.networkLatency == NetworkLatencies.HIGH ? 1 : 3 );
-		while ( !requestedToCancel && !requestedToEndGame ) {
-			
-			if ( nextIterationMayBegin ) {
-				if ( ( iterationCounter & ITERATION_NETWORK_LATENCY_MASK ) == 0 ) { // We time the clients
-					if ( areAllClientsReadyForNextIteration() ) {
-						broadcastStartingNextIterationCommand();
-						startNextIteration();
-					}
-				}
-				else          // The clients time themselves
-					startNextIteration();
+		if ( gameServerOptions.networkLatency == NetworkLatencies.ROLLBACK )
+			for ( final ClientContact clientContact : clientContacts ) {
+				clientContact.earlyControlKeyStatesDeltas.clear();
+				clientContact.minIterationLead = Integer.MAX_VALUE;
 			}
+    }
 
-			checkForNewCommands();
-            try {
-                sleep( 1l );
-            }
-            catch ( final InterruptedException ie ) {
-            }
-        }
-		
+    /**
+     * Handles the next iteration of the game.<br>
+     * We send STARTING_NEXT_ITERATION command in the first iteration of every iteration window
+     * (in every iteration if network latency is LOW, in every 2 if it's HIGH, in every 4 if it's EXTRA_HIGH).<br>
+     * The clients are waited for at the barrier until the barrier deadline passes (ServerOptions.barrierDeadline).
+     * Then the window is started without the late clients: their control key states are taken unchanged,
+     * the changes sent late are included in the next window (the control key states are sent as changes, so no change is lost).
+     * While waiting, the timer wakes us up in every period to check the deadline.
+     */
+    private void iterateGame() {
+		if ( iterationsUntilTimingClients == 0 ) { // We time the clients
+			if ( barrierOpenTime == 0l )
+				barrierOpenTime = System.nanoTime();
+			final boolean deadlineEnabled = gameServerOptions.barrierDeadline > 0 && lastStartingNextIterationTime != 0l;   // The answers to the first window include the game initialization
+			if ( areAllClientsReadyForNextIteration() || deadlineEnabled && System.nanoTime() - barrierOpenTime >= gameServerOptions.barrierDeadline * 1000000l ) {
+				recordBarrierWaits();
+				if ( deadlineEnabled )
+					handleLateClients();
+				if ( gameServerOptions.networkLatency == NetworkLatencies.AUTOMATIC )
+					adjustIterationWindow( gameServerOptions.gameCycleFrequency );
+				broadcastStartingNextIterationCommand();
+				startNextIteration();
+			}
+			else if ( deadlineEnabled )
+				iterationTimer.setReadyForNextIteration();
+		}
+		else {        // The clients time themselves
+			iterationsUntilTimingClients--;
+			startNextIteration();
+		}
+    }
+
+	/**
+	 * Handles the next iteration of the game in case of rollback network latency.<br>
+	 * Iterations are confirmed timed by the server, the clients are not waited for.
+	 */
+	private void iterateRollbackGame() {
+		startNextIteration();
+		broadcastStartingNextIterationCommand();
+		if ( iterationCounter % gameServerOptions.gameCycleFrequency == 0 )  // We adjust the leads once in every second
+			sendIterationLeadAdjustings();
+	}
+
+    /**
+     * Ends the game.
+     * The rest of the game record is released to the spectators at once.
+     * The clients not reconnected are dropped, they cannot wait in the lobby without a connection.
+     */
+    private void endGame() {
         broadcastCommand( Client.Commands.ENDING_GAME.ordinal() + GENERAL_SEPARATOR_STRING );
+        for ( final ClientContact clientContact : new ArrayList< ClientContact >( clientContacts ) )
+            if ( clientContact.disconnected )
+                handleClientLeaving( clientContact, " has not reconnected until the end of the game." );
+        if ( gameRecord != null ) {
+            releaseRecordedCommands( true );
+            gameRecord                          = null;
+            gameStartClientsPublicClientOptions = null;
+        }
         requestedToEndGame = false;
     }
 
+    /**
+     * Releases the recorded commands to the spectators which are older than the spectator delay.
+     * @param all tells whether to release all the recorded commands regardless of the spectator delay
+     */
+    private void releaseRecordedCommands( final boolean all ) {
+        final int lastReleasedIteration = iterationCounter - gameServerOptions.spectatorDelay * gameServerOptions.gameCycleFrequency;
+        while ( !unreleasedRecordedCommands.isEmpty() && ( all || unreleasedRecordedCommands.getFirst().iteration <= lastReleasedIteration ) ) {
+            final ConnectionStub.OutboundMessage outboundCommand = unreleasedRecordedCommands.removeFirst().outboundCommand;
+            gameRecord.add( outboundCommand );
+            for ( final ClientContact spectatorContact : spectatorContacts )
+                queueCommand( spectatorContact, outboundCommand );
+        }
+    }
+	
+	/**
+	 * Sends the iteration lead adjusting commands to the clients whose lead is out of the tolerated range
+	 * in case of rollback network latency.
+	 */
+	private void sendIterationLeadAdjustings() {
+		for ( final ClientContact clientContact : clientContacts ) {
+			if ( clientContact.minIterationLead != Integer.MAX_VALUE )
+				if ( clientContact.minIterationLead < ROLLBACK_TARGET_ITERATION_LEAD || clientContact.minIterationLead > ROLLBACK_TARGET_ITERATION_LEAD + ROLLBACK_ITERATION_LEAD_TOLERANCE )
+					sendCommand( clientContact, Client.Commands.ADJUSTING_ITERATION_LEAD.ordinal() + GENERAL_SEPARATOR_STRING + ( ROLLBACK_TARGET_ITERATION_LEAD - clientContact.minIterationLead ) + GENERAL_SEPARATOR_STRING );
+			clientContact.minIterationLead = Integer.MAX_VALUE;
+		}
+	}
+	
+	/**
+	 * Records how long we waited for the clients at the barrier of the current iteration window.<br>
+	 * The client which became ready last is counted as delaying the iteration window if we had to wait for it.
+	 * Clients not ready (the barrier deadline passed without them) are counted as ready now.
+	 * Waits for the answers of the first STARTING_NEXT_ITERATION command are not recorded (they include the game initialization).
+	 */
+	private void recordBarrierWaits() {
+		if ( lastStartingNextIterationTime != 0l ) {
+			final long    now                    = System.nanoTime();
+			ClientContact lastReadyClientContact = null;
+			long          lastReadyTime          = 0l;
+			for ( final ClientContact clientContact : clientContacts ) {
+				if ( clientContact.disconnected )
+					continue;
+				final long readyTime = clientContact.readyForNextIteration ? clientContact.lastReadyTime : now;
+				clientContact.barrierWaitHistogram.addSample( Math.max( readyTime - barrierOpenTime, 0l ) );
+				if ( lastReadyClientContact == null || readyTime > lastReadyTime ) {
+					lastReadyClientContact = clientContact;
+					lastReadyTime          = readyTime;
+				}
+			}
+			if ( lastReadyClientContact != null && lastReadyTime > barrierOpenTime )
+				lastReadyClientContact.delayedIterationsCount++;
+		}
+		barrierOpenTime = 0l;
+	}
+	
+	/**
+	 * Updates the late scores of the clients at the barrier of the current iteration window,
+	 * and kicks the clients missing the barrier deadline chronically (whose late score reached MAX_LATE_SCORE).
+	 */
+	private void handleLateClients() {
+		final List< ClientContact > chronicallyLateClientContacts = new ArrayList< ClientContact >();
+		for ( final ClientContact clientContact : clientContacts )
+			if ( clientContact.readyForNextIteration || clientContact.disconnected )
+				clientContact.lateScore = Math.max( clientContact.lateScore - 1, 0 );
+			else {
+				clientContact.missedDeadlinesCount++;
+				clientContact.lateScore += LATE_SCORE_PENALTY;
+				if ( clientContact.lateScore >= MAX_LATE_SCORE )
+					chronicallyLateClientContacts.add( clientContact );
+			}
+		
+		for ( final ClientContact clientContact : chronicallyLateClientContacts )
+			handleClientLeaving( clientContact, " has been kicked because of missing the iteration deadlines too often." );
+	}
+	
+	/**
+	 * Adjusts the size of the iteration window to the round trip times of the clients in case of automatic network latency.<br>
+	 * The window must be long enough for the round trip time of the slowest client (including its variation),
+	 * else the game would stall waiting for its READY_FOR_NEXT_ITERATION command.
+	 * The window is enlarged at once, but it is shrinked only by one iteration per window to avoid oscillation.
+	 * @param gameCycleFrequency the game cycle frequency (iterations per second)
+	 */
+	private void adjustIterationWindow( final int gameCycleFrequency ) {
+		long roundTripTimeBound = 0l;
+		for ( final ClientContact clientContact : clientContacts )
+			roundTripTimeBound = Math.max( roundTripTimeBound, clientContact.getRoundTripTimeBound() );
+		
+		final long iterationPeriod         = 1000000000l / gameCycleFrequency;
+		final int  requiredIterationWindow = (int) Math.max( 1l, Math.min( AUTOMATIC_MAX_ITERATION_WINDOW, ( roundTripTimeBound + iterationPeriod - 1 ) / iterationPeriod ) );
+		
+		if ( requiredIterationWindow > iterationWindow )
+			iterationWindow = requiredIterationWindow;
+		else if ( requiredIterationWindow < iterationWindow )
+			iterationWindow--;
+	}
+	
 	/**
 	 * Starts next iteration which does not include sending STARTING_NEXT_ITERATION command.
 	 */
@@ -236,104 +980,784 @@ public class Server extends TimedIterableControlledThread implements OptionsChan
 		nextIterationMayBegin = false;
 		iterationTimer.setReadyForNextIteration();
 		iterationCounter++;
+		iterationsCount++;
 	}
 	
 	/**
 	 * Broadcasts the starting next iteration.<br>
-	 * This includes sending and clearing all the new client actions.
+	 * This includes sending the size of the iteration window, and sending and clearing the control key states deltas
+	 * of all clients: the index and the delta of the clients whose control key states have changed.
 	 */
 	private void broadcastStartingNextIterationCommand() {
-        String newClientsActions = "";
-		
+		final boolean       quiet         = areAllClientsReadyForNextIteration();   // Late clients may have changes not arrived yet
+		final StringBuilder deltasBuilder = new StringBuilder();
 		for ( int i = 0; i < clientContacts.size(); i++ ) {
 			final ClientContact clientContact = clientContacts.get( i ); 
-			if ( clientContact.newClientActions.length() > 0 )
-				newClientsActions += i + " " + clientContact.newClientActions;
-			clientContact.newClientActions = null;
+			while ( !clientContact.earlyControlKeyStatesDeltas.isEmpty() && clientContact.earlyControlKeyStatesDeltas.getFirst()[ 0 ] <= iterationCounter )
+				clientContact.controlKeyStatesDelta ^= clientContact.earlyControlKeyStatesDeltas.removeFirst()[ 1 ];
+			if ( clientContact.controlKeyStatesDelta != 0 )
+				deltasBuilder.append( i ).append( GENERAL_SEPARATOR_STRING ).append( clientContact.controlKeyStatesDelta ).append( GENERAL_SEPARATOR_STRING );
+			clientContact.controlKeyStates     ^= clientContact.controlKeyStatesDelta;
+			clientContact.readyForNextIteration = false;
+			clientContact.controlKeyStatesDelta = 0;
 		}
-
-		broadcastCommand( Client.Commands.STARTING_NEXT_ITERATION.ordinal() + GENERAL_SEPARATOR_STRING + newClientsActions );  // We append ALL new clients actions
+		
+		grantedIterationWindow    = getNextIterationWindow( quiet && deltasBuilder.length() == 0 );
+		windowStartIteration      = nextWindowStartIteration;
+		nextWindowStartIteration += grantedIterationWindow;
+		
+		broadcastCommand( new StringBuilder().append( Client.Commands.STARTING_NEXT_ITERATION.ordinal() ).append( GENERAL_SEPARATOR_STRING )
+		                                     .append( grantedIterationWindow ).append( GENERAL_SEPARATOR_STRING ).append( deltasBuilder ).toString() );  // We append ALL new clients actions
+		lastStartingNextIterationTime = System.nanoTime();
+		iterationsUntilTimingClients  = grantedIterationWindow - 1;
+	}
+	
+	/**
+	 * Returns the size of the next iteration window.<br>
+	 * In a quiet phase the window is twice as long as the current one, up to half of the idle input delay
+	 * (but never shorter than the iteration window of the network latency), else it is the iteration window of the network latency.
+	 * In case of rollback network latency every iteration is confirmed, the window is not enlarged.
+	 * @param quiet tells whether no control key states changed in the current window
+	 * @return the size of the next iteration window
+	 */
+	private int getNextIterationWindow( final boolean quiet ) {
+		if ( !quiet || gameServerOptions.networkLatency == NetworkLatencies.ROLLBACK )
+			return iterationWindow;
+		
+		final int maxIdleIterationWindow = gameServerOptions.idleInputDelay * gameServerOptions.gameCycleFrequency / 2000;
+		return Math.max( iterationWindow, Math.min( maxIdleIterationWindow, grantedIterationWindow * 2 ) );
 	}
 
 	/**
-	 * Tests whether all the clients are ready for the next iteration.
+	 * Tests whether all the clients are ready for the next iteration. Disconnected clients are not waited for.
 	 * @return true if all the clients are ready for the next iteration; false otherwise
 	 */
 	private boolean areAllClientsReadyForNextIteration() {
 		for ( final ClientContact clientContact : clientContacts )
-			if ( clientContact.newClientActions == null )
+			if ( !clientContact.readyForNextIteration && !clientContact.disconnected )
 				return false;
 		
 		return true;
 	}
 	
     /**
-     * Checks all clients whether they sent new messages, and process them if they did.
+     * Checks the clients which sent new messages, and process them.
+     * @param readyClientContacts the client contacts having new messages or having closed the connection
      */
-    private void checkForNewCommands() {
-        for ( int i = 0; i < clientContacts.size(); i++ ) {  // Can't use enhanced for because elements can be removed (QUIT)
-            final ClientContact clientContact = clientContacts.get( i );
+    private void checkForNewCommands( final List< ClientContact > readyClientContacts ) {
+        for ( final ClientContact clientContact : readyClientContacts ) {
+            clientContact.lastReceivingTime = System.nanoTime();
             messageLoop:
-            while ( clientContact.connectionStub.hasNewMessage() )
+            while ( clientContact.connectionStub.hasReceivedMessage() )   // Only the received ones, a flooding client cannot hold us up
                 try {
                     final GeneralStringTokenizer commandTokenizer = new GeneralStringTokenizer( clientContact.connectionStub.receiveMessage() );
                     switch ( Commands.values()[ commandTokenizer.nextIntToken() ] ) {
 				        // The message loop checks Commands.READY_FOR_NEXT_ITERATION and Commands.MESSAGE first,
 				        // because these are the most frequent commands.
 						case READY_FOR_NEXT_ITERATION:
-							clientContact.newClientActions = commandTokenizer.hasRemainingString() ? commandTokenizer.remainingString() : "";
+							if ( clientContact.spectator )
+								break;                    // Spectators are not part of the lockstep barrier
+							final int iteration             = commandTokenizer.nextIntToken();
+							final int controlKeyStatesDelta = commandTokenizer.nextIntToken();
+							if ( commandTokenizer.hasRemainingString() ) {   // The client sent a state checksum
+								final int stateChecksumIteration = commandTokenizer.nextIntToken();
+								addStateChecksum( clientContact, stateChecksumIteration, commandTokenizer.nextIntToken() );
+							}
+							if ( gameServerOptions.networkLatency == NetworkLatencies.ROLLBACK ) {
+								clientContact.readyForNextIteration = true;
+								clientContact.lastReadyTime         = System.nanoTime();
+								clientContact.minIterationLead = Math.min( clientContact.minIterationLead, iteration - ( iterationCounter + 1 ) );  // The next confirmed iteration will be iterationCounter + 1
+								if ( iteration > iterationCounter + 1 ) {
+									if ( controlKeyStatesDelta != 0 )
+										clientContact.earlyControlKeyStatesDeltas.add( new int[] { iteration, controlKeyStatesDelta } );
+									break;
+								}
+							}
+							else if ( iteration >= windowStartIteration ) {   // Else the command answers an earlier window which was started without it, the client is still late
+								clientContact.readyForNextIteration = true;
+								clientContact.lastReadyTime         = System.nanoTime();
+								if ( lastStartingNextIterationTime != 0l )  // The command answers the last STARTING_NEXT_ITERATION command
+									clientContact.addRoundTripTimeSample( clientContact.lastReadyTime - lastStartingNextIterationTime );
+							}
+							clientContact.controlKeyStatesDelta ^= controlKeyStatesDelta;  // Late control key states are confirmed in the next iteration
 							break;
                         case MESSAGE :
-                            broadcastMessage( clientContact.publicClientOptions.clientName + ": " + commandTokenizer.remainingString() );
+                            final String message = commandTokenizer.remainingString();
+                            if ( message.equals( CPU_USAGE_CHAT_COMMAND ) ) {
+                                sendCpuUsage( clientContact );
+                                break;
+                            }
+                            if ( message.equals( STATISTICS_CHAT_COMMAND ) ) {
+                                sendStatistics( clientContact );
+                                break;
+                            }
+                            if ( roomServer != null && clientContacts.indexOf( clientContact ) == 0 ) {   // The owner of the room controls the games
+                                if ( message.equals( ROOM_START_GAME_CHAT_COMMAND ) ) {
+                                    if ( gameState != GameStates.PLAYING ) {
+                                        requestedToStartGame = true;
+                                        requestStep( null );
+                                    }
+                                    break;
+                                }
+                                if ( message.equals( ROOM_END_GAME_CHAT_COMMAND ) ) {
+                                    if ( gameState == GameStates.PLAYING ) {
+                                        requestedToEndGame = true;
+                                        requestStep( null );
+                                    }
+                                    break;
+                                }
+                            }
+                            broadcastMessage( clientContact.publicClientOptions.clientName + ": " + message );
                             break;
                         case QUIT : 
-                            handleClientLeaving( clientContact );
+                            handleClientLeaving( clientContact, " has left the game." );
                             break messageLoop;    // We're not trying read more message (would not be error/exception without this because connectionStub would simply return that no more message is available)
                         case SENDING_PUBLIC_CLIENT_OPTIONS :
                             clientContact.publicClientOptions = PublicClientOptions.parseFromString( commandTokenizer.remainingString() );
-                            broadcastCommand( Client.Commands.SENDING_PUBLIC_CLIENT_OPTIONS.ordinal() + GENERAL_SEPARATOR_STRING + i + GENERAL_SEPARATOR_STRING + clientContact.publicClientOptions.packToString() );
+                            if ( !clientContact.spectator )   // The clients do not know about the spectators
+                                broadcastCommand( Client.Commands.SENDING_PUBLIC_CLIENT_OPTIONS.ordinal() + GENERAL_SEPARATOR_STRING + clientContacts.indexOf( clientContact ) + GENERAL_SEPARATOR_STRING + clientContact.publicClientOptions.packToString(), ConnectionStub.Priorities.BULK );
                             break;
                         case REQUESTING_SERVER_OPTIONS :
-                            clientContact.connectionStub.sendMessage( Client.Commands.SENDING_SERVER_OPTIONS.ordinal() + GENERAL_SEPARATOR_STRING + serverOptionsManager.getOptions().packToString() );
+                            sendCommand( clientContact, Client.Commands.SENDING_SERVER_OPTIONS.ordinal() + GENERAL_SEPARATOR_STRING + getServerOptions().packToString(), ConnectionStub.Priorities.BULK );
+                            break;
+                        case HEARTBEAT :
+                            break;                        // The receiving time has been recorded already
+                        case SENDING_STATE_SNAPSHOT :
+                            finishReconnection( clientContact, commandTokenizer.remainingString() );
                             break;
                     }
                 }
                 catch ( final Exception e ) {
                 }
+
+            if ( clientContact.connectionStub.isEndOfStreamReached() && isJoined( clientContact ) && !clientContact.disconnected )
+                handleClientDisconnecting( clientContact, " has left the game." );  // The client disappeared without sending QUIT
+        }
+    }
+
+    /**
+     * Checks the liveness of the clients and the spectators if it is time to, and sends heartbeats to the live ones.<br>
+     * Clients which have sent nothing for LIVENESS_TIMEOUT are dropped: their connection died without being closed,
+     * and the lockstep barrier would wait for them forever (during a game they may reconnect, see handleClientDisconnecting()).
+     * Disconnected clients not reconnected within RECONNECT_TIMEOUT leave the game.
+     */
+    private void checkLiveness() {
+        final long now = System.nanoTime();
+        if ( now - nextLivenessCheckTime < 0l )
+            return;
+        nextLivenessCheckTime = now + HEARTBEAT_INTERVAL * 1000000l;
+        
+        final ConnectionStub.OutboundMessage heartbeatCommand    = new ConnectionStub.OutboundMessage( Client.Commands.HEARTBEAT.ordinal() + GENERAL_SEPARATOR_STRING );
+        final List< ClientContact >          deadClientContacts    = new ArrayList< ClientContact >();
+        final List< ClientContact >          expiredClientContacts = new ArrayList< ClientContact >();
+        final List< ClientContact >          allClientContacts     = new ArrayList< ClientContact >( clientContacts );
+        allClientContacts.addAll( spectatorContacts );
+        for ( final ClientContact clientContact : allClientContacts )
+            if ( clientContact.disconnected ) {
+                if ( now - clientContact.disconnectionTime > RECONNECT_TIMEOUT * 1000000l && !isReconnecting( clientContact ) )
+                    expiredClientContacts.add( clientContact );
+            }
+            else if ( now - clientContact.lastReceivingTime > LIVENESS_TIMEOUT * 1000000l )
+                deadClientContacts.add( clientContact );
+            else
+                queueCommand( clientContact, heartbeatCommand );   // Heartbeats are not recorded for the spectators
+        
+        for ( final ClientContact clientContact : deadClientContacts )
+            if ( isJoined( clientContact ) && !clientContact.disconnected )
+                handleClientDisconnecting( clientContact, " has been dropped because its connection died." );
+        for ( final ClientContact clientContact : expiredClientContacts )
+            if ( isJoined( clientContact ) )
+                handleClientLeaving( clientContact, " has been dropped because it has not reconnected in time." );
+    }
+
+    /**
+     * Tells whether a client is reconnecting: its state snapshot has been requested.
+     * @param clientContact client contact to be tested
+     * @return true if the client is reconnecting; false otherwise
+     */
+    private boolean isReconnecting( final ClientContact clientContact ) {
+        for ( final Reconnection reconnection : reconnections )
+            if ( reconnection.clientContact == clientContact )
+                return true;
+        return false;
+    }
+
+    /**
+     * Adds a state checksum sent by a client, and compares the state checksums of the iterations all clients have sent theirs for.
+     * @param clientContact client contact of the client who sent the state checksum
+     * @param iteration     the iteration after which the state checksum was calculated
+     * @param stateChecksum the state checksum
+     */
+    private void addStateChecksum( final ClientContact clientContact, final int iteration, final int stateChecksum ) {
+        Map< ClientContact, Integer > stateChecksums = stateChecksumss.get( iteration );
+        if ( stateChecksums == null ) {
+            if ( stateChecksumss.size() == MAX_COLLECTED_STATE_CHECKSUM_ITERATIONS )
+                stateChecksumss.remove( stateChecksumss.firstKey() );
+            stateChecksums = new HashMap< ClientContact, Integer >();
+            stateChecksumss.put( iteration, stateChecksums );
+        }
+        stateChecksums.put( clientContact, stateChecksum );
+        
+        compareStateChecksums();
+    }
+    
+    /**
+     * Compares the state checksums of the iterations all clients have sent their state checksums for.<br>
+     * If the state checksums of an iteration differ, the clients whose checksum differs from the checksum of the majority
+     * are flagged as diverged (all of them if there is no majority); a server chat message tells their names and the iteration.
+     * A client is flagged only once in a game.
+     */
+    private void compareStateChecksums() {
+        for ( final Iterator< Map.Entry< Integer, Map< ClientContact, Integer > > > iterator = stateChecksumss.entrySet().iterator(); iterator.hasNext(); ) {
+            final Map.Entry< Integer, Map< ClientContact, Integer > > entry = iterator.next();
+            final Map< ClientContact, Integer > stateChecksums = entry.getValue();
+            if ( !hasAllConnectedClients( stateChecksums ) )
+                continue;
+            iterator.remove();
+            
+            final Map< Integer, Integer > stateChecksumCounts = new HashMap< Integer, Integer >();
+            Integer majorityStateChecksum = null;
+            for ( final Integer stateChecksum : stateChecksums.values() ) {
+                final Integer count = stateChecksumCounts.get( stateChecksum );
+                final int     newCount = count == null ? 1 : count + 1;
+                stateChecksumCounts.put( stateChecksum, newCount );
+                if ( newCount * 2 > stateChecksums.size() )
+                    majorityStateChecksum = stateChecksum;
+            }
+            if ( stateChecksumCounts.size() == 1 )
+                continue;
+            
+            final StringBuilder divergedClientNames = new StringBuilder();
+            for ( final Map.Entry< ClientContact, Integer > stateChecksumEntry : stateChecksums.entrySet() )
+                if ( !stateChecksumEntry.getValue().equals( majorityStateChecksum ) && stateChecksumEntry.getKey().desyncIteration < 0 ) {
+                    stateChecksumEntry.getKey().desyncIteration = entry.getKey();
+                    divergedClientNames.append( divergedClientNames.length() == 0 ? "" : ", " ).append( stateChecksumEntry.getKey().publicClientOptions.clientName );
+                }
+            if ( divergedClientNames.length() > 0 ) {
+                final String desyncText = "Desync at iteration " + entry.getKey() + ", the game of " + divergedClientNames
+                                          + ( majorityStateChecksum == null ? " differs (no majority)." : " has diverged from the others." );
+                broadcastMessage( SERVER_CHAT_NAME + desyncText );
+                if ( roomServer != null )
+                    RoomServer.log( "Room \"" + roomName + "\": " + desyncText );
             }
+        }
+    }
+    
+    /**
+     * Tells whether all the connected clients have sent their state checksums (disconnected clients are not waited for).
+     * @param stateChecksums the state checksums of an iteration mapped from the clients
+     * @return true if all the connected clients have sent their state checksums; false otherwise
+     */
+    private boolean hasAllConnectedClients( final Map< ClientContact, Integer > stateChecksums ) {
+        for ( final ClientContact clientContact : clientContacts )
+            if ( !clientContact.disconnected && !stateChecksums.containsKey( clientContact ) )
+                return false;
+        return true;
+    }
+    
+    /**
+     * Sends the CPU usage of the server since the last query to a client as a server chat message.
+     * @param clientContact client contact to send the CPU usage to
+     */
+    private void sendCpuUsage( final ClientContact clientContact ) {
+        final String cpuUsageText = cpuUsageMeter.isSupported() ? String.format( "CPU usage of the server since the last query: %.2f%% (idle target: below %.0f%%)", cpuUsageMeter.measureCpuUsage(), IDLE_CPU_USAGE_TARGET )
+                                                                : "Measuring CPU usage is not supported by the JVM.";
+        sendCommand( clientContact, Client.Commands.MESSAGE.ordinal() + GENERAL_SEPARATOR_STRING + SERVER_CHAT_NAME + cpuUsageText );
+    }
+
+    /**
+     * Sends the statistics of the clients to a client (as chat messages, one line per client).
+     * @param clientContact client contact to send the statistics to
+     */
+    private void sendStatistics( final ClientContact clientContact ) {
+        sendCommand( clientContact, Client.Commands.MESSAGE.ordinal() + GENERAL_SEPARATOR_STRING + SERVER_CHAT_NAME + "Statistics of the clients (RTT and jitter are smoothed estimations):" );
+        for ( final String statistics : getClientStatistics() )
+            sendCommand( clientContact, Client.Commands.MESSAGE.ordinal() + GENERAL_SEPARATOR_STRING + SERVER_CHAT_NAME + statistics );
+        sendCommand( clientContact, Client.Commands.MESSAGE.ordinal() + GENERAL_SEPARATOR_STRING + SERVER_CHAT_NAME + getTransportStatistics() );
+    }
+
+    /**
+     * Returns the transport statistics since the last query as a one line text:
+     * the system calls and the estimated TCP segments of the connections of all clients and spectators per iteration.
+     * @return the transport statistics since the last query
+     */
+    private String getTransportStatistics() {
+        final long[] transportStatistics = { transportCounters.getWriteCallsCount(), transportCounters.getReadCallsCount(), transportCounters.getSentSegmentsCount(), iterationsCount };
+        final long   iterations          = transportStatistics[ 3 ] - lastTransportStatistics[ 3 ];
+        final double iterations_         = Math.max( iterations, 1l );
+        final String transportStatisticsText = String.format( "Transport since the last query (write coalescing %s): %.2f write calls, %.2f read calls, %.2f TCP segments (estimated) per iteration in %d iterations.",
+                                                              getServerOptions().writeCoalescing ? "on" : "off", ( transportStatistics[ 0 ] - lastTransportStatistics[ 0 ] ) / iterations_,
+                                                              ( transportStatistics[ 1 ] - lastTransportStatistics[ 1 ] ) / iterations_, ( transportStatistics[ 2 ] - lastTransportStatistics[ 2 ] ) / iterations_, iterations );
+        System.arraycopy( transportStatistics, 0, lastTransportStatistics, 0, transportStatistics.length );
+        return transportStatisticsText;
+    }
+
+    /**
+     * Returns the statistics of the clients, one line per client.
+     * @return the statistics of the clients
+     */
+    public String[] getClientStatistics() {
+        final ClientContact[] clientContacts_ = clientContacts.toArray( new ClientContact[ 0 ] );   // The clients may change meanwhile if not called by the server thread
+        final String[]        statistics      = new String[ clientContacts_.length ];
+        for ( int i = 0; i < statistics.length; i++ )
+            statistics[ i ] = clientContacts_[ i ].getStatistics();
+        return statistics;
+    }
+
+    /**
+     * Returns the names of the clients.
+     * @return the names of the clients
+     */
+    public String[] getClientNames() {
+        final ClientContact[] clientContacts_ = clientContacts.toArray( new ClientContact[ 0 ] );
+        final String[]        clientNames     = new String[ clientContacts_.length ];
+        for ( int i = 0; i < clientNames.length; i++ )
+            clientNames[ i ] = clientContacts_[ i ].publicClientOptions == null ? null : clientContacts_[ i ].publicClientOptions.clientName;
+        return clientNames;
+    }
+
+    /**
+     * Returns the smoothed round trip times of the clients.
+     * @return the smoothed round trip times of the clients in ms
+     */
+    public double[] getRoundTripTimes() {
+        final ClientContact[] clientContacts_ = clientContacts.toArray( new ClientContact[ 0 ] );
+        final double[]        roundTripTimes  = new double[ clientContacts_.length ];
+        for ( int i = 0; i < roundTripTimes.length; i++ )
+            roundTripTimes[ i ] = clientContacts_[ i ].smoothedRoundTripTime / 1000000.0;
+        return roundTripTimes;
+    }
+
+    /**
+     * Returns the jitters (smoothed round trip time variations) of the clients.
+     * @return the jitters of the clients in ms
+     */
+    public double[] getJitters() {
+        final ClientContact[] clientContacts_ = clientContacts.toArray( new ClientContact[ 0 ] );
+        final double[]        jitters         = new double[ clientContacts_.length ];
+        for ( int i = 0; i < jitters.length; i++ )
+            jitters[ i ] = clientContacts_[ i ].roundTripTimeVariation / 1000000.0;
+        return jitters;
+    }
+
+    /**
+     * Returns the number of the write system calls of the connections of the clients and spectators.
+     * @return the number of the write system calls
+     */
+    public long getWriteCallsCount() {
+        return transportCounters.getWriteCallsCount();
+    }
+
+    /**
+     * Returns the number of the read system calls of the connections of the clients and spectators.
+     * @return the number of the read system calls
+     */
+    public long getReadCallsCount() {
+        return transportCounters.getReadCallsCount();
+    }
+
+    /**
+     * Returns the estimated number of the TCP segments sent to the clients and spectators.
+     * @return the estimated number of the sent TCP segments
+     */
+    public long getSentSegmentsCount() {
+        return transportCounters.getSentSegmentsCount();
+    }
+
+    /**
+     * Returns the number of iterations since the server has been started.
+     * @return the number of iterations since the server has been started
+     */
+    public long getIterationsCount() {
+        return iterationsCount;
+    }
+
+    /**
+     * Returns the number of iteration windows delayed by the clients.
+     * @return the number of iteration windows delayed by the clients
+     */
+    public long[] getDelayedIterationsCounts() {
+        final ClientContact[] clientContacts_         = clientContacts.toArray( new ClientContact[ 0 ] );
+        final long[]          delayedIterationsCounts = new long[ clientContacts_.length ];
+        for ( int i = 0; i < delayedIterationsCounts.length; i++ )
+            delayedIterationsCounts[ i ] = clientContacts_[ i ].delayedIterationsCount;
+        return delayedIterationsCounts;
+    }
+
+    /**
+     * Wakes up the server thread if it is waiting for commands.
+     * In case of a room a step is requested instead.
+     */
+    private void wakeUp() {
+        if ( roomServer == null )
+            connectionSelector.wakeup();
+        else
+            requestStep( null );
+    }
+
+    /**
+     * Method to be called when the timer signals that next iteration may begin.
+     * Wakes up the server thread.
+     */
+    public void signalingNextIteration() {
+        super.signalingNextIteration();
+        wakeUp();
+    }
+
+    /**
+     * Requests to cancel, and wakes up the server thread.
+     */
+    protected void requestToCancel() {
+        super.requestToCancel();
+        wakeUp();
+    }
+
+    /**
+     * In case of a room: requests a step to process the client contacts having new messages.<br>
+     * Steps of a room never run at the same time: if a step is running, another one will be scheduled after it.
+     * Called by the room server thread, the timer and the threads changing our state.
+     * @param readyClientContacts the client contacts of the room having new messages or having closed the connection; may be null
+     */
+    void requestStep( final List< ClientContact > readyClientContacts ) {
+        synchronized ( stepLock ) {
+            if ( readyClientContacts != null )
+                pendingReadyClientContacts.addAll( readyClientContacts );
+            if ( stepScheduled ) {
+                stepRequestedMeanwhile = true;
+                return;
+            }
+            stepScheduled = true;
+        }
+        roomServer.getWorkerExecutor().execute( stepTask );
+    }
+
+    /**
+     * In case of a room: does the scheduled step, and schedules the next one if it has been requested meanwhile.<br>
+     * The next step is submitted again instead of being done here, so a busy room cannot hold up a worker thread.
+     */
+    private void doScheduledStep() {
+        final List< ClientContact > readyClientContacts;
+        synchronized ( stepLock ) {
+            readyClientContacts = new ArrayList< ClientContact >( pendingReadyClientContacts );
+            pendingReadyClientContacts.clear();
+            stepRequestedMeanwhile = false;
+        }
+
+        if ( requestedToCancel ) {
+            if ( gameState != GameStates.IDLE ) {   // Not closed yet
+                stopServing();
+                close();
+                setGameState( GameStates.IDLE );
+            }
+        }
+        else {
+            step( readyClientContacts );
+            if ( clientContacts.isEmpty() && gameState == GameStates.PLAYING )
+                requestedToEndGame = true;   // Everyone has left, nobody could end the game
+            if ( isCollectingPlayers() )
+                roomServer.removeRoomIfEmpty( this );
+        }
+
+        final boolean stepRequestedAgain;
+        synchronized ( stepLock ) {
+            stepRequestedAgain = stepRequestedMeanwhile || requestedToCancel && gameState != GameStates.IDLE || requestedToEndGame && gameState == GameStates.PLAYING;
+            if ( !stepRequestedAgain )
+                stepScheduled = false;
+        }
+        if ( stepRequestedAgain )
+            if ( requestedToCancel )
+                doScheduledStep();   // The worker threads may be shutting down, the room is closed right here
+            else
+                roomServer.getWorkerExecutor().execute( stepTask );
+    }
+
+    /**
+     * Returns the current server options the player collector checks the joining clients by.
+     * @return the current server options
+     */
+    public ServerOptions getJoiningServerOptions() {
+        return getServerOptions();
     }
 
     /**
-     * Broadcasts a message to all the clients.
+     * Tells whether a room can be selected by a joining player.
+     * A standalone server has only one room, so any room name is accepted while we are collecting players.
+     * @param roomName name of the room to be selected (null means any room); ignored
+     * @return true if we are collecting players; false otherwise
+     */
+    public boolean isRoomSelectable( final String roomName ) {
+        return isCollectingPlayers();
+    }
+
+    /**
+     * Tells whether a room can be watched by a joining spectator.
+     * A standalone server has only one room, so any room name is accepted if the maximum number of spectators has not been reached.
+     * @param roomName name of the room to be watched (null means any room); ignored
+     * @return true if the room can be watched; false otherwise
+     */
+    public boolean isSpectatable( final String roomName ) {
+        return isSpectatable();
+    }
+
+    /**
+     * Tells whether a new spectator can join: the maximum number of spectators has not been reached.
+     * @return true if a new spectator can join; false otherwise
+     */
+    boolean isSpectatable() {
+        return spectatorContacts.size() < getServerOptions().maxSpectators;
+    }
+
+    /**
+     * Queues a client contact whose joining protocol has been run by the player collector.
+     * The joining will be finished by us.
+     * @param clientContact the client contact to be queued
+     * @param roomName      name of the room selected by the client (null if the client did not select room); ignored by a standalone server
+     */
+    public void clientHasJoined( final ClientContact clientContact, final String roomName ) {
+        clientContact.server = this;
+        newClientContacts.add( clientContact );
+        wakeUp();
+    }
+
+    /**
+     * Tells whether a client can reconnect into our running game with a session token.
+     * Games with rollback network latency cannot be reconnected into.
+     * @param sessionToken the session token sent by the client
+     * @return true if a game is running and one of its clients has the session token; false otherwise
+     */
+    public boolean isReconnectable( final long sessionToken ) {
+        return gameState == GameStates.PLAYING && gameServerOptions.networkLatency != NetworkLatencies.ROLLBACK && getClientContact( sessionToken ) != null;
+    }
+
+    /**
+     * Queues the connection of a client reconnecting into our running game.
+     * The reconnection will be finished by us.
+     * @param sessionToken   the session token sent by the client
+     * @param connectionStub the new connection stub to the client
+     */
+    public void clientHasReconnected( final long sessionToken, final ConnectionStub connectionStub ) {
+        newReconnections.add( new Reconnection( sessionToken, connectionStub ) );
+        wakeUp();
+    }
+
+    /**
+     * In case of a room: returns the number of the clients including the ones whose joining is not finished yet.
+     * The spectators are not counted.<br>
+     * The waiting clients are listed before the client contacts: a client is removed from the waiting ones only after
+     * it has been added to the client contacts, so a client being joined meanwhile is counted exactly once.
+     * @return the number of the clients including the ones whose joining is not finished yet
+     */
+    int getClientsCount() {
+        final List< ClientContact > newClientContacts_ = new ArrayList< ClientContact >();
+        for ( final ClientContact newClientContact : newClientContacts )
+            if ( !newClientContact.spectator )
+                newClientContacts_.add( newClientContact );
+        final List< ClientContact > clientContacts_ = Arrays.asList( clientContacts.toArray( new ClientContact[ 0 ] ) );   // The clients may change meanwhile
+        int clientsCount = clientContacts_.size();
+        for ( final ClientContact newClientContact : newClientContacts_ )
+            if ( !clientContacts_.contains( newClientContact ) )
+                clientsCount++;
+        return clientsCount;
+    }
+
+    /**
+     * In case of a room: tells whether the room is collecting players.
+     * @return true if the room is collecting players; false if a game is being played or the room is closed
+     */
+    boolean isCollectingPlayers() {
+        final GameStates gameState_ = gameState;
+        return gameState_ == GameStates.PLAYER_COLLECTING_NOT_CONNECTED || gameState_ == GameStates.PLAYER_COLLECTING_CONNECTED;
+    }
+
+    /**
+     * Returns the name of the room.
+     * @return the name of the room; null if we are a standalone server
+     */
+    public String getRoomName() {
+        return roomName;
+    }
+
+    /**
+     * Adds a new client contact (of a player or of a spectator) whose joining is finished.
+     * @param clientContact the client contact to be added
+     * @throws IOException if I/O error occurs during registering the connection of the client
+     */
+    private void addClientContact( final ClientContact clientContact ) throws IOException {
+        registerClientContact( clientContact );
+        ( clientContact.spectator ? spectatorContacts : clientContacts ).add( clientContact );
+    }
+
+    /**
+     * Registers the connection of a client contact, so its messages are selected.
+     * @param clientContact the client contact whose connection to be registered
+     * @throws IOException if I/O error occurs during registering the connection of the client
+     */
+    private void registerClientContact( final ClientContact clientContact ) throws IOException {
+        clientContact.lastReceivingTime = System.nanoTime();
+        clientContact.connectionStub.setTransportCounters( transportCounters );
+        if ( roomServer == null )
+            connectionSelector.register( clientContact.connectionStub, clientContact );
+        else
+            roomServer.registerClientContact( clientContact );
+    }
+
+    /**
+     * Unregisters the connection of a client contact.
+     * @param clientContact the client contact whose connection to be unregistered
+     */
+    private void unregisterClientContact( final ClientContact clientContact ) {
+        if ( roomServer == null )
+            connectionSelector.unregister( clientContact.connectionStub );
+        else
+            roomServer.unregisterClientContact( clientContact );
+    }
+
+    /**
+     * Tells whether a client contact (of a player or of a spectator) has joined and not left yet.
+     * @param clientContact client contact to be tested
+     * @return true if the client contact has joined and not left yet; false otherwise
+     */
+    private boolean isJoined( final ClientContact clientContact ) {
+        return ( clientContact.spectator ? spectatorContacts : clientContacts ).contains( clientContact );
+    }
+
+    /**
+     * Broadcasts a message to all the clients and spectators.
+     * Messages are not recorded, the spectators receive them at once.
+     * Messages are bulk data, they are sent after the game commands.
      * @param message message to be broadcasted
      */
     public void broadcastMessage( final String message ) {
-        broadcastCommand( Client.Commands.MESSAGE.ordinal() + GENERAL_SEPARATOR_STRING + message );
+        final ConnectionStub.OutboundMessage outboundCommand = new ConnectionStub.OutboundMessage( Client.Commands.MESSAGE.ordinal() + GENERAL_SEPARATOR_STRING + message, ConnectionStub.Priorities.BULK );
+        for ( final ClientContact clientContact : clientContacts )
+            queueCommand( clientContact, outboundCommand );
+        for ( final ClientContact spectatorContact : spectatorContacts )
+            queueCommand( spectatorContact, outboundCommand );
     }
 
     /**
-     * Broadcasts a command to all the clients.
-     * Protected because PlayerCollector calls it.
+     * Broadcasts a command with normal priority to all the clients and spectators.
      * @param command command to be broadcasted
+     * @return the broadcasted command
+     * @see #broadcastCommand(String, classes.utils.ConnectionStub.Priorities)
+     */
+    private ConnectionStub.OutboundMessage broadcastCommand( final String command ) {
+        return broadcastCommand( command, ConnectionStub.Priorities.NORMAL );
+    }
+
+    /**
+     * Broadcasts a command to all the clients and spectators.
+     * The command is encoded only once (for each framing used by the clients), and queued to the clients.
+     * If the game is recorded, the command is recorded, and will be released to the spectators later.
+     * The command is also collected for the reconnecting clients waiting for their state snapshot.
+     * @param command  command to be broadcasted
+     * @param priority priority of the command
+     * @return the broadcasted command
      */
-    protected void broadcastCommand( final String command ) {
+    private ConnectionStub.OutboundMessage broadcastCommand( final String command, final ConnectionStub.Priorities priority ) {
+        final ConnectionStub.OutboundMessage outboundCommand = new ConnectionStub.OutboundMessage( command, priority );
         for ( final ClientContact clientContact : clientContacts )
-            try {
-                clientContact.connectionStub.sendMessage( command );
-            }
-            catch ( final IOException ie ) {
-            }
+            queueCommand( clientContact, outboundCommand );
+        if ( gameRecord == null )
+            for ( final ClientContact spectatorContact : spectatorContacts )
+                queueCommand( spectatorContact, outboundCommand );
+        else
+            unreleasedRecordedCommands.add( new RecordedCommand( outboundCommand, iterationCounter ) );
+        for ( final Reconnection reconnection : reconnections )
+            reconnection.missedCommands.add( outboundCommand );
+        return outboundCommand;
+    }
+
+    /**
+     * Sends a command with normal priority to a client.
+     * @param clientContact client contact to send the command to
+     * @param command       command to be sent
+     */
+    private void sendCommand( final ClientContact clientContact, final String command ) {
+        sendCommand( clientContact, command, ConnectionStub.Priorities.NORMAL );
+    }
+
+    /**
+     * Sends a command to a client.
+     * @param clientContact client contact to send the command to
+     * @param command       command to be sent
+     * @param priority      priority of the command
+     */
+    private void sendCommand( final ClientContact clientContact, final String command, final ConnectionStub.Priorities priority ) {
+        queueCommand( clientContact, new ConnectionStub.OutboundMessage( command, priority ) );
+    }
+
+    /**
+     * Queues a command to a client.
+     * If the queue of the client exceeds the client backlog limit, the client will be dropped.
+     * Commands to disconnected clients are dropped.<br>
+     * In case of write coalescing the command is sent at the end of the step (see flushClientContacts()).
+     * @param clientContact   client contact to queue the command to
+     * @param outboundCommand the command to be queued
+     */
+    private void queueCommand( final ClientContact clientContact, final ConnectionStub.OutboundMessage outboundCommand ) {
+        if ( clientContact.disconnected )
+            return;
+        try {
+            final int queuedBytes = clientContact.connectionStub.queueMessage( outboundCommand, !coalescingWrites );
+            if ( coalescingWrites )
+                unflushedClientContacts.add( clientContact );   // The backlog is checked after flushing, a lot may be queued in one step
+            else
+                checkClientBacklog( clientContact, queuedBytes );
+        }
+        catch ( final IOException ie ) {
+        }
+    }
+
+    /**
+     * Sends the commands queued to the clients in the current step without flushing them (in case of write coalescing):
+     * one write for each client.
+     */
+    private void flushClientContacts() {
+        for ( final ClientContact clientContact : unflushedClientContacts )
+            if ( !clientContact.disconnected )
+                try {
+                    checkClientBacklog( clientContact, clientContact.connectionStub.flush() );
+                }
+                catch ( final IOException ie ) {
+                }
+        unflushedClientContacts.clear();
+    }
+
+    /**
+     * Checks whether the queue of a client exceeds the client backlog limit, and marks the client to be dropped if it does.
+     * @param clientContact client contact to be checked
+     * @param queuedBytes   number of bytes in the queue of the client
+     */
+    private void checkClientBacklog( final ClientContact clientContact, final int queuedBytes ) {
+        if ( queuedBytes > getServerOptions().clientBacklogLimit * 1024 )
+            if ( !slowClientContacts.contains( clientContact ) )
+                slowClientContacts.add( clientContact );
+    }
+
+    /**
+     * Drops the clients which exceeded the client backlog limit.
+     * Clients must not be removed while the client contacts are being iterated, so this is called from the main loops of the server.
+     */
+    private void dropSlowClients() {
+        while ( !slowClientContacts.isEmpty() ) {   // Dropping broadcasts commands, which may find new slow clients
+            final ClientContact clientContact = slowClientContacts.remove( 0 );
+            if ( isJoined( clientContact ) )
+                handleClientLeaving( clientContact, " has been dropped because of too slow connection." );
+        }
     }
 
     /** 
      * Starts current game.
      */
     public void startCurrentGame() {
-        iterationCounter = 0;
 		requestedToStartGame = true;
+        wakeUp();
         try {
-            while ( gameState != GameStates.PLAYING )
-                Thread.sleep( 1l );
+            synchronized ( gameStateLock ) {
+                while ( gameState != GameStates.PLAYING )
+                    gameStateLock.wait();
+            }
         }
         catch ( final InterruptedException ie ) {
         }
@@ -344,9 +1768,12 @@ public class Server extends TimedIterableControlledThread implements OptionsChan
      */
     public void endCurrentGame() {
         requestedToEndGame = true;
+        wakeUp();
         try {
-            while ( gameState == GameStates.PLAYING )
-                Thread.sleep( 1l );
+            synchronized ( gameStateLock ) {
+                while ( gameState == GameStates.PLAYING )
+                    gameStateLock.wait();
+            }
         }
         catch ( final InterruptedException ie ) {
         }
@@ -356,18 +1783,64 @@ public class Server extends TimedIterableControlledThread implements OptionsChan
      * Starts next round of the game.
      */
     public void startNextRound() {
-        broadcastCommand( Client.Commands.STARTING_NEXT_ROUND.ordinal() + GENERAL_SEPARATOR_STRING );
+        gameStartingCommands.add( broadcastCommand( Client.Commands.STARTING_NEXT_ROUND.ordinal() + GENERAL_SEPARATOR_STRING ) );
     }
 
     /**
      * Handles a client when it leaves the game.
      * @param clientContact client contact of client who is about to leave
+     * @param leavingText   text to be appended to the client name in the server chat message
      */
-    private void handleClientLeaving( final ClientContact clientContact ) {
-        clientContacts.remove( clientContact );
+    private void handleClientLeaving( final ClientContact clientContact, final String leavingText ) {
+        final int clientIndex = clientContacts.indexOf( clientContact );
+        if ( clientContact.spectator )
+            spectatorContacts.remove( clientContact );
+        else {
+            clientContacts.remove( clientIndex );
+            for ( final Map< ClientContact, Integer > stateChecksums : stateChecksumss.values() )
+                stateChecksums.remove( clientContact );
+            compareStateChecksums();   // The checksums of the client were maybe the only ones missing
+            cancelReconnections( clientContact );
+        }
+        unregisterClientContact( clientContact );
         clientContact.connectionStub.close();
-        broadcastCommand( Client.Commands.A_CLIENT_HAS_LEFT_THE_GAME.ordinal() + GENERAL_SEPARATOR_STRING );
-        broadcastMessage( SERVER_CHAT_NAME + clientContact.publicClientOptions.clientName + " has left the game." );
+        if ( !clientContact.spectator )   // The clients do not know about the spectators
+            broadcastCommand( Client.Commands.A_CLIENT_HAS_LEFT_THE_GAME.ordinal() + GENERAL_SEPARATOR_STRING + clientIndex + GENERAL_SEPARATOR_STRING, ConnectionStub.Priorities.ORDERED );
+        broadcastMessage( SERVER_CHAT_NAME + clientContact.publicClientOptions.clientName + leavingText );
+    }
+
+    /**
+     * Handles a client whose connection has been closed or died without the client leaving.<br>
+     * During a game (except in case of rollback network latency) the client is waited for to reconnect:
+     * its connection is closed, the keys of its players are released (in the next iteration window),
+     * and it is not waited for at the barrier until it reconnects. Otherwise the client leaves
+     * (and so do the disconnected clients if no connected client remains).
+     * @param clientContact client contact of the client whose connection has been closed or died
+     * @param leavingText   text to be appended to the client name in the server chat message if the client leaves
+     */
+    private void handleClientDisconnecting( final ClientContact clientContact, final String leavingText ) {
+        if ( clientContact.spectator || gameState != GameStates.PLAYING || gameServerOptions.networkLatency == NetworkLatencies.ROLLBACK ) {
+            handleClientLeaving( clientContact, leavingText );
+            return;
+        }
+        boolean hasConnectedClient = false;
+        for ( final ClientContact clientContact_ : clientContacts )
+            if ( clientContact_ != clientContact && !clientContact_.disconnected )
+                hasConnectedClient = true;
+        if ( !hasConnectedClient ) {   // Nobody could send a state snapshot, the disconnected clients cannot reconnect
+            for ( final ClientContact clientContact_ : new ArrayList< ClientContact >( clientContacts ) )
+                handleClientLeaving( clientContact_, clientContact_ == clientContact ? leavingText : " has left the game." );
+            return;
+        }
+        
+        unregisterClientContact( clientContact );
+        clientContact.connectionStub.close();
+        clientContact.disconnected          = true;
+        clientContact.disconnectionTime     = System.nanoTime();
+        clientContact.controlKeyStatesDelta = clientContact.controlKeyStates;   // The pending changes are dropped, the keys become released
+        cancelReconnections( clientContact );
+        compareStateChecksums();   // The checksums of the client were maybe the only ones missing
+        broadcastMessage( SERVER_CHAT_NAME + clientContact.publicClientOptions.clientName + " has lost its connection, waiting " + RECONNECT_TIMEOUT / 1000 + " seconds for it to reconnect." );
     }
 
     /**
@@ -386,11 +1859,28 @@ public class Server extends TimedIterableControlledThread implements OptionsChan
      */
     protected void close() {
         iterationTimer.shutDown();
-        serverOptionsManager.unregisterOptionsChangeListener( this );
+        if ( serverHost != null )
+            serverHost.unregisterServerOptionsChangeListener( this );
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean( getMBeanName() );
+        }
+        catch ( final JMException je ) {
+        }
         broadcastMessage( SERVER_CHAT_NAME + "Server is going for a shutdown..." );
-        broadcastCommand( Client.Commands.SHUTDOWN + GENERAL_SEPARATOR_STRING );
-        for ( final ClientContact clientContact : clientContacts )
+        broadcastCommand( Client.Commands.SHUTDOWN.ordinal() + GENERAL_SEPARATOR_STRING );
+        final List< ClientContact > allClientContacts = new ArrayList< ClientContact >( clientContacts );
+        allClientContacts.addAll( spectatorContacts );
+        for ( final ClientContact clientContact : allClientContacts ) {
+            if ( roomServer != null )
+                roomServer.unregisterClientContact( clientContact );
             clientContact.connectionStub.close();
+        }
+        for ( final Reconnection reconnection : reconnections )
+            reconnection.connectionStub.close();
+        for ( final Reconnection reconnection : newReconnections )
+            reconnection.connectionStub.close();
+        if ( connectionSelector != null )
+            connectionSelector.close();
     }
     
 }
@@ -0,0 +1,49 @@
+/*
+ * Created on October 18, 2026
+ */
+
+package classes.server;
+
+import classes.options.OptionsChangeListener;
+import classes.options.model.ServerOptions;
+
+/**
+ * The host of a server: the application which created the server, and provides the options and the levels of the games.<br>
+ * The server only knows its host through this interface, so the server does not depend on the graphical user interface.
+ * The game manager is the host of the servers created from the menu, the rooms of a room server have no host.
+ *
+ * @author Andras Belicza
+ */
+public interface ServerHost {
+
+    /**
+     * Returns the current server options.
+     * @return the current server options
+     */
+    ServerOptions getServerOptions();
+
+    /**
+     * Registers a listener of the changes of the server options.
+     * @param optionsChangeListener listener to be registered
+     */
+    void registerServerOptionsChangeListener( OptionsChangeListener< ServerOptions > optionsChangeListener );
+
+    /**
+     * Unregisters a listener of the changes of the server options.
+     * @param optionsChangeListener listener to be unregistered
+     */
+    void unregisterServerOptionsChangeListener( OptionsChangeListener< ServerOptions > optionsChangeListener );
+
+    /**
+     * Returns the packed level of the games. Called only if the level name of the server options is not the randomly generated level.
+     * @return the packed level of the games
+     */
+    String getPackedLevel();
+
+    /**
+     * Shows an error message of the server. Must not block, the server cannot wait for the user.
+     * @param messageLines lines of the error message
+     */
+    void showErrorMessage( String[] messageLines );
+
+}
@@ -0,0 +1,69 @@
+/*
+ * Created on October 18, 2026
+ */
+
+package classes.server;
+
+/**
+ * Management interface of the server, exports the statistics of the clients for monitoring through JMX.<br>
+ * The arrays returned by the methods are indexed by the client index.
+ *
+ * @author Andras Belicza
+ */
+public interface ServerMBean {
+
+    /**
+     * Returns the statistics of the clients, one line per client.
+     * @return the statistics of the clients
+     */
+    String[] getClientStatistics();
+
+    /**
+     * Returns the names of the clients.
+     * @return the names of the clients
+     */
+    String[] getClientNames();
+
+    /**
+     * Returns the smoothed round trip times of the clients.
+     * @return the smoothed round trip times of the clients in ms
+     */
+    double[] getRoundTripTimes();
+
+    /**
+     * Returns the jitters (smoothed round trip time variations) of the clients.
+     * @return the jitters of the clients in ms
+     */
+    double[] getJitters();
+
+    /**
+     * Returns the number of iteration windows delayed by the clients.
+     * @return the number of iteration windows delayed by the clients
+     */
+    long[] getDelayedIterationsCounts();
+
+    /**
+     * Returns the number of the write system calls of the connections of the clients and spectators.
+     * @return the number of the write system calls
+     */
+    long getWriteCallsCount();
+
+    /**
+     * Returns the number of the read system calls of the connections of the clients and spectators.
+     * @return the number of the read system calls
+     */
+    long getReadCallsCount();
+
+    /**
+     * Returns the estimated number of the TCP segments sent to the clients and spectators.
+     * @return the estimated number of the sent TCP segments
+     */
+    long getSentSegmentsCount();
+
+    /**
+     * Returns the number of iterations since the server has been started.
+     * @return the number of iterations since the server has been started
+     */
+    long getIterationsCount();
+
+}
@@ -0,0 +1,456 @@
+/*
+ * Created on October 18, 2026
+ */
+
+package classes.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import static classes.utils.GeneralStringTokenizer.GENERAL_SEPARATOR_CHAR;
+
+/**
+ * Encodes and decodes messages to and from the binary framing used by the connection stubs.<br>
+ * <br>
+ * A message is split into fields at the GeneralStringTokenizer.GENERAL_SEPARATOR_CHAR characters,
+ * and every binary frame has the following structure:
+ * <ol>
+ *     <li>the length of the rest of the frame in bytes as an unsigned varint;
+ *     <li>one byte of command id: if the first field is a number between 0 and MAX_COMMAND_ID,
+ *         it is the command ordinal itself, else it is NO_COMMAND_ID and the first field is stored as a normal field;
+ *     <li>the fields, each starting with an unsigned varint header. If the lowest bit of the header is 0,
+ *         the field is an int, and the rest of the header is the zigzag encoded value.
+ *         Else the rest of the header is the length of the field in bytes, and the UTF-8 bytes of the field follow.
+ * </ol>
+ * Decoding a frame gives back exactly the same message that was encoded, so binary framing
+ * is transparent to the command layer.<br>
+ * <br>
+ * Bulk messages (at least COMPRESSION_THRESHOLD characters long, like options and levels) are compressed with deflate
+ * using a preset dictionary (COMPRESSION_DICTIONARY) if that makes them shorter. The compressed bytes are split into
+ * chunks of at most MAX_CHUNK_LENGTH bytes, each sent in its own frame: the last chunk has COMPRESSED_COMMAND_ID
+ * as its command id, the others have CHUNK_COMMAND_ID, and the rest of the frames are the chunk bytes.
+ * The receiver processes the chunks as they arrive (see MessageInflater), so a bulk message never has to be
+ * buffered as a whole in compressed form.<br>
+ * <br>
+ * The frames come from the network, so they are validated before and during decoding: a frame longer than
+ * MAX_FRAME_LENGTH, or a field running past the end of its frame is a framing violation (IOException).
+ *
+ * @author Andras Belicza
+ */
+public class BinaryFrameCodec {
+
+    /** The greatest command id which can be stored in the command id byte.  */
+    public static final int    MAX_COMMAND_ID        = 252;
+    /** Command id of the frames of the compressed chunks except the last one. */
+    public static final int    CHUNK_COMMAND_ID      = 253;
+    /** Command id of the frame of the last compressed chunk of a message.     */
+    public static final int    COMPRESSED_COMMAND_ID = 254;
+    /** Command id indicating that the message does not start with a command. */
+    public static final int    NO_COMMAND_ID         = 255;
+    /** Name of the charset used to encode string fields.                      */
+    public static final String CHARSET_NAME          = "UTF-8";
+    /** Messages at least this long (in characters) are tried to be compressed. */
+    public static final int    COMPRESSION_THRESHOLD = 128;
+    /** The maximum number of compressed bytes in one chunk frame.             */
+    public static final int    MAX_CHUNK_LENGTH      = 1024;
+    /** The maximum length of a frame without its length header, and of an inflated compressed message (in bytes).
+     * Bulk messages are sent in chunks, so this is only reached by a peer violating the framing. */
+    public static final int    MAX_FRAME_LENGTH      = 1 << 20;
+    /** The maximum length of a varint: 5 bytes hold the 35 bits of the longest field header. */
+    private static final int   MAX_VARINT_LENGTH     = 5;
+    /** Preset dictionary of the compression: the typical content of the bulk messages (packed server options and
+     * public client options). Both ends must use the same dictionary, so changing it requires a new application version.
+     * The most frequent strings are at the end, those can be referred with the shortest distances. */
+    public static final String COMPRESSION_DICTIONARY = "<randomly generated>|UNNAMED CLIENT|Player_1|Player_2|Player_3|Player_4|0|10|20|7|85|85|85|85|"
+                                                      + "|0|90|5||100|true|false|true|false|true|false|true|true|1|90|40|30|43762|0|256|17|13|2|1|0|"
+                                                      + "false|false|false|false|false|false|false|false|false|false|false|false|false|"
+                                                      + "10|2|10|10|10|5|5|5|5|5|2|2|2|10|5|5|10|10|10|10|10|10|10|";
+
+    /** The bytes of the preset dictionary of the compression. */
+    private static final byte[] COMPRESSION_DICTIONARY_BYTES = getBytes( COMPRESSION_DICTIONARY );
+
+    /**
+     * Decompresses the chunks of compressed messages received through a connection.<br>
+     * The chunks are inflated as they arrive, only the inflated message is kept until its last chunk arrives.
+     * @author Andras Belicza
+     */
+    public static class MessageInflater {
+
+        /** The inflater of the compressed chunks.            */
+        private final Inflater              inflater      = new Inflater();
+        /** Buffer of the inflated bytes of the message.      */
+        private final ByteArrayOutputStream messageBytes  = new ByteArrayOutputStream();
+        /** Buffer used to inflate the chunks.                */
+        private final byte[]                inflateBuffer = new byte[ 4096 ];
+        /** Tells whether a chunk of the current message was corrupt. */
+        private boolean                     corrupt;
+
+        /**
+         * Adds a chunk frame (which is not the last chunk of its message).
+         * @param buffer buffer containing the frame
+         * @param offset position where the frame starts
+         * @param length length of the whole frame (including the length header)
+         */
+        public void addChunk( final byte[] buffer, final int offset, final int length ) {
+            if ( corrupt )
+                return;
+            final int chunkOffset = getPayloadOffset( buffer, offset ) + 1;   // The command id is not part of the chunk
+            inflater.setInput( buffer, chunkOffset, offset + length - chunkOffset );
+            try {
+                while ( !corrupt && !inflater.needsInput() && !inflater.finished() ) {
+                    final int inflatedBytes = inflater.inflate( inflateBuffer );
+                    if ( inflatedBytes == 0 && inflater.needsDictionary() )
+                        inflater.setDictionary( COMPRESSION_DICTIONARY_BYTES );
+                    messageBytes.write( inflateBuffer, 0, inflatedBytes );
+                    if ( messageBytes.size() > MAX_FRAME_LENGTH )
+                        corrupt = true;   // A compressed message must not inflate beyond the limit of the uncompressed ones
+                }
+            }
+            catch ( final DataFormatException de ) {
+                corrupt = true;
+            }
+        }
+
+        /**
+         * Adds the last chunk frame of a message, and returns the inflated message.
+         * @param buffer buffer containing the frame
+         * @param offset position where the frame starts
+         * @param length length of the whole frame (including the length header)
+         * @return the inflated message
+         * @throws IOException if the compressed message is corrupt
+         */
+        public String finishMessage( final byte[] buffer, final int offset, final int length ) throws IOException {
+            addChunk( buffer, offset, length );
+            final boolean complete = inflater.finished() && !corrupt;
+
+            String message = null;
+            if ( complete )
+                try {
+                    message = messageBytes.toString( CHARSET_NAME );
+                }
+                catch ( final UnsupportedEncodingException ue ) {
+                    // UTF-8 is always supported
+                }
+
+            inflater.reset();
+            messageBytes.reset();
+            corrupt = false;
+
+            if ( !complete )
+                throw new IOException( "Corrupt compressed message!" );
+            return message;
+        }
+
+        /**
+         * Releases the resources of the inflater.
+         */
+        public void end() {
+            inflater.end();
+        }
+
+    }
+
+    /**
+     * Encodes a message into a binary frame.
+     * @param message message to be encoded
+     * @return the binary frame representing the message
+     */
+    public static byte[] encodeMessage( final String message ) {
+        final byte[] frame = encodeMessageFrame( message );
+
+        if ( message.length() >= COMPRESSION_THRESHOLD ) {
+            final byte[] compressedFrames = encodeCompressedMessage( message );
+            if ( compressedFrames.length < frame.length )
+                return compressedFrames;
+        }
+
+        return frame;
+    }
+
+    /**
+     * Encodes a message into one uncompressed binary frame.
+     * @param message message to be encoded
+     * @return the binary frame representing the message
+     */
+    private static byte[] encodeMessageFrame( final String message ) {
+        final ByteArrayOutputStream payload = new ByteArrayOutputStream( message.length() + 8 );
+
+        int     fieldStart = 0;
+        boolean firstField = true;
+        while ( true ) {
+            int fieldEnd = message.indexOf( GENERAL_SEPARATOR_CHAR, fieldStart );
+            if ( fieldEnd < 0 )
+                fieldEnd = message.length();
+
+            final String field = message.substring( fieldStart, fieldEnd );
+            if ( firstField ) {
+                final Integer commandId = parseCanonicalInt( field );
+                if ( commandId != null && commandId >= 0 && commandId <= MAX_COMMAND_ID )
+                    payload.write( commandId );
+                else {
+                    payload.write( NO_COMMAND_ID );
+                    encodeField( field, payload );
+                }
+                firstField = false;
+            }
+            else
+                encodeField( field, payload );
+
+            if ( fieldEnd == message.length() )
+                break;
+            fieldStart = fieldEnd + 1;
+        }
+
+        final ByteArrayOutputStream frame = new ByteArrayOutputStream( payload.size() + 5 );
+        writeVarint( payload.size(), frame );
+        final byte[] payloadBytes = payload.toByteArray();
+        frame.write( payloadBytes, 0, payloadBytes.length );
+
+        return frame.toByteArray();
+    }
+
+    /**
+     * Encodes a message into compressed chunk frames.
+     * @param message message to be encoded
+     * @return the chunk frames containing the compressed message
+     */
+    private static byte[] encodeCompressedMessage( final String message ) {
+        final Deflater deflater = new Deflater( Deflater.BEST_COMPRESSION );
+        deflater.setDictionary( COMPRESSION_DICTIONARY_BYTES );
+        deflater.setInput( getBytes( message ) );
+        deflater.finish();
+
+        final ByteArrayOutputStream frames = new ByteArrayOutputStream( message.length() / 2 + 16 );
+        final byte[]                chunk  = new byte[ MAX_CHUNK_LENGTH ];
+        int                         chunkLength;
+        do {
+            chunkLength = 0;
+            while ( chunkLength < chunk.length && !deflater.finished() )
+                chunkLength += deflater.deflate( chunk, chunkLength, chunk.length - chunkLength );
+            writeVarint( chunkLength + 1, frames );
+            frames.write( deflater.finished() ? COMPRESSED_COMMAND_ID : CHUNK_COMMAND_ID );
+            frames.write( chunk, 0, chunkLength );
+        } while ( !deflater.finished() );
+        deflater.end();
+
+        return frames.toByteArray();
+    }
+
+    /**
+     * Returns the command id of the frame starting at a position in a buffer.
+     * @param buffer buffer containing the frame
+     * @param offset position where the frame starts
+     * @return the command id of the frame
+     */
+    public static int getCommandId( final byte[] buffer, final int offset ) {
+        return buffer[ getPayloadOffset( buffer, offset ) ] & 0xff;
+    }
+
+    /**
+     * Returns the position of the payload (the command id byte) of the frame starting at a position in a buffer.
+     * @param buffer buffer containing the frame
+     * @param offset position where the frame starts
+     * @return the position of the payload of the frame
+     */
+    private static int getPayloadOffset( final byte[] buffer, final int offset ) {
+        final int[] position = new int[] { offset };
+        readVarint( buffer, position, buffer.length );
+        return position[ 0 ];
+    }
+
+    /**
+     * Returns the length of a complete frame starting at a position in a buffer.
+     * The frame must have been validated (see getCompleteFrameLength()) or encoded by this class.
+     * @param buffer buffer containing the frame
+     * @param offset position where the frame starts
+     * @return the length of the whole frame (including the length header)
+     */
+    public static int getFrameLength( final byte[] buffer, final int offset ) {
+        final int[] position      = new int[] { offset };
+        final long  payloadLength = readVarint( buffer, position, buffer.length );
+        return position[ 0 ] - offset + (int) payloadLength;
+    }
+
+    /**
+     * Returns the UTF-8 bytes of a string.
+     * @param string string whose bytes to be returned
+     * @return the UTF-8 bytes of the string
+     */
+    private static byte[] getBytes( final String string ) {
+        try {
+            return string.getBytes( CHARSET_NAME );
+        }
+        catch ( final UnsupportedEncodingException ue ) {
+            return null;   // UTF-8 is always supported
+        }
+    }
+
+    /**
+     * Returns the length of the frame starting at a position in a buffer, if the whole frame is available.
+     * @param buffer buffer containing the frame
+     * @param offset position where the frame starts
+     * @param length number of available bytes starting at offset
+     * @return the length of the whole frame (including the length header) if all of it is available; -1 otherwise
+     * @throws IOException if the length header is invalid: the frame is empty (has no command id) or longer than MAX_FRAME_LENGTH
+     */
+    public static int getCompleteFrameLength( final byte[] buffer, final int offset, final int length ) throws IOException {
+        long payloadLength = 0;
+        int  headerLength  = 0;
+        int  shift         = 0;
+
+        while ( true ) {
+            if ( headerLength >= length )
+                return -1;
+            final int b = buffer[ offset + headerLength++ ] & 0xff;
+            payloadLength |= (long) ( b & 0x7f ) << shift;
+            if ( ( b & 0x80 ) == 0 )
+                break;
+            if ( headerLength == MAX_VARINT_LENGTH )
+                throw new IOException( "Invalid frame length!" );
+            shift += 7;
+        }
+        if ( payloadLength == 0 || payloadLength > MAX_FRAME_LENGTH )
+            throw new IOException( "Invalid frame length: " + payloadLength + "!" );
+
+        return headerLength + payloadLength <= length ? (int) ( headerLength + payloadLength ) : -1;
+    }
+
+    /**
+     * Decodes a binary frame into the message it represents.
+     * @param buffer buffer containing the frame
+     * @param offset position where the frame starts
+     * @param length length of the whole frame (including the length header)
+     * @return the decoded message
+     * @throws IOException if a field runs past the end of the frame
+     */
+    public static String decodeMessage( final byte[] buffer, final int offset, final int length ) throws IOException {
+        final int[] position = new int[] { offset };
+        final int   end      = offset + length;
+        readVarint( buffer, position, end );             // We know the length already
+
+        final StringBuilder message   = new StringBuilder( length + 8 );
+        final int           commandId = buffer[ position[ 0 ]++ ] & 0xff;
+        boolean             needsSeparator;
+        if ( commandId == NO_COMMAND_ID )
+            needsSeparator = false;
+        else {
+            message.append( commandId );
+            needsSeparator = true;
+        }
+
+        while ( position[ 0 ] < end ) {
+            if ( needsSeparator )
+                message.append( GENERAL_SEPARATOR_CHAR );
+            needsSeparator = true;
+
+            final long header = readVarint( buffer, position, end );
+            if ( header < 0 )
+                throw new IOException( "Invalid field header!" );
+            if ( ( header & 0x01l ) == 0 ) {
+                final long zigzag = header >>> 1;
+                message.append( (int) ( ( zigzag >>> 1 ) ^ -( zigzag & 0x01l ) ) );
+            }
+            else {
+                final long fieldLength = header >>> 1;
+                if ( fieldLength > end - position[ 0 ] )
+                    throw new IOException( "Field length exceeds the frame: " + fieldLength + "!" );
+                try {
+                    message.append( new String( buffer, position[ 0 ], (int) fieldLength, CHARSET_NAME ) );
+                }
+                catch ( final UnsupportedEncodingException ue ) {
+                    // UTF-8 is always supported
+                }
+                position[ 0 ] += (int) fieldLength;
+            }
+        }
+
+        return message.toString();
+    }
+
+    /**
+     * Encodes a field into the output.
+     * @param field  field to be encoded
+     * @param output output to write the encoded field to
+     */
+    private static void encodeField( final String field, final ByteArrayOutputStream output ) {
+        final Integer intValue = parseCanonicalInt( field );
+        if ( intValue != null ) {
+            final long zigzag = ( ( intValue << 1 ) ^ ( intValue >> 31 ) ) & 0xffffffffl;
+            writeVarint( zigzag << 1, output );
+        }
+        else {
+            final byte[] fieldBytes = getBytes( field );
+            writeVarint( ( (long) fieldBytes.length << 1 ) | 0x01l, output );
+            output.write( fieldBytes, 0, fieldBytes.length );
+        }
+    }
+
+    /**
+     * Parses a field as an int if its textual form is the canonical form of an int
+     * (so formatting the parsed value gives back exactly the same field).
+     * @param field field to be parsed
+     * @return the int value of the field, or null if the field is not a canonical int
+     */
+    private static Integer parseCanonicalInt( final String field ) {
+        final int length = field.length();
+        if ( length == 0 || length > 11 )
+            return null;
+
+        int firstDigitIndex = field.charAt( 0 ) == '-' ? 1 : 0;
+        if ( firstDigitIndex == length )
+            return null;
+        if ( field.charAt( firstDigitIndex ) == '0' && ( length > firstDigitIndex + 1 || firstDigitIndex == 1 ) )
+            return null;   // Leading zeros and "-0" are not canonical
+
+        long value = 0;
+        for ( int i = firstDigitIndex; i < length; i++ ) {
+            final char ch = field.charAt( i );
+            if ( ch < '0' || ch > '9' )
+                return null;
+            value = value * 10 + ( ch - '0' );
+        }
+        if ( firstDigitIndex == 1 )
+            value = -value;
+
+        return value < Integer.MIN_VALUE || value > Integer.MAX_VALUE ? null : (int) value;
+    }
+
+    /**
+     * Writes an unsigned varint to the output.
+     * @param value  value to be written
+     * @param output output to write to
+     */
+    private static void writeVarint( long value, final ByteArrayOutputStream output ) {
+        while ( ( value & ~0x7fl ) != 0 ) {
+            output.write( (int) ( value & 0x7f ) | 0x80 );
+            value >>>= 7;
+        }
+        output.write( (int) value );
+    }
+
+    /**
+     * Reads an unsigned varint from a buffer.
+     * @param buffer   buffer to read from
+     * @param position position to read from; its first element is incremented by the number of bytes read
+     * @param end      position where the readable bytes end
+     * @return the value of the varint, or -1 if the varint runs past the end or is longer than MAX_VARINT_LENGTH
+     */
+    private static long readVarint( final byte[] buffer, final int[] position, final int end ) {
+        long value = 0;
+        int  shift = 0;
+        int  b;
+        do {
+            if ( position[ 0 ] >= end || shift == 7 * MAX_VARINT_LENGTH )
+                return -1;
+            b = buffer[ position[ 0 ]++ ] & 0xff;
+            value |= (long) ( b & 0x7f ) << shift;
+            shift += 7;
+        } while ( ( b & 0x80 ) != 0 );
+        return value;
+    }
+
+}
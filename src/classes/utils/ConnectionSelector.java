@@ -0,0 +1,212 @@
+/*
+ * Created on October 18, 2026
+ */
+
+package classes.utils;
+
+import java.io.IOException;
+import java.nio.channels.*;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Multiplexes the connection stubs registered to it over one selector.<br>
+ * Only those connections are selected which have complete messages to be received (or reached the end of the stream),
+ * so the messages of the returned connections can be received without blocking,
+ * and connections without complete messages do not have to be checked at all.<br>
+ * An attachment object is assigned to each registered connection stub, selecting returns these attachments.<br>
+ * Selecting also sends the queued messages of the connection stubs whose socket channel became ready for writing.<br>
+ * Loopback connection stubs have no socket channels, they signal the connection selector when a message arrives to them
+ * (the selecting thread is only woken up if it's waiting).
+ * Mapped connection stubs are told before waiting, so they get their doorbells rung only while the selecting thread is waiting.
+ *
+ * @param <AttachmentType> type of the attachments assigned to the connection stubs
+ *
+ * @author Andras Belicza
+ */
+public class ConnectionSelector< AttachmentType > {
+
+    /** The selector of the socket channels of the connection stubs.                        */
+    private final Selector                 selector;
+    /** Attachments of connection stubs having complete messages received before registration. */
+    private final List< AttachmentType >   pendingAttachments = new ArrayList< AttachmentType >();
+    /** Attachments of loopback connection stubs signaled since the last selecting.          */
+    private final Queue< Object >          signaledAttachments = new ConcurrentLinkedQueue< Object >();
+    /** The key attachments (the connection stub and its attachment) of the registered mapped connection stubs. */
+    private final List< Object[] >         mappedKeyAttachments = new CopyOnWriteArrayList< Object[] >();
+    /** Tells whether the selecting thread is (about to be) waiting for the selector.         */
+    private volatile boolean               waiting;
+
+    /**
+     * Creates a new ConnectionSelector.
+     * @throws IOException if the selector cannot be opened
+     */
+    public ConnectionSelector() throws IOException {
+        selector = Selector.open();
+    }
+
+    /**
+     * Registers a connection stub. The socket channel of the connection stub is switched to non-blocking mode.<br>
+     * Must not be called while another thread is selecting.
+     * @param connectionStub connection stub to be registered
+     * @param attachment     attachment to be assigned to the connection stub
+     * @throws IOException if I/O error occurs during the registration
+     */
+    public void register( final ConnectionStub connectionStub, final AttachmentType attachment ) throws IOException {
+        if ( connectionStub instanceof LoopbackConnectionStub ) {
+            ( (LoopbackConnectionStub) connectionStub ).setConnectionSelector( this, attachment );
+            if ( connectionStub.hasNewMessage() || connectionStub.isEndOfStreamReached() )
+                pendingAttachments.add( attachment );  // Those messages have not been signaled to us
+            return;
+        }
+
+        final SocketChannel socketChannel = connectionStub.getSocketChannel();
+        final Object[]      keyAttachment = new Object[] { connectionStub, attachment };
+        socketChannel.configureBlocking( false );
+        connectionStub.setSelectionKey( socketChannel.register( selector, SelectionKey.OP_READ, keyAttachment ) );
+        if ( connectionStub instanceof MappedConnectionStub )
+            mappedKeyAttachments.add( keyAttachment );
+        connectionStub.flushQueuedMessages();      // This sets the write interest if needed
+        if ( connectionStub.hasNewMessage() || connectionStub.isEndOfStreamReached() )
+            pendingAttachments.add( attachment );  // Those bytes will not be signaled by the selector
+    }
+
+    /**
+     * Unregisters a connection stub.
+     * @param connectionStub connection stub to be unregistered
+     */
+    public void unregister( final ConnectionStub connectionStub ) {
+        if ( connectionStub instanceof LoopbackConnectionStub ) {
+            ( (LoopbackConnectionStub) connectionStub ).setConnectionSelector( null, null );
+            return;
+        }
+
+        final SelectionKey selectionKey = connectionStub.getSocketChannel().keyFor( selector );
+        if ( selectionKey != null ) {
+            selectionKey.cancel();
+            mappedKeyAttachments.remove( selectionKey.attachment() );
+        }
+    }
+
+    /**
+     * Waits until at least one registered connection stub has a complete message, or the timeout expires,
+     * or wakeup() is called.
+     * @param timeout the maximum time to wait in ms; if 0, waits indefinitely
+     * @return the attachments of the connection stubs having complete messages or having reached the end of the stream
+     */
+    @SuppressWarnings( "unchecked" )
+    public List< AttachmentType > select( final long timeout ) {
+        final List< AttachmentType > readyAttachments = new ArrayList< AttachmentType >( pendingAttachments );
+        pendingAttachments.clear();
+        addSignaledAttachments( readyAttachments );
+        if ( readyAttachments.isEmpty() )
+            prepareMappedConnectionsToWait( readyAttachments );
+
+        try {
+            if ( readyAttachments.isEmpty() ) {
+                waiting = true;
+                if ( signaledAttachments.isEmpty() )    // Checked again after setting waiting, else a signal could be missed
+                    selector.select( timeout );
+                waiting = false;
+                addSignaledAttachments( readyAttachments );
+            }
+            else
+                selector.selectNow();
+        }
+        catch ( final IOException ie ) {
+            waiting = false;
+            return readyAttachments;
+        }
+        finally {
+            for ( final Object[] mappedKeyAttachment : mappedKeyAttachments )
+                ( (MappedConnectionStub) mappedKeyAttachment[ 0 ] ).endWaiting();
+        }
+        final int readyAttachmentsCount = readyAttachments.size();
+
+        final Iterator< SelectionKey > selectedKeys = selector.selectedKeys().iterator();
+        while ( selectedKeys.hasNext() ) {
+            final SelectionKey selectionKey = selectedKeys.next();
+            selectedKeys.remove();
+
+            final Object[]       keyAttachment  = (Object[]) selectionKey.attachment();
+            final ConnectionStub connectionStub = (ConnectionStub) keyAttachment[ 0 ];
+            if ( selectionKey.isWritable() )
+                try {
+                    connectionStub.flushQueuedMessages();
+                }
+                catch ( final IOException ie ) {
+                    connectionStub.setBroken();
+                    selectionKey.cancel();
+                }
+            if ( selectionKey.isValid() && !selectionKey.isReadable() )
+                continue;
+            if ( !connectionStub.readReceivedBytes() )
+                selectionKey.cancel();                     // The selector would signal the end of the stream over and over again
+            if ( connectionStub.hasReceivedMessage() || !selectionKey.isValid() )
+                if ( readyAttachmentsCount == 0 || !readyAttachments.subList( 0, readyAttachmentsCount ).contains( keyAttachment[ 1 ] ) )
+                    readyAttachments.add( (AttachmentType) keyAttachment[ 1 ] );
+        }
+
+        return readyAttachments;
+    }
+
+    /**
+     * Adds the attachments of the signaled loopback connection stubs to the ready attachments (each only once).
+     * @param readyAttachments the ready attachments
+     */
+    @SuppressWarnings( "unchecked" )
+    private void addSignaledAttachments( final List< AttachmentType > readyAttachments ) {
+        Object attachment;
+        while ( ( attachment = signaledAttachments.poll() ) != null )
+            if ( !readyAttachments.contains( attachment ) )
+                readyAttachments.add( (AttachmentType) attachment );
+    }
+
+    /**
+     * Tells the mapped connection stubs that the selecting thread is about to wait,
+     * and adds the attachments of the ones having messages to the ready attachments.
+     * @param readyAttachments the ready attachments
+     */
+    @SuppressWarnings( "unchecked" )
+    private void prepareMappedConnectionsToWait( final List< AttachmentType > readyAttachments ) {
+        for ( final Object[] mappedKeyAttachment : mappedKeyAttachments )
+            if ( ( (MappedConnectionStub) mappedKeyAttachment[ 0 ] ).prepareToWait() )
+                readyAttachments.add( (AttachmentType) mappedKeyAttachment[ 1 ] );
+    }
+
+    /**
+     * Signals that a message arrived to a loopback connection stub, or it reached the end of the stream.
+     * Wakes up the selecting thread if it's waiting. Can be called from any thread.
+     * @param attachment the attachment assigned to the loopback connection stub
+     */
+    void signalLoopbackConnection( final Object attachment ) {
+        signaledAttachments.add( attachment );
+        if ( waiting )
+            selector.wakeup();
+    }
+
+    /**
+     * Causes the current or the next selecting to return immediately.
+     * Can be called from any thread.
+     */
+    public void wakeup() {
+        selector.wakeup();
+    }
+
+    /**
+     * Closes the connection selector.
+     * The registered connection stubs are not closed.
+     */
+    public void close() {
+        try {
+            selector.close();
+        }
+        catch ( final IOException ie ) {
+        }
+    }
+
+}
@@ -1,78 +1,770 @@
-
 /*
  * Created on August 4, 2004
  */
 
 package classes.utils;
 
-import java.net.*;
 import java.io.*;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.LinkedList;
 
 /**
- * Represents a stub which is used to communicate with another computer.
+ * Represents a stub which is used to communicate with another computer.<br>
+ * <br>
+ * Messages can be transferred in 2 framings: in text framing each message is a line terminated with the new line character,
+ * in binary framing each message is a length-prefixed frame created by the BinaryFrameCodec.
+ * Every connection starts in text framing, and can be switched to binary framing when both ends agreed to it
+ * (see the joining protocol at the PlayerCollector javadoc).<br>
+ * <br>
+ * The stub is based on a socket channel. Initially the channel is in blocking mode,
+ * when it is registered to a ConnectionSelector, it is switched to non-blocking mode.
+ * Sending and receiving messages block in both modes until they can be completed, or until the timeout expires
+ * if a timeout is set (see setTimeout()).<br>
+ * <br>
+ * In binary framing bulk messages are transferred compressed, in chunk frames (see BinaryFrameCodec).
+ * Chunk frames are consumed as soon as they arrive, they are not counted as received messages;
+ * only the last chunk makes the whole message received.<br>
+ * <br>
+ * In non-blocking mode messages can also be queued: an outbound message is encoded at most once for each framing,
+ * and can be queued to any number of connection stubs; the queued messages are sent when the socket channel is ready for them.<br>
+ * <br>
+ * Queued messages have priorities (see Priorities): the queue has a lane of the game commands and a lane of the bulk messages
+ * (chat, options). Game commands are sent ahead of the bulk messages queued before them, so a burst of chat or a large options
+ * message does not delay the iterations. Bulk messages are queued frame by frame (in binary framing compressed messages
+ * are split into chunks), so a game command waits for at most the frame being written.
+ * Compressed game commands do not overtake the bulk messages, because the other end inflates one compressed message at a time.<br>
+ * <br>
+ * Messages can also be queued without flushing (write coalescing): the messages queued during an iteration
+ * are then sent by one gathering write when flush() is called. TCP_NODELAY is set on the socket channel, so the coalesced
+ * write is sent at once, it does not wait for the acknowledgement of the previous one (Nagle's algorithm).
+ * The system calls can be counted by TransportCounters (see setTransportCounters()).<br>
+ * <br>
+ * Connection stubs to the same process are not based on socket channels, see LoopbackConnectionStub.
+ * Connection stubs to another process on the same computer can transfer the messages through shared memory, see MappedConnectionStub.
  *
  * @author Andras Belicza
  */
 public class ConnectionStub {
 
-    /** Socket representing the communication end point of the connection. */
-    private final Socket         socket;
-    /** Buffered reader used to read/receive messages from the connection. */
-    private final BufferedReader input;
-    /** Print writer used to write/send messages to the connection.        */
-    private final PrintWriter    output;
-    
+    /**
+     * The possible framings of the messages.
+     * @author Andras Belicza
+     */
+    public enum Framings {
+        /** Text framing: messages are lines terminated with the new line character. */
+        TEXT,
+        /** Binary framing: messages are frames created by the BinaryFrameCodec.     */
+        BINARY
+    }
+
+    /**
+     * The priorities of the queued messages.
+     * @author Andras Belicza
+     */
+    public enum Priorities {
+        /** Game commands (iterations, inputs and the other commands): sent in order, ahead of the queued bulk messages. */
+        NORMAL,
+        /** Game commands which must not overtake the bulk messages queued before them
+         * (for example because they change the client indices the bulk messages refer to).                               */
+        ORDERED,
+        /** Chat and bulk data: sent after the game commands, frame by frame.                                            */
+        BULK
+    }
+
+    /**
+     * A message to be queued to connection stubs.
+     * The message is encoded lazily, at most once for each framing, so it can be queued to any number of connection stubs
+     * (and it is not encoded at all if it is queued only to loopback connection stubs).<br>
+     * Outbound messages are not thread-safe, they are to be queued by one thread.
+     * @author Andras Belicza
+     */
+    public static class OutboundMessage {
+
+        /** The message.                                                   */
+        private final String         message;
+        /** The priority of the message.                                   */
+        private final Priorities     priority;
+        /** The encoded forms of the message, indexed by the ordinal of the framings. */
+        private final ByteBuffer[]   encodedMessages = new ByteBuffer[ Framings.values().length ];
+        /** The frames of the encoded forms of the message, indexed by the ordinal of the framings. */
+        private final ByteBuffer[][] encodedFrames   = new ByteBuffer[ Framings.values().length ][];
+        /** The message encoded with binary framing (null if it has not been encoded with it yet). */
+        private byte[]               binaryMessage;
+        /** Tells whether the message is compressed in binary framing.     */
+        private boolean              compressed;
+
+        /**
+         * Creates a new OutboundMessage with normal priority.
+         * @param message the message
+         */
+        public OutboundMessage( final String message ) {
+            this( message, Priorities.NORMAL );
+        }
+
+        /**
+         * Creates a new OutboundMessage.
+         * @param message  the message
+         * @param priority the priority of the message
+         */
+        public OutboundMessage( final String message, final Priorities priority ) {
+            this.message  = message;
+            this.priority = priority;
+        }
+
+        /**
+         * Returns the message.
+         * @return the message
+         */
+        public String getMessage() {
+            return message;
+        }
+
+        /**
+         * Returns the priority of the message.
+         * @return the priority of the message
+         */
+        public Priorities getPriority() {
+            return priority;
+        }
+
+        /**
+         * Returns the message encoded with the given framing, encodes it if it has not been encoded with it yet.
+         * @param framing framing to be used
+         * @return a read-only byte buffer containing the encoded message
+         */
+        ByteBuffer getEncodedMessage( final Framings framing ) {
+            final int framingIndex = framing.ordinal();
+            if ( encodedMessages[ framingIndex ] == null ) {
+                if ( framing == Framings.BINARY ) {
+                    binaryMessage = BinaryFrameCodec.encodeMessage( message );
+                    final int commandId = BinaryFrameCodec.getCommandId( binaryMessage, 0 );
+                    compressed = commandId == BinaryFrameCodec.CHUNK_COMMAND_ID || commandId == BinaryFrameCodec.COMPRESSED_COMMAND_ID;
+                    encodedMessages[ framingIndex ] = ByteBuffer.wrap( binaryMessage ).asReadOnlyBuffer();
+                }
+                else
+                    encodedMessages[ framingIndex ] = encodeMessage( message, framing );
+            }
+            return encodedMessages[ framingIndex ];
+        }
+
+        /**
+         * Returns the frames of the message encoded with the given framing, encodes it if it has not been encoded with it yet.
+         * In text framing the message is one frame, in binary framing the chunks of a compressed message are separate frames.
+         * @param framing framing to be used
+         * @return read-only byte buffers containing the frames of the encoded message
+         */
+        ByteBuffer[] getEncodedFrames( final Framings framing ) {
+            final int framingIndex = framing.ordinal();
+            if ( encodedFrames[ framingIndex ] == null ) {
+                final ByteBuffer encodedMessage = getEncodedMessage( framing );
+                if ( framing == Framings.BINARY && compressed ) {
+                    final LinkedList< ByteBuffer > frames = new LinkedList< ByteBuffer >();
+                    for ( int offset = 0, frameLength; offset < binaryMessage.length; offset += frameLength ) {
+                        frameLength = BinaryFrameCodec.getFrameLength( binaryMessage, offset );
+                        frames.add( ByteBuffer.wrap( binaryMessage, offset, frameLength ).slice().asReadOnlyBuffer() );
+                    }
+                    encodedFrames[ framingIndex ] = frames.toArray( new ByteBuffer[ frames.size() ] );
+                }
+                else
+                    encodedFrames[ framingIndex ] = new ByteBuffer[] { encodedMessage };
+            }
+            return encodedFrames[ framingIndex ];
+        }
+
+        /**
+         * Tells whether the message must not overtake the bulk messages queued before it with the given framing:
+         * it has ordered priority, or it is compressed.
+         * @param framing framing to be used
+         * @return true if the message must not overtake the bulk messages queued before it; false otherwise
+         */
+        boolean isOrdered( final Framings framing ) {
+            getEncodedMessage( framing );
+            return priority == Priorities.ORDERED || framing == Framings.BINARY && compressed;
+        }
+
+    }
+
+    /** Initial size of the receive buffer. */
+    private static final int INITIAL_RECEIVE_BUFFER_SIZE = 4096;
+    /** Maximum size of the receive buffer, it holds a frame of the maximum length with its length header (a power of 2, reached by doubling). */
+    private static final int MAX_RECEIVE_BUFFER_SIZE     = BinaryFrameCodec.MAX_FRAME_LENGTH * 2;
+
+    /** Socket channel representing the communication end point of the connection. */
+    private final SocketChannel        socketChannel;
+    /** The framing of the messages.                                       */
+    private volatile Framings          framing                = Framings.TEXT;
+
+    /** Buffer of the received bytes which have not been processed yet.    */
+    private byte[]                     receiveBuffer          = new byte[ INITIAL_RECEIVE_BUFFER_SIZE ];
+    /** Byte buffer wrapping the receive buffer, used to read from the socket channel. */
+    private ByteBuffer                 receiveByteBuffer      = ByteBuffer.wrap( receiveBuffer );
+    /** Position of the first unprocessed byte in the receive buffer.      */
+    private int                        receiveBufferStart;
+    /** Position after the last received byte in the receive buffer.      */
+    private int                        receiveBufferEnd;
+    /** Length of the next complete message in the receive buffer
+     * (including its terminator or length header), or -1 if there is no complete message. */
+    private int                        completeMessageLength  = -1;
+    /** Tells whether the end of the stream has been reached.               */
+    private volatile boolean           endOfStreamReached;
+    /** Lock of the receiving: the connection selector may read the received bytes in another thread than the one receiving the messages. */
+    private final Object               receiveLock            = new Object();
+    /** Inflater of the compressed messages, created when the first chunk arrives. */
+    private BinaryFrameCodec.MessageInflater messageInflater;
+
+    /** Queue of the encoded game commands waiting to be sent.            */
+    private final LinkedList< ByteBuffer > outboundQueue      = new LinkedList< ByteBuffer >();
+    /** Queue of the frames of the bulk messages waiting to be sent (after the game commands). */
+    private final LinkedList< ByteBuffer > bulkQueue          = new LinkedList< ByteBuffer >();
+    /** Number of bytes in the outbound queues.                             */
+    private int                        queuedBytes;
+    /** Selection key of the socket channel at the connection selector it is registered to. */
+    private SelectionKey               selectionKey;
+    /** Counters of the system calls, or null if they are not counted. */
+    private volatile TransportCounters transportCounters;
+
+    /** Timeout of sending and receiving one message in ms, 0 means no timeout. */
+    private volatile long              timeout;
+
+    /** Selector used to wait for receivable bytes in non-blocking mode.    */
+    private Selector                   readSelector;
+    /** Selector used to wait for sendable bytes in non-blocking mode.      */
+    private Selector                   writeSelector;
+
     /**
      * Creates a new ConnectionStub.
-     * @param socket socket representing the communication end point of the connection
+     * @param socketChannel socket channel representing the communication end point of the connection
      * @throws IOException if I/O error occurs during the connection initialization
      */
-    public ConnectionStub( final Socket socket ) throws IOException {
-        this.socket = socket;
-        input       = new BufferedReader( new InputStreamReader( this.socket.getInputStream() ) );
-        output      = new PrintWriter( this.socket.getOutputStream(), true );
+    public ConnectionStub( final SocketChannel socketChannel ) throws IOException {
+        this.socketChannel = socketChannel;
+        this.socketChannel.configureBlocking( true );
+        this.socketChannel.socket().setTcpNoDelay( true );   // Messages are coalesced by us, they must not wait for acknowledgements
+    }
+
+    /**
+     * Creates a new ConnectionStub taking over the socket channel of another connection stub.
+     * The blocking mode and the timeout are kept, the selectors of the other connection stub are closed
+     * (they would keep the socket channel registered), so the other connection stub must not be used afterwards.
+     * @param connectionStub the connection stub whose socket channel to take over
+     * @throws IOException if I/O error occurs during closing the selectors
+     */
+    protected ConnectionStub( final ConnectionStub connectionStub ) throws IOException {
+        socketChannel     = connectionStub.socketChannel;
+        timeout           = connectionStub.timeout;
+        transportCounters = connectionStub.transportCounters;
+        if ( connectionStub.readSelector != null )
+            connectionStub.readSelector.close();
+        if ( connectionStub.writeSelector != null )
+            connectionStub.writeSelector.close();
+    }
+
+    /**
+     * Creates a new ConnectionStub which is not based on a socket channel.
+     * Subclasses using this must override all the methods of the connection stub accessing the socket channel.
+     */
+    protected ConnectionStub() {
+        socketChannel = null;
+    }
+
+    /**
+     * Returns the socket channel of the connection.
+     * @return the socket channel of the connection
+     */
+    SocketChannel getSocketChannel() {
+        return socketChannel;
+    }
+
+    /**
+     * Tells whether the other end of the connection is on this computer.
+     * @return true if the other end of the connection is on this computer; false otherwise
+     */
+    public boolean isLocalConnection() {
+        final InetAddress remoteAddress = socketChannel.socket().getInetAddress();
+        return remoteAddress != null && isLocalAddress( remoteAddress );
+    }
+
+    /**
+     * Tells whether an address is an address of this computer.
+     * @param address address to be tested
+     * @return true if the address is an address of this computer; false otherwise
+     */
+    public static boolean isLocalAddress( final InetAddress address ) {
+        if ( address.isLoopbackAddress() || address.isAnyLocalAddress() )
+            return true;
+        try {
+            return NetworkInterface.getByInetAddress( address ) != null;
+        }
+        catch ( final SocketException se ) {
+            return false;
+        }
+    }
+
+    /**
+     * Sets the selection key of the socket channel at the connection selector it is registered to.
+     * @param selectionKey the selection key of the socket channel
+     */
+    synchronized void setSelectionKey( final SelectionKey selectionKey ) {
+        this.selectionKey = selectionKey;
+    }
+
+    /**
+     * Sets the timeout of sending and receiving one message.<br>
+     * Blocking reads of socket channels cannot time out, so setting a timeout switches the socket channel to non-blocking mode.
+     * @param timeout the timeout in ms, 0 means no timeout
+     * @throws IOException if I/O error occurs during switching to non-blocking mode
+     */
+    public void setTimeout( final long timeout ) throws IOException {
+        this.timeout = timeout;
+        if ( timeout > 0l )
+            socketChannel.configureBlocking( false );
+    }
+
+    /**
+     * Sets the framing of the messages.<br>
+     * Must only be called when both ends agreed to the new framing,
+     * and no message has been sent in the new framing yet.
+     * @param framing the framing to be set
+     */
+    public void setFraming( final Framings framing ) {
+        this.framing          = framing;
+        completeMessageLength = -1;    // The buffered bytes must be checked again in the new framing
+    }
+
+    /**
+     * Returns the framing of the messages.
+     * @return the framing of the messages
+     */
+    public Framings getFraming() {
+        return framing;
+    }
+
+    /**
+     * Encodes a message with the given framing.
+     * @param message message to be encoded
+     * @param framing framing to be used
+     * @return a read-only byte buffer containing the encoded message
+     */
+    public static ByteBuffer encodeMessage( final String message, final Framings framing ) {
+        final ByteBuffer messageBuffer;
+        if ( framing == Framings.BINARY )
+            messageBuffer = ByteBuffer.wrap( BinaryFrameCodec.encodeMessage( message ) );
+        else {
+            final byte[] messageBytes = message.getBytes();
+            messageBuffer = ByteBuffer.allocate( messageBytes.length + 1 );
+            messageBuffer.put( messageBytes ).put( (byte) '\n' ).flip();
+        }
+        return messageBuffer.asReadOnlyBuffer();
     }
 
     /**
      * Sends a message through this connection.
+     * Blocks until the message (and the messages queued before it) have been sent.
      * @param  message message to be sent
-     * @throws IOException if I/O error occurs during sending the message
+     * @throws IOException if I/O error occurs during sending the message (SocketTimeoutException if the timeout expires)
+     */
+    public synchronized void sendMessage( final String message ) throws IOException {
+        final long deadline = getDeadline();
+        queueMessage( new OutboundMessage( message ) );
+        while ( !flushQueuedMessages() )
+            writeSelector = waitForChannel( writeSelector, SelectionKey.OP_WRITE, deadline );
+    }
+
+    /**
+     * Queues a message to be sent through this connection, and sends as much of the queue as possible without blocking.
+     * @param outboundMessage the message to be queued
+     * @return the number of bytes remained in the queue
+     * @throws IOException if I/O error occurs during sending the messages
+     * @see #queueMessage(OutboundMessage, boolean)
+     */
+    public int queueMessage( final OutboundMessage outboundMessage ) throws IOException {
+        return queueMessage( outboundMessage, true );
+    }
+
+    /**
+     * Queues a message to be sent through this connection, and optionally sends as much of the queue as possible without blocking.
+     * The outbound message is not modified, so the same outbound message can be queued to several connection stubs.<br>
+     * The message is queued to the lane of its priority (see Priorities).
+     * In blocking mode the whole queue is sent before returning if the queue is flushed.
+     * @param outboundMessage the message to be queued
+     * @param flushing        tells whether to flush the queue; if false, the message is sent by the next flush (write coalescing)
+     * @return the number of bytes remained in the queue
+     * @throws IOException if I/O error occurs during sending the messages
      */
-    public void sendMessage( final String message ) throws IOException {
-        output.println( message );
+    public synchronized int queueMessage( final OutboundMessage outboundMessage, final boolean flushing ) throws IOException {
+        final Framings framing_ = framing;
+        if ( outboundMessage.getPriority() == Priorities.BULK )
+            for ( final ByteBuffer frame : outboundMessage.getEncodedFrames( framing_ ) ) {
+                final ByteBuffer frameBuffer = frame.duplicate();   // Own position and limit
+                bulkQueue.add( frameBuffer );
+                queuedBytes += frameBuffer.remaining();
+            }
+        else {
+            if ( outboundMessage.isOrdered( framing_ ) )
+                releaseBulkQueue();
+            final ByteBuffer messageBuffer = outboundMessage.getEncodedMessage( framing_ ).duplicate();   // Own position and limit
+            outboundQueue.add( messageBuffer );
+            queuedBytes += messageBuffer.remaining();
+        }
+        if ( flushing )
+            flushQueuedMessages();
+        return queuedBytes;
+    }
+
+    /**
+     * Sends as much of the queued messages as possible without blocking (or all of them in blocking mode).
+     * The rest is sent when the socket channel is ready for it (if this is registered to a connection selector).
+     * @return the number of bytes remained in the queue
+     * @throws IOException if I/O error occurs during sending the messages
+     */
+    public int flush() throws IOException {
+        flushQueuedMessages();
+        return getQueuedBytes();
+    }
+
+    /**
+     * Sets the counters of the system calls of this connection.
+     * @param transportCounters the counters of the system calls, or null if they are not to be counted
+     */
+    public void setTransportCounters( final TransportCounters transportCounters ) {
+        this.transportCounters = transportCounters;
+    }
+
+    /**
+     * Returns the counters of the system calls of this connection.
+     * @return the counters of the system calls, or null if they are not counted
+     */
+    protected TransportCounters getTransportCounters() {
+        return transportCounters;
+    }
+
+    /**
+     * Moves the frames of the bulk queue to the end of the outbound queue, so the messages queued from now on do not overtake them.
+     * The frame being written stays at the head of the bulk queue, it is written first anyway.
+     */
+    private void releaseBulkQueue() {
+        final ByteBuffer frameBeingWritten = isBulkFrameBeingWritten() ? bulkQueue.removeFirst() : null;
+        outboundQueue.addAll( bulkQueue );
+        bulkQueue.clear();
+        if ( frameBeingWritten != null )
+            bulkQueue.add( frameBeingWritten );
+    }
+
+    /**
+     * Tells whether the frame at the head of the bulk queue has been partly written, so it has to be finished first.
+     * @return true if the frame at the head of the bulk queue has been partly written; false otherwise
+     */
+    private boolean isBulkFrameBeingWritten() {
+        return !bulkQueue.isEmpty() && bulkQueue.getFirst().position() > 0;
+    }
+
+    /**
+     * Returns the number of bytes waiting in the outbound queue.
+     * @return the number of bytes waiting in the outbound queue
+     */
+    public synchronized int getQueuedBytes() {
+        return queuedBytes;
     }
-    
+
+    /**
+     * Sends as much of the queued messages as possible without blocking (or all of them in blocking mode).
+     * The game commands are sent first, then the bulk frames; except a partly written bulk frame, which is finished first.
+     * If the queues do not become empty, the connection selector (if registered) will call this again
+     * when the socket channel is ready for writing.
+     * @return true if the outbound queues became empty; false otherwise
+     * @throws IOException if I/O error occurs during sending the messages
+     */
+    synchronized boolean flushQueuedMessages() throws IOException {
+        while ( !outboundQueue.isEmpty() || !bulkQueue.isEmpty() ) {
+            final ByteBuffer[] buffers = new ByteBuffer[ outboundQueue.size() + bulkQueue.size() ];
+            int i = 0;
+            final boolean bulkFrameBeingWritten = isBulkFrameBeingWritten();
+            if ( bulkFrameBeingWritten )
+                buffers[ i++ ] = bulkQueue.getFirst();
+            for ( final ByteBuffer buffer : outboundQueue )
+                buffers[ i++ ] = buffer;
+            for ( final ByteBuffer buffer : bulkFrameBeingWritten ? bulkQueue.subList( 1, bulkQueue.size() ) : bulkQueue )
+                buffers[ i++ ] = buffer;
+            
+            final long writtenBytes = socketChannel.write( buffers );   // One gathering write for the whole queue
+            final TransportCounters transportCounters_ = transportCounters;
+            if ( transportCounters_ != null )
+                transportCounters_.countWriteCall( writtenBytes );
+            queuedBytes -= writtenBytes;
+            while ( !outboundQueue.isEmpty() && !outboundQueue.getFirst().hasRemaining() )
+                outboundQueue.removeFirst();
+            while ( !bulkQueue.isEmpty() && !bulkQueue.getFirst().hasRemaining() )
+                bulkQueue.removeFirst();
+            if ( writtenBytes == 0l )
+                break;
+        }
+
+        final boolean queueEmpty = outboundQueue.isEmpty() && bulkQueue.isEmpty();
+        if ( selectionKey != null && selectionKey.isValid() ) {
+            final int interestOps = queueEmpty ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE;
+            if ( selectionKey.interestOps() != interestOps ) {
+                selectionKey.interestOps( interestOps );
+                if ( !queueEmpty )
+                    selectionKey.selector().wakeup();   // The selecting thread may be another one, it has to notice the new interest
+            }
+        }
+        return queueEmpty;
+    }
+
     /**
-     * Checks whether new message is ready to be read/received.
+     * Checks whether new message is ready to be read/received.<br>
+     * Returns true only if a complete message has been received, so receiveMessage() will not block after this returned true.<br>
+     * In blocking mode only the bytes already received by previous calls are checked.
      * @return true if new message is ready to be read/received; false otherwise
      */
     public boolean hasNewMessage() {
-        try {
-            return input.ready();  // Well... this would return true if we don't have a new line just a few characters without '\n'... but this implementation is the simpliest
+        synchronized ( receiveLock ) {
+            if ( findCompleteMessage() )
+                return true;
+            if ( !socketChannel.isBlocking() )
+                readReceivedBytes();
+            return findCompleteMessage();
         }
-        catch ( final IOException ie ) {
-            return false;
+    }
+
+    /**
+     * Checks whether a complete message has already been received, without reading from the connection.<br>
+     * Processing only the received messages limits the time spent with one connection
+     * (the rest of the arrived bytes will be signaled again by the connection selector).
+     * @return true if a complete message has already been received; false otherwise
+     */
+    public boolean hasReceivedMessage() {
+        synchronized ( receiveLock ) {
+            return findCompleteMessage();
         }
     }
 
+    /**
+     * Tells whether the end of the stream has been reached: the other end closed the connection or the connection is broken.
+     * @return true if the end of the stream has been reached; false otherwise
+     */
+    public boolean isEndOfStreamReached() {
+        return endOfStreamReached;
+    }
+
+    /**
+     * Signs that the connection is broken, so it is considered to have reached the end of the stream.
+     */
+    public void setBroken() {
+        endOfStreamReached = true;
+    }
+
     /**
      * Receives and returns the next message from this connection.
-     * @return the received message
-     * @throws IOException if I/O error occurs during sending the message
+     * Blocks until a complete message arrives.
+     * @return the received message, or null if the end of the stream has been reached
+     * @throws IOException if I/O error occurs during sending the message (SocketTimeoutException if the timeout expires)
      */
     public String receiveMessage() throws IOException {
-        return input.readLine();
+        synchronized ( receiveLock ) {
+            final long deadline = getDeadline();
+            while ( !findCompleteMessage() ) {
+                if ( endOfStreamReached )
+                    return null;
+                if ( readToReceiveBuffer() == 0 )
+                    readSelector = waitForChannel( readSelector, SelectionKey.OP_READ, deadline );
+            }
+
+            final String message;
+            if ( framing == Framings.BINARY )
+                try {
+                    message = BinaryFrameCodec.getCommandId( receiveBuffer, receiveBufferStart ) == BinaryFrameCodec.COMPRESSED_COMMAND_ID
+                              ? getMessageInflater().finishMessage( receiveBuffer, receiveBufferStart, completeMessageLength )
+                              : BinaryFrameCodec.decodeMessage( receiveBuffer, receiveBufferStart, completeMessageLength );
+                }
+                catch ( final IOException ie ) {
+                    handleFramingViolation();
+                    throw ie;
+                }
+            else {
+                int messageEnd = receiveBufferStart + completeMessageLength - 1;                        // Excluding the '\n'
+                if ( messageEnd > receiveBufferStart && receiveBuffer[ messageEnd - 1 ] == '\r' )
+                    messageEnd--;
+                message = new String( receiveBuffer, receiveBufferStart, messageEnd - receiveBufferStart );
+            }
+
+            receiveBufferStart   += completeMessageLength;
+            completeMessageLength = -1;
+            return message;
+        }
+    }
+
+    /**
+     * Reads the bytes that have been received from the non-blocking socket channel to the receive buffer,
+     * at most until the receive buffer is full.
+     * If I/O error occurs, the connection is considered to have reached the end of the stream.
+     * @return false if the end of the stream has been reached; true otherwise
+     */
+    boolean readReceivedBytes() {
+        synchronized ( receiveLock ) {
+            try {
+                if ( receiveBufferStart == 0 && receiveBufferEnd == receiveBuffer.length && findCompleteMessage() )
+                    return true;                 // The buffer is full of messages waiting to be processed
+                while ( readToReceiveBuffer() > 0 && receiveBufferEnd < receiveBuffer.length )
+                    ;
+            }
+            catch ( final IOException ie ) {
+                endOfStreamReached = true;
+            }
+            return !endOfStreamReached;
+        }
+    }
+
+    /**
+     * Checks whether there is a complete message in the receive buffer, and stores its length if there is.
+     * @return true if there is a complete message in the receive buffer; false otherwise
+     */
+    private boolean findCompleteMessage() {
+        if ( completeMessageLength >= 0 )
+            return true;
+
+        if ( framing == Framings.BINARY )
+            try {
+                while ( ( completeMessageLength = BinaryFrameCodec.getCompleteFrameLength( receiveBuffer, receiveBufferStart, receiveBufferEnd - receiveBufferStart ) ) >= 0
+                        && BinaryFrameCodec.getCommandId( receiveBuffer, receiveBufferStart ) == BinaryFrameCodec.CHUNK_COMMAND_ID ) {
+                    getMessageInflater().addChunk( receiveBuffer, receiveBufferStart, completeMessageLength );   // Chunks are consumed right away
+                    receiveBufferStart   += completeMessageLength;
+                    completeMessageLength = -1;
+                }
+            }
+            catch ( final IOException ie ) {
+                handleFramingViolation();
+            }
+        else
+            for ( int i = receiveBufferStart; i < receiveBufferEnd; i++ )
+                if ( receiveBuffer[ i ] == '\n' ) {
+                    completeMessageLength = i - receiveBufferStart + 1;
+                    break;
+                }
+
+        return completeMessageLength >= 0;
+    }
+
+    /**
+     * Handles a framing violation of the other end: the received bytes are dropped (the message boundaries are lost),
+     * and the connection is considered broken.
+     */
+    private void handleFramingViolation() {
+        receiveBufferStart    = receiveBufferEnd;
+        completeMessageLength = -1;
+        endOfStreamReached    = true;
     }
-    
+
+    /**
+     * Returns the inflater of the compressed messages, creates it if it does not exist yet.
+     * @return the inflater of the compressed messages
+     */
+    private BinaryFrameCodec.MessageInflater getMessageInflater() {
+        if ( messageInflater == null )
+            messageInflater = new BinaryFrameCodec.MessageInflater();
+        return messageInflater;
+    }
+
+    /**
+     * Reads bytes from the socket channel to the receive buffer.
+     * If the receive buffer is full, it is compacted, or extended if it's full with one incomplete message.
+     * A message which does not fit into a buffer of MAX_RECEIVE_BUFFER_SIZE is a framing violation, and is handled like the end of the stream.
+     * In blocking mode blocks until at least 1 byte is available.
+     * @return the number of bytes read, or -1 if the end of the stream has been reached
+     * @throws IOException if I/O error occurs during reading
+     */
+    private int readToReceiveBuffer() throws IOException {
+        if ( receiveBufferEnd == receiveBuffer.length ) {
+            final int unprocessedBytes = receiveBufferEnd - receiveBufferStart;
+            if ( unprocessedBytes == MAX_RECEIVE_BUFFER_SIZE ) {
+                handleFramingViolation();
+                return -1;
+            }
+            final byte[] newReceiveBuffer = unprocessedBytes == receiveBuffer.length ? new byte[ receiveBuffer.length * 2 ] : receiveBuffer;
+            System.arraycopy( receiveBuffer, receiveBufferStart, newReceiveBuffer, 0, unprocessedBytes );
+            if ( newReceiveBuffer != receiveBuffer ) {
+                receiveBuffer     = newReceiveBuffer;
+                receiveByteBuffer = ByteBuffer.wrap( receiveBuffer );
+            }
+            receiveBufferStart = 0;
+            receiveBufferEnd   = unprocessedBytes;
+        }
+
+        receiveByteBuffer.limit( receiveBuffer.length ).position( receiveBufferEnd );
+        final int readBytes = socketChannel.read( receiveByteBuffer );
+        final TransportCounters transportCounters_ = transportCounters;
+        if ( transportCounters_ != null )
+            transportCounters_.countReadCall();
+        if ( readBytes > 0 )
+            receiveBufferEnd += readBytes;
+        else if ( readBytes < 0 )
+            endOfStreamReached = true;
+        return readBytes;
+    }
+
+    /**
+     * Returns the deadline of an operation started now based on the timeout.
+     * @return the deadline of an operation started now in ns (System.nanoTime()), or 0 if there is no timeout
+     */
+    protected long getDeadline() {
+        final long timeout_ = timeout;
+        return timeout_ > 0l ? System.nanoTime() + timeout_ * 1000000l : 0l;
+    }
+
+    /**
+     * Waits until the non-blocking socket channel is ready for an operation.
+     * @param selector  selector to be used to wait, or null if it has not been opened yet
+     * @param operation the operation to wait for
+     * @param deadline  deadline of the operation in ns (System.nanoTime()), or 0 if there is no deadline
+     * @return the selector used to wait
+     * @throws IOException if I/O error occurs during waiting, SocketTimeoutException if the deadline is over,
+     *                     InterruptedIOException if the thread has been interrupted
+     */
+    protected Selector waitForChannel( Selector selector, final int operation, final long deadline ) throws IOException {
+        if ( selector == null ) {
+            selector = Selector.open();
+            socketChannel.register( selector, operation );
+        }
+        if ( deadline == 0l )
+            selector.select();
+        else {
+            final long remainingTime = ( deadline - System.nanoTime() ) / 1000000l;
+            if ( remainingTime <= 0l )
+                throw new SocketTimeoutException( "Connection timed out!" );
+            selector.select( remainingTime );
+        }
+        selector.selectedKeys().clear();
+        if ( Thread.currentThread().isInterrupted() )
+            throw new InterruptedIOException( "Waiting for the connection has been interrupted!" );
+        return selector;
+    }
+
     /**
      * Closes this connection stub.
      */
     public void close() {
+        if ( !socketChannel.isBlocking() )
+            try {
+                flushQueuedMessages();       // Last chance for the queued messages, without blocking
+            }
+            catch ( final IOException ie ) {
+            }
         try {
-            socket.close();
+            socketChannel.close();
+            if ( readSelector != null )
+                readSelector.close();
+            if ( writeSelector != null )
+                writeSelector.close();
         }
         catch ( final IOException ie ) {
         }
+        if ( messageInflater != null )
+            messageInflater.end();
     }
-        
+
 }
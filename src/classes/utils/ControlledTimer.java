@@ -14,18 +14,24 @@ package classes.utils;
  * If the timeable object is not ready, we wait until it'll be ready, and the next signalingNextIteration() call
  * will be not sooner then T after the last call of signalingNextIteration().
  * When all is said and done: calls of signalingNextIteration() will be not more frequently than f, but as frequently as possible,
- * as frequently as the timeable object is ready for it.
+ * as frequently as the timeable object is ready for it.<br>
+ * The timer thread does not poll: it waits until it is notified about the readiness,
+ * and then until the deadline of the next iteration.
  *
  * @author Andras Belicza
  */
-public class ControlledTimer extends ControlledThread {
+public class ControlledTimer extends ControlledThread implements IterationTimer {
 
     /** Object to be timed.                                                */
     private final Timeable   timeable;
     /** Period time of timing in ms.                                       */
     private volatile long    periodTime;
     /** Tells whether the timeable object is ready for the next iteration. */
-    private volatile boolean readyForNextIteration = false;
+    private boolean          readyForNextIteration = false;
+    /** Time of the last signaling in ms.                                  */
+    private long             lastSignalingTime     = System.nanoTime() / 1000000l;
+    /** Lock object used to wait for the readiness and for the cancel.    */
+    private final Object     lock                  = new Object();
 
     /**
      * Creates a new ControlledTimer.
@@ -43,14 +49,20 @@ public class ControlledTimer extends ControlledThread {
     public void run() {
         try {
             while ( !requestedToCancel ) {
-                final long timeToWaitBeforeNextCheck = periodTime / 25l + 1l;
-                while ( !requestedToCancel && !readyForNextIteration )
-                    sleep( timeToWaitBeforeNextCheck );
-                sleep( periodTime );
-                if ( !requestedToCancel ) {
+                synchronized ( lock ) {
+                    while ( !requestedToCancel && !readyForNextIteration )
+                        lock.wait();
+
+                    long timeToWait;
+                    while ( !requestedToCancel && ( timeToWait = lastSignalingTime + periodTime - System.nanoTime() / 1000000l ) > 0l )
+                        lock.wait( timeToWait );
+
+                    if ( requestedToCancel )
+                        break;
                     readyForNextIteration = false;
-                    timeable.signalingNextIteration();
+                    lastSignalingTime     = System.nanoTime() / 1000000l;
                 }
+                timeable.signalingNextIteration();
             }
         }
         catch ( final InterruptedException ie ) {
@@ -59,17 +71,34 @@ public class ControlledTimer extends ControlledThread {
 
     /**
      * Sets the desireabled timing frequency.
+     * The timing restarts: the next signaling will be not sooner than a whole period after this call.
      * @param frequency the desirabled timing frequency
      */
     public void setFrequency( final int frequency ) {
-        periodTime = 1000 / frequency;
+        synchronized ( lock ) {
+            periodTime        = 1000 / frequency;
+            lastSignalingTime = System.nanoTime() / 1000000l;
+        }
     }
     
     /**
      * Sets that timeable object is ready for next iteration.
      */
     public void setReadyForNextIteration() {
-        readyForNextIteration = true;
+        synchronized ( lock ) {
+            readyForNextIteration = true;
+            lock.notify();
+        }
+    }
+
+    /**
+     * Requests to cancel, and wakes up the timer thread if it's waiting.
+     */
+    protected void requestToCancel() {
+        synchronized ( lock ) {
+            super.requestToCancel();
+            lock.notify();
+        }
     }
 
 }
@@ -0,0 +1,77 @@
+/*
+ * Created on October 18, 2026
+ */
+
+package classes.utils;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Measures the CPU usage of a group of threads.<br>
+ * The CPU usage is the CPU time consumed by the threads divided by the elapsed wall time,
+ * measured between the consecutive calls of measureCpuUsage().
+ *
+ * @author Andras Belicza
+ */
+public class CpuUsageMeter {
+
+    /** The thread management bean used to query the CPU times.          */
+    private final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+    /** The threads to be measured.                                        */
+    private final Thread[]     threads;
+    /** Sum of the CPU times of the threads at the last measurement in ns. */
+    private long               lastCpuTime;
+    /** Wall time of the last measurement in ns.                           */
+    private long               lastWallTime;
+
+    /**
+     * Creates a new CpuUsageMeter, and starts the first measurement.
+     * @param threads the threads to be measured
+     */
+    public CpuUsageMeter( final Thread... threads ) {
+        this.threads = threads;
+        lastCpuTime  = getCpuTime();
+        lastWallTime = System.nanoTime();
+    }
+
+    /**
+     * Tells whether measuring the CPU time of threads is supported by the JVM.
+     * @return true if measuring the CPU time of threads is supported; false otherwise
+     */
+    public boolean isSupported() {
+        return threadMXBean.isThreadCpuTimeSupported() && threadMXBean.isThreadCpuTimeEnabled();
+    }
+
+    /**
+     * Returns the CPU usage of the threads since the last measurement (or since the creation), and starts a new measurement.
+     * @return the CPU usage of the threads in percent of one core
+     */
+    public synchronized double measureCpuUsage() {
+        final long cpuTime  = getCpuTime();
+        final long wallTime = System.nanoTime();
+
+        final double cpuUsage = wallTime > lastWallTime ? 100.0 * Math.max( cpuTime - lastCpuTime, 0l ) / ( wallTime - lastWallTime ) : 0.0;   // Dead threads decrease the sum
+
+        lastCpuTime  = cpuTime;
+        lastWallTime = wallTime;
+        return cpuUsage;
+    }
+
+    /**
+     * Returns the sum of the CPU times of the threads.
+     * Threads which are not alive are not counted.
+     * @return the sum of the CPU times of the threads in ns
+     */
+    private long getCpuTime() {
+        long cpuTime = 0l;
+        if ( isSupported() )
+            for ( final Thread thread : threads ) {
+                final long threadCpuTime = threadMXBean.getThreadCpuTime( thread.getId() );
+                if ( threadCpuTime > 0l )
+                    cpuTime += threadCpuTime;
+            }
+        return cpuTime;
+    }
+
+}
@@ -0,0 +1,38 @@
+/*
+ * Created on October 18, 2026
+ */
+
+package classes.utils;
+
+/**
+ * A confirmable timer of iterations.<br>
+ * The timed object (a Timeable) is signaled that its next iteration may begin not more frequently than the timing frequency,
+ * and only after it confirmed that it is ready for the next iteration.
+ *
+ * @author Andras Belicza
+ */
+public interface IterationTimer {
+
+    /**
+     * Starts the timing.
+     */
+    void start();
+
+    /**
+     * Sets the desireabled timing frequency.
+     * The timing restarts: the next signaling will be not sooner than a whole period after this call.
+     * @param frequency the desirabled timing frequency
+     */
+    void setFrequency( int frequency );
+
+    /**
+     * Sets that timeable object is ready for next iteration.
+     */
+    void setReadyForNextIteration();
+
+    /**
+     * Shuts down the timer: no more signaling will happen.
+     */
+    void shutDown();
+
+}
@@ -0,0 +1,241 @@
+/*
+ * Created on October 18, 2026
+ */
+
+package classes.utils;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A connection stub to the other end of the connection in the same process.<br>
+ * Loopback connection stubs are created in pairs, each end has a lock-free queue of the messages sent by the other end.
+ * The messages are passed as strings: they are neither encoded nor decoded, and no system call is made to transfer them
+ * (the receiving thread is only woken up if it's waiting).<br>
+ * <br>
+ * The contract is the same as of the ConnectionStub: sending and queueing messages never block (the queues are unbounded),
+ * receiving messages blocks until a message arrives, or until the timeout expires if a timeout is set.
+ * The framing is ignored. Loopback connection stubs can be registered to connection selectors as well.
+ *
+ * @author Andras Belicza
+ */
+public class LoopbackConnectionStub extends ConnectionStub {
+
+    /** The other end of the connection.                                        */
+    private final LoopbackConnectionStub peer;
+    /** Queue of the messages sent by the other end which have not been received yet. */
+    private final Queue< String >        inboundQueue      = new ConcurrentLinkedQueue< String >();
+    /** Number of characters in the inbound queue.                                */
+    private final AtomicInteger          inboundQueueChars = new AtomicInteger();
+    /** Tells whether this end has been closed.                                   */
+    private volatile boolean             closed;
+    /** Tells whether this end has been signed as broken.                         */
+    private volatile boolean             broken;
+    /** Timeout of receiving one message in ms, 0 means no timeout.               */
+    private volatile long                timeout;
+    /** The thread waiting for a message to arrive, or null if no thread is waiting. */
+    private volatile Thread              receivingThread;
+
+    /** The connection selector this end is registered to, or null if it's not registered. */
+    private volatile ConnectionSelector< ? > connectionSelector;
+    /** The attachment assigned to this end by the connection selector.         */
+    private volatile Object                  attachment;
+
+    /**
+     * Creates a new LoopbackConnectionStub, and its peer, the other end of the connection.
+     */
+    public LoopbackConnectionStub() {
+        peer = new LoopbackConnectionStub( this );
+    }
+
+    /**
+     * Creates a new LoopbackConnectionStub being the other end of a connection.
+     * @param peer the other end of the connection
+     */
+    private LoopbackConnectionStub( final LoopbackConnectionStub peer ) {
+        this.peer = peer;
+    }
+
+    /**
+     * Returns the other end of the connection.
+     * @return the other end of the connection
+     */
+    public LoopbackConnectionStub getPeer() {
+        return peer;
+    }
+
+    /**
+     * The other end of the connection is in this process.
+     * @return always true
+     */
+    public boolean isLocalConnection() {
+        return true;
+    }
+
+    /**
+     * Sets the connection selector this end is registered to.
+     * @param connectionSelector the connection selector, or null if this end is unregistered
+     * @param attachment         the attachment assigned to this end by the connection selector
+     */
+    void setConnectionSelector( final ConnectionSelector< ? > connectionSelector, final Object attachment ) {
+        this.attachment         = attachment;
+        this.connectionSelector = connectionSelector;
+    }
+
+    /**
+     * Sets the timeout of receiving one message.
+     * @param timeout the timeout in ms, 0 means no timeout
+     */
+    public void setTimeout( final long timeout ) {
+        this.timeout = timeout;
+    }
+
+    /**
+     * Sends a message to the other end. Never blocks.
+     * @param  message message to be sent
+     * @throws IOException if the connection has been closed
+     */
+    public void sendMessage( final String message ) throws IOException {
+        if ( closed || peer.closed )
+            throw new IOException( "Connection closed!" );
+        peer.inboundQueue.add( message );
+        peer.inboundQueueChars.addAndGet( message.length() );
+        peer.signal();
+    }
+
+    /**
+     * Queues a message to the other end. The message is not encoded, and its priority and the flushing are ignored:
+     * it is passed to the other end right away (no system call is saved by coalescing), so it never waits behind bulk messages.
+     * Never blocks.
+     * @param outboundMessage the message to be queued
+     * @param flushing        ignored
+     * @return the number of characters waiting in the inbound queue of the other end
+     * @throws IOException if the connection has been closed
+     */
+    public int queueMessage( final OutboundMessage outboundMessage, final boolean flushing ) throws IOException {
+        sendMessage( outboundMessage.getMessage() );
+        return getQueuedBytes();
+    }
+
+    /**
+     * Returns the number of characters waiting in the inbound queue of the other end.
+     * @return the number of characters waiting in the inbound queue of the other end
+     */
+    public int getQueuedBytes() {
+        return peer.inboundQueueChars.get();
+    }
+
+    /**
+     * There is nothing to be flushed, messages are passed to the other end right away.
+     * @return always true
+     */
+    boolean flushQueuedMessages() {
+        return true;
+    }
+
+    /**
+     * Checks whether new message is ready to be received.
+     * @return true if new message is ready to be received; false otherwise
+     */
+    public boolean hasNewMessage() {
+        return !inboundQueue.isEmpty();
+    }
+
+    /**
+     * Checks whether new message is ready to be received.
+     * @return true if new message is ready to be received; false otherwise
+     */
+    public boolean hasReceivedMessage() {
+        return !inboundQueue.isEmpty();
+    }
+
+    /**
+     * Tells whether the end of the stream has been reached: either end closed the connection or the connection is broken.
+     * @return true if the end of the stream has been reached; false otherwise
+     */
+    public boolean isEndOfStreamReached() {
+        return closed || broken || peer.closed;
+    }
+
+    /**
+     * Signs that the connection is broken, so it is considered to have reached the end of the stream.
+     */
+    public void setBroken() {
+        broken = true;
+        signal();
+    }
+
+    /**
+     * Receives and returns the next message from the other end.
+     * Blocks until a message arrives.
+     * @return the received message, or null if the end of the stream has been reached
+     * @throws IOException SocketTimeoutException if the timeout expires, InterruptedIOException if the thread has been interrupted
+     */
+    public String receiveMessage() throws IOException {
+        final long timeout_ = timeout;
+        final long deadline = timeout_ > 0l ? System.nanoTime() + timeout_ * 1000000l : 0l;
+
+        String message;
+        while ( ( message = inboundQueue.poll() ) == null ) {
+            if ( isEndOfStreamReached() )
+                return inboundQueue.poll();   // The messages sent before closing have already been queued
+
+            receivingThread = Thread.currentThread();
+            if ( inboundQueue.isEmpty() && !isEndOfStreamReached() ) {   // Checked again after publishing the receiving thread
+                if ( deadline == 0l )
+                    LockSupport.park( this );
+                else {
+                    final long remainingTime = deadline - System.nanoTime();
+                    if ( remainingTime <= 0l ) {
+                        receivingThread = null;
+                        throw new SocketTimeoutException( "Connection timed out!" );
+                    }
+                    LockSupport.parkNanos( this, remainingTime );
+                }
+            }
+            receivingThread = null;
+            if ( Thread.currentThread().isInterrupted() )
+                throw new InterruptedIOException( "Waiting for the connection has been interrupted!" );
+        }
+
+        inboundQueueChars.addAndGet( -message.length() );
+        return message;
+    }
+
+    /**
+     * Tells whether the end of the stream has not been reached. There is nothing to be read.
+     * @return false if the end of the stream has been reached; true otherwise
+     */
+    boolean readReceivedBytes() {
+        return !isEndOfStreamReached();
+    }
+
+    /**
+     * Wakes up the thread waiting for a message, and signals the connection selector this end is registered to.
+     */
+    private void signal() {
+        final Thread receivingThread_ = receivingThread;
+        if ( receivingThread_ != null )
+            LockSupport.unpark( receivingThread_ );
+        final ConnectionSelector< ? > connectionSelector_ = connectionSelector;
+        if ( connectionSelector_ != null )
+            connectionSelector_.signalLoopbackConnection( attachment );
+    }
+
+    /**
+     * Closes this end of the connection. The messages sent before closing can still be received by the other end.
+     */
+    public void close() {
+        closed = true;
+        inboundQueue.clear();
+        inboundQueueChars.set( 0 );
+        signal();
+        peer.signal();
+    }
+
+}
@@ -0,0 +1,495 @@
+/*
+ * Created on October 18, 2026
+ */
+
+package classes.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.LinkedList;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A connection stub to another process on the same computer, transferring the messages through a memory-mapped file.<br>
+ * <br>
+ * The file holds 2 ring buffers, one for each direction, each having a single producer and a single consumer.
+ * A message is a record in a ring buffer: its length followed by its bytes (encoded like in text framing, the framing is ignored),
+ * so no system call and no kernel copy is needed to transfer it.<br>
+ * <br>
+ * The socket connection the shared memory was negotiated on (see the joining protocol at the PlayerCollector javadoc) is kept:
+ * its end of stream tells that the other end has left, and it carries the doorbells. When a consumer is about to wait,
+ * it sets its waiting flag in the ring buffer, and the producer sends one byte through the socket only if the flag is set.
+ * So a busy consumer is never signaled, and a waiting consumer can wait in a connection selector like for socket connection stubs.
+ * If a ring buffer is full, the messages are queued, and the producer sets its waiting flag: the consumer rings the doorbell
+ * of the producer when it made room. Queued bulk messages (see ConnectionStub.Priorities) are written into the ring buffer
+ * only when no game command is waiting; a record is never split, so the frame of a bulk message is the whole message.<br>
+ * <br>
+ * The file is created by the server end (see createFile()). The client end checks the magic number and the nonce
+ * of the file before using it, so a remote server cannot make a client write into a file of the client's computer.
+ *
+ * @author Andras Belicza
+ */
+public class MappedConnectionStub extends ConnectionStub {
+
+    /** Magic number at the beginning of the file.                                  */
+    private static final int  MAGIC_NUMBER     = 0x424D5348;
+    /** Position of the magic number in the file.                                   */
+    private static final int  MAGIC_POSITION   = 0;
+    /** Position of the nonce in the file (a random number chosen by the client).   */
+    private static final int  NONCE_POSITION   = 8;
+    /** Size of the header of the file (a cache line).                               */
+    private static final int  HEADER_SIZE      = 64;
+
+    /** Position of the write position in the header of a ring buffer (written by the producer). */
+    private static final int  WRITE_POSITION   = 0;
+    /** Position of the waiting flag of the producer in the header of a ring buffer. */
+    private static final int  PRODUCER_WAITING = 4;
+    /** Position of the read position in the header of a ring buffer (written by the consumer, on another cache line). */
+    private static final int  READ_POSITION    = 64;
+    /** Position of the waiting flag of the consumer in the header of a ring buffer. */
+    private static final int  CONSUMER_WAITING = 68;
+    /** Size of the header of a ring buffer.                                        */
+    private static final int  RING_HEADER_SIZE = 128;
+    /** Capacity of a ring buffer in bytes, must be a power of 2.                   */
+    private static final int  RING_CAPACITY    = 1 << 20;
+    /** Size of a ring buffer including its header.                                 */
+    private static final int  RING_SIZE        = RING_HEADER_SIZE + RING_CAPACITY;
+
+    /** Position of the ring buffer of the messages sent by the server end.         */
+    private static final int  SERVER_RING      = HEADER_SIZE;
+    /** Position of the ring buffer of the messages sent by the client end.         */
+    private static final int  CLIENT_RING      = HEADER_SIZE + RING_SIZE;
+    /** Size of the file.                                                           */
+    private static final long FILE_SIZE        = HEADER_SIZE + 2 * RING_SIZE;
+
+    /** The mapped file.                                                            */
+    private final MappedByteBuffer         mappedBuffer;
+    /** View of the mapped file used by the producer.                                */
+    private final ByteBuffer               producerView;
+    /** View of the mapped file used by the consumer.                                */
+    private final ByteBuffer               consumerView;
+    /** Position of the ring buffer this end produces.                               */
+    private final int                      outboundRing;
+    /** Position of the ring buffer this end consumes.                               */
+    private final int                      inboundRing;
+
+    /** Queue of the game commands which did not fit into the outbound ring buffer.  */
+    private final LinkedList< ByteBuffer > outboundQueue  = new LinkedList< ByteBuffer >();
+    /** Queue of the bulk messages waiting to be written after the game commands.    */
+    private final LinkedList< ByteBuffer > bulkQueue      = new LinkedList< ByteBuffer >();
+    /** Number of bytes in the outbound queues.                                       */
+    private int                            queuedBytes;
+
+    /** Lock of the consuming: the connection selector may read the doorbells in another thread than the one receiving the messages. */
+    private final Object                   receiveLock    = new Object();
+    /** Buffer to read the doorbells into.                                           */
+    private final ByteBuffer               doorbellBuffer = ByteBuffer.allocate( 64 );
+    /** Selector used to wait for doorbells in non-blocking mode.                    */
+    private Selector                       readSelector;
+    /** Field used as a memory fence: the accesses of the mapped file are ordered by the volatile accesses of this field
+     * (see releaseFence(), acquireFence() and fullFence()).                        */
+    private volatile int                   fence;
+
+    /**
+     * Creates the file of a shared memory connection. Called by the server end.
+     * @param nonce the nonce chosen by the client
+     * @return the created file
+     * @throws IOException if I/O error occurs during creating the file
+     */
+    public static File createFile( final long nonce ) throws IOException {
+        final File file = File.createTempFile( "bombermen", ".shm" );
+        file.deleteOnExit();
+        try {
+            final RandomAccessFile randomAccessFile = new RandomAccessFile( file, "rw" );
+            try {
+                randomAccessFile.setLength( FILE_SIZE );
+                randomAccessFile.seek( MAGIC_POSITION );
+                randomAccessFile.writeInt( MAGIC_NUMBER );
+                randomAccessFile.seek( NONCE_POSITION );
+                randomAccessFile.writeLong( nonce );
+            }
+            finally {
+                randomAccessFile.close();
+            }
+        }
+        catch ( final IOException ie ) {
+            file.delete();
+            throw ie;
+        }
+        return file;
+    }
+
+    /**
+     * Creates a new MappedConnectionStub.
+     * Takes over the socket channel of the connection stub the shared memory was negotiated on (with its blocking mode and timeout),
+     * that connection stub must not be used afterwards.
+     * @param connectionStub the connection stub the shared memory was negotiated on
+     * @param file           the file of the shared memory connection
+     * @param nonce          the nonce chosen by the client
+     * @param serverEnd      tells whether this is the server end of the connection
+     * @throws IOException if the file cannot be mapped, or it is not the file of the shared memory connection
+     */
+    public MappedConnectionStub( final ConnectionStub connectionStub, final File file, final long nonce, final boolean serverEnd ) throws IOException {
+        super( connectionStub );   // TCP_NODELAY has been set, a doorbell does not wait for the acknowledgement of the previous one
+
+        if ( !file.isFile() || file.length() != FILE_SIZE )   // Opening a missing file read-write would create it
+            throw new IOException( "Not a shared memory file: " + file );
+        final RandomAccessFile randomAccessFile = new RandomAccessFile( file, "rw" );
+        try {
+            if ( randomAccessFile.length() != FILE_SIZE )   // Mapping would extend a smaller file
+                throw new IOException( "Not a shared memory file: " + file );
+            mappedBuffer = randomAccessFile.getChannel().map( FileChannel.MapMode.READ_WRITE, 0l, FILE_SIZE );
+        }
+        finally {
+            randomAccessFile.close();
+        }
+        if ( mappedBuffer.getInt( MAGIC_POSITION ) != MAGIC_NUMBER || mappedBuffer.getLong( NONCE_POSITION ) != nonce )
+            throw new IOException( "Not a shared memory file: " + file );
+
+        producerView = mappedBuffer.duplicate();
+        consumerView = mappedBuffer.duplicate();
+        outboundRing = serverEnd ? SERVER_RING : CLIENT_RING;
+        inboundRing  = serverEnd ? CLIENT_RING : SERVER_RING;
+    }
+
+    /**
+     * Sends a message through this connection.
+     * Blocks until the message (and the messages queued before it) have been written into the ring buffer.
+     * @param  message message to be sent
+     * @throws IOException if the message is too long, or SocketTimeoutException if the timeout expires
+     */
+    public synchronized void sendMessage( final String message ) throws IOException {
+        final long deadline = getDeadline();
+        queueRecord( ByteBuffer.wrap( message.getBytes() ), outboundQueue );
+        while ( !flushQueuedMessages() ) {
+            if ( deadline != 0l && deadline - System.nanoTime() <= 0l )
+                throw new SocketTimeoutException( "Connection timed out!" );
+            LockSupport.parkNanos( 1000000l );     // The ring buffer is full, this is rare enough to poll
+        }
+    }
+
+    /**
+     * Queues a message to be sent through this connection, and writes as much of the queue into the ring buffer as possible.
+     * The text encoding of the outbound message is used, so it is shared with the connection stubs using text framing.
+     * The message is queued to the lane of its priority (see ConnectionStub.Priorities).
+     * @param outboundMessage the message to be queued
+     * @param flushing        tells whether to flush the queue; if false, the message is written by the next flush (write coalescing)
+     * @return the number of bytes remained in the queue
+     * @throws IOException if the message is too long
+     */
+    public synchronized int queueMessage( final OutboundMessage outboundMessage, final boolean flushing ) throws IOException {
+        final ByteBuffer messageBuffer = outboundMessage.getEncodedMessage( Framings.TEXT ).duplicate();
+        messageBuffer.limit( messageBuffer.limit() - 1 );   // Without the new line character
+        if ( outboundMessage.getPriority() == Priorities.ORDERED ) {
+            outboundQueue.addAll( bulkQueue );               // Records are written whole, so no bulk message is being written
+            bulkQueue.clear();
+        }
+        queueRecord( messageBuffer, outboundMessage.getPriority() == Priorities.BULK ? bulkQueue : outboundQueue );
+        if ( flushing )
+            flushQueuedMessages();
+        return queuedBytes;
+    }
+
+    /**
+     * Returns the number of bytes waiting in the outbound queue.
+     * @return the number of bytes waiting in the outbound queue
+     */
+    public synchronized int getQueuedBytes() {
+        return queuedBytes;
+    }
+
+    /**
+     * Adds a message to an outbound queue.
+     * @param messageBuffer the bytes of the message
+     * @param queue         the queue to add the message to
+     * @throws IOException if the message could never fit into the ring buffer
+     */
+    private void queueRecord( final ByteBuffer messageBuffer, final LinkedList< ByteBuffer > queue ) throws IOException {
+        if ( getRecordSize( messageBuffer.remaining() ) > RING_CAPACITY )
+            throw new IOException( "Message is too long for the shared memory!" );
+        queue.add( messageBuffer );
+        queuedBytes += messageBuffer.remaining();
+    }
+
+    /**
+     * Writes as much of the queued messages into the ring buffer as possible (the game commands first, then the bulk messages),
+     * and rings the doorbell of the consumer if it's waiting.
+     * If the queues do not become empty, sets the waiting flag of the producer, so the consumer rings our doorbell when it made room.
+     * @return true if the outbound queues became empty; false otherwise
+     */
+    synchronized boolean flushQueuedMessages() {
+        boolean written = false;
+        boolean flagged = false;
+        while ( true ) {
+            while ( !outboundQueue.isEmpty() && writeRecord( outboundQueue.getFirst() ) ) {
+                queuedBytes -= outboundQueue.removeFirst().remaining();
+                written = true;
+            }
+            while ( outboundQueue.isEmpty() && !bulkQueue.isEmpty() && writeRecord( bulkQueue.getFirst() ) ) {
+                queuedBytes -= bulkQueue.removeFirst().remaining();
+                written = true;
+            }
+            if ( outboundQueue.isEmpty() && bulkQueue.isEmpty() || flagged )
+                break;
+            mappedBuffer.putInt( outboundRing + PRODUCER_WAITING, 1 );
+            fullFence();                  // The consumer might have made room before it could see the flag, so we try again
+            flagged = true;
+        }
+        final boolean queueEmpty = outboundQueue.isEmpty() && bulkQueue.isEmpty();
+        if ( flagged && queueEmpty )
+            mappedBuffer.putInt( outboundRing + PRODUCER_WAITING, 0 );
+
+        if ( written ) {
+            fullFence();                  // The records must be published before checking the waiting flag of the consumer
+            if ( mappedBuffer.getInt( outboundRing + CONSUMER_WAITING ) != 0 )
+                ringDoorbell();
+        }
+        return queueEmpty;
+    }
+
+    /**
+     * Writes a record into the outbound ring buffer if it fits.
+     * @param messageBuffer the bytes of the message (its position is not changed)
+     * @return true if the record has been written; false if it does not fit
+     */
+    private boolean writeRecord( final ByteBuffer messageBuffer ) {
+        final int length        = messageBuffer.remaining();
+        final int writePosition = mappedBuffer.getInt( outboundRing + WRITE_POSITION );
+        final int readPosition  = mappedBuffer.getInt( outboundRing + READ_POSITION );
+        acquireFence();                   // The consumer has finished reading the released space
+        if ( RING_CAPACITY - ( writePosition - readPosition ) < getRecordSize( length ) )
+            return false;
+
+        final int ringData = outboundRing + RING_HEADER_SIZE;
+        final int offset   = writePosition & ( RING_CAPACITY - 1 );
+        mappedBuffer.putInt( ringData + offset, length );   // Records are aligned to 4 bytes, the length never wraps around
+
+        final int        dataOffset = ( offset + 4 ) & ( RING_CAPACITY - 1 );
+        final int        firstPart  = Math.min( length, RING_CAPACITY - dataOffset );
+        final ByteBuffer source     = messageBuffer.duplicate();
+        source.limit( source.position() + firstPart );
+        producerView.position( ringData + dataOffset );
+        producerView.put( source );
+        if ( firstPart < length ) {
+            source.limit( messageBuffer.limit() );
+            producerView.position( ringData );
+            producerView.put( source );
+        }
+
+        releaseFence();                   // The record must be written before it's published
+        mappedBuffer.putInt( outboundRing + WRITE_POSITION, writePosition + getRecordSize( length ) );
+        return true;
+    }
+
+    /**
+     * Reads the next record from the inbound ring buffer, and rings the doorbell of the producer if it's waiting for room.
+     * @return the message of the record, or null if the ring buffer is empty
+     */
+    private String readRecord() {
+        final int readPosition  = mappedBuffer.getInt( inboundRing + READ_POSITION );
+        final int writePosition = mappedBuffer.getInt( inboundRing + WRITE_POSITION );
+        acquireFence();                   // The records published by the producer are visible
+        if ( writePosition == readPosition )
+            return null;
+
+        final int ringData   = inboundRing + RING_HEADER_SIZE;
+        final int offset     = readPosition & ( RING_CAPACITY - 1 );
+        final int length     = mappedBuffer.getInt( ringData + offset );
+        final byte[] message = new byte[ length ];
+
+        final int dataOffset = ( offset + 4 ) & ( RING_CAPACITY - 1 );
+        final int firstPart  = Math.min( length, RING_CAPACITY - dataOffset );
+        consumerView.position( ringData + dataOffset );
+        consumerView.get( message, 0, firstPart );
+        if ( firstPart < length ) {
+            consumerView.position( ringData );
+            consumerView.get( message, firstPart, length - firstPart );
+        }
+
+        releaseFence();                   // The record must be read before its space is released
+        mappedBuffer.putInt( inboundRing + READ_POSITION, readPosition + getRecordSize( length ) );
+        fullFence();
+        if ( mappedBuffer.getInt( inboundRing + PRODUCER_WAITING ) != 0 )
+            ringDoorbell();
+
+        return new String( message );
+    }
+
+    /**
+     * Release fence: the accesses before it are not reordered with the writes after it (volatile write).
+     */
+    private void releaseFence() {
+        fence = 0;
+    }
+
+    /**
+     * Acquire fence: the reads before it are not reordered with the accesses after it (volatile read).
+     * @return the value of the fence field (returned so the read cannot be eliminated)
+     */
+    private int acquireFence() {
+        return fence;
+    }
+
+    /**
+     * Full fence: the accesses before it are not reordered with the accesses after it (volatile write followed by a volatile read).
+     */
+    private void fullFence() {
+        releaseFence();
+        acquireFence();
+    }
+
+    /**
+     * Returns the size of a record in the ring buffer.
+     * @param length length of the message of the record
+     * @return the size of the record (aligned to 4 bytes)
+     */
+    private static int getRecordSize( final int length ) {
+        return ( 4 + length + 3 ) & ~3;
+    }
+
+    /**
+     * Tells whether the inbound ring buffer has a record.
+     * @return true if the inbound ring buffer has a record; false otherwise
+     */
+    private boolean hasRecord() {
+        return mappedBuffer.getInt( inboundRing + WRITE_POSITION ) != mappedBuffer.getInt( inboundRing + READ_POSITION );
+    }
+
+    /**
+     * Sets the waiting flag of the consumer, so the producer will ring our doorbell when it writes a record.
+     * Called by the connection selector before it starts waiting.
+     * @return true if the inbound ring buffer has a record (there is nothing to wait for); false otherwise
+     */
+    boolean prepareToWait() {
+        mappedBuffer.putInt( inboundRing + CONSUMER_WAITING, 1 );
+        fullFence();                      // The producer might have written a record before it could see the flag
+        return hasRecord();
+    }
+
+    /**
+     * Clears the waiting flag of the consumer.
+     * Called by the connection selector after waiting.
+     */
+    void endWaiting() {
+        mappedBuffer.putInt( inboundRing + CONSUMER_WAITING, 0 );
+    }
+
+    /**
+     * Rings the doorbell of the other end: sends one byte through the socket channel.
+     * If the socket buffer is full, the other end has unread doorbells anyway.
+     */
+    private void ringDoorbell() {
+        try {
+            final int writtenBytes = getSocketChannel().write( ByteBuffer.wrap( new byte[ 1 ] ) );
+            final TransportCounters transportCounters = getTransportCounters();
+            if ( transportCounters != null )
+                transportCounters.countWriteCall( writtenBytes );
+        }
+        catch ( final IOException ie ) {
+            setBroken();
+        }
+    }
+
+    /**
+     * Reads the doorbells that have been received.
+     * In blocking mode blocks until at least 1 doorbell arrives.
+     * @return the number of doorbells read
+     * @throws IOException if I/O error occurs during reading
+     */
+    private int readDoorbells() throws IOException {
+        int doorbells = 0;
+        int readBytes;
+        do {
+            doorbellBuffer.clear();
+            readBytes = getSocketChannel().read( doorbellBuffer );
+            final TransportCounters transportCounters = getTransportCounters();
+            if ( transportCounters != null )
+                transportCounters.countReadCall();
+            if ( readBytes < 0 )
+                setBroken();
+            else
+                doorbells += readBytes;
+        } while ( readBytes == doorbellBuffer.capacity() && !getSocketChannel().isBlocking() );
+        return doorbells;
+    }
+
+    /**
+     * Checks whether new message is ready to be received.<br>
+     * Returns true only if a complete message has been written into the ring buffer, so receiveMessage() will not block after this returned true.
+     * @return true if new message is ready to be received; false otherwise
+     */
+    public boolean hasNewMessage() {
+        return hasRecord();
+    }
+
+    /**
+     * Checks whether new message is ready to be received. Same as hasNewMessage(), there is nothing to be read from the connection.
+     * @return true if new message is ready to be received; false otherwise
+     */
+    public boolean hasReceivedMessage() {
+        return hasRecord();
+    }
+
+    /**
+     * Receives and returns the next message from this connection.
+     * Blocks until a message arrives.
+     * @return the received message, or null if the end of the stream has been reached
+     * @throws IOException if I/O error occurs during waiting for the message (SocketTimeoutException if the timeout expires)
+     */
+    public String receiveMessage() throws IOException {
+        synchronized ( receiveLock ) {
+            final long deadline = getDeadline();
+            String message;
+            while ( ( message = readRecord() ) == null ) {
+                if ( isEndOfStreamReached() )
+                    return readRecord();  // The messages sent before leaving have already been written
+                if ( !prepareToWait() && readDoorbells() == 0 && !isEndOfStreamReached() && !getSocketChannel().isBlocking() ) {
+                    readSelector = waitForChannel( readSelector, SelectionKey.OP_READ, deadline );
+                    readDoorbells();
+                }
+                endWaiting();
+            }
+            return message;
+        }
+    }
+
+    /**
+     * Reads the doorbells that have been received, and writes the queued messages into the ring buffer if the doorbell
+     * might have been rung because the consumer made room.
+     * If I/O error occurs, the connection is considered to have reached the end of the stream.
+     * @return false if the end of the stream has been reached; true otherwise
+     */
+    boolean readReceivedBytes() {
+        synchronized ( receiveLock ) {
+            try {
+                readDoorbells();
+            }
+            catch ( final IOException ie ) {
+                setBroken();
+            }
+        }
+        flushQueuedMessages();
+        return !isEndOfStreamReached();
+    }
+
+    /**
+     * Closes this connection stub.
+     */
+    public void close() {
+        super.close();
+        if ( readSelector != null )
+            try {
+                readSelector.close();
+            }
+            catch ( final IOException ie ) {
+            }
+    }
+
+}
@@ -0,0 +1,111 @@
+/*
+ * Created on October 18, 2026
+ */
+
+package classes.utils;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Iteration timer which has no own thread: the signalings are scheduled on a shared scheduled executor.<br>
+ * The timing is the same as the timing of the ControlledTimer, but many pooled timers can share a few threads.
+ * The timeable object is signaled from a thread of the executor.
+ *
+ * @author Andras Belicza
+ */
+public class PooledTimer implements IterationTimer {
+
+    /** Object to be timed.                                                */
+    private final Timeable                 timeable;
+    /** The executor to schedule the signalings on.                        */
+    private final ScheduledExecutorService executor;
+    /** Period time of timing in ms.                                       */
+    private long                           periodTime;
+    /** Time of the last signaling in ms.                                  */
+    private long                           lastSignalingTime     = System.nanoTime() / 1000000l;
+    /** Tells whether the timeable object is ready for the next iteration. */
+    private boolean                        readyForNextIteration;
+    /** Tells whether the timer has been started.                          */
+    private boolean                        started;
+    /** Tells whether the timer has been shut down.                        */
+    private boolean                        shutDown;
+    /** The scheduled signaling, null if no signaling is scheduled.        */
+    private ScheduledFuture< ? >           scheduledSignaling;
+
+    /** The task signaling the timeable object.                            */
+    private final Runnable                 signalingTask         = new Runnable() {
+        public void run() {
+            synchronized ( PooledTimer.this ) {
+                scheduledSignaling = null;
+                if ( shutDown || !readyForNextIteration )
+                    return;
+                readyForNextIteration = false;
+                lastSignalingTime     = System.nanoTime() / 1000000l;
+            }
+            timeable.signalingNextIteration();
+        }
+    };
+
+    /**
+     * Creates a new PooledTimer.
+     * @param timeable  object to be timed
+     * @param executor  the executor to schedule the signalings on
+     * @param frequency the desirabled timing frequency
+     */
+    public PooledTimer( final Timeable timeable, final ScheduledExecutorService executor, final int frequency ) {
+        this.timeable = timeable;
+        this.executor = executor;
+        setFrequency( frequency );
+    }
+
+    /**
+     * Starts the timing.
+     */
+    public synchronized void start() {
+        started = true;
+        scheduleSignaling();
+    }
+
+    /**
+     * Sets the desireabled timing frequency.
+     * The timing restarts: the next signaling will be not sooner than a whole period after this call.
+     * @param frequency the desirabled timing frequency
+     */
+    public synchronized void setFrequency( final int frequency ) {
+        periodTime        = 1000 / frequency;
+        lastSignalingTime = System.nanoTime() / 1000000l;
+        if ( scheduledSignaling != null ) {
+            scheduledSignaling.cancel( false );
+            scheduledSignaling = null;
+        }
+        scheduleSignaling();
+    }
+
+    /**
+     * Sets that timeable object is ready for next iteration.
+     */
+    public synchronized void setReadyForNextIteration() {
+        readyForNextIteration = true;
+        scheduleSignaling();
+    }
+
+    /**
+     * Shuts down the timer: no more signaling will happen.
+     */
+    public synchronized void shutDown() {
+        shutDown = true;
+        if ( scheduledSignaling != null )
+            scheduledSignaling.cancel( false );
+    }
+
+    /**
+     * Schedules the next signaling if the timeable object is ready for it and it is not scheduled yet.
+     */
+    private void scheduleSignaling() {
+        if ( started && !shutDown && readyForNextIteration && scheduledSignaling == null )
+            scheduledSignaling = executor.schedule( signalingTask, Math.max( lastSignalingTime + periodTime - System.nanoTime() / 1000000l, 0l ), TimeUnit.MILLISECONDS );
+    }
+
+}
@@ -0,0 +1,76 @@
+/*
+ * Created on October 18, 2026
+ */
+
+package classes.utils;
+
+import java.util.Random;
+
+/**
+ * A Random whose state can be queried and restored.<br>
+ * Generates exactly the same sequence as java.util.Random seeded with the same seed
+ * (it uses the same linear congruential generator), but the state of the generator is accessible,
+ * so the random sequence can be rewound.<br>
+ * The state of nextGaussian() is not part of the accessible state.
+ *
+ * @author Andras Belicza
+ */
+public class RestorableRandom extends Random {
+
+    /** Version of the serialized form (Random is serializable).                              */
+    private static final long serialVersionUID = 1l;
+
+    /** The multiplier of the linear congruential generator (the same as in java.util.Random). */
+    private static final long MULTIPLIER = 0x5DEECE66DL;
+    /** The addend of the linear congruential generator (the same as in java.util.Random).     */
+    private static final long ADDEND     = 0xBL;
+    /** Mask of the 48 bits of the state.                                                     */
+    private static final long MASK       = ( 1l << 48 ) - 1;
+
+    /** The state of the generator. Must not have an initializer: setSeed() is called from the super constructor. */
+    private long state;
+
+    /**
+     * Creates a new RestorableRandom.
+     * @param seed the initial seed
+     */
+    public RestorableRandom( final long seed ) {
+        super( seed );
+    }
+
+    /**
+     * Sets the seed of the generator.
+     * @param seed the new seed
+     */
+    public synchronized void setSeed( final long seed ) {
+        state = ( seed ^ MULTIPLIER ) & MASK;
+        super.setSeed( seed );   // Clears the state of nextGaussian()
+    }
+
+    /**
+     * Generates the next pseudorandom number.
+     * @param bits number of random bits
+     * @return the next pseudorandom value
+     */
+    protected synchronized int next( final int bits ) {
+        state = ( state * MULTIPLIER + ADDEND ) & MASK;
+        return (int) ( state >>> 48 - bits );
+    }
+
+    /**
+     * Returns the state of the generator.
+     * @return the state of the generator
+     */
+    public synchronized long getState() {
+        return state;
+    }
+
+    /**
+     * Restores a state of the generator returned by getState().
+     * @param state the state to be restored
+     */
+    public synchronized void setState( final long state ) {
+        this.state = state;
+    }
+
+}
@@ -0,0 +1,95 @@
+/*
+ * Created on October 18, 2026
+ */
+
+package classes.utils;
+
+/**
+ * Histogram of time samples.<br>
+ * The samples are counted in buckets of exponentially growing widths (1, 2, 5, 10, 20, 50... ms),
+ * the last bucket counts the samples exceeding the last bound.<br>
+ * The methods are synchronized, so the histogram can be queried from other threads than the one adding the samples.
+ *
+ * @author Andras Belicza
+ */
+public class TimeHistogram {
+
+    /** Upper bounds of the buckets in ms (inclusive). */
+    private static final long[] BUCKET_BOUNDS = { 1l, 2l, 5l, 10l, 20l, 50l, 100l, 200l, 500l, 1000l, 2000l, 5000l };
+
+    /** Number of samples in the buckets.          */
+    private final long[] bucketCounts = new long[ BUCKET_BOUNDS.length + 1 ];
+    /** Number of the samples.                     */
+    private long         samplesCount;
+    /** Sum of the samples in ns.                  */
+    private long         samplesSum;
+    /** The maximum of the samples in ns.          */
+    private long         maxSample;
+
+    /**
+     * Adds a new sample to the histogram.
+     * @param sample the sample to be added in ns
+     */
+    public synchronized void addSample( final long sample ) {
+        int bucketIndex = 0;
+        while ( bucketIndex < BUCKET_BOUNDS.length && sample > BUCKET_BOUNDS[ bucketIndex ] * 1000000l )
+            bucketIndex++;
+        bucketCounts[ bucketIndex ]++;
+
+        samplesCount++;
+        samplesSum += sample;
+        if ( sample > maxSample )
+            maxSample = sample;
+    }
+
+    /**
+     * Returns the number of the samples.
+     * @return the number of the samples
+     */
+    public synchronized long getSamplesCount() {
+        return samplesCount;
+    }
+
+    /**
+     * Returns the mean of the samples.
+     * @return the mean of the samples in ms; 0 if there are no samples
+     */
+    public synchronized double getMean() {
+        return samplesCount == 0l ? 0.0 : samplesSum / 1000000.0 / samplesCount;
+    }
+
+    /**
+     * Returns the maximum of the samples.
+     * @return the maximum of the samples in ms
+     */
+    public synchronized double getMax() {
+        return maxSample / 1000000.0;
+    }
+
+    /**
+     * Returns the sum of the samples.
+     * @return the sum of the samples in ms
+     */
+    public synchronized double getSum() {
+        return samplesSum / 1000000.0;
+    }
+
+    /**
+     * Returns the text representation of the histogram: the non-empty buckets with their counts.
+     * @return the text representation of the histogram
+     */
+    public synchronized String toString() {
+        final StringBuilder histogramBuilder = new StringBuilder();
+
+        for ( int i = 0; i < bucketCounts.length; i++ )
+            if ( bucketCounts[ i ] > 0l ) {
+                if ( histogramBuilder.length() > 0 )
+                    histogramBuilder.append( ' ' );
+                histogramBuilder.append( i < BUCKET_BOUNDS.length ? "<=" + BUCKET_BOUNDS[ i ] : ">" + BUCKET_BOUNDS[ BUCKET_BOUNDS.length - 1 ] )
+                                .append( "ms:" ).append( bucketCounts[ i ] );
+            }
+
+        return histogramBuilder.length() == 0 ? "no samples" : histogramBuilder.toString();
+    }
+
+}
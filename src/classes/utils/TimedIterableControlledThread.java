@@ -5,26 +5,38 @@
 
 package classes.utils;
 
+import java.util.concurrent.ScheduledExecutorService;
+
 /**
- * This class is a controlled thread which has iterations timed by a controlled timer.
+ * This class is a controlled thread which has iterations timed by an iteration timer.<br>
+ * The timer is an own controlled timer thread by default, or a pooled timer sharing the threads of an executor.
  *
  * @author Andras Belicza
  */
 public class TimedIterableControlledThread extends ControlledThread implements Timeable {
 
-    /** A controlled timer which will time the iterations of this controlled thread. */
-	protected final ControlledTimer iterationTimer;
+    /** The iteration timer which will time the iterations of this controlled thread. */
+	protected final IterationTimer  iterationTimer;
     /** Tells whether next iteration may begin. 									 */
     protected volatile boolean      nextIterationMayBegin = false;
-
+    
     /**
      * Creates a new TimedIterableControlledThread.
      * @param frequency the desirabled timing frequency of the timer of this iterable controlled thread
      */
     public TimedIterableControlledThread( final int frequency ) {
-        iterationTimer = new ControlledTimer( this, frequency );
+        this( null, frequency );
     }
-
+    
+    /**
+     * Creates a new TimedIterableControlledThread.
+     * @param timerExecutor executor to schedule the timing on; if null, the timer will have its own thread
+     * @param frequency     the desirabled timing frequency of the timer of this iterable controlled thread
+     */
+    public TimedIterableControlledThread( final ScheduledExecutorService timerExecutor, final int frequency ) {
+        iterationTimer = timerExecutor == null ? new ControlledTimer( this, frequency ) : new PooledTimer( this, timerExecutor, frequency );
+    }
+    
     /**
      * Method to be called when the timeable object must be timed.
      * Signs that new iteration may begin now.
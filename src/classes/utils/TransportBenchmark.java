@@ -0,0 +1,149 @@
+/*
+ * Created on October 18, 2026
+ */
+
+package classes.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+
+/**
+ * Benchmark of the transports of the connection stubs: measures the round trip time of lockstep-like messages
+ * through loopback TCP, shared memory (MappedConnectionStub) and in-process loopback (LoopbackConnectionStub).<br>
+ * <br>
+ * One end plays the client: it sends a message and waits for the answer in a connection selector, like the client thread.
+ * The other end plays the server: it waits in a connection selector, and queues the answer, like the server thread.
+ * The two ends are threads of one process, but the TCP and shared memory transports work the same way between processes
+ * (system calls, kernel copies and doorbells are the same).<br>
+ * <br>
+ * Usage: java -cp . classes.utils.TransportBenchmark [round trips]
+ *
+ * @author Andras Belicza
+ */
+public class TransportBenchmark {
+
+    /** Default number of measured round trips.                          */
+    private static final int    DEFAULT_ROUND_TRIPS = 100000;
+    /** The message sent in the round trips (a STARTING_NEXT_ITERATION like command). */
+    private static final String MESSAGE             = "9|1|0|3|16|";
+
+    /**
+     * Runs the benchmark.
+     * @param arguments optional number of round trips
+     * @throws Exception if the benchmark fails
+     */
+    public static void main( final String[] arguments ) throws Exception {
+        final int roundTrips = arguments.length > 0 ? Integer.parseInt( arguments[ 0 ] ) : DEFAULT_ROUND_TRIPS;
+
+        System.out.println( "Round trip times of " + roundTrips + " messages in microseconds:" );
+        System.out.println( "Transport              mean  median     99%   99.9%" );
+        for ( int i = 0; i < 2; i++ ) {          // The first pass warms up the JIT
+            final boolean measured = i > 0;
+
+            ConnectionStub[] connectionStubs = createTcpConnectionStubs();
+            printResult( "Loopback TCP", measureRoundTrips( connectionStubs[ 0 ], connectionStubs[ 1 ], roundTrips ), measured );
+
+            connectionStubs = createTcpConnectionStubs();
+            final long nonce = System.nanoTime();
+            final File file  = MappedConnectionStub.createFile( nonce );
+            try {
+                printResult( "Shared memory", measureRoundTrips( new MappedConnectionStub( connectionStubs[ 0 ], file, nonce, false ),
+                                                                 new MappedConnectionStub( connectionStubs[ 1 ], file, nonce, true ), roundTrips ), measured );
+            }
+            finally {
+                file.delete();
+            }
+
+            final LoopbackConnectionStub loopbackConnectionStub = new LoopbackConnectionStub();
+            printResult( "In-process loopback", measureRoundTrips( loopbackConnectionStub, loopbackConnectionStub.getPeer(), roundTrips ), measured );
+        }
+    }
+
+    /**
+     * Creates a pair of connection stubs connected through loopback TCP.
+     * @return the client and the server connection stubs
+     * @throws IOException if I/O error occurs during connecting
+     */
+    private static ConnectionStub[] createTcpConnectionStubs() throws IOException {
+        final ServerSocketChannel serverSocketChannel = ServerSocketChannel.open();
+        try {
+            serverSocketChannel.socket().bind( new InetSocketAddress( InetAddress.getByName( null ), 0 ) );
+            final SocketChannel clientSocketChannel = SocketChannel.open( serverSocketChannel.socket().getLocalSocketAddress() );
+            return new ConnectionStub[] { new ConnectionStub( clientSocketChannel ), new ConnectionStub( serverSocketChannel.accept() ) };
+        }
+        finally {
+            serverSocketChannel.close();
+        }
+    }
+
+    /**
+     * Measures the round trip times of messages between 2 connection stubs, and closes them.
+     * @param clientConnectionStub the connection stub sending the messages
+     * @param serverConnectionStub the connection stub answering the messages
+     * @param roundTrips           number of round trips
+     * @return the round trip times in ns
+     * @throws Exception if the measurement fails
+     */
+    private static long[] measureRoundTrips( final ConnectionStub clientConnectionStub, final ConnectionStub serverConnectionStub, final int roundTrips ) throws Exception {
+        final ConnectionSelector< ConnectionStub > serverSelector = new ConnectionSelector< ConnectionStub >();
+        serverSelector.register( serverConnectionStub, serverConnectionStub );
+        final Thread serverThread = new Thread() {
+            public void run() {
+                while ( !serverConnectionStub.isEndOfStreamReached() )
+                    for ( final ConnectionStub connectionStub : serverSelector.select( 0l ) )
+                        try {
+                            while ( connectionStub.hasReceivedMessage() )
+                                connectionStub.queueMessage( new ConnectionStub.OutboundMessage( connectionStub.receiveMessage() ) );
+                        }
+                        catch ( final IOException ie ) {
+                            return;
+                        }
+            }
+        };
+        serverThread.start();
+
+        final ConnectionSelector< ConnectionStub > clientSelector = new ConnectionSelector< ConnectionStub >();
+        clientSelector.register( clientConnectionStub, clientConnectionStub );
+        final long[] roundTripTimes = new long[ roundTrips ];
+        for ( int i = 0; i < roundTrips; i++ ) {
+            final long sendingTime = System.nanoTime();
+            clientConnectionStub.sendMessage( MESSAGE );
+            while ( !clientConnectionStub.hasNewMessage() )
+                clientSelector.select( 0l );
+            clientConnectionStub.receiveMessage();
+            roundTripTimes[ i ] = System.nanoTime() - sendingTime;
+        }
+
+        clientConnectionStub.close();
+        serverThread.join();
+        serverConnectionStub.close();
+        clientSelector.close();
+        serverSelector.close();
+        return roundTripTimes;
+    }
+
+    /**
+     * Prints the result of a measurement.
+     * @param transport      name of the transport
+     * @param roundTripTimes the round trip times in ns
+     * @param measured       tells whether this is a measured pass (the results of the warm up pass are not printed)
+     */
+    private static void printResult( final String transport, final long[] roundTripTimes, final boolean measured ) {
+        if ( !measured )
+            return;
+        long sum = 0l;
+        for ( final long roundTripTime : roundTripTimes )
+            sum += roundTripTime;
+        Arrays.sort( roundTripTimes );
+        System.out.println( String.format( "%-19s %7.1f %7.1f %7.1f %7.1f", transport, sum / 1000.0 / roundTripTimes.length,
+                                           roundTripTimes[ roundTripTimes.length / 2 ] / 1000.0,
+                                           roundTripTimes[ (int) ( roundTripTimes.length * 0.99 ) ] / 1000.0,
+                                           roundTripTimes[ (int) ( roundTripTimes.length * 0.999 ) ] / 1000.0 ) );
+    }
+
+}
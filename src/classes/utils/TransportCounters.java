@@ -0,0 +1,82 @@
+/*
+ * Created on October 18, 2026
+ */
+
+package classes.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters of the system calls of connection stubs, shared by the connection stubs of a server.<br>
+ * TCP segments cannot be observed from Java, they are estimated from the written bytes of each write call
+ * (with TCP_NODELAY every write call sends at least one segment, and a segment carries at most ESTIMATED_SEGMENT_SIZE bytes).<br>
+ * The counters can be read from other threads than the ones counting.
+ *
+ * @author Andras Belicza
+ */
+public class TransportCounters {
+
+    /** The estimated size of the payload of a TCP segment in bytes (Ethernet MTU minus the IP and TCP headers with timestamps). */
+    public static final int ESTIMATED_SEGMENT_SIZE = 1448;
+
+    /** Number of the write system calls.              */
+    private final AtomicLong writeCallsCount   = new AtomicLong();
+    /** Number of the read system calls.               */
+    private final AtomicLong readCallsCount    = new AtomicLong();
+    /** Number of the written bytes.                   */
+    private final AtomicLong writtenBytesCount = new AtomicLong();
+    /** Estimated number of the sent TCP segments.     */
+    private final AtomicLong sentSegmentsCount = new AtomicLong();
+
+    /**
+     * Counts a write system call.
+     * @param writtenBytes number of bytes written by the call
+     */
+    public void countWriteCall( final long writtenBytes ) {
+        writeCallsCount.incrementAndGet();
+        if ( writtenBytes > 0l ) {
+            writtenBytesCount.addAndGet( writtenBytes );
+            sentSegmentsCount.addAndGet( ( writtenBytes + ESTIMATED_SEGMENT_SIZE - 1 ) / ESTIMATED_SEGMENT_SIZE );
+        }
+    }
+
+    /**
+     * Counts a read system call.
+     */
+    public void countReadCall() {
+        readCallsCount.incrementAndGet();
+    }
+
+    /**
+     * Returns the number of the write system calls.
+     * @return the number of the write system calls
+     */
+    public long getWriteCallsCount() {
+        return writeCallsCount.get();
+    }
+
+    /**
+     * Returns the number of the read system calls.
+     * @return the number of the read system calls
+     */
+    public long getReadCallsCount() {
+        return readCallsCount.get();
+    }
+
+    /**
+     * Returns the number of the written bytes.
+     * @return the number of the written bytes
+     */
+    public long getWrittenBytesCount() {
+        return writtenBytesCount.get();
+    }
+
+    /**
+     * Returns the estimated number of the sent TCP segments.
+     * @return the estimated number of the sent TCP segments
+     */
+    public long getSentSegmentsCount() {
+        return sentSegmentsCount.get();
+    }
+
+}
@@ -0,0 +1 @@
+java -Xmx32m -cp . BombermenServer %*